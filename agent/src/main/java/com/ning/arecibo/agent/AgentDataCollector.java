@@ -24,25 +24,26 @@ import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.skife.config.TimeSpan;
 import com.ning.arecibo.agent.config.Config;
+import com.ning.arecibo.agent.datasource.AsyncDataSource;
 import com.ning.arecibo.agent.datasource.DataSource;
 import com.ning.arecibo.agent.datasource.DataSourceException;
+import com.ning.arecibo.agent.datasource.DataSourceFuture;
 import com.ning.arecibo.agent.datasource.DataSourceType;
 import com.ning.arecibo.agent.guice.AgentConfig;
+import com.ning.arecibo.agent.polling.PollingEngine;
 import com.ning.arecibo.agent.status.Status;
 import com.ning.arecibo.agent.status.StatusType;
-import com.ning.arecibo.agent.transform.CounterRateTransform;
-import com.ning.arecibo.agent.transform.RateTransform;
-import com.ning.arecibo.agent.transform.Transform;
+import com.ning.arecibo.agent.transform.TransformPlan;
 import com.ning.arecibo.event.MonitoringEvent;
 import com.ning.arecibo.eventlogger.EventPublisher;
 import com.ning.arecibo.util.Logger;
 import com.ning.arecibo.util.Pair;
 
-public final class AgentDataCollector implements Runnable
+public final class AgentDataCollector implements PollingEngine.PollingTask
 {
 	private static final Logger log = Logger.getLogger(AgentDataCollector.class);
 
-    public static final String GROUP_DELIMITER_START = "{";
+    public static final String GROUP_DELIMITER_START = TransformPlan.GROUP_DELIMITER_START;
 
 	public static final int COLLECTOR_INIT_RESET = 0;
 	public static final int COLLECTOR_INIT_STARTED = 1;
@@ -67,7 +68,8 @@ public final class AgentDataCollector implements Runnable
 	private final Map<String, Status> status;
 	private final DataSource dataSource;
 
-	private volatile Map<String, _TransformableAttribute> expandedAttributes;      // attribute --> class
+	private volatile Map<String, Config> expandedConfigs;                         // attribute --> config
+	private volatile TransformPlan transformPlan;
 
 	private final AtomicInteger collectorInitialization;
 	private final TimeSpan scheduledPollingInterval;
@@ -81,6 +83,8 @@ public final class AgentDataCollector implements Runnable
     private volatile long lastPollingEndTimeNanos = 0L;
     private volatile long lastPollingDurationNanos = 0L;
     private volatile long lastPollingIntervalNanos = 0L;
+    private volatile long lastSchedulingLagMillis = 0L;
+    private volatile boolean asyncPollInFlight = false;
 
     public AgentDataCollector(DataSource dataSource,
 							  Config config,
@@ -179,33 +183,21 @@ public final class AgentDataCollector implements Runnable
 		this.abort = abort;
 	}
 
-    // TODO: After converting this to run as a self-rescheduling Runnable, rather than scheduled by an executor
-    // at a fixed rate/delay, it's probably possible to simplify the handling for exponential backup (skip cycles) and
-    // also for the abort mechanism
-	public synchronized void run()
+    // TODO: Now that this reschedules itself, rather than being scheduled by an executor at a fixed rate/delay,
+    // it's probably possible to simplify the handling for exponential backup (skip cycles) and also for the abort mechanism
+	public synchronized void poll(PollingEngine.HostPermit permit)
 	{
 
         boolean okToRescheduleNormally = true;
-        boolean semaphoreAcquired = false;
-        boolean semaphoreReleased = false;
+        this.lastSchedulingLagMillis = permit.getSchedulingLagMillis();
 		try {
 
-            // try to acquire semaphore
-            if(!(semaphoreAcquired = collectorManager.tryAcquirePerHostSemaphore(this.hostName))) {
-                // reset this if we fail, try to find an available slot in the cycle
-                referenceExecutionStartTime = 0L;
-
-                collectorManager.incrementFailedSemaphoreAcquisitions();
-                return;
-            }
-
 			// see if an abort has been requested
 			if (this.abort) {
 				log.info("Aborting Collector for " + this.collectorHashKey);
 				collectorManager.incrementCollectorsAborted();
 
-				// cause this Runnable to be unscheduled from the ScheduledThreadPoolExecutor
-				// by throwing a RuntimeException out of here
+				// cause this collector not to be rescheduled, by throwing a RuntimeException out of here
 				throw new _AbortCollectorException("Aborting collector thread by request...");
 			}
             else {
@@ -236,84 +228,33 @@ public final class AgentDataCollector implements Runnable
 				return;
 			}
 
-			// Fetch the data from the data source
-			Map<String, Object> eventValues = null;
-			String errorStatusMsg = null;
-			try {
-				eventValues = getNewValues();
+			// Fetch the data from the data source, without blocking this thread if the data source allows it
+			if (this.dataSource instanceof AsyncDataSource) {
+				startAsyncPoll((AsyncDataSource)this.dataSource, updateTime);
+				return;
+			}
 
-				if (eventValues != null && eventValues.size() > 0) {
-					collectorManager.incrementPollingSuccesses();
-				}
-				else {
-					errorStatusMsg = "Null data values returned";
-					collectorManager.incrementPollingFailures();
-				}
-				updateCycleSkipCount(false);
+			long pollStartTimeNanos = System.nanoTime();
+			Map<String, Object> newValues = null;
+			DataSourceException failure = null;
+			try {
+				newValues = this.dataSource.getValues();
 			}
 			catch (DataSourceException e) {
-				
-				// don't log this as warn, don't want to spam splunk
-				//   can alert separately on polling failure counts, etc.
-                if(e.getCause() != null)
-				    log.info(e.getCause().getMessage());
-                else
-                    log.info(e);
-				
-				// force re-initialization next cycle
-				updateCycleSkipCount(true);
-				log.info("Setting collector for re-initialization, after skipping " + this.cyclesToSkip + " intervals, for " + this.collectorHashKey);
-				
-				errorStatusMsg = e.toString();
-				this.collectorInitialization.set(COLLECTOR_INIT_RESET);
-				collectorManager.incrementPollingFailures();
+				failure = e;
 			}
             finally {
-                // release this semaphore now, prior to time-consuming event publishing, etc.
-                collectorManager.releasePerHostSemaphore(this.hostName);
-                semaphoreReleased = true;
+                // let the next poll of this host start now, prior to time-consuming event publishing, etc.
+                permit.release();
             }
 
-			// Publish the data
-			if (eventValues != null && eventValues.size() > 0) {
-
-                Map<String,Object> publishValues = prepareValuesForPublishing(eventValues);
-
-				publishEvent(new MonitoringEvent(updateTime,
-                                                    this.eventType,
-                                                    this.uuid,
-                                                    this.hostName + agentConfig.getPublishedHostSuffix(),
-                                                    this.deployedEnv,
-                                                    this.deployedVersion,
-                                                    this.deployedType,
-                                                    this.deployedConfigSubPath + agentConfig.getPublishedPathSuffix(),
-                                                    publishValues));
-			}
-
-			// Update the state of each expected attribute
-			for (Map.Entry<String, Status> entry : this.status.entrySet()) {
-				String eventAttributeType = entry.getKey();
-				Status stat = entry.getValue();
-				if (errorStatusMsg != null) {
-					stat.setLastStatus(StatusType.READ_FAILURE, updateTime, errorStatusMsg, null);
-				}
-				else {
-					if (eventValues != null && eventValues.get(eventAttributeType) != null) {
-						stat.setLastStatus(StatusType.READ_SUCCESS, updateTime, null, eventValues.get(eventAttributeType));
-					}
-					else {
-						stat.setLastStatus(StatusType.READ_NULL, updateTime, null, null);
-					}
-				}
-
-			}
+			completePoll(updateTime, pollStartTimeNanos, newValues, failure);
 		}
 		catch (_AbortCollectorException abEx) {
             okToRescheduleNormally = false;
 			log.info("Aborting collector thread by request for: " + this.collectorHashKey);
 
-			// this will cause the executor to suspend scheduling of this Collector
-			throw abEx;
+			// this Collector won't be rescheduled
 		}
 		catch (RuntimeException ruEx) {
 			// catch all other RuntimeExceptions just in case, so this Collector doesn't get suspended from being scheduled
@@ -322,24 +263,141 @@ public final class AgentDataCollector implements Runnable
 		}
         finally {
 
-            if(semaphoreAcquired && !semaphoreReleased) {
-                // make sure we release here, if we return abnormally, and it wasn't released after the call to getValues above
-                collectorManager.releasePerHostSemaphore(this.hostName);
-            }
+            // make sure the permit is released, if we return abnormally before the call to getValues above
+            permit.release();
 
             if(okToRescheduleNormally) {
-                if(semaphoreAcquired) {
-                    long currentTime = System.currentTimeMillis();
-                    long nextDelayMillis = scheduledPollingInterval.getMillis() - ((currentTime - referenceExecutionStartTime) % (scheduledPollingInterval.getMillis()));
-                    collectorManager.rescheduleCollector(this,nextDelayMillis);
-                }
-                else {
-                    collectorManager.rescheduleCollectorAfterSemaphoreRetryDelay(this);
-                }
+                long currentTime = System.currentTimeMillis();
+                long nextDelayMillis = scheduledPollingInterval.getMillis() - ((currentTime - referenceExecutionStartTime) % (scheduledPollingInterval.getMillis()));
+                collectorManager.rescheduleCollector(this,nextDelayMillis);
             }
         }
 	}
 	
+	private void startAsyncPoll(AsyncDataSource asyncDataSource, final long updateTime)
+	{
+		if (this.asyncPollInFlight) {
+			// e.g. the previous poll is waiting for a timeout longer than the polling interval
+			log.info("Skipping collector cycle, previous poll still in flight, for " + this.collectorHashKey);
+			return;
+		}
+		this.asyncPollInFlight = true;
+
+		final long pollStartTimeNanos = System.nanoTime();
+		DataSourceFuture future;
+		try {
+			future = asyncDataSource.getValuesAsync();
+		}
+		catch (RuntimeException ruEx) {
+			// e.g. a bad port in the config, the poll is over before it started
+			this.asyncPollInFlight = false;
+			completePoll(updateTime, pollStartTimeNanos, null, new DataSourceException("Could not start poll", ruEx));
+			return;
+		}
+		future.addListener(new DataSourceFuture.Listener()
+		{
+			public void completed(DataSourceFuture future)
+			{
+				completeAsyncPoll(future, updateTime, pollStartTimeNanos);
+			}
+		});
+	}
+
+	private synchronized void completeAsyncPoll(DataSourceFuture future, long updateTime, long pollStartTimeNanos)
+	{
+		this.asyncPollInFlight = false;
+		if (this.abort) {
+			return;
+		}
+
+		Map<String, Object> newValues = null;
+		DataSourceException failure = null;
+		try {
+			newValues = future.getValues();
+		}
+		catch (DataSourceException e) {
+			failure = e;
+		}
+
+		try {
+			completePoll(updateTime, pollStartTimeNanos, newValues, failure);
+		}
+		catch (RuntimeException ruEx) {
+			log.warn("Got RuntimeException completing poll for: " + this.collectorHashKey);
+			log.warn(ruEx);
+		}
+	}
+
+	// process, publish and record the status of the values of a poll
+	private void completePoll(long updateTime, long pollStartTimeNanos, Map<String, Object> newValues, DataSourceException failure)
+	{
+		Map<String, Object> eventValues = null;
+		Map<String, Object> publishValues = null;
+		String errorStatusMsg = null;
+		if (failure == null) {
+			eventValues = this.transformPlan != null ? this.transformPlan.newValueMap(1) : new HashMap<String, Object>();
+
+			// the event copies its values, so publish the status values as is when possible
+			publishValues = getNewValues(newValues, pollStartTimeNanos, eventValues) ? eventValues : TransformPlan.withoutGroupValues(eventValues);
+
+			if (eventValues != null && eventValues.size() > 0) {
+				collectorManager.incrementPollingSuccesses();
+			}
+			else {
+				errorStatusMsg = "Null data values returned";
+				collectorManager.incrementPollingFailures();
+			}
+			updateCycleSkipCount(false);
+		}
+		else {
+			// don't log this as warn, don't want to spam splunk
+			//   can alert separately on polling failure counts, etc.
+			if (failure.getCause() != null)
+				log.info(failure.getCause().getMessage());
+			else
+				log.info(failure);
+
+			// force re-initialization next cycle
+			updateCycleSkipCount(true);
+			log.info("Setting collector for re-initialization, after skipping " + this.cyclesToSkip + " intervals, for " + this.collectorHashKey);
+			
+			errorStatusMsg = failure.toString();
+			this.collectorInitialization.set(COLLECTOR_INIT_RESET);
+			collectorManager.incrementPollingFailures();
+		}
+
+		// Publish the data
+		if (eventValues != null && eventValues.size() > 0) {
+			publishEvent(new MonitoringEvent(updateTime,
+                                                    this.eventType,
+                                                    this.uuid,
+                                                    this.hostName + agentConfig.getPublishedHostSuffix(),
+                                                    this.deployedEnv,
+                                                    this.deployedVersion,
+                                                    this.deployedType,
+                                                    this.deployedConfigSubPath + agentConfig.getPublishedPathSuffix(),
+                                                    publishValues));
+		}
+
+		// Update the state of each expected attribute
+		for (Map.Entry<String, Status> entry : this.status.entrySet()) {
+			String eventAttributeType = entry.getKey();
+			Status stat = entry.getValue();
+			if (errorStatusMsg != null) {
+				stat.setLastStatus(StatusType.READ_FAILURE, updateTime, errorStatusMsg, null);
+			}
+			else {
+				if (eventValues != null && eventValues.get(eventAttributeType) != null) {
+					stat.setLastStatus(StatusType.READ_SUCCESS, updateTime, null, eventValues.get(eventAttributeType));
+				}
+				else {
+					stat.setLastStatus(StatusType.READ_NULL, updateTime, null, null);
+				}
+			}
+
+		}
+	}
+
 	public DataSourceType getDataSourceType() {
 		return this.dataSource.getDataSourceType();
 	}
@@ -451,10 +509,12 @@ public final class AgentDataCollector implements Runnable
 				return;
 			}
 
-			this.expandedAttributes = new HashMap<String, _TransformableAttribute>();
+			this.expandedConfigs = new HashMap<String, Config>();
+			TransformPlan.Builder planBuilder = new TransformPlan.Builder(this.eventType);
 			for (Config config : workingConfigs.values()) {
-				addAttributeTransforms(config);
+				addAttributeTransforms(config, planBuilder);
 			}
+			this.transformPlan = planBuilder.build();
 
 			// Successful initialization. Now set up parsers, et al for the attributes
 			try {
@@ -467,10 +527,9 @@ public final class AgentDataCollector implements Runnable
 			}
 
 			// set the status of all of the attributes managed by this collector to indicate client init success
-			for (String attr : this.expandedAttributes.keySet()) {
-				_TransformableAttribute transformableAttribute = this.expandedAttributes.get(attr);
-				for (String eventAttributeType : transformableAttribute.getTransforms().keySet()) {
-					Config config = transformableAttribute.getConfig();
+			for (String attr : this.expandedConfigs.keySet()) {
+				Config config = this.expandedConfigs.get(attr);
+				for (String eventAttributeType : this.transformPlan.getEventAttributeTypes(attr)) {
 					Status stat = new Status(config,eventAttributeType);
 					stat.setLastStatus(statusVal, updateTime, msg, null);
 					this.status.put(eventAttributeType, stat);
@@ -494,52 +553,19 @@ public final class AgentDataCollector implements Runnable
 		throws DataSourceException
 	{
 		// add parsers, etc
-		for (Map.Entry<String, _TransformableAttribute> entry : expandedAttributes.entrySet()) {
-			this.dataSource.prepareConfig(entry.getValue().getConfig());
+		for (Config config : expandedConfigs.values()) {
+			this.dataSource.prepareConfig(config);
 		}
 
 		this.dataSource.finalizePreparation();
 	}
 
-	private void addAttributeTransforms(Config config)
+	private void addAttributeTransforms(Config config, TransformPlan.Builder planBuilder)
 	{
-		String eventAttributeType = config.getEventAttributeType();	// use eventAttributeType so there can be >1 transform per attribute
-		String attr = config.getConfigHashKey();
-		if (this.expandedAttributes.containsKey(attr)) {
-			log.warn("Replacing transform for '%s' (eventAttributeType '%s').", eventAttributeType, config.getEventAttributeType());
-		}
-
+		// use eventAttributeType so there can be >1 transform per attribute
 		// we assume all rate calculations are for Counters (may need to revisit later)
-		if (config.isBothValueAndRate()) {
-			// add non-rate
-			_TransformableAttribute transformableAttr = new _TransformableAttribute(eventAttributeType, new Transform(), config);
-			
-			// add rate...
-			if(config.isCounter())
-				transformableAttr.addTransform(eventAttributeType + "Rate", new CounterRateTransform());
-			else
-				transformableAttr.addTransform(eventAttributeType + "Rate", new RateTransform());
-			
-			this.expandedAttributes.put(attr, transformableAttr);
-			return;
-		}
-
-		if (config.isRate()) {
-			
-			_TransformableAttribute transformableAttr;
-			if(config.isCounter())
-				transformableAttr = new _TransformableAttribute(eventAttributeType, new CounterRateTransform(), config);
-			else
-				transformableAttr = new _TransformableAttribute(eventAttributeType, new RateTransform(), config);
-			
-			this.expandedAttributes.put(attr, transformableAttr);
-			return;
-		}
-
-        // default to non-rate transform
-		_TransformableAttribute transformableAttr = new _TransformableAttribute(eventAttributeType, new Transform(), config);
-		this.expandedAttributes.put(attr, transformableAttr);
-
+		planBuilder.addAttribute(config.getConfigHashKey(), config.getEventAttributeType(), config.isRate(), config.isBothValueAndRate(), config.isCounter());
+		this.expandedConfigs.put(config.getConfigHashKey(), config);
 	}
 
 	private void publishEvent(MonitoringEvent event)
@@ -552,109 +578,19 @@ public final class AgentDataCollector implements Runnable
 		}
 	}
 
-    private Map<String, Object> prepareValuesForPublishing(Map<String, Object> eventValues) {
-        // do any needed tweaks before sending values over the wire
-        // want to keep the original around for reporting status, etc.
-
-        HashMap<String,Object> publishValues = new HashMap<String,Object>();
-
-        for(Map.Entry<String,Object> entry:eventValues.entrySet()) {
-            
-            if(entry.getValue() instanceof String) {
-                // remove any group values (member values should be present as individual entries)
-                if(((String)entry.getValue()).startsWith(GROUP_DELIMITER_START))
-                    continue;
-            }
-
-            publishValues.put(entry.getKey(),entry.getValue());
-        }
-
-        return publishValues;
-    }
-
-	private Map<String, Object> getNewValues()  throws DataSourceException
+	// returns false if eventValues holds group values, which are not to be published
+	private boolean getNewValues(Map<String, Object> newValues, long pollStartTimeNanos, Map<String, Object> eventValues)
 	{
-        long pollStartTimeNanos = System.nanoTime();
-
-		Map<String, Object> newValues;
-		
-		// get values from dataSource
-		newValues = this.dataSource.getValues();
-
-		if (newValues == null) {
-			return null;
+		if (newValues == null || this.transformPlan == null) {
+			return true;
 		}
 
-		Map<String, Object> eventValues = new HashMap<String, Object>();
-		for (Map.Entry<String, Object> entry : newValues.entrySet()) {
-			
-			Object  value = entry.getValue();
-			
-			// don't allow nulls
-			if(value == null) {
-                continue;
-			}
-			
-			// don't allow NaN's
-			if(value instanceof Number) {
-				if(Double.compare(((Number)value).doubleValue(),Double.NaN) == 0) {
-                    continue;
-				}
-			}
-
-            // apply transformations
-			applyTransforms(eventValues, entry.getKey(), entry.getValue());
-		}
+		boolean publishable = this.transformPlan.process(newValues, System.currentTimeMillis(), eventValues);
 
         // update polling stats
-        updatePollingStats(pollStartTimeNanos,eventValues);
+        updatePollingStats(pollStartTimeNanos, eventValues);
 
-		return eventValues;
-	}
-
-
-
-	private void applyTransforms(Map<String, Object> eventValues, final String configHashKey, final Object value)
-	{
-		//String attribute = configHashKey.replaceAll("\\(.*?\\)$", "");	 // strip off (xxx) added by parsers
-
-		if(this.expandedAttributes != null) {
-		    _TransformableAttribute transformableAttr = this.expandedAttributes.get(configHashKey);
-			if (transformableAttr == null) {
-				log.warn("No record found for attribute '%s' of eventType '%s'. Skipping.", configHashKey, this.eventType);
-				return;
-			}
-
-    		Map<String, Transform> transforms = transformableAttr.getTransforms();
-    		if (transforms == null) {
-    			log.warn("No transformations found for attribute '%s' of eventType '%s'. Skipping.", configHashKey, this.eventType);
-    			return;
-    		}
-
-    		for (Map.Entry<String, Transform> transformEntry : transforms.entrySet()) {
-
-                if(value instanceof Map) {
-                    // apply transform to each entry in the map
-                    Map<String,Object> valueMap = (Map<String,Object>)value;
-                    String valueDescription = "{";
-                    for(Map.Entry<String,Object> valueEntry : valueMap.entrySet()) {
-                        Object processedValue = transformEntry.getValue().process(valueEntry.getValue());
-                        if(processedValue != null) {
-                            eventValues.put(transformEntry.getKey() + "_" + valueEntry.getKey(), processedValue);
-                            valueDescription += valueEntry.getKey() + "=" + processedValue;
-                        }
-                    }
-                    valueDescription += "}";
-                    eventValues.put(transformEntry.getKey(),valueDescription);
-                }
-                else {
-                    Object processedValue = transformEntry.getValue().process(value);
-                    if(processedValue != null) {
-    			        eventValues.put(transformEntry.getKey(), processedValue);
-                    }
-                }
-    		}
-		}
+		return publishable;
 	}
 	
 	public Collection<Status> getStatusList()
@@ -680,6 +616,11 @@ public final class AgentDataCollector implements Runnable
         return this.lastPollingDurationNanos;
     }
 
+    public long getLastSchedulingLagMillis()
+    {
+        return this.lastSchedulingLagMillis;
+    }
+
     public long getLastPollingIntervalNanos()
     {
         return this.lastPollingIntervalNanos;
@@ -691,34 +632,6 @@ public final class AgentDataCollector implements Runnable
 	}
 
 
-    class _TransformableAttribute
-	{
-		private final Map<String, Transform> transforms;
-		private Config config;
-
-		public _TransformableAttribute(String eventAttributeType, Transform transform, Config config)
-		{
-			this.config = config;
-			this.transforms = new HashMap<String, Transform>();
-			addTransform(eventAttributeType, transform);
-		}
-
-        public void addTransform(String eventAttributeType, Transform transform)
-		{
-			this.transforms.put(eventAttributeType, transform);
-		}
-
-		public Config getConfig()
-		{
-			return config;
-		}
-
-		public Map<String, Transform> getTransforms()
-		{
-			return transforms;
-		}
-	}
-	
 	public class _AbortCollectorException extends RuntimeException
 	{
 		String message;
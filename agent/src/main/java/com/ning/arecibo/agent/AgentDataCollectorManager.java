@@ -28,7 +28,6 @@ import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -46,6 +45,7 @@ import com.ning.arecibo.agent.datasource.DataSourceException;
 import com.ning.arecibo.agent.datasource.DataSourceType;
 import com.ning.arecibo.agent.datasource.DataSourceUtils;
 import com.ning.arecibo.agent.guice.AgentConfig;
+import com.ning.arecibo.agent.polling.PollingEngine;
 import com.ning.arecibo.agent.status.Status;
 import com.ning.arecibo.agent.status.StatusSummary;
 import com.ning.arecibo.agent.status.StatusType;
@@ -67,7 +67,6 @@ public final class AgentDataCollectorManager
     private final static AtomicLong configsExceedingMax = new AtomicLong();
 	private final static AtomicLong configsRemovedCounter = new AtomicLong();
 	private final static AtomicLong configsAddedCounter = new AtomicLong();
-    private final static AtomicLong failedSemaphoreAcquisitions = new AtomicLong();
 
 	// these are collected from individual collectors
 	private final static AtomicLong pollingFailureCounter = new AtomicLong();
@@ -84,9 +83,9 @@ public final class AgentDataCollectorManager
 	private final DataSourceUtils dataSourceUtils;
 	
 	private ScheduledThreadPoolExecutor executor;
+	private volatile PollingEngine pollingEngine;
 	private final Map<String, AgentDataCollector> collectorMap;
 	private final Map<String, Config> configMap;
-    private final Map<String, Semaphore> perHostSemaphoreMap;
 
 
     @Inject
@@ -102,7 +101,6 @@ public final class AgentDataCollectorManager
 
 		this.collectorMap = new ConcurrentHashMap<String, AgentDataCollector>();
 		this.configMap = new ConcurrentHashMap<String, Config>();
-        this.perHostSemaphoreMap = new ConcurrentHashMap<String, Semaphore>();
 	}
 
     private List<Config> getExclusionList() throws ConfigException
@@ -172,16 +170,6 @@ public final class AgentDataCollectorManager
 	
 			log.info("Adding new collector for config: " + config.getConfigDescriptor());
 
-            // create a new perHost semaphore, if needed
-            Semaphore sem = perHostSemaphoreMap.get(config.getHost());
-            if(sem == null) {
-                sem = new Semaphore(agentConfig.getPerHostSemaphoreConcurrency(), true);
-                perHostSemaphoreMap.put(config.getHost(),sem);
-                log.info("Adding new polling semaphore for host %s, with concurrency %d",
-                         config.getHost(),
-                         agentConfig.getPerHostSemaphoreConcurrency());
-            }
-
 			return collector;
 		}
 	}
@@ -221,28 +209,6 @@ public final class AgentDataCollectorManager
 		configsRemovedCounter.incrementAndGet();
 	}
 
-    public boolean tryAcquirePerHostSemaphore(String host) {
-        Semaphore sem = perHostSemaphoreMap.get(host);
-        try {
-            return sem.tryAcquire(agentConfig.getPerHostSemaphoreMaxWait().getPeriod(),
-                                  agentConfig.getPerHostSemaphoreMaxWait().getUnit());
-        } catch (InterruptedException ieEx){
-            // shouldn't happen
-            return false;
-        }
-    }
-
-    public void releasePerHostSemaphore(String host) {
-        Semaphore sem = perHostSemaphoreMap.get(host);
-        sem.release();
-    }
-
-    public void rescheduleCollectorAfterSemaphoreRetryDelay(AgentDataCollector collector) {
-        executor.schedule(collector,
-                          agentConfig.getPerHostSemaphoreRetry().getPeriod(),
-                          agentConfig.getPerHostSemaphoreRetry().getUnit());
-    }
-
 	public UUID getUuidForHost(String host)
 	{
 		return UUIDUtil.md5UUID(host);
@@ -255,7 +221,14 @@ public final class AgentDataCollectorManager
 
 	public synchronized void start()
 	{
-		this.executor = new ScheduledThreadPoolExecutor(agentConfig.getThreadpoolSize());
+		// collectors are polled by the polling engine, this only runs the config updater
+		this.executor = new ScheduledThreadPoolExecutor(1);
+
+		this.pollingEngine = new PollingEngine(agentConfig.getThreadpoolSize(),
+		                                       agentConfig.getPerHostConcurrency(),
+		                                       agentConfig.getSchedulerTick().getPeriod(),
+		                                       agentConfig.getSchedulerTick().getUnit());
+		this.pollingEngine.start();
 
 		// start the config updater
 		this.executor.scheduleWithFixedDelay(new _CollectorConfigUpdater(),
@@ -270,6 +243,10 @@ public final class AgentDataCollectorManager
 			this.executor.shutdown();
 			this.executor = null;
 		}
+		if (this.pollingEngine != null) {
+			this.pollingEngine.stop();
+			this.pollingEngine = null;
+		}
 	}
 
 	public List<Status> getStatus()
@@ -446,8 +423,28 @@ public final class AgentDataCollectorManager
         }
 	}
 
+    private boolean isHostAligned(AgentDataCollector collector) {
+        DataSourceType dataSourceType = collector.getDataSourceType();
+        return (agentConfig.isJMXBulkReadEnabled() && dataSourceType.equals(DataSourceType.JMX)) ||
+               (agentConfig.isSNMPSharedTableWalksEnabled() && dataSourceType.equals(DataSourceType.SNMP));
+    }
+
+    /**
+     * The delay until the next wall clock time at which the collectors of this host are due, so that the
+     * JMX or SNMP collectors of a host poll together (and share a bulk read or table walk), wherever they are added.  The offset
+     * within the interval is derived from the host name, to keep spreading the hosts over the interval.
+     */
+    private long getHostAlignedDelayMillis(AgentDataCollector collector) {
+        long intervalMillis = collector.getScheduledPollingInterval().getMillis();
+        long hostOffsetMillis = (collector.getHostName().hashCode() & Integer.MAX_VALUE) % intervalMillis;
+        long nowMillis = System.currentTimeMillis();
+        return ((hostOffsetMillis - nowMillis % intervalMillis) + intervalMillis) % intervalMillis;
+    }
+
     public void rescheduleCollector(AgentDataCollector collector,long delayMillis) {
-        executor.schedule(collector,delayMillis,TimeUnit.MILLISECONDS);
+        PollingEngine engine = this.pollingEngine;
+        if(engine != null)
+            engine.schedule(collector,delayMillis,TimeUnit.MILLISECONDS);
     }
 
     private class _CollectorConfigUpdater implements Runnable {
@@ -520,8 +517,13 @@ public final class AgentDataCollectorManager
 					for(String newCollectorKey:newCollectorKeys) {
 					    AgentDataCollector newCollector = newCollectors.get(newCollectorKey);
 					    log.info("Scheduling new collector: '%s'", newCollectorKey);
-					    int intervalInSec = (int)(newCollector.getScheduledPollingInterval().getMillis() / 1000l);
-						executor.schedule(newCollector, random.nextInt(intervalInSec), TimeUnit.SECONDS);
+					    if(isHostAligned(newCollector)) {
+					        pollingEngine.schedule(newCollector, getHostAlignedDelayMillis(newCollector), TimeUnit.MILLISECONDS);
+					    }
+					    else {
+					        int intervalInSec = (int)(newCollector.getScheduledPollingInterval().getMillis() / 1000l);
+					        pollingEngine.schedule(newCollector, random.nextInt(intervalInSec), TimeUnit.SECONDS);
+					    }
 					}
 				}
 	    	}
@@ -623,12 +625,52 @@ public final class AgentDataCollectorManager
     }
 
     @MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
-    public long getFailedPollingSemaphoreAcquisitions() {
-        return failedSemaphoreAcquisitions.get();
+    public long getPollsStarted() {
+        PollingEngine engine = this.pollingEngine;
+        return engine == null ? 0L : engine.getPollsStarted();
+    }
+
+    // polls which had to wait for another poll of the same host to finish
+    @MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
+    public long getPollsDeferredByPerHostLimit() {
+        PollingEngine engine = this.pollingEngine;
+        return engine == null ? 0L : engine.getPollsDeferred();
+    }
+
+    @MonitorableManaged(monitored = true)
+    public int getPollsWaitingForHost() {
+        PollingEngine engine = this.pollingEngine;
+        return engine == null ? 0 : engine.getPollsWaitingForHost();
+    }
+
+    @MonitorableManaged(monitored = true)
+    public int getPollsWaitingForThread() {
+        PollingEngine engine = this.pollingEngine;
+        return engine == null ? 0 : engine.getPollsWaitingForThread();
+    }
+
+    @MonitorableManaged(monitored = true)
+    public int getActivePollingThreads() {
+        PollingEngine engine = this.pollingEngine;
+        return engine == null ? 0 : engine.getActivePollingThreads();
+    }
+
+    @MonitorableManaged(monitored = true)
+    public double getAvgSchedulingLagMillis() {
+        PollingEngine engine = this.pollingEngine;
+        return engine == null ? 0.0 : engine.getSchedulingLagAverage();
+    }
+
+    @MonitorableManaged(monitored = true)
+    public long getSchedulingLagMillis99thPercentile() {
+        PollingEngine engine = this.pollingEngine;
+        return engine == null ? 0L : engine.getSchedulingLag99thPercentile();
     }
 
-    public void incrementFailedSemaphoreAcquisitions() {
-        failedSemaphoreAcquisitions.incrementAndGet();
+    @Managed
+    public long getMaxSchedulingLagMillis() {
+        PollingEngine engine = this.pollingEngine;
+        return engine == null ? 0L : engine.getSchedulingLagMax();
     }
 
     @MonitorableManaged(monitored = true)
@@ -690,4 +732,18 @@ public final class AgentDataCollectorManager
 
         return map;
     }
+
+    @Managed
+    public Map<String,Long> getLastSchedulingLagMillisPerCollector() {
+
+        Map<String,Long> map = new HashMap<String,Long>();
+
+        for(AgentDataCollector collector:collectorMap.values()) {
+            String key = collector.getHostName() + "->" + collector.getEventType();
+            Long value = collector.getLastSchedulingLagMillis();
+            map.put(key,value);
+        }
+
+        return map;
+    }
 }
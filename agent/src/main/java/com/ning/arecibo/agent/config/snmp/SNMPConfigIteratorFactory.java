@@ -23,6 +23,7 @@ import com.ning.arecibo.agent.config.ConfigIterator;
 import com.ning.arecibo.agent.config.ConfigIteratorFactory;
 import com.ning.arecibo.agent.datasource.DataSourceException;
 import com.ning.arecibo.agent.datasource.snmp.SNMPDataSource;
+import com.ning.arecibo.agent.datasource.snmp.SNMPTableWalkCache;
 import com.ning.arecibo.agent.guice.AgentConfig;
 
 public class SNMPConfigIteratorFactory implements ConfigIteratorFactory {
@@ -31,11 +32,13 @@ public class SNMPConfigIteratorFactory implements ConfigIteratorFactory {
 	public static final String SNMP_TABLE_ATTRIBUTE_DELIMITER = "table:";
 	
 	private final AgentConfig agentConfig;
+	private final SNMPTableWalkCache tableWalkCache;
 	private final ConcurrentHashMap<String, SNMPDataSource> dataSourceCache;
 	
 	@Inject
-	public SNMPConfigIteratorFactory(AgentConfig agentConfig) {
+	public SNMPConfigIteratorFactory(AgentConfig agentConfig, SNMPTableWalkCache tableWalkCache) {
 		this.agentConfig = agentConfig;
+		this.tableWalkCache = tableWalkCache;
 		this.dataSourceCache = new ConcurrentHashMap<String, SNMPDataSource>();
 	}
 	
@@ -52,7 +55,8 @@ public class SNMPConfigIteratorFactory implements ConfigIteratorFactory {
 		if(dataSource == null) {
 			dataSource = new SNMPDataSource(baseConfig,
 			                                agentConfig.getConnectionTimeoutInitial(),
-			                                agentConfig.getSNMPCompiledMibDir());
+			                                agentConfig.getSNMPCompiledMibDir(),
+			                                tableWalkCache);
 			dataSourceCache.put(dataSourceHashKey,dataSource);
 		}
 			
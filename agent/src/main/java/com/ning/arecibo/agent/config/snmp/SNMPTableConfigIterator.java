@@ -16,6 +16,8 @@
 
 package com.ning.arecibo.agent.config.snmp;
 
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import com.ning.arecibo.agent.config.Config;
@@ -62,6 +64,37 @@ public class SNMPTableConfigIterator implements ConfigIterator {
 		this.attributeWithScalarsResolved = resolveScalarReferences(baseConfig.getOidRow());
 		
 		resolveRowRange(this.attributeWithScalarsResolved);
+
+		prefetchTableColumns();
+	}
+
+	private void prefetchTableColumns()
+	{
+		// walk all the columns referenced by the rows together, rather than one at a time as they are first referenced
+		Set<String> tableOIDs = new LinkedHashSet<String>();
+		tableOIDs.add(this.oidName);
+		addRowReferences(tableOIDs, this.attributeWithScalarsResolved);
+		addRowReferences(tableOIDs, this.baseConfig.getEventType());
+		addRowReferences(tableOIDs, this.baseConfig.getEventAttributeType());
+
+		try {
+			snmpDataSource.prefetchTableColumns(tableOIDs);
+		}
+		catch(DataSourceException e) {
+			// the columns will be walked again as they are referenced
+			log.info(e,"Got exception prefetching table columns " + tableOIDs);
+		}
+	}
+
+	private void addRowReferences(Set<String> tableOIDs, String replaceString)
+	{
+		if(replaceString == null)
+			return;
+
+		Matcher matcher = rowRefPattern.matcher(replaceString);
+		while(matcher.find()) {
+			tableOIDs.add(matcher.group(1));
+		}
 	}
 		
 	private String resolveScalarReferences(String replaceString) 
@@ -14,18 +14,17 @@
  * under the License.
  */
 
-package com.ning.arecibo.aggregator.concurrent.guice;
 
-import com.google.inject.BindingAnnotation;
+package com.ning.arecibo.agent.datasource;
 
-import java.lang.annotation.Retention;
-import java.lang.annotation.RetentionPolicy;
-import java.lang.annotation.Target;
-import java.lang.annotation.ElementType;
-
-@Retention(RetentionPolicy.RUNTIME)
-@Target({ElementType.FIELD, ElementType.PARAMETER})
-@BindingAnnotation
-public @interface KeyedExecutorSupport
+/**
+ * A data source whose polls don't block the polling thread.  The collector starts a poll with getValuesAsync(),
+ * and publishes the values when the future completes.
+ */
+public interface AsyncDataSource extends DataSource
 {
+    /**
+     * @return a future completed, usually from an I/O thread, with the values getValues() would return
+     */
+    public DataSourceFuture getValuesAsync();
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ning.arecibo.agent.datasource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The values of a poll started by an AsyncDataSource, set once by the data source.
+ */
+public final class DataSourceFuture implements Future<Map<String, Object>>
+{
+    public interface Listener
+    {
+        public void completed(DataSourceFuture future);
+    }
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    // guarded by this
+    private boolean completed = false;
+    private Map<String, Object> values = null;
+    private DataSourceException failure = null;
+    private List<Listener> listeners = new ArrayList<Listener>();
+
+    public boolean set(Map<String, Object> values)
+    {
+        return complete(values, null);
+    }
+
+    public boolean setFailure(DataSourceException failure)
+    {
+        return complete(null, failure);
+    }
+
+    private boolean complete(Map<String, Object> values, DataSourceException failure)
+    {
+        List<Listener> toNotify;
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+            this.completed = true;
+            this.values = values;
+            this.failure = failure;
+            toNotify = listeners;
+            listeners = null;
+        }
+        done.countDown();
+
+        for (Listener listener : toNotify) {
+            listener.completed(this);
+        }
+        return true;
+    }
+
+    /**
+     * Calls the listener once the future completes, from the thread completing it, or right away if it is done
+     */
+    public void addListener(Listener listener)
+    {
+        synchronized (this) {
+            if (!completed) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.completed(this);
+    }
+
+    /**
+     * Waits for the values
+     *
+     * @throws DataSourceException if the poll failed, or was interrupted
+     */
+    public Map<String, Object> getValues() throws DataSourceException
+    {
+        try {
+            done.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataSourceException("Interrupted while waiting for values", e);
+        }
+        synchronized (this) {
+            if (failure != null) {
+                throw failure;
+            }
+            return values;
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isDone()
+    {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public Map<String, Object> get() throws InterruptedException, ExecutionException
+    {
+        done.await();
+        return getCompleted();
+    }
+
+    @Override
+    public Map<String, Object> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+    {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getCompleted();
+    }
+
+    private synchronized Map<String, Object> getCompleted() throws ExecutionException
+    {
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return values;
+    }
+}
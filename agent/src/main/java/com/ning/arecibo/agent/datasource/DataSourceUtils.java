@@ -22,6 +22,7 @@ import com.ning.arecibo.agent.config.ConfigIteratorFactory;
 import com.ning.arecibo.agent.config.jmx.JMXConfigIteratorFactory;
 import com.ning.arecibo.agent.config.jmx.JMXDynamicUtils;
 import com.ning.arecibo.agent.config.snmp.SNMPConfigIteratorFactory;
+import com.ning.arecibo.agent.datasource.http.HTTPCheckClient;
 import com.ning.arecibo.agent.datasource.http.HTTPResponseCheckDataSource;
 import com.ning.arecibo.agent.datasource.jmx.JMXClientCache;
 import com.ning.arecibo.agent.datasource.jmx.JMXCompositeDataSource;
@@ -29,7 +30,9 @@ import com.ning.arecibo.agent.datasource.jmx.JMXDataSource;
 import com.ning.arecibo.agent.datasource.jmx.JMXOperationInvocationDataSource;
 import com.ning.arecibo.agent.datasource.jmx.JMXParserManager;
 import com.ning.arecibo.agent.datasource.snmp.SNMPDataSource;
+import com.ning.arecibo.agent.datasource.snmp.SNMPTableWalkCache;
 import com.ning.arecibo.agent.datasource.tcp.TCPConnectCheckDataSource;
+import com.ning.arecibo.agent.datasource.tcp.TCPConnectChecker;
 import com.ning.arecibo.agent.datasource.tracer.TracerDataSource;
 import com.ning.arecibo.agent.guice.AgentConfig;
 
@@ -44,15 +47,21 @@ public class DataSourceUtils {
 	private final IdentityConfigIteratorFactory identityConfigIteratorFactory;
 	private final JMXConfigIteratorFactory jmxConfigIteratorFactory;
 	private final SNMPConfigIteratorFactory snmpConfigIteratorFactory;
+	private final SNMPTableWalkCache snmpTableWalkCache;
+	private final HTTPCheckClient httpCheckClient;
+	private final TCPConnectChecker tcpConnectChecker;
 
     @Inject
 	public DataSourceUtils(AgentConfig agentConfig,
             			   SNMPConfigIteratorFactory snmpConfigIteratorFactory,
+            			   SNMPTableWalkCache snmpTableWalkCache,
             			   JMXClientCache jmxClientCache,
             			   JMXDynamicUtils jmxDynamicUtils,
                            JMXParserManager jmxParserManager,
 						   JMXConfigIteratorFactory jmxConfigIteratorFactory,
-                           IdentityConfigIteratorFactory identityConfigIteratorFactory) {
+                           IdentityConfigIteratorFactory identityConfigIteratorFactory,
+                           HTTPCheckClient httpCheckClient,
+                           TCPConnectChecker tcpConnectChecker) {
 		
 		this.agentConfig = agentConfig;
         this.jmxConfigIteratorFactory = jmxConfigIteratorFactory;
@@ -61,6 +70,9 @@ public class DataSourceUtils {
         this.jmxParserManager = jmxParserManager;
 		this.identityConfigIteratorFactory = identityConfigIteratorFactory;
 		this.snmpConfigIteratorFactory = snmpConfigIteratorFactory;
+		this.snmpTableWalkCache = snmpTableWalkCache;
+		this.httpCheckClient = httpCheckClient;
+		this.tcpConnectChecker = tcpConnectChecker;
 	}
 	
 	public DataSourceType getDataSourceType(Config config) throws DataSourceException {
@@ -115,7 +127,7 @@ public class DataSourceUtils {
 		DataSourceType dsType = getDataSourceType(config);
 		switch(dsType) {
 			case SNMP:
-				return new SNMPDataSource(config, agentConfig.getConnectionTimeout(), agentConfig.getSNMPCompiledMibDir());
+				return new SNMPDataSource(config, agentConfig.getConnectionTimeout(), agentConfig.getSNMPCompiledMibDir(), this.snmpTableWalkCache);
 			case Tracer:
 				return new TracerDataSource(config);
 			case JMXComposite:
@@ -125,13 +137,9 @@ public class DataSourceUtils {
 			case JMX:
 				return new JMXDataSource(config, this.jmxClientCache, this.jmxParserManager);
             case HTTPResponseCheck:
-                return new HTTPResponseCheckDataSource(config,
-                                                       agentConfig.getConnectionTimeout(),
-                                                       agentConfig.getHTTPUserAgent(),
-                                                       agentConfig.getHTTPProxyHost(),
-                                                       agentConfig.getHTTPProxyPort());
+                return new HTTPResponseCheckDataSource(config, this.httpCheckClient);
             case TCPConnectCheck:
-                return new TCPConnectCheckDataSource(config, agentConfig.getConnectionTimeout());
+                return new TCPConnectCheckDataSource(config, this.tcpConnectChecker);
 			default:
 				throw new DataSourceException("Could not create data source, unknown datasource type: " + dsType);
 		}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ning.arecibo.agent.datasource;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import com.ning.arecibo.util.Logger;
+
+/**
+ * Bounds the number of asynchronous checks in flight, without blocking the threads starting them: a check
+ * submitted over the limit is queued, and started by the completion of an earlier one.
+ */
+public final class InFlightLimiter
+{
+    private static final Logger log = Logger.getLogger(InFlightLimiter.class);
+
+    private final int maxInFlight;
+    private final ThreadLocal<Queue<Runnable>> startingOnThisThread = new ThreadLocal<Queue<Runnable>>();
+
+    // guarded by this
+    private final Queue<Runnable> queued = new ArrayDeque<Runnable>();
+    private int inFlight = 0;
+
+    public InFlightLimiter(int maxInFlight)
+    {
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /**
+     * Runs the check now, or once there is room for it.  The check must call release() exactly once when done,
+     * unless it throws a RuntimeException.
+     */
+    public void submit(Runnable check)
+    {
+        synchronized (this) {
+            if (inFlight >= maxInFlight) {
+                queued.add(check);
+                return;
+            }
+            inFlight++;
+        }
+        start(check);
+    }
+
+    public void release()
+    {
+        Runnable next;
+        synchronized (this) {
+            next = queued.poll();
+            if (next == null) {
+                inFlight--;
+                return;
+            }
+            // the slot passes to the next check
+        }
+        start(next);
+    }
+
+    private void start(Runnable check)
+    {
+        // a check failing right away releases its slot from within run(), which starts the next one: start that
+        // one from the outer loop, rather than recursing through every queued check
+        Queue<Runnable> starting = startingOnThisThread.get();
+        if (starting != null) {
+            starting.add(check);
+            return;
+        }
+        starting = new ArrayDeque<Runnable>();
+        startingOnThisThread.set(starting);
+        try {
+            for (Runnable next = check; next != null; next = starting.poll()) {
+                try {
+                    next.run();
+                }
+                catch (RuntimeException ruEx) {
+                    // the check is done
+                    log.warn(ruEx, "Could not start check");
+                    release();
+                }
+            }
+        }
+        finally {
+            startingOnThisThread.remove();
+        }
+    }
+
+    public synchronized int getInFlight()
+    {
+        return inFlight;
+    }
+
+    public synchronized int getQueued()
+    {
+        return queued.size();
+    }
+
+    public int getMaxInFlight()
+    {
+        return maxInFlight;
+    }
+}
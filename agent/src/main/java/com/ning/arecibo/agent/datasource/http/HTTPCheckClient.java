@@ -0,0 +1,177 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ning.arecibo.agent.datasource.http;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.skife.config.TimeSpan;
+import org.weakref.jmx.Managed;
+import com.google.inject.Inject;
+import com.ning.arecibo.agent.datasource.InFlightLimiter;
+import com.ning.arecibo.agent.guice.AgentConfig;
+import com.ning.arecibo.util.jmx.MonitorableManaged;
+import com.ning.arecibo.util.jmx.MonitoringType;
+import com.ning.arecibo.util.metrics.ValueStats;
+import com.ning.http.client.AsyncHandler;
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.AsyncHttpClientConfig.Builder;
+import com.ning.http.client.ProxyServer;
+import com.ning.http.client.Request;
+
+/**
+ * The AsyncHttpClient shared by all the HTTPResponseCheckDataSources, with a bound on the requests in flight.
+ */
+public class HTTPCheckClient
+{
+    public interface Check
+    {
+        /**
+         * Called when there is room for the request, to build it
+         */
+        public Request prepareRequest(AsyncHttpClient httpClient);
+
+        /**
+         * @param done to be called once, when the request completes or fails
+         */
+        public AsyncHandler<?> getHandler(Runnable done);
+
+        public void failed(Throwable t);
+    }
+
+    private final AsyncHttpClient httpClient;
+    private final InFlightLimiter limiter;
+
+    private final AtomicLong requestsStarted = new AtomicLong();
+    private final AtomicLong requestsFailedToStart = new AtomicLong();
+    private final ValueStats requestMillis = new ValueStats();
+
+    @Inject
+    public HTTPCheckClient(AgentConfig agentConfig)
+    {
+        this(agentConfig.getConnectionTimeout(),
+             agentConfig.getHTTPUserAgent(),
+             agentConfig.getHTTPProxyHost(),
+             agentConfig.getHTTPProxyPort(),
+             agentConfig.getMaxChecksInFlight());
+    }
+
+    public HTTPCheckClient(TimeSpan timeout, String httpUserAgentString, String httpProxyHost, int httpProxyPort, int maxRequestsInFlight)
+    {
+        Builder builder = new AsyncHttpClientConfig.Builder();
+
+        builder.setConnectionTimeoutInMs((int)timeout.getMillis())
+               .setRequestTimeoutInMs((int)timeout.getMillis())
+               .setMaximumConnectionsTotal(maxRequestsInFlight)
+               .setUserAgent(httpUserAgentString);
+        // followRedirects doesn't play nice with proxy's, logic handled in HTTPResponseCheckDataSource instead
+        if (httpProxyHost != null && httpProxyHost.length() > 0) {
+            builder.setProxyServer(new ProxyServer(httpProxyHost, httpProxyPort));
+        }
+
+        this.httpClient = new AsyncHttpClient(builder.build());
+        this.limiter = new InFlightLimiter(maxRequestsInFlight);
+    }
+
+    /**
+     * Sends the request of the check once there is room for it, without blocking
+     */
+    public void execute(final Check check)
+    {
+        limiter.submit(new Runnable()
+        {
+            public void run()
+            {
+                final long startMillis = System.currentTimeMillis();
+                final AtomicBoolean released = new AtomicBoolean(false);
+                Runnable done = new Runnable()
+                {
+                    public void run()
+                    {
+                        if (released.compareAndSet(false, true)) {
+                            requestMillis.record(System.currentTimeMillis() - startMillis);
+                            limiter.release();
+                        }
+                    }
+                };
+
+                try {
+                    requestsStarted.incrementAndGet();
+                    httpClient.executeRequest(check.prepareRequest(httpClient), check.getHandler(done));
+                }
+                catch (IOException ioEx) {
+                    failedToStart(check, ioEx, released);
+                }
+                catch (RuntimeException ruEx) {
+                    failedToStart(check, ruEx, released);
+                }
+            }
+        });
+    }
+
+    private void failedToStart(Check check, Throwable t, AtomicBoolean released)
+    {
+        requestsFailedToStart.incrementAndGet();
+        if (released.compareAndSet(false, true)) {
+            limiter.release();
+        }
+        check.failed(t);
+    }
+
+    public void close()
+    {
+        httpClient.close();
+    }
+
+    @MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
+    public long getRequestsStarted()
+    {
+        return requestsStarted.get();
+    }
+
+    @MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
+    public long getRequestsFailedToStart()
+    {
+        return requestsFailedToStart.get();
+    }
+
+    @MonitorableManaged(monitored = true)
+    public int getRequestsInFlight()
+    {
+        return limiter.getInFlight();
+    }
+
+    @MonitorableManaged(monitored = true)
+    public int getRequestsQueued()
+    {
+        return limiter.getQueued();
+    }
+
+    @Managed
+    public double getRequestMillisAverage()
+    {
+        return requestMillis.getAverage();
+    }
+
+    @Managed
+    public long getRequestMillis99thPercentile()
+    {
+        return requestMillis.getQuantile(0.99);
+    }
+}
@@ -27,22 +27,23 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.net.URL;
 import java.net.URLDecoder;
-import org.skife.config.TimeSpan;
 import com.ning.arecibo.agent.config.Config;
 import com.ning.arecibo.agent.config.ConfigException;
 import com.ning.arecibo.agent.config.http.HTTPResponseCheckConfig;
-import com.ning.arecibo.agent.datasource.DataSource;
+import com.ning.arecibo.agent.datasource.AsyncDataSource;
 import com.ning.arecibo.agent.datasource.DataSourceException;
+import com.ning.arecibo.agent.datasource.DataSourceFuture;
 import com.ning.arecibo.agent.datasource.DataSourceType;
 
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.AsyncHandler;
 import com.ning.http.client.AsyncHttpClient;
 import com.ning.http.client.AsyncHttpClient.BoundRequestBuilder;
-import com.ning.http.client.AsyncHttpClientConfig;
-import com.ning.http.client.AsyncHttpClientConfig.Builder;
-import com.ning.http.client.ProxyServer;
+import com.ning.http.client.HttpResponseStatus;
+import com.ning.http.client.Request;
 import com.ning.http.client.Response;
 
-public class HTTPResponseCheckDataSource implements DataSource {
+public class HTTPResponseCheckDataSource implements AsyncDataSource {
 
     public static final String RESPONSE_STATUS_CODE = "responseStatusCode";
     public static final String RESPONSE_STATUS_TIME_MS = "responseStatusTimeMs";
@@ -66,10 +67,7 @@ public class HTTPResponseCheckDataSource implements DataSource {
 
     private final String host;
     private final int port;
-    private final TimeSpan timeout;
-    private final String httpUserAgentString;
-    private final String httpProxyHost;
-    private final int httpProxyPort;
+    private final HTTPCheckClient httpCheckClient;
 
     private final String uri;
     private final boolean ignoreBodyFlag;
@@ -81,9 +79,9 @@ public class HTTPResponseCheckDataSource implements DataSource {
 
     private final Map<String, String> configHashKeyMap;
 
-    private volatile AsyncHttpClient httpClient = null;
+    private volatile boolean initialized = false;
 
-    public HTTPResponseCheckDataSource(Config config, TimeSpan timeout, String httpUserAgentString, String httpProxyHost, int httpProxyPort)
+    public HTTPResponseCheckDataSource(Config config, HTTPCheckClient httpCheckClient)
         throws DataSourceException {
 
         if(!(config instanceof HTTPResponseCheckConfig)) {
@@ -93,11 +91,7 @@ public class HTTPResponseCheckDataSource implements DataSource {
 
         this.host = config.getHost();
         this.port = httpResponseCheckConfig.getPort();
-        this.timeout = timeout;
-
-        this.httpUserAgentString = httpUserAgentString;
-        this.httpProxyHost = httpProxyHost;
-        this.httpProxyPort = httpProxyPort;
+        this.httpCheckClient = httpCheckClient;
 
         this.uri = httpResponseCheckConfig.getUri();
         this.ignoreBodyFlag = httpResponseCheckConfig.getIgnoreBodyFlag();
@@ -112,30 +106,18 @@ public class HTTPResponseCheckDataSource implements DataSource {
 
     @Override
     public void initialize() throws DataSourceException {
-        Builder builder = new AsyncHttpClientConfig.Builder();
-
-        builder.setConnectionTimeoutInMs((int)timeout.getMillis())
-               .setRequestTimeoutInMs((int)timeout.getMillis())
-               .setUserAgent(httpUserAgentString);
-        // followRedirects doesn't play nice with proxy's, logic handled below instead
-        //builder.setFollowRedirects(followRedirectsFlag);
-        if (httpProxyHost != null && httpProxyHost.length() > 0) {
-            builder.setProxyServer(new ProxyServer(httpProxyHost, httpProxyPort));
-        }
-
-        this.httpClient = new AsyncHttpClient(builder.build());
-
+        // the connections are pooled by the shared HTTPCheckClient
+        this.initialized = true;
     }
 
     @Override
     public boolean isInitialized() {
-        return this.httpClient != null;
+        return this.initialized;
     }
 
     @Override
     public void closeResources() throws DataSourceException {
-        this.httpClient.close();
-        this.httpClient = null;
+        this.initialized = false;
     }
 
     @Override
@@ -191,80 +173,115 @@ public class HTTPResponseCheckDataSource implements DataSource {
 
     @Override
     public Map<String, Object> getValues()  throws DataSourceException {
+        return getValuesAsync().getValues();
+    }
 
-        final HashMap<String,Object> values = new HashMap<String,Object>();
+    @Override
+    public DataSourceFuture getValuesAsync() {
 
-        try {
-            String url = String.format("http://%s:%d%s", host, port, uri);
+        final DataSourceFuture future = new DataSourceFuture();
+        final Map<String,Object> values = new HashMap<String,Object>();
 
-            BoundRequestBuilder builder = httpClient.prepareGet(url);
+        String url = String.format("http://%s:%d%s", host, port, uri);
+        sendRequest(url, virtualHost, 0, values, future);
 
-            if (extraHeaders != null) {
-                builder.setHeaders(extraHeaders);
-            }
-            if (virtualHost != null) {
-                builder.setVirtualHost(virtualHost);
-            }
+        return future;
+    }
 
-            Integer statusCode = performRequest(builder, values);
+    private void sendRequest(final String url, final String requestVirtualHost, final int redirectCount,
+                             final Map<String,Object> values, final DataSourceFuture future) {
 
-            int redirectCount = 0;
-            while (statusCode >= 300 && statusCode <= 399 && this.followRedirectsFlag && redirectCount++ < MAX_REDIRECTS) {
-                // don't use virtual host on redirect
-                // this is actually a bug in the commons_httpclient 3.x lib, it keeps reusing the same virtual host
-                // if you use it's built in followRedirect feature
-                builder.setVirtualHost(null);
+        httpCheckClient.execute(new HTTPCheckClient.Check() {
 
-                String locationHeader = (String)values.get(TEMP_RESPONSE_LOCATION_HEADER);
-                URL redirectUrl = new URL(locationHeader);
-                String locationHost = redirectUrl.getHost();
-                int locationPort = redirectUrl.getPort();
+            public Request prepareRequest(AsyncHttpClient httpClient) {
+                BoundRequestBuilder builder = httpClient.prepareGet(url);
 
-                if (locationPort != 80) {
-                    url = String.format("http://%s:%d%s", locationHost, locationPort, uri);
+                if (extraHeaders != null) {
+                    builder.setHeaders(extraHeaders);
                 }
-                else {
-                    url = String.format("http://%s%s", locationHost, uri);
+                if (requestVirtualHost != null) {
+                    builder.setVirtualHost(requestVirtualHost);
                 }
+                return builder.build();
+            }
 
-                builder.setUrl(url);
+            public AsyncHandler<?> getHandler(final Runnable done) {
 
-                statusCode = performRequest(builder, values);
-            }
+                final long startNanos = System.nanoTime();
 
-        }
-        catch (IOException ioEx) {
+                return new AsyncCompletionHandler<Response>() {
 
-            Throwable t = ioEx;
-            while(t.getCause() != null) {
-                t = t.getCause();
-            }
+                    private volatile long statusNanos = 0L;
 
-            values.put(configHashKeyMap.get(RESPONSE_MESSAGE),t.toString());
-            values.put(configHashKeyMap.get(RESPONSE_STATUS_CODE),FAILED_RESPONSE_STATUS_CODE);
-        }
+                    @Override
+                    public STATE onStatusReceived(HttpResponseStatus status) throws Exception {
+                        statusNanos = System.nanoTime();
+                        return super.onStatusReceived(status);
+                    }
 
-        return values;
-    }
+                    @Override
+                    public Response onCompleted(Response response) throws Exception {
+                        // the body is buffered by now: let the next request go, prior to processing the response
+                        done.run();
+                        try {
+                            int statusCode = processResponse(response, startNanos, statusNanos, values);
+                            if (statusCode >= 300 && statusCode <= 399 && followRedirectsFlag && redirectCount < MAX_REDIRECTS) {
+                                // don't use virtual host on redirect
+                                // this is actually a bug in the commons_httpclient 3.x lib, it keeps reusing the same virtual host
+                                // if you use it's built in followRedirect feature
+                                sendRequest(getRedirectUrl((String)values.get(TEMP_RESPONSE_LOCATION_HEADER)), null, redirectCount + 1, values, future);
+                            }
+                            else {
+                                future.set(values);
+                            }
+                        }
+                        catch (Exception ex) {
+                            setFailure(values, ex, future);
+                        }
+                        return response;
+                    }
 
-    private Integer performRequest(final BoundRequestBuilder builder, final Map<String,Object> values) throws IOException {
+                    @Override
+                    public void onThrowable(Throwable t) {
+                        done.run();
+                        setFailure(values, t, future);
+                    }
+                };
+            }
 
-        final long startNanos = System.nanoTime();
+            public void failed(Throwable t) {
+                setFailure(values, t, future);
+            }
+        });
+    }
 
-        Response response;
+    private String getRedirectUrl(String locationHeader) throws IOException {
+        URL redirectUrl = new URL(locationHeader);
+        String locationHost = redirectUrl.getHost();
+        int locationPort = redirectUrl.getPort();
 
-        try {
-            response = builder.execute().get();
+        if (locationPort != 80) {
+            return String.format("http://%s:%d%s", locationHost, locationPort, uri);
         }
-        catch (IOException ex) {
-            throw ex;
+        else {
+            return String.format("http://%s%s", locationHost, uri);
         }
-        catch (Exception ex) {
-            throw new IOException("Could not perform http request", ex);
+    }
+
+    private void setFailure(Map<String,Object> values, Throwable ex, DataSourceFuture future) {
+
+        Throwable t = ex;
+        while(t.getCause() != null) {
+            t = t.getCause();
         }
 
-        // need to take end timing samples inside the response handler, avoid the extra time it takes
-        // with cleaning up the response, via releaseClient, in the case where we don't read the response body
+        values.put(configHashKeyMap.get(RESPONSE_MESSAGE),t.toString());
+        values.put(configHashKeyMap.get(RESPONSE_STATUS_CODE),FAILED_RESPONSE_STATUS_CODE);
+
+        future.set(values);
+    }
+
+    private int processResponse(final Response response, final long startNanos, final long statusNanos, final Map<String,Object> values) throws IOException {
 
         int statusCode = response.getStatusCode();
         values.put(configHashKeyMap.get(RESPONSE_STATUS_CODE),statusCode);
@@ -283,8 +300,8 @@ public class HTTPResponseCheckDataSource implements DataSource {
             values.put(configHashKeyMap.get(RESPONSE_STATUS_MESSAGE_MATCH),matchResult);
         }
 
-        // get the timing for the status response
-        long endNanos = System.nanoTime();
+        // get the timing for the status response, as received
+        long endNanos = statusNanos > 0L ? statusNanos : System.nanoTime();
         double responseMillis = (double)(endNanos - startNanos) / NANOS_PER_MILLI;
         values.put(configHashKeyMap.get(RESPONSE_STATUS_TIME_MS),responseMillis);
 
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.agent.datasource.jmx;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import com.ning.arecibo.agent.datasource.jmx.JMXClient.MBeanDescriptor;
+import com.ning.arecibo.util.metrics.ValueStats;
+
+/**
+ * Reads the attributes of all the MBeans monitored on one JMX connection together.
+ * <p/>
+ * The JMXDataSources of a host register their MBean.  The first one to poll in a cycle reads the
+ * attributes of every registered MBean, with up to maxConcurrentReads getAttributes calls in flight
+ * at once over the cached connection, instead of one sequential round-trip per MBean; the data
+ * sources polling after it, within maxAgeMillis, get their values from that bulk read.  Each data
+ * source gets a given bulk read at most once.  A bulk read only covers the MBeans without fresh values, and is
+ * made without holding the lock of the reader: the data sources whose MBean it covers wait for it, the others
+ * don't.
+ * <p/>
+ * MBeanDescriptors (and their MBeanInfo) are cached per object name, for the lifetime of the connection.
+ */
+public class JMXBulkReader
+{
+    private final String hostAndPort;
+    private final JMXClient jmxClient;
+    private final ExecutorService executor;
+    private final int maxConcurrentReads;
+    private final long maxAgeMillis;
+
+    private final List<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+    private final ConcurrentHashMap<String, MBeanDescriptor> descriptors = new ConcurrentHashMap<String, MBeanDescriptor>();
+
+    private final AtomicLong bulkReads = new AtomicLong();
+    private final AtomicLong roundTrips = new AtomicLong();
+    private final AtomicLong valuesReused = new AtomicLong();
+    private final ValueStats bulkReadMillis = new ValueStats();
+
+    public JMXBulkReader(String hostAndPort, JMXClient jmxClient, ExecutorService executor, int maxConcurrentReads, long maxAgeMillis)
+    {
+        this.hostAndPort = hostAndPort;
+        this.jmxClient = jmxClient;
+        this.executor = executor;
+        this.maxConcurrentReads = Math.max(1, maxConcurrentReads);
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @return the descriptor of the MBean, or null if not found
+     */
+    public MBeanDescriptor getMBean(String objectName)
+    {
+        MBeanDescriptor descriptor = descriptors.get(objectName);
+        if (descriptor == null) {
+            descriptor = jmxClient.getMBean(objectName);
+            if (descriptor != null) {
+                descriptors.put(objectName, descriptor);
+            }
+        }
+        return descriptor;
+    }
+
+    public Registration register(MBeanDescriptor descriptor, String[] attributeNames)
+    {
+        Registration registration = new Registration(descriptor, descriptor.resolveAttributeNames(attributeNames));
+        registrations.add(registration);
+        return registration;
+    }
+
+    public void unregister(Registration registration)
+    {
+        registrations.remove(registration);
+    }
+
+    /**
+     * @return the values of the registered attributes, from a bulk read not yet returned to this registration
+     * @throws RuntimeException if the attributes could not be read
+     */
+    public Map<String, Object> getAttributeValues(Registration registration)
+    {
+        _BulkRead bulkRead;
+        boolean started = false;
+        synchronized (this) {
+            long oldestMillis = System.currentTimeMillis() - maxAgeMillis;
+            bulkRead = registration.pendingRead;
+            if (bulkRead == null) {
+                if (registration.isFresh(oldestMillis)) {
+                    valuesReused.incrementAndGet();
+                    return registration.consume();
+                }
+                bulkRead = prepareBulkRead(registration, oldestMillis);
+                started = true;
+            }
+            else {
+                // being read by another data source: wait for it rather than reading again
+                valuesReused.incrementAndGet();
+            }
+        }
+
+        // the lock is not held while reading, so that the data sources with fresh values get them meanwhile
+        if (started) {
+            bulkRead.start();
+        }
+        bulkRead.await();
+        if (started) {
+            bulkReads.incrementAndGet();
+            bulkReadMillis.record(System.currentTimeMillis() - bulkRead.startMillis);
+        }
+        return registration.consume();
+    }
+
+    /*
+    ** Only the registrations without fresh values, and not part of a read in progress, are read: a data source
+    ** polling more often than the others causes a round trip for its own MBean, not for every registered one.
+    ** The caller holds the lock.
+     */
+    private _BulkRead prepareBulkRead(Registration caller, long oldestMillis)
+    {
+        List<Registration> toRead = new ArrayList<Registration>();
+        // even if unregistered meanwhile
+        toRead.add(caller);
+        for (Registration registration : registrations) {
+            if (registration != caller && registration.pendingRead == null && !registration.isFresh(oldestMillis)) {
+                toRead.add(registration);
+            }
+        }
+
+        // a few chunks, each read sequentially by one thread
+        int numChunks = Math.min(maxConcurrentReads, toRead.size());
+        _BulkRead bulkRead = new _BulkRead(numChunks);
+        for (int chunk = 0; chunk < numChunks; chunk++) {
+            final List<Registration> chunkRegistrations = new ArrayList<Registration>();
+            for (int i = chunk; i < toRead.size(); i += numChunks) {
+                chunkRegistrations.add(toRead.get(i));
+            }
+            bulkRead.chunks.add(new FutureTask<Void>(new Callable<Void>()
+            {
+                public Void call()
+                {
+                    for (Registration registration : chunkRegistrations) {
+                        read(registration);
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        for (Registration registration : toRead) {
+            registration.pendingRead = bulkRead;
+        }
+        return bulkRead;
+    }
+
+    private void read(Registration registration)
+    {
+        long readMillis = System.currentTimeMillis();
+        try {
+            roundTrips.incrementAndGet();
+            registration.setResult(jmxClient.getResolvedAttributeValues(registration.descriptor, registration.attributeNames), null, readMillis);
+        }
+        catch (RuntimeException e) {
+            registration.setResult(null, e, readMillis);
+        }
+        synchronized (this) {
+            registration.pendingRead = null;
+        }
+    }
+
+    public String getHostAndPort()
+    {
+        return hostAndPort;
+    }
+
+    public int getNumRegistrations()
+    {
+        return registrations.size();
+    }
+
+    public long getBulkReads()
+    {
+        return bulkReads.get();
+    }
+
+    public long getRoundTrips()
+    {
+        return roundTrips.get();
+    }
+
+    public long getValuesReused()
+    {
+        return valuesReused.get();
+    }
+
+    public double getBulkReadMillisAverage()
+    {
+        return bulkReadMillis.getAverage();
+    }
+
+    private class _BulkRead
+    {
+        private final List<FutureTask<Void>> chunks;
+        private long startMillis;
+
+        private _BulkRead(int numChunks)
+        {
+            this.chunks = new ArrayList<FutureTask<Void>>(numChunks);
+        }
+
+        private void start()
+        {
+            startMillis = System.currentTimeMillis();
+            for (FutureTask<Void> chunk : chunks) {
+                try {
+                    executor.execute(chunk);
+                }
+                catch (RejectedExecutionException e) {
+                    // shutting down: read on this thread, so that the data sources waiting for it don't hang
+                    chunk.run();
+                }
+            }
+        }
+
+        private void await()
+        {
+            for (FutureTask<Void> chunk : chunks) {
+                try {
+                    chunk.get();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while reading from " + hostAndPort, e);
+                }
+                catch (ExecutionException e) {
+                    // read() catches the exceptions of each read
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        }
+    }
+
+    /**
+     * An MBean, and the attributes read from it, for one data source
+     */
+    public static class Registration
+    {
+        private final MBeanDescriptor descriptor;
+        private final String[] attributeNames;
+
+        private Map<String, Object> values = null;
+        private RuntimeException failure = null;
+        private long readMillis = 0L;
+        private boolean consumed = true;
+        // guarded by the JMXBulkReader
+        private _BulkRead pendingRead = null;
+
+        private Registration(MBeanDescriptor descriptor, String[] attributeNames)
+        {
+            this.descriptor = descriptor;
+            this.attributeNames = attributeNames;
+        }
+
+        private synchronized void setResult(Map<String, Object> values, RuntimeException failure, long readMillis)
+        {
+            this.values = values;
+            this.failure = failure;
+            this.readMillis = readMillis;
+            this.consumed = false;
+        }
+
+        private synchronized boolean isFresh(long oldestMillis)
+        {
+            return !consumed && readMillis >= oldestMillis;
+        }
+
+        private synchronized Map<String, Object> consume()
+        {
+            consumed = true;
+            if (failure != null) {
+                throw failure;
+            }
+            return values;
+        }
+    }
+}
@@ -45,7 +45,7 @@ public class JMXClient
 {
     public static class MBeanDescriptor
     {
-        // TODO: can we cache the Attribute objects (getAttributes) or do they have to be retrieved every time ?
+        // the MBeanInfo is retrieved once, JMXBulkReader caches the descriptors per connection
         private final ObjectName objectName;
         private final MBeanInfo  mbeanInfo;
         private final String[]   attributeNames;
@@ -77,6 +77,25 @@ public class JMXClient
         {
             return attributeNames;
         }
+
+        /**
+         * @return the names of the attributes of this MBean matching the given names, ignoring case
+         */
+        public String[] resolveAttributeNames(String[] requestedNames)
+        {
+            HashSet<String> expectedAttrNameSet = new HashSet<String>(requestedNames.length);
+            HashSet<String> actualAttrNameSet   = new HashSet<String>(requestedNames.length);
+
+            for (String attrName : requestedNames) {
+                expectedAttrNameSet.add(attrName.toLowerCase());
+            }
+            for (String attrName : attributeNames) {
+                if (expectedAttrNameSet.contains(attrName.toLowerCase())) {
+                    actualAttrNameSet.add(attrName);
+                }
+            }
+            return actualAttrNameSet.toArray(new String[actualAttrNameSet.size()]);
+        }
     }
 
     private JMXConnector          jmxConn;
@@ -133,6 +152,13 @@ public class JMXClient
         }
     }
 
+    /**
+     * Over an existing connection, e.g. to the platform MBean server; close() leaves it open
+     */
+    JMXClient(MBeanServerConnection mbeanConn)
+    {
+        this.mbeanConn = mbeanConn;
+    }
 
     public MBeanServerConnection getMBeanServerConnection()
     {
@@ -257,22 +283,18 @@ public class JMXClient
 
     public Map<String, Object> getAttributeValues(MBeanDescriptor mbeanDesc, String[] attributeNames)
     {
-        HashSet<String> expectedAttrNameSet = new HashSet<String>(attributeNames.length);
-        HashSet<String> actualAttrNameSet   = new HashSet<String>(attributeNames.length);
-
-        for (String attrName : attributeNames) {
-            expectedAttrNameSet.add(attrName.toLowerCase());
-        }
-        for (String attrName : mbeanDesc.getAttributeNames()) {
-            if (expectedAttrNameSet.contains(attrName.toLowerCase())) {
-                actualAttrNameSet.add(attrName);
-            }
-        }
+        return getResolvedAttributeValues(mbeanDesc, mbeanDesc.resolveAttributeNames(attributeNames));
+    }
 
+    /**
+     * @param resolvedAttributeNames attribute names as returned by mbeanDesc.resolveAttributeNames()
+     */
+    public Map<String, Object> getResolvedAttributeValues(MBeanDescriptor mbeanDesc, String[] resolvedAttributeNames)
+    {
         Map<String, Object> result = new LinkedHashMap<String, Object>();
 
          try {
-             AttributeList attrList = mbeanConn.getAttributes(mbeanDesc.getObjectName(), actualAttrNameSet.toArray(new String[actualAttrNameSet.size()]));
+             AttributeList attrList = mbeanConn.getAttributes(mbeanDesc.getObjectName(), resolvedAttributeNames);
 
              for (Object attrObj : attrList) {
                  Attribute attr = (Attribute)attrObj;
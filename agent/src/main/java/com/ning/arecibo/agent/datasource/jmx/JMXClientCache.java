@@ -18,11 +18,20 @@ package com.ning.arecibo.agent.datasource.jmx;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import org.weakref.jmx.Managed;
+import com.google.inject.Inject;
 import com.ning.arecibo.agent.datasource.DataSourceException;
+import com.ning.arecibo.agent.guice.AgentConfig;
 import com.ning.arecibo.util.Logger;
 import com.ning.arecibo.util.Pair;
+import com.ning.arecibo.util.jmx.MonitorableManaged;
+import com.ning.arecibo.util.jmx.MonitoringType;
 
 public class JMXClientCache {
 	private static final Logger log = Logger.getLogger(JMXClientCache.class);
@@ -32,10 +41,49 @@ public class JMXClientCache {
 	
 	private final HashMap<String,_CachedClientWrapper> jmxClientCache;
 	private final AtomicLong generationCount;
+
+	// bulk reads, see JMXBulkReader
+	private final boolean bulkReadEnabled;
+	private final int bulkReadConcurrency;
+	private final long bulkReadMaxAgeMillis;
+	private final ExecutorService bulkReadExecutor;
 	
 	public JMXClientCache() {
+		this(false, 1, 0L);
+	}
+
+	@Inject
+	public JMXClientCache(AgentConfig agentConfig) {
+		this(agentConfig.isJMXBulkReadEnabled(),
+		     agentConfig.getJMXBulkReadConcurrency(),
+		     agentConfig.getJMXBulkReadMaxAge().getMillis());
+	}
+
+	public JMXClientCache(boolean bulkReadEnabled, int bulkReadConcurrency, long bulkReadMaxAgeMillis) {
 		jmxClientCache = new HashMap<String,_CachedClientWrapper>();
 		generationCount = new AtomicLong(0L);
+
+		this.bulkReadEnabled = bulkReadEnabled;
+		this.bulkReadConcurrency = bulkReadConcurrency;
+		this.bulkReadMaxAgeMillis = bulkReadMaxAgeMillis;
+		if (bulkReadEnabled) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			// the number of reads in flight is bounded per host by bulkReadConcurrency, and overall by the polling threads
+			this.bulkReadExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "JMXBulkReader-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		else {
+			this.bulkReadExecutor = null;
+		}
+	}
+
+	public boolean isBulkReadEnabled() {
+		return bulkReadEnabled;
 	}
 	
 	public synchronized Pair<String,JMXClient> acquireClient(String host, int port)
@@ -56,8 +104,13 @@ public class JMXClientCache {
 		else {
 			// create a new one
 			JMXClient jmxClient = connectToJMX(host, port);	
+
+			JMXBulkReader bulkReader = null;
+			if (bulkReadEnabled) {
+				bulkReader = new JMXBulkReader(host + ":" + port, jmxClient, bulkReadExecutor, bulkReadConcurrency, bulkReadMaxAgeMillis);
+			}
 		
-			clientWrapper = new _CachedClientWrapper(jmxClient,generationCount.incrementAndGet());
+			clientWrapper = new _CachedClientWrapper(jmxClient,bulkReader,generationCount.incrementAndGet());
 			clientWrapper.addReference();
 			jmxClientCache.put(baseHashKey,clientWrapper);
 		
@@ -101,6 +154,18 @@ public class JMXClientCache {
 		}
 	}
 	
+	/**
+	 * @return the bulk reader of the client acquired with this key, null if bulk reads are disabled or the client is no longer valid
+	 */
+	public synchronized JMXBulkReader getBulkReader(String fullHashKey) {
+		Pair<String,Long> hashKeyParts = getHashKeyComponents(fullHashKey);
+		_CachedClientWrapper clientWrapper = jmxClientCache.get(hashKeyParts.getFirst());
+
+		if(clientWrapper == null || clientWrapper.getGenerationCount() != hashKeyParts.getSecond())
+			return null;
+		return clientWrapper.getBulkReader();
+	}
+
 	public synchronized JMXClient getCachedJMXClient(String hashKey) {
 		_CachedClientWrapper clientWrapper = jmxClientCache.get(hashKey);
 		if(clientWrapper != null)
@@ -145,14 +210,69 @@ public class JMXClientCache {
 		return jmxClient;
 	}	
 	
+	@MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
+	public synchronized long getBulkReadRoundTrips() {
+		long total = 0L;
+		for(_CachedClientWrapper clientWrapper:jmxClientCache.values()) {
+			if(clientWrapper.getBulkReader() != null)
+				total += clientWrapper.getBulkReader().getRoundTrips();
+		}
+		return total;
+	}
+
+	@MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
+	public synchronized long getBulkReadValuesReused() {
+		long total = 0L;
+		for(_CachedClientWrapper clientWrapper:jmxClientCache.values()) {
+			if(clientWrapper.getBulkReader() != null)
+				total += clientWrapper.getBulkReader().getValuesReused();
+		}
+		return total;
+	}
+
+	@Managed
+	public synchronized Map<String,Long> getBulkReadRoundTripsPerHost() {
+		Map<String,Long> map = new HashMap<String,Long>();
+		for(_CachedClientWrapper clientWrapper:jmxClientCache.values()) {
+			JMXBulkReader bulkReader = clientWrapper.getBulkReader();
+			if(bulkReader != null)
+				map.put(bulkReader.getHostAndPort(),bulkReader.getRoundTrips());
+		}
+		return map;
+	}
+
+	@Managed
+	public synchronized Map<String,Long> getBulkReadsPerHost() {
+		Map<String,Long> map = new HashMap<String,Long>();
+		for(_CachedClientWrapper clientWrapper:jmxClientCache.values()) {
+			JMXBulkReader bulkReader = clientWrapper.getBulkReader();
+			if(bulkReader != null)
+				map.put(bulkReader.getHostAndPort(),bulkReader.getBulkReads());
+		}
+		return map;
+	}
+
+	@Managed
+	public synchronized Map<String,Double> getAvgBulkReadMillisPerHost() {
+		Map<String,Double> map = new HashMap<String,Double>();
+		for(_CachedClientWrapper clientWrapper:jmxClientCache.values()) {
+			JMXBulkReader bulkReader = clientWrapper.getBulkReader();
+			if(bulkReader != null)
+				map.put(bulkReader.getHostAndPort(),bulkReader.getBulkReadMillisAverage());
+		}
+		return map;
+	}
+	
 	private class _CachedClientWrapper {
 		
 		private final JMXClient jmxClient;
+		private final JMXBulkReader bulkReader;
 		private final AtomicInteger referenceCount;
 		private final long generationCount;
 		
-		public _CachedClientWrapper(JMXClient jmxClient,long generationCount) {
+		public _CachedClientWrapper(JMXClient jmxClient,JMXBulkReader bulkReader,long generationCount) {
 			this.jmxClient = jmxClient;
+			this.bulkReader = bulkReader;
 			this.referenceCount = new AtomicInteger(0);
 			this.generationCount = generationCount;
 		}
@@ -160,6 +280,10 @@ public class JMXClientCache {
 		public JMXClient getJMXClient() {
 			return this.jmxClient;
 		}
+
+		public JMXBulkReader getBulkReader() {
+			return this.bulkReader;
+		}
 		
 		public int addReference() {
 			return this.referenceCount.incrementAndGet();
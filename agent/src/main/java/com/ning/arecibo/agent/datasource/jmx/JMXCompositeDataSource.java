@@ -50,6 +50,13 @@ public class JMXCompositeDataSource extends JMXDataSource
 		super.finalizePreparation();
 	}
 
+	@Override
+	protected boolean isBulkReadSupported()
+	{
+		// the relevant attributes are composite paths, read directly by getValues()
+		return false;
+	}
+
 	@Override
 	public synchronized Map<String, Object> getValues()
 		throws DataSourceException
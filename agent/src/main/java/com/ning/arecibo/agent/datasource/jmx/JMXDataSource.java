@@ -43,6 +43,8 @@ public class JMXDataSource implements DataSource
     protected final JMXParserManager JMXParserManager;
 	protected volatile String jmxClientCacheKey;
 	protected volatile JMXClient jmxClient;
+	protected volatile JMXBulkReader bulkReader;                 // null unless bulk reads are enabled
+	protected volatile JMXBulkReader.Registration bulkReadRegistration;
 	
 	protected volatile String objectName;                  // may be modified by dynamic bean
 	protected volatile MonitoredMBean monitoredMBean;
@@ -76,6 +78,7 @@ public class JMXDataSource implements DataSource
 			Pair<String,JMXClient> cachePair = jmxClientCache.acquireClient(this.host, this.port);
 			this.jmxClientCacheKey = cachePair.getFirst();
 			this.jmxClient = cachePair.getSecond();
+			this.bulkReader = jmxClientCache.getBulkReader(this.jmxClientCacheKey);
 			
 			JMXClient.MBeanDescriptor mbeanDescriptor = getMBeanDescriptor(this.jmxClient, this.objectName);
 			this.monitoredMBean = new MonitoredMBean(this.objectName, mbeanDescriptor, 1);
@@ -101,6 +104,7 @@ public class JMXDataSource implements DataSource
 	public synchronized void closeResources()
 		throws DataSourceException
 	{
+		unregisterBulkRead();
 		if (this.jmxClientCacheKey != null) {
 			try {
 				jmxClientCache.releaseClient(this.jmxClientCacheKey);
@@ -113,11 +117,13 @@ public class JMXDataSource implements DataSource
 			finally {
 				this.jmxClientCacheKey = null;
 				this.jmxClient = null;
+				this.bulkReader = null;
 			}
 		}
 	}
 	
 	protected synchronized void closeAndInvalidateClient() {
+		unregisterBulkRead();
 		if (this.jmxClientCacheKey != null) {
 			try {
 				jmxClientCache.releaseClient(this.jmxClientCacheKey,true);
@@ -129,6 +135,7 @@ public class JMXDataSource implements DataSource
 			finally {
 				this.jmxClientCacheKey = null;
 				this.jmxClient = null;
+				this.bulkReader = null;
 			}
 		}
 	}
@@ -138,7 +145,8 @@ public class JMXDataSource implements DataSource
 	{
 		JMXClient.MBeanDescriptor mbeanDescriptor;
 		try {
-			mbeanDescriptor = client.getMBean(accessor);
+			// the bulk reader caches the descriptors, and their MBeanInfo, across data sources
+			mbeanDescriptor = bulkReader != null ? bulkReader.getMBean(accessor) : client.getMBean(accessor);
 		}
 		catch (Exception e) {
 			closeResources();
@@ -175,6 +183,29 @@ public class JMXDataSource implements DataSource
 		// now that set of desired attributes is complete, instruct mbean to return them
 		this.monitoredMBean.setRelevantAttributes(this.attributes.toArray(new String[this.attributes.size()]));
         this.JMXParserManager.addParsers(this.monitoredMBean);
+
+		synchronized (this) {
+			unregisterBulkRead();
+			if (this.bulkReader != null && isBulkReadSupported()) {
+				this.bulkReadRegistration = this.bulkReader.register(monitoredMBean.getMBeanDescriptor(), monitoredMBean.getRelevantAttributes());
+			}
+		}
+	}
+
+	/**
+	 * @return whether getValues() reads the relevant attributes of the monitored MBean as they are
+	 */
+	protected boolean isBulkReadSupported()
+	{
+		return true;
+	}
+
+	protected synchronized void unregisterBulkRead()
+	{
+		if (this.bulkReadRegistration != null) {
+			this.bulkReader.unregister(this.bulkReadRegistration);
+			this.bulkReadRegistration = null;
+		}
 	}
 
     @Override
@@ -186,7 +217,13 @@ public class JMXDataSource implements DataSource
 		}
 		
 		try {
-			Map<String, Object> rawValues = jmxClient.getAttributeValues(monitoredMBean.getMBeanDescriptor(), monitoredMBean.getRelevantAttributes());
+			Map<String, Object> rawValues;
+			if (this.bulkReadRegistration != null) {
+				rawValues = bulkReader.getAttributeValues(this.bulkReadRegistration);
+			}
+			else {
+				rawValues = jmxClient.getAttributeValues(monitoredMBean.getMBeanDescriptor(), monitoredMBean.getRelevantAttributes());
+			}
 			if (rawValues.size() == 0) {
 				throw new DataSourceException(String.format("Problem: bean %s has returned no values for attributes '%s'", 
                         this.monitoredMBean.getName(), StringUtils.join(monitoredMBean.getRelevantAttributes(), ", ")));
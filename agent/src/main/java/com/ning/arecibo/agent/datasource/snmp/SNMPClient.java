@@ -21,12 +21,12 @@ import java.io.FileOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
 import java.util.Stack;
 import java.util.StringTokenizer;
-import java.util.TreeMap;
 import org.skife.config.TimeSpan;
 
 import com.adventnet.snmp.beans.SnmpTarget;
@@ -44,9 +44,10 @@ import com.adventnet.snmp.snmp2.SnmpUnsignedInt;
 import com.adventnet.snmp.snmp2.SnmpString;
 import com.ning.arecibo.agent.datasource.DataSourceException;
 import com.ning.arecibo.util.Logger;
+import com.ning.arecibo.util.Pair;
 
 
-final class SNMPClient
+final class SNMPClient implements SNMPTableWalker.Transport
 {
 	private static final Logger log = Logger.getLogger(SNMPClient.class);
 
@@ -245,48 +246,51 @@ final class SNMPClient
 		return results;
 	}
 	
-	public SortedMap<Integer,Object> getTableColumnValues(String tableColumnOidString) 
+	/**
+	 * @return the numeric OID of this name, from the loaded MIBs, or null if unknown
+	 */
+	public int[] resolveOid(String oidName)
 	{
-		TreeMap<Integer,Object> resMap = new TreeMap<Integer,Object>();
-		SnmpOID tableColumnOID = this.snmpTarget.getMibOperations().getSnmpOID(tableColumnOidString);
-		
+		SnmpOID oid = this.snmpTarget.getMibOperations().getSnmpOID(oidName);
+		if(oid == null)
+			return null;
+		return oid.toIntArray();
+	}
+
+	@Override
+	public List<Pair<int[],Object>> getBulk(int[][] oids, int maxRepetitions)
+		throws DataSourceException
+	{
+		String[] oidStrings = new String[oids.length];
+		for (int i = 0; i < oids.length; i++) {
+			// absolute OIDs, with the leading dot
+			oidStrings[i] = SNMPTableWalker.toOidString(oids[i]);
+		}
+
 		// this is just the max, actual number returned might be less, dependendent on the device, etc.
-		this.snmpTarget.setMaxRepetitions(100);
-		this.snmpTarget.setObjectIDList(new String[] {tableColumnOidString});
-		
-		boolean done = false;
-		do {
-			
-			// get next batch of data
-			SnmpVarBind[][] resultArray = this.snmpTarget.snmpGetBulkVariableBindings();
-			
-			if(resultArray == null || resultArray.length == 0)
-				break;
-			
-			for(SnmpVarBind[] results:resultArray) {
-				for(SnmpVarBind result:results) {
-					
-					SnmpOID oid = result.getObjectID();
-					if(oid == null || tableColumnOID == null || !SnmpTarget.isInSubTree(tableColumnOID, oid)) {
-						// bail if we are off the end of this table
-						done = true;
-						break;
-					}
-					
-					int[] oidNumbers = oid.toIntArray();
-					Integer rowNum = oidNumbers[oidNumbers.length-1];
-					
-					SnmpVar var = result.getVariable();
-					Object resultObj = convertToStandardJavaObject(var);
-					
-					resMap.put(rowNum, resultObj);
-				}
-				if(done)
-					break;
-			}	
-		} while(!done);
-		
-		return resMap;
+		this.snmpTarget.setMaxRepetitions(maxRepetitions);
+		this.snmpTarget.setObjectIDList(oidStrings);
+
+		SnmpVarBind[][] resultArray = this.snmpTarget.snmpGetBulkVariableBindings();
+
+		List<Pair<int[],Object>> varBinds = new ArrayList<Pair<int[],Object>>();
+		if(resultArray == null) {
+			if(this.snmpTarget.getErrorCode() != 0) {
+				throw new DataSourceException("GetBulk request failed: '" + this.snmpTarget.getErrorString() + "' for oid list: " + join(oidStrings));
+			}
+			return varBinds;
+		}
+
+		for(SnmpVarBind[] results:resultArray) {
+			if(results == null)
+				continue;
+			for(SnmpVarBind result:results) {
+				if(result == null || result.getObjectID() == null)
+					continue;
+				varBinds.add(new Pair<int[],Object>(result.getObjectID().toIntArray(), convertToStandardJavaObject(result.getVariable())));
+			}
+		}
+		return varBinds;
 	}
 	
 	private Object convertToStandardJavaObject(Object snmpVar) {
@@ -17,10 +17,14 @@
 package com.ning.arecibo.agent.datasource.snmp;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.TreeMap;
 import org.skife.config.TimeSpan;
 import com.ning.arecibo.agent.config.Config;
 import com.ning.arecibo.agent.config.snmp.SNMPConfig;
@@ -29,6 +33,7 @@ import com.ning.arecibo.agent.datasource.DataSourceException;
 import com.ning.arecibo.agent.datasource.DataSourceType;
 
 import com.ning.arecibo.util.Logger;
+import com.ning.arecibo.util.Pair;
 
 
 public final class SNMPDataSource implements DataSource
@@ -41,15 +46,27 @@ public final class SNMPDataSource implements DataSource
 	private final TimeSpan timeout;
 	private final String snmpCompiledMibDir;
 	private final HashMap<String,SortedMap<Integer,Object>> cachedTableColumns;
+	private final SNMPTableWalkCache tableWalkCache;
 	
 	private volatile SNMPClient snmpClient;
 	private volatile List<String> mibList;
 	private volatile List<String> oidList;
 	private volatile Map<String,String> configHashKeyMap;
 	private volatile String[] oidArray;
+
+	// when shared table walks are enabled, the table column and row of each oid in oidList, if all could be resolved
+	private volatile SNMPTableWalkCache.Device tableWalkDevice;
+	private volatile SNMPTableWalkCache.Registration tableWalkRegistration;
+	private volatile Map<String,Pair<int[],Integer>> oidColumnsAndRows;
 	
 	public SNMPDataSource(Config config, TimeSpan timeout, String snmpCompiledMibDir)
         throws DataSourceException
+	{
+		this(config, timeout, snmpCompiledMibDir, new SNMPTableWalkCache());
+	}
+
+	public SNMPDataSource(Config config, TimeSpan timeout, String snmpCompiledMibDir, SNMPTableWalkCache tableWalkCache)
+        throws DataSourceException
 	{
         if(!(config instanceof SNMPConfig)) {
             throw new DataSourceException("SNMPDataSource must be initialized with an instance of SNMPConfig");
@@ -63,6 +80,7 @@ public final class SNMPDataSource implements DataSource
 		this.snmpClient = null;
 
         this.community = snmpConfig.getCommunityString();
+        this.tableWalkCache = tableWalkCache;
 
 		cachedTableColumns = new HashMap<String,SortedMap<Integer,Object>>();
 	}
@@ -77,6 +95,8 @@ public final class SNMPDataSource implements DataSource
 				this.mibList = new ArrayList<String>();
 				this.oidList = new ArrayList<String>();
 				this.configHashKeyMap = new HashMap<String,String>();
+				this.oidColumnsAndRows = new HashMap<String,Pair<int[],Integer>>();
+				this.tableWalkDevice = this.tableWalkCache.acquireDevice(this.host, this.port, this.community);
 			}
 		}
 		catch (RuntimeException e) {
@@ -103,6 +123,7 @@ public final class SNMPDataSource implements DataSource
             }
             finally {
 			    this.snmpClient = null;
+			    releaseTableWalkDevice();
             }
 		}
 	}
@@ -149,6 +170,16 @@ public final class SNMPDataSource implements DataSource
 			mibList.add(mib);
 		}
 
+		if(this.tableWalkDevice != null) {
+			int[] columnOid = this.snmpClient.resolveOid(oidName);
+			if(columnOid != null) {
+				this.oidColumnsAndRows.put(attributeOid, new Pair<int[],Integer>(columnOid, Integer.parseInt(snmpConfig.getOidRow())));
+			}
+			else {
+				log.info("Could not resolve OID '" + oidName + "', polling it with get requests, for config: " + snmpConfig.getConfigHashKey());
+			}
+		}
+
 		// try to discover the data type for this config (may want to make this explicit in monitoring profile)
 		if(this.snmpClient.isCounterDataType(mib,attributeOid)) {
 			log.info("setting counterOverride flag for OID '" + attributeOid + "', for config: " + snmpConfig.getConfigHashKey());
@@ -168,6 +199,34 @@ public final class SNMPDataSource implements DataSource
 	    for(String oid:oidList) {
 	    	oidArray[i++] = oid;
 	    }
+
+	    if(this.tableWalkDevice != null) {
+	    	if(this.tableWalkRegistration != null) {
+	    		this.tableWalkDevice.unregister(this.tableWalkRegistration);
+	    		this.tableWalkRegistration = null;
+	    	}
+
+	    	// only take the rows from the shared walks if all the oids can be
+	    	if(oidColumnsAndRows.keySet().containsAll(oidList)) {
+	    		Map<String,int[]> columns = new LinkedHashMap<String,int[]>();
+	    		for(Pair<int[],Integer> columnAndRow:oidColumnsAndRows.values()) {
+	    			columns.put(SNMPTableWalker.toKey(columnAndRow.getFirst()), columnAndRow.getFirst());
+	    		}
+	    		this.tableWalkRegistration = this.tableWalkDevice.register(columns.values().toArray(new int[columns.size()][]));
+	    	}
+	    }
+	}
+
+	private synchronized void releaseTableWalkDevice()
+	{
+		if(this.tableWalkDevice != null) {
+			if(this.tableWalkRegistration != null) {
+				this.tableWalkDevice.unregister(this.tableWalkRegistration);
+				this.tableWalkRegistration = null;
+			}
+			this.tableWalkCache.releaseDevice(this.tableWalkDevice);
+			this.tableWalkDevice = null;
+		}
 	}
 
 
@@ -183,9 +242,40 @@ public final class SNMPDataSource implements DataSource
 	public synchronized Map<String, Object> getValues()
 		throws DataSourceException
 	{
+		if(this.tableWalkRegistration != null) {
+			return getValuesFromTableWalk();
+		}
 		return getValues(oidArray,false);
 	}
 
+	private synchronized Map<String, Object> getValuesFromTableWalk()
+		throws DataSourceException
+	{
+		try {
+			if (this.snmpClient == null) {
+				throw new DataSourceException("Client not initialized.");
+			}
+
+			Map<String,SortedMap<Integer,Object>> columnValues = this.tableWalkDevice.getColumnValues(this.tableWalkRegistration);
+
+			// rows missing from the walk are reported as null, as they are by a get request
+			Map<String, Object> results = new HashMap<String, Object>();
+			for (String oid : oidArray) {
+				Pair<int[],Integer> columnAndRow = oidColumnsAndRows.get(oid);
+				SortedMap<Integer,Object> rows = columnValues.get(SNMPTableWalker.toKey(columnAndRow.getFirst()));
+				results.put(configHashKeyMap.get(oid), rows == null ? null : rows.get(columnAndRow.getSecond()));
+			}
+			return results;
+		}
+		catch(DataSourceException dsEx) {
+			log.info(dsEx, "Unable to getValues from table walk for SNMP Client for %s", this.host);
+			closeResources();
+
+			// throw this out to the caller, which will handle and report it
+			throw dsEx;
+		}
+	}
+
 	public synchronized Map<String, Object> getValues(String[] oidArray) 
 		throws DataSourceException
 	{
@@ -238,10 +328,42 @@ public final class SNMPDataSource implements DataSource
 			throw new DataSourceException("Client not initialized.");
 		}
 		
-		SortedMap<Integer,Object> tableColumnValues = this.snmpClient.getTableColumnValues(tableColumnOID);
-		
-		cachedTableColumns.put(tableColumnOID,tableColumnValues);
-		return tableColumnValues;
+		prefetchTableColumns(Collections.singletonList(tableColumnOID));
+		return cachedTableColumns.get(tableColumnOID);
+	}
+
+	/**
+	 * Walks the columns not yet cached together, with as few GetBulk requests as possible
+	 */
+	public synchronized void prefetchTableColumns(Collection<String> tableColumnOIDs)
+		throws DataSourceException
+	{
+		if (this.snmpClient == null) {
+			throw new DataSourceException("Client not initialized.");
+		}
+
+		List<String> columnNames = new ArrayList<String>();
+		List<int[]> columnOids = new ArrayList<int[]>();
+		for(String tableColumnOID:tableColumnOIDs) {
+			if(cachedTableColumns.containsKey(tableColumnOID) || columnNames.contains(tableColumnOID))
+				continue;
+
+			int[] columnOid = this.snmpClient.resolveOid(tableColumnOID);
+			if(columnOid == null) {
+				// nothing to walk
+				cachedTableColumns.put(tableColumnOID,new TreeMap<Integer,Object>());
+				continue;
+			}
+			columnNames.add(tableColumnOID);
+			columnOids.add(columnOid);
+		}
+		if(columnNames.isEmpty())
+			return;
+
+		List<SortedMap<Integer,Object>> results = tableWalkCache.getTableWalker().walk(this.snmpClient, columnOids.toArray(new int[columnOids.size()][]));
+		for(int i = 0; i < columnNames.size(); i++) {
+			cachedTableColumns.put(columnNames.get(i),results.get(i));
+		}
 	}
 	
 	public synchronized Object getTableColumnValueViaCache(String tableColumnOID,int row) 
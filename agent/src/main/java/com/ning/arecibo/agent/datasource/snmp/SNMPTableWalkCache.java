@@ -0,0 +1,294 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ning.arecibo.agent.datasource.snmp;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import org.skife.config.TimeSpan;
+import org.weakref.jmx.Managed;
+import com.google.inject.Inject;
+import com.ning.arecibo.agent.datasource.DataSourceException;
+import com.ning.arecibo.agent.guice.AgentConfig;
+import com.ning.arecibo.util.Logger;
+import com.ning.arecibo.util.jmx.MonitorableManaged;
+import com.ning.arecibo.util.jmx.MonitoringType;
+
+/**
+ * Shares GetBulk table walks between the SNMP collectors of a device.
+ * <p/>
+ * Each SNMPDataSource registers the table columns of its OIDs with the Device of its host.  The first one to poll
+ * in a cycle walks the columns registered by all of them, with SNMPTableWalker; the data sources polling after it,
+ * within maxAgeMillis, take their rows from that walk.  Each data source gets a given walk at most once.
+ */
+public class SNMPTableWalkCache
+{
+	private static final Logger log = Logger.getLogger(SNMPTableWalkCache.class);
+
+	private static final int DEFAULT_MAX_REPETITIONS = 100;
+	private static final int DEFAULT_MAX_COLUMNS_PER_PDU = 1;
+
+	private final boolean sharedWalksEnabled;
+	private final TimeSpan timeout;
+	private final String compiledMibDir;
+	private final int maxRepetitions;
+	private final int maxColumnsPerPdu;
+	private final long maxAgeMillis;
+
+	// used by the data sources to walk tables on their own connection, e.g. for SNMPTableConfigIterator
+	private final SNMPTableWalker tableWalker;
+	private final HashMap<String,Device> devices;
+
+	public SNMPTableWalkCache() {
+		this(false, null, null, DEFAULT_MAX_REPETITIONS, DEFAULT_MAX_COLUMNS_PER_PDU, 0L);
+	}
+
+	@Inject
+	public SNMPTableWalkCache(AgentConfig agentConfig) {
+		this(agentConfig.isSNMPSharedTableWalksEnabled(),
+		     agentConfig.getConnectionTimeout(),
+		     agentConfig.getSNMPCompiledMibDir(),
+		     agentConfig.getSNMPBulkMaxRepetitions(),
+		     agentConfig.getSNMPBulkMaxColumnsPerPdu(),
+		     agentConfig.getSNMPSharedTableWalkMaxAge().getMillis());
+	}
+
+	public SNMPTableWalkCache(boolean sharedWalksEnabled, TimeSpan timeout, String compiledMibDir,
+	                          int maxRepetitions, int maxColumnsPerPdu, long maxAgeMillis) {
+		this.sharedWalksEnabled = sharedWalksEnabled;
+		this.timeout = timeout;
+		this.compiledMibDir = compiledMibDir;
+		this.maxRepetitions = maxRepetitions;
+		this.maxColumnsPerPdu = maxColumnsPerPdu;
+		this.maxAgeMillis = maxAgeMillis;
+
+		this.tableWalker = new SNMPTableWalker(maxRepetitions, maxColumnsPerPdu);
+		this.devices = new HashMap<String,Device>();
+	}
+
+	public boolean isSharedWalksEnabled() {
+		return sharedWalksEnabled;
+	}
+
+	public SNMPTableWalker getTableWalker() {
+		return tableWalker;
+	}
+
+	/**
+	 * @return the device of this host, with its reference count incremented, or null if shared walks are disabled
+	 */
+	public synchronized Device acquireDevice(String host, int port, String community) {
+		if(!sharedWalksEnabled)
+			return null;
+
+		String key = host + ":" + port + ":" + community;
+		Device device = devices.get(key);
+		if(device == null) {
+			SNMPClient snmpClient = new SNMPClient(host, port, community, timeout, compiledMibDir);
+			device = new Device(key, host + ":" + port, snmpClient, new SNMPTableWalker(maxRepetitions, maxColumnsPerPdu), maxAgeMillis);
+			devices.put(key, device);
+		}
+		device.referenceCount++;
+		return device;
+	}
+
+	public synchronized void releaseDevice(Device device) {
+		if(--device.referenceCount > 0)
+			return;
+
+		log.info("Closing SNMP table walks for %s", device.getHostAndPort());
+		devices.remove(device.key);
+		device.close();
+	}
+
+	@Managed
+	public synchronized int getNumDevices() {
+		return devices.size();
+	}
+
+	@MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
+	public synchronized long getSharedWalks() {
+		long total = 0L;
+		for(Device device:devices.values()) {
+			total += device.walker.getWalks();
+		}
+		return total;
+	}
+
+	@MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
+	public synchronized long getSharedWalkPdus() {
+		long total = 0L;
+		for(Device device:devices.values()) {
+			total += device.walker.getPdus();
+		}
+		return total;
+	}
+
+	@MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
+	public synchronized long getSharedWalksReused() {
+		long total = 0L;
+		for(Device device:devices.values()) {
+			total += device.walksReused.get();
+		}
+		return total;
+	}
+
+	@MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
+	public long getTableWalks() {
+		return tableWalker.getWalks();
+	}
+
+	@MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
+	public long getTableWalkPdus() {
+		return tableWalker.getPdus();
+	}
+
+	@Managed
+	public double getTableWalkMillisAverage() {
+		return tableWalker.getWalkMillisAverage();
+	}
+
+	@Managed
+	public synchronized Map<String,Double> getAvgPdusPerWalkPerHost() {
+		Map<String,Double> map = new HashMap<String,Double>();
+		for(Device device:devices.values()) {
+			map.put(device.getHostAndPort(), device.walker.getPdusPerWalkAverage());
+		}
+		return map;
+	}
+
+	@Managed
+	public synchronized Map<String,Double> getAvgWalkMillisPerHost() {
+		Map<String,Double> map = new HashMap<String,Double>();
+		for(Device device:devices.values()) {
+			map.put(device.getHostAndPort(), device.walker.getWalkMillisAverage());
+		}
+		return map;
+	}
+
+	@Managed
+	public synchronized Map<String,Long> get99thPercentileWalkMillisPerHost() {
+		Map<String,Long> map = new HashMap<String,Long>();
+		for(Device device:devices.values()) {
+			map.put(device.getHostAndPort(), device.walker.getWalkMillis99thPercentile());
+		}
+		return map;
+	}
+
+	public static final class Device {
+
+		private final String key;
+		private final String hostAndPort;
+		private final SNMPTableWalker.Transport transport;
+		private final SNMPTableWalker walker;
+		private final long maxAgeMillis;
+
+		private final List<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+		private final AtomicLong walksReused = new AtomicLong();
+
+		// guarded by the SNMPTableWalkCache
+		private int referenceCount = 0;
+
+		// guarded by this
+		private Map<String,SortedMap<Integer,Object>> lastWalk = null;
+		private long lastWalkMillis = 0L;
+		private long walkCount = 0L;
+
+		Device(String key, String hostAndPort, SNMPTableWalker.Transport transport, SNMPTableWalker walker, long maxAgeMillis) {
+			this.key = key;
+			this.hostAndPort = hostAndPort;
+			this.transport = transport;
+			this.walker = walker;
+			this.maxAgeMillis = maxAgeMillis;
+		}
+
+		public String getHostAndPort() {
+			return hostAndPort;
+		}
+
+		public Registration register(int[][] columns) {
+			Registration registration = new Registration(columns);
+			registrations.add(registration);
+			return registration;
+		}
+
+		public void unregister(Registration registration) {
+			registrations.remove(registration);
+		}
+
+		/**
+		 * @return the values of the registered columns, by row, keyed by SNMPTableWalker.toKey(column)
+		 */
+		public synchronized Map<String,SortedMap<Integer,Object>> getColumnValues(Registration registration)
+			throws DataSourceException
+		{
+			long nowMillis = System.currentTimeMillis();
+			if(lastWalk != null && lastWalkMillis >= nowMillis - maxAgeMillis &&
+			   registration.lastWalkCount < walkCount && lastWalk.keySet().containsAll(registration.columns.keySet())) {
+				walksReused.incrementAndGet();
+			}
+			else {
+				// walk the columns of every data source of this device, in one pass
+				LinkedHashMap<String,int[]> columns = new LinkedHashMap<String,int[]>(registration.columns);
+				for(Registration other:registrations) {
+					columns.putAll(other.columns);
+				}
+
+				lastWalk = null;
+				List<SortedMap<Integer,Object>> results = walker.walk(transport, columns.values().toArray(new int[columns.size()][]));
+
+				Map<String,SortedMap<Integer,Object>> walk = new HashMap<String,SortedMap<Integer,Object>>();
+				int i = 0;
+				for(String column:columns.keySet()) {
+					walk.put(column, results.get(i++));
+				}
+				lastWalk = walk;
+				lastWalkMillis = nowMillis;
+				walkCount++;
+			}
+
+			registration.lastWalkCount = walkCount;
+			return lastWalk;
+		}
+
+		private void close() {
+			if(transport instanceof SNMPClient)
+				((SNMPClient)transport).close();
+		}
+	}
+
+	/**
+	 * The table columns polled by one data source
+	 */
+	public static final class Registration {
+
+		private final Map<String,int[]> columns;
+		private long lastWalkCount = -1L;
+
+		private Registration(int[][] columns) {
+			this.columns = new LinkedHashMap<String,int[]>();
+			for(int[] column:columns) {
+				this.columns.put(SNMPTableWalker.toKey(column), column);
+			}
+		}
+	}
+}
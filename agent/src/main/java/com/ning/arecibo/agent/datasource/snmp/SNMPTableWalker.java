@@ -0,0 +1,196 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ning.arecibo.agent.datasource.snmp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import com.ning.arecibo.agent.datasource.DataSourceException;
+import com.ning.arecibo.util.Pair;
+import com.ning.arecibo.util.metrics.ValueStats;
+
+/**
+ * Walks table columns with GetBulk requests, several columns per PDU.
+ * <p/>
+ * Each PDU carries the next OID of up to maxColumnsPerPdu of the columns still being walked, and asks for up to
+ * maxRepetitions successors of each.  A column is done once a PDU no longer advances it, i.e. once the agent
+ * returns OIDs past the end of its subtree, or endOfMibView.  Values are keyed by the last sub-identifier of
+ * their OID, the row number.
+ */
+public final class SNMPTableWalker
+{
+	public interface Transport
+	{
+		/**
+		 * Sends one GetBulk PDU, with no non-repeaters
+		 *
+		 * @return the variable bindings of the response, as (OID, value) pairs in any order
+		 */
+		List<Pair<int[],Object>> getBulk(int[][] oids, int maxRepetitions) throws DataSourceException;
+	}
+
+	private final int maxRepetitions;
+	private final int maxColumnsPerPdu;
+
+	private final AtomicLong walks = new AtomicLong();
+	private final AtomicLong pdus = new AtomicLong();
+	private final ValueStats pdusPerWalk = new ValueStats();
+	private final ValueStats walkMillis = new ValueStats();
+
+	public SNMPTableWalker(int maxRepetitions, int maxColumnsPerPdu)
+	{
+		this.maxRepetitions = Math.max(1, maxRepetitions);
+		this.maxColumnsPerPdu = Math.max(1, maxColumnsPerPdu);
+	}
+
+	/**
+	 * @return the values of each column, by row, in the order of the columns
+	 */
+	public List<SortedMap<Integer,Object>> walk(Transport transport, int[][] columns)
+		throws DataSourceException
+	{
+		long startMillis = System.currentTimeMillis();
+		int numPdus = 0;
+
+		List<SortedMap<Integer,Object>> results = new ArrayList<SortedMap<Integer,Object>>(columns.length);
+		int[][] nextOids = new int[columns.length][];
+		List<Integer> active = new ArrayList<Integer>(columns.length);
+		for (int i = 0; i < columns.length; i++) {
+			results.add(new TreeMap<Integer,Object>());
+			nextOids[i] = columns[i];
+			active.add(i);
+		}
+
+		while (!active.isEmpty()) {
+			List<Integer> batch = new ArrayList<Integer>(active.subList(0, Math.min(maxColumnsPerPdu, active.size())));
+			int[][] requestOids = new int[batch.size()][];
+			for (int i = 0; i < batch.size(); i++) {
+				requestOids[i] = nextOids[batch.get(i)];
+			}
+
+			List<Pair<int[],Object>> varBinds = transport.getBulk(requestOids, maxRepetitions);
+			numPdus++;
+			pdus.incrementAndGet();
+
+			// the repetitions of a column past its end may land in the subtree of another column of the batch,
+			// those are just as valid as the ones requested for that column
+			boolean[] advanced = new boolean[columns.length];
+			for (Pair<int[],Object> varBind : varBinds) {
+				int[] oid = varBind.getFirst();
+				if (oid == null) {
+					continue;
+				}
+				for (Integer column : batch) {
+					if (isInSubtree(columns[column], oid)) {
+						int row = oid[oid.length - 1];
+						if (compare(oid, nextOids[column]) > 0) {
+							results.get(column).put(row, varBind.getSecond());
+							nextOids[column] = oid;
+							advanced[column] = true;
+						}
+						else if (!results.get(column).containsKey(row)) {
+							results.get(column).put(row, varBind.getSecond());
+						}
+						// else an endOfMibView for the last OID, or a row already returned
+						break;
+					}
+				}
+			}
+
+			for (Integer column : batch) {
+				if (!advanced[column]) {
+					active.remove(column);
+				}
+			}
+		}
+
+		walks.incrementAndGet();
+		pdusPerWalk.record(numPdus);
+		walkMillis.record(System.currentTimeMillis() - startMillis);
+
+		return results;
+	}
+
+	static boolean isInSubtree(int[] root, int[] oid)
+	{
+		if (oid.length <= root.length) {
+			return false;
+		}
+		for (int i = 0; i < root.length; i++) {
+			if (oid[i] != root[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// lexicographic order, as used by GetNext
+	static int compare(int[] oid1, int[] oid2)
+	{
+		int length = Math.min(oid1.length, oid2.length);
+		for (int i = 0; i < length; i++) {
+			if (oid1[i] != oid2[i]) {
+				// sub-identifiers are unsigned 32 bit values
+				return (oid1[i] & 0xffffffffL) < (oid2[i] & 0xffffffffL) ? -1 : 1;
+			}
+		}
+		return oid1.length - oid2.length;
+	}
+
+	static String toOidString(int[] oid)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int subId : oid) {
+			sb.append('.').append(subId & 0xffffffffL);
+		}
+		return sb.toString();
+	}
+
+	static String toKey(int[] oid)
+	{
+		return Arrays.toString(oid);
+	}
+
+	public long getWalks()
+	{
+		return walks.get();
+	}
+
+	public long getPdus()
+	{
+		return pdus.get();
+	}
+
+	public double getPdusPerWalkAverage()
+	{
+		return pdusPerWalk.getAverage();
+	}
+
+	public double getWalkMillisAverage()
+	{
+		return walkMillis.getAverage();
+	}
+
+	public long getWalkMillis99thPercentile()
+	{
+		return walkMillis.getQuantile(0.99);
+	}
+}
@@ -20,23 +20,16 @@ import java.util.Map;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.HashMap;
-import java.io.IOException;
-import java.net.Socket;
-import java.net.SocketAddress;
 import java.net.InetSocketAddress;
-import org.skife.config.TimeSpan;
 import com.ning.arecibo.agent.config.Config;
 import com.ning.arecibo.agent.config.ConfigException;
 import com.ning.arecibo.agent.config.tcp.TCPConnectCheckConfig;
-import com.ning.arecibo.agent.datasource.DataSource;
+import com.ning.arecibo.agent.datasource.AsyncDataSource;
 import com.ning.arecibo.agent.datasource.DataSourceException;
+import com.ning.arecibo.agent.datasource.DataSourceFuture;
 import com.ning.arecibo.agent.datasource.DataSourceType;
 
-import com.ning.arecibo.util.Logger;
-
-public class TCPConnectCheckDataSource implements DataSource {
-
-    private static final Logger log = Logger.getLogger(TCPConnectCheckDataSource.class);
+public class TCPConnectCheckDataSource implements AsyncDataSource {
 
     public static final String CONNECT_CHECK_RESULT = "connectCheckResult";
     public static final String CONNECT_TEST_TIME_MS = "connectTestTimeMs";
@@ -51,11 +44,11 @@ public class TCPConnectCheckDataSource implements DataSource {
 
     private final String host;
     private final int port;
-    private final TimeSpan timeout;
+    private final TCPConnectChecker connectChecker;
 
     private final Map<String, String> configHashKeyMap;
 
-    public TCPConnectCheckDataSource(Config config, TimeSpan timeout)
+    public TCPConnectCheckDataSource(Config config, TCPConnectChecker connectChecker)
         throws DataSourceException {
 
         if(!(config instanceof TCPConnectCheckConfig)) {
@@ -65,7 +58,7 @@ public class TCPConnectCheckDataSource implements DataSource {
 
         this.host = config.getHost();
         this.port = tcpConnectCheckConfig.getPort();
-        this.timeout = timeout;
+        this.connectChecker = connectChecker;
 
         this.configHashKeyMap = new HashMap<String,String>();
     }
@@ -123,47 +116,43 @@ public class TCPConnectCheckDataSource implements DataSource {
 
     @Override
     public Map<String, Object> getValues()  throws DataSourceException {
+        return getValuesAsync().getValues();
+    }
 
-        final long startNanos = System.nanoTime();
-
-        final HashMap<String,Object> values = new HashMap<String,Object>();
+    @Override
+    public DataSourceFuture getValuesAsync() {
 
-        Socket sock = null;
-        try {
-            SocketAddress sockAddr = new InetSocketAddress(host,port);
+        final DataSourceFuture future = new DataSourceFuture();
 
-            sock = new Socket();
-            sock.connect(sockAddr, (int)timeout.getMillis());
+        connectChecker.check(new InetSocketAddress(host,port), new TCPConnectChecker.Listener() {
 
-            values.put(configHashKeyMap.get(CONNECT_CHECK_RESULT), SUCCESSFUL_CONNECT_RESULT);
-            values.put(configHashKeyMap.get(CONNECT_TEST_MESSAGE), SUCCESSFUL_CONNECT_MESSAGE);
-        }
-        catch(Exception ex) {
-            values.put(configHashKeyMap.get(CONNECT_CHECK_RESULT), FAILED_CONNECT_RESULT);
+            public void completed(Throwable failure, long connectNanos) {
 
-            Throwable t = ex;
-            while (t.getCause() != null)
-                t = t.getCause();
+                final HashMap<String,Object> values = new HashMap<String,Object>();
 
-            values.put(configHashKeyMap.get(CONNECT_TEST_MESSAGE), t.toString());
-        }
-        finally {
-            // get the timing for the connect
-            long endNanos = System.nanoTime();
-            double connectMillis = (double) (endNanos - startNanos) / NANOS_PER_MILLI;
-            values.put(configHashKeyMap.get(CONNECT_TEST_TIME_MS), connectMillis);
-
-            if(sock != null) {
-                try {
-                    sock.close();
+                if(failure == null) {
+                    values.put(configHashKeyMap.get(CONNECT_CHECK_RESULT), SUCCESSFUL_CONNECT_RESULT);
+                    values.put(configHashKeyMap.get(CONNECT_TEST_MESSAGE), SUCCESSFUL_CONNECT_MESSAGE);
                 }
-                catch(IOException ioEx) {
-                    log.warn(ioEx);
+                else {
+                    values.put(configHashKeyMap.get(CONNECT_CHECK_RESULT), FAILED_CONNECT_RESULT);
+
+                    Throwable t = failure;
+                    while (t.getCause() != null)
+                        t = t.getCause();
+
+                    values.put(configHashKeyMap.get(CONNECT_TEST_MESSAGE), t.toString());
                 }
+
+                // get the timing for the connect
+                double connectMillis = (double) connectNanos / NANOS_PER_MILLI;
+                values.put(configHashKeyMap.get(CONNECT_TEST_TIME_MS), connectMillis);
+
+                future.set(values);
             }
-        }
+        });
 
-        return values;
+        return future;
     }
 
     @Override
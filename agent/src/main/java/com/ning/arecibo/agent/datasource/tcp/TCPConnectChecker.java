@@ -0,0 +1,325 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ning.arecibo.agent.datasource.tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.weakref.jmx.Managed;
+import com.google.inject.Inject;
+import com.ning.arecibo.agent.datasource.InFlightLimiter;
+import com.ning.arecibo.agent.guice.AgentConfig;
+import com.ning.arecibo.util.Logger;
+import com.ning.arecibo.util.jmx.MonitorableManaged;
+import com.ning.arecibo.util.jmx.MonitoringType;
+import com.ning.arecibo.util.metrics.ValueStats;
+
+/**
+ * Non-blocking TCP connect checks, shared by all the TCPConnectCheckDataSources: one thread selects on the
+ * connects in flight, and completes each one as it connects, fails or times out.  The listeners are called from
+ * a separate thread, so that publishing the results of a check never delays the connects of the others.
+ */
+public class TCPConnectChecker
+{
+    private static final Logger log = Logger.getLogger(TCPConnectChecker.class);
+
+    // how often the connects in flight are checked for a timeout
+    private static final long SELECT_TIMEOUT_MILLIS = 50L;
+
+    public interface Listener
+    {
+        /**
+         * Called once, from the completion thread of the checker, with null if the connect succeeded
+         */
+        public void completed(Throwable failure, long connectNanos);
+    }
+
+    private final long timeoutNanos;
+    private final InFlightLimiter limiter;
+    private final Queue<_Connect> pending = new ConcurrentLinkedQueue<_Connect>();
+    private final ThreadPoolExecutor completions;
+
+    private final AtomicLong connectsStarted = new AtomicLong();
+    private final AtomicLong connectsFailed = new AtomicLong();
+    private final AtomicLong connectsTimedOut = new AtomicLong();
+    private final ValueStats connectMillis = new ValueStats();
+
+    private volatile Selector selector = null;
+    private volatile Thread thread = null;
+
+    @Inject
+    public TCPConnectChecker(AgentConfig agentConfig)
+    {
+        this(agentConfig.getConnectionTimeout().getMillis(), agentConfig.getMaxChecksInFlight());
+    }
+
+    public TCPConnectChecker(long timeoutMillis, int maxConnectsInFlight)
+    {
+        this.timeoutNanos = timeoutMillis * 1000000L;
+        this.limiter = new InFlightLimiter(maxConnectsInFlight);
+
+        ThreadPoolExecutor completions = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "TCPConnectChecker-completions");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        completions.allowCoreThreadTimeOut(true);
+        this.completions = completions;
+    }
+
+    public synchronized void start() throws IOException
+    {
+        if (thread != null) {
+            return;
+        }
+        selector = Selector.open();
+        thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                runSelector();
+            }
+        }, "TCPConnectChecker");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop()
+    {
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        selector.wakeup();
+        thread = null;
+    }
+
+    /**
+     * Connects to the address once there is room for it, without blocking, then closes the connection
+     */
+    public void check(final InetSocketAddress address, final Listener listener)
+    {
+        limiter.submit(new Runnable()
+        {
+            public void run()
+            {
+                _Connect connect = new _Connect(listener);
+                connectsStarted.incrementAndGet();
+                try {
+                    if (thread == null) {
+                        start();
+                    }
+                    connect.channel = SocketChannel.open();
+                    connect.channel.configureBlocking(false);
+                    if (connect.channel.connect(address)) {
+                        complete(connect, null);
+                        return;
+                    }
+                    pending.add(connect);
+                    selector.wakeup();
+                }
+                catch (IOException ioEx) {
+                    complete(connect, ioEx);
+                }
+                catch (RuntimeException ruEx) {
+                    // e.g. an unresolved address
+                    complete(connect, ruEx);
+                }
+            }
+        });
+    }
+
+    private void runSelector()
+    {
+        Selector selector = this.selector;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                selector.select(SELECT_TIMEOUT_MILLIS);
+
+                _Connect connect;
+                while ((connect = pending.poll()) != null) {
+                    try {
+                        connect.key = connect.channel.register(selector, SelectionKey.OP_CONNECT, connect);
+                    }
+                    catch (IOException ioEx) {
+                        complete(connect, ioEx);
+                    }
+                }
+
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+
+                    connect = (_Connect)key.attachment();
+                    try {
+                        if (connect.channel.finishConnect()) {
+                            complete(connect, null);
+                        }
+                    }
+                    catch (IOException ioEx) {
+                        complete(connect, ioEx);
+                    }
+                }
+
+                long nowNanos = System.nanoTime();
+                for (SelectionKey key : selector.keys()) {
+                    connect = (_Connect)key.attachment();
+                    if (key.isValid() && nowNanos - connect.startNanos > timeoutNanos) {
+                        connectsTimedOut.incrementAndGet();
+                        complete(connect, new SocketTimeoutException("connect timed out"));
+                    }
+                }
+            }
+            catch (IOException ioEx) {
+                log.warn(ioEx, "Problem selecting on TCP connects");
+            }
+            catch (RuntimeException ruEx) {
+                log.warn(ruEx, "Problem checking TCP connects");
+            }
+        }
+
+        // fail whatever is left
+        for (SelectionKey key : selector.keys()) {
+            complete((_Connect)key.attachment(), new IOException("TCPConnectChecker stopped"));
+        }
+        _Connect connect;
+        while ((connect = pending.poll()) != null) {
+            complete(connect, new IOException("TCPConnectChecker stopped"));
+        }
+        try {
+            selector.close();
+        }
+        catch (IOException ioEx) {
+            log.warn(ioEx);
+        }
+    }
+
+    private void complete(final _Connect connect, final Throwable failure)
+    {
+        if (connect.completed) {
+            return;
+        }
+        connect.completed = true;
+
+        final long connectNanos = System.nanoTime() - connect.startNanos;
+        if (connect.key != null) {
+            connect.key.cancel();
+        }
+        if (connect.channel != null) {
+            try {
+                connect.channel.close();
+            }
+            catch (IOException ioEx) {
+                log.warn(ioEx);
+            }
+        }
+
+        if (failure != null) {
+            connectsFailed.incrementAndGet();
+        }
+        connectMillis.record(connectNanos / 1000000L);
+        limiter.release();
+
+        completions.execute(new Runnable()
+        {
+            public void run()
+            {
+                try {
+                    connect.listener.completed(failure, connectNanos);
+                }
+                catch (RuntimeException ruEx) {
+                    log.warn(ruEx, "Problem completing TCP connect check");
+                }
+            }
+        });
+    }
+
+    @MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
+    public long getConnectsStarted()
+    {
+        return connectsStarted.get();
+    }
+
+    @MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
+    public long getConnectsFailed()
+    {
+        return connectsFailed.get();
+    }
+
+    @MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
+    public long getConnectsTimedOut()
+    {
+        return connectsTimedOut.get();
+    }
+
+    @MonitorableManaged(monitored = true)
+    public int getConnectsInFlight()
+    {
+        return limiter.getInFlight();
+    }
+
+    @MonitorableManaged(monitored = true)
+    public int getConnectsQueued()
+    {
+        return limiter.getQueued();
+    }
+
+    @MonitorableManaged(monitored = true)
+    public int getCompletionsQueued()
+    {
+        return completions.getQueue().size();
+    }
+
+    @Managed
+    public double getConnectMillisAverage()
+    {
+        return connectMillis.getAverage();
+    }
+
+    private static class _Connect
+    {
+        private final Listener listener;
+        private final long startNanos = System.nanoTime();
+
+        // set before the connect is handed to the selector thread, completed only by one thread at a time
+        private SocketChannel channel = null;
+        private volatile SelectionKey key = null;
+        private volatile boolean completed = false;
+
+        _Connect(Listener listener)
+        {
+            this.listener = listener;
+        }
+    }
+}
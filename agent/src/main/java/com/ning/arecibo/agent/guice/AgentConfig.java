@@ -27,10 +27,15 @@ import com.ning.arecibo.agent.config.ConfigType;
 
 public abstract class AgentConfig
 {
+    // threads doing the (blocking) polling I/O, see PollingEngine
     @Config("arecibo.tools.coremonitor.threadpool_size")
-    @Default("50")
+    @Default("200")
     public abstract int getThreadpoolSize();
 
+    @Config("arecibo.tools.coremonitor.scheduler_tick")
+    @Default("100ms")
+    public abstract TimeSpan getSchedulerTick();
+
     @Config("arecibo.tools.coremonitor.max_active_configs")
     @Default("50000")
     public abstract int getMaxActiveConfigs();
@@ -67,6 +72,24 @@ public abstract class AgentConfig
     @Default("compiled_mibs")
     public abstract String getSNMPCompiledMibDir();
 
+    // max number of successors of each column requested by a GetBulk table walk
+    @Config("arecibo.tools.coremonitor.snmp_bulk_max_repetitions")
+    @Default("50")
+    public abstract int getSNMPBulkMaxRepetitions();
+
+    @Config("arecibo.tools.coremonitor.snmp_bulk_max_columns_per_pdu")
+    @Default("4")
+    public abstract int getSNMPBulkMaxColumnsPerPdu();
+
+    // poll the table rows of the collectors of a device with shared walks, see SNMPTableWalkCache
+    @Config("arecibo.tools.coremonitor.snmp_shared_table_walks_enabled")
+    @Default("false")
+    public abstract boolean isSNMPSharedTableWalksEnabled();
+
+    @Config("arecibo.tools.coremonitor.snmp_shared_table_walk_max_age")
+    @Default("5s")
+    public abstract TimeSpan getSNMPSharedTableWalkMaxAge();
+
     @Config("arecibo.tools.coremonitor.default_polling_interval_seconds")
     @Default("30s")
     public abstract TimeSpan getDefaultPollingInterval();
@@ -75,17 +98,22 @@ public abstract class AgentConfig
     @Default("600s")
     public abstract TimeSpan getMaxPollingRetryDelay();
 
-    @Config("arecibo.tools.coremonitor.per_host_concurrency")
-    @Default("1")
-    public abstract int getPerHostSemaphoreConcurrency();
+    // read the attributes of all the MBeans of a host together, see JMXBulkReader
+    @Config("arecibo.tools.coremonitor.jmx_bulk_read_enabled")
+    @Default("false")
+    public abstract boolean isJMXBulkReadEnabled();
 
-    @Config("arecibo.tools.coremonitor.per_host_semaphore_max_wait_millis")
-    @Default("0ms")
-    public abstract TimeSpan getPerHostSemaphoreMaxWait();
+    @Config("arecibo.tools.coremonitor.jmx_bulk_read_concurrency")
+    @Default("8")
+    public abstract int getJMXBulkReadConcurrency();
 
-    @Config("arecibo.tools.coremonitor.per_host_semaphore_retry_millis")
-    @Default("10ms")
-    public abstract TimeSpan getPerHostSemaphoreRetry();
+    @Config("arecibo.tools.coremonitor.jmx_bulk_read_max_age")
+    @Default("5s")
+    public abstract TimeSpan getJMXBulkReadMaxAge();
+
+    @Config("arecibo.tools.coremonitor.per_host_concurrency")
+    @Default("1")
+    public abstract int getPerHostConcurrency();
 
     @Config("arecibo.tools.coremonitor.config_type")
     @Default("CONFIG_BY_EXPLICIT_PARAMS")
@@ -145,6 +173,11 @@ public abstract class AgentConfig
         }
     }
 
+    // max number of asynchronous HTTP requests, and of TCP connects, in flight at once; further checks wait for a slot
+    @Config("arecibo.tools.coremonitor.max_checks_in_flight")
+    @Default("1000")
+    public abstract int getMaxChecksInFlight();
+
     @Config("arecibo.tools.coremonitor.http_proxy_host")
     @Default("")
     public abstract String getHTTPProxyHost();
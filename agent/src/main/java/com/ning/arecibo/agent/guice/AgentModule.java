@@ -27,8 +27,11 @@ import com.ning.arecibo.agent.config.jmx.JMXDynamicUtils;
 import com.ning.arecibo.agent.config.snmp.SNMPConfigIteratorFactory;
 import com.ning.arecibo.agent.datasource.DataSourceUtils;
 import com.ning.arecibo.agent.datasource.IdentityConfigIteratorFactory;
+import com.ning.arecibo.agent.datasource.http.HTTPCheckClient;
 import com.ning.arecibo.agent.datasource.jmx.JMXClientCache;
 import com.ning.arecibo.agent.datasource.jmx.JMXParserManager;
+import com.ning.arecibo.agent.datasource.snmp.SNMPTableWalkCache;
+import com.ning.arecibo.agent.datasource.tcp.TCPConnectChecker;
 import com.ning.arecibo.util.Logger;
 
 public class AgentModule extends AbstractModule
@@ -50,6 +53,9 @@ public class AgentModule extends AbstractModule
         bind(DataSourceUtils.class).asEagerSingleton();
         bind(IdentityConfigIteratorFactory.class).asEagerSingleton();
         bind(JMXConfigIteratorFactory.class).asEagerSingleton();
+        bind(SNMPTableWalkCache.class).asEagerSingleton();
+        bind(HTTPCheckClient.class).asEagerSingleton();
+        bind(TCPConnectChecker.class).asEagerSingleton();
         bind(SNMPConfigIteratorFactory.class).asEagerSingleton();
         bind(ConfigFileUtils.class).asEagerSingleton();
         bind(AgentDataCollectorManager.class).asEagerSingleton();
@@ -57,6 +63,10 @@ public class AgentModule extends AbstractModule
         ExportBuilder builder = MBeanModule.newExporter(binder());
 
         builder.export(AgentDataCollectorManager.class).as("arecibo.agent:name=AgentDataManager");
+        builder.export(JMXClientCache.class).as("arecibo.agent:name=JMXClientCache");
+        builder.export(SNMPTableWalkCache.class).as("arecibo.agent:name=SNMPTableWalkCache");
+        builder.export(HTTPCheckClient.class).as("arecibo.agent:name=HTTPCheckClient");
+        builder.export(TCPConnectChecker.class).as("arecibo.agent:name=TCPConnectChecker");
 	}
 
     private void initializeRmiConnectionTimeouts(AgentConfig agentConfig) {
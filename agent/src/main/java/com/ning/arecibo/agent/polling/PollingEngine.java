@@ -0,0 +1,283 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.agent.polling;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import com.ning.arecibo.util.Logger;
+import com.ning.arecibo.util.metrics.ValueStats;
+
+/**
+ * Runs polling tasks, with scheduling decoupled from their (blocking) I/O.
+ * <p/>
+ * Tasks wait for their next poll in a TimingWheel, whose thread never does any I/O.  When a task is
+ * due, it runs on the pool of polling threads, unless its host already has perHostConcurrency polls
+ * in progress: it then waits in the queue of its host, without holding a thread, until one of these
+ * polls releases its permit.  A slow host thus only delays its own polls.
+ * <p/>
+ * The scheduling lag of a poll is the time between when it was due and when it started, including
+ * the time spent waiting for its host or for a polling thread.
+ */
+public class PollingEngine
+{
+    private static final Logger log = Logger.getLogger(PollingEngine.class);
+
+    private static final int WHEEL_SLOTS = 1024;
+
+    public interface PollingTask
+    {
+        String getHostName();
+
+        /**
+         * Poll, then schedule the next poll if needed.  The host permit is released when this returns,
+         * if not before.
+         */
+        void poll(HostPermit permit);
+    }
+
+    private final int perHostConcurrency;
+    private final TimingWheel<PollingTask> wheel;
+    private final ThreadPoolExecutor pollers;
+    private final ConcurrentHashMap<String, _Host> hosts = new ConcurrentHashMap<String, _Host>();
+
+    private final ValueStats schedulingLag = new ValueStats();
+    private final AtomicLong pollsStarted = new AtomicLong();
+    private final AtomicLong pollsDeferred = new AtomicLong();
+    private final AtomicInteger pollsWaitingForHost = new AtomicInteger();
+
+    public PollingEngine(int numPollingThreads, int perHostConcurrency, long tick, TimeUnit tickUnit)
+    {
+        this.perHostConcurrency = Math.max(1, perHostConcurrency);
+        this.wheel = new TimingWheel<PollingTask>("PollingEngine-scheduler", new TimingWheel.Handler<PollingTask>()
+        {
+            public void expired(PollingTask task, long dueMillis)
+            {
+                dispatch(task, dueMillis);
+            }
+        }, tick, tickUnit, WHEEL_SLOTS);
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.pollers = new ThreadPoolExecutor(numPollingThreads, numPollingThreads, 60L, TimeUnit.SECONDS,
+                                              new LinkedBlockingQueue<Runnable>(),
+                                              new ThreadFactory()
+                                              {
+                                                  public Thread newThread(Runnable r)
+                                                  {
+                                                      Thread thread = new Thread(r, "PollingEngine-poller-" + threadCount.incrementAndGet());
+                                                      thread.setDaemon(true);
+                                                      return thread;
+                                                  }
+                                              });
+        // idle pollers go away, most of the pool is only there for when many hosts are slow at once
+        this.pollers.allowCoreThreadTimeOut(true);
+    }
+
+    public void start()
+    {
+        wheel.start();
+    }
+
+    public void stop()
+    {
+        wheel.stop();
+        pollers.shutdown();
+    }
+
+    public void schedule(PollingTask task, long delay, TimeUnit unit)
+    {
+        wheel.schedule(task, delay, unit);
+    }
+
+    // called on the wheel thread: must not block
+    private void dispatch(PollingTask task, long dueMillis)
+    {
+        _Host host = getHost(task.getHostName());
+        synchronized (host) {
+            if (host.running >= perHostConcurrency) {
+                host.waiting.add(new _WaitingTask(task, dueMillis));
+                pollsDeferred.incrementAndGet();
+                pollsWaitingForHost.incrementAndGet();
+                return;
+            }
+            host.running++;
+        }
+        submit(host, task, dueMillis);
+    }
+
+    private void submit(final _Host host, final PollingTask task, final long dueMillis)
+    {
+        try {
+            pollers.execute(new Runnable()
+            {
+                public void run()
+                {
+                    long lagMillis = Math.max(0L, System.currentTimeMillis() - dueMillis);
+                    schedulingLag.record(lagMillis);
+                    pollsStarted.incrementAndGet();
+
+                    HostPermit permit = new HostPermit(host, lagMillis);
+                    try {
+                        task.poll(permit);
+                    }
+                    catch (RuntimeException e) {
+                        log.warn(e, "Got RuntimeException polling host %s", host.name);
+                    }
+                    finally {
+                        permit.release();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // stopped
+            log.debug("Not polling host " + host.name + ", polling engine stopped");
+        }
+    }
+
+    // hand the permit over to the next waiting task of the host, if any
+    private void release(_Host host)
+    {
+        _WaitingTask next;
+        synchronized (host) {
+            next = host.waiting.poll();
+            if (next == null) {
+                host.running--;
+                return;
+            }
+        }
+        pollsWaitingForHost.decrementAndGet();
+        submit(host, next.task, next.dueMillis);
+    }
+
+    private _Host getHost(String hostName)
+    {
+        _Host host = hosts.get(hostName);
+        if (host == null) {
+            _Host newHost = new _Host(hostName);
+            host = hosts.putIfAbsent(hostName, newHost);
+            if (host == null) {
+                host = newHost;
+            }
+        }
+        return host;
+    }
+
+    public long getPollsStarted()
+    {
+        return pollsStarted.get();
+    }
+
+    public long getPollsDeferred()
+    {
+        return pollsDeferred.get();
+    }
+
+    public int getPollsWaitingForHost()
+    {
+        return pollsWaitingForHost.get();
+    }
+
+    public int getActivePollingThreads()
+    {
+        return pollers.getActiveCount();
+    }
+
+    public int getPollsWaitingForThread()
+    {
+        return pollers.getQueue().size();
+    }
+
+    public double getSchedulingLagAverage()
+    {
+        return schedulingLag.getAverage();
+    }
+
+    public long getSchedulingLag99thPercentile()
+    {
+        return schedulingLag.getQuantile(0.99);
+    }
+
+    public long getSchedulingLagMax()
+    {
+        return schedulingLag.getMax();
+    }
+
+    /**
+     * The right to poll a host, for one poll
+     */
+    public class HostPermit
+    {
+        private final _Host host;
+        private final long schedulingLagMillis;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private HostPermit(_Host host, long schedulingLagMillis)
+        {
+            this.host = host;
+            this.schedulingLagMillis = schedulingLagMillis;
+        }
+
+        public long getSchedulingLagMillis()
+        {
+            return schedulingLagMillis;
+        }
+
+        /**
+         * Let the next poll of the host start; only the first call has any effect
+         */
+        public void release()
+        {
+            if (released.compareAndSet(false, true)) {
+                PollingEngine.this.release(host);
+            }
+        }
+    }
+
+    private static class _Host
+    {
+        private final String name;
+        // guarded by this
+        private final Queue<_WaitingTask> waiting = new ArrayDeque<_WaitingTask>();
+        private int running = 0;
+
+        private _Host(String name)
+        {
+            this.name = name;
+        }
+    }
+
+    private static class _WaitingTask
+    {
+        private final PollingTask task;
+        private final long dueMillis;
+
+        private _WaitingTask(PollingTask task, long dueMillis)
+        {
+            this.task = task;
+            this.dueMillis = dueMillis;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.agent.polling;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import com.ning.arecibo.util.Logger;
+
+/**
+ * A hashed timing wheel: a single thread which hands items to a handler once their delay expired.
+ * <p/>
+ * Time is divided in ticks; an item is kept in the slot of the tick it is due, modulo the number of
+ * slots, so that scheduling and expiring are O(1) whatever the number of items.  An item never expires
+ * early, and at most one tick late (plus the time taken by the handler, which should not block).
+ * Items are scheduled through a lock-free queue, drained by the wheel thread on each tick.
+ */
+public class TimingWheel<T>
+{
+    private static final Logger log = Logger.getLogger(TimingWheel.class);
+
+    public interface Handler<T>
+    {
+        /**
+         * Called on the wheel thread
+         *
+         * @param item      the item scheduled
+         * @param dueMillis when the item was due
+         */
+        void expired(T item, long dueMillis);
+    }
+
+    private final Handler<T> handler;
+    private final long tickMillis;
+    private final List<List<_Timeout<T>>> slots;
+    private final ConcurrentLinkedQueue<_Timeout<T>> scheduled = new ConcurrentLinkedQueue<_Timeout<T>>();
+    private final Thread thread;
+
+    private volatile long startMillis;
+    private volatile boolean running = false;
+
+    public TimingWheel(String name, Handler<T> handler, long tick, TimeUnit tickUnit, int numSlots)
+    {
+        this.handler = handler;
+        this.tickMillis = Math.max(1L, tickUnit.toMillis(tick));
+        this.slots = new ArrayList<List<_Timeout<T>>>(numSlots);
+        for (int i = 0; i < numSlots; i++) {
+            slots.add(new ArrayList<_Timeout<T>>());
+        }
+        this.thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                turn();
+            }
+        }, name);
+        this.thread.setDaemon(true);
+    }
+
+    public synchronized void start()
+    {
+        if (!running) {
+            startMillis = System.currentTimeMillis();
+            running = true;
+            thread.start();
+        }
+    }
+
+    public synchronized void stop()
+    {
+        running = false;
+        thread.interrupt();
+    }
+
+    public void schedule(T item, long delay, TimeUnit unit)
+    {
+        scheduled.add(new _Timeout<T>(item, System.currentTimeMillis() + Math.max(0L, unit.toMillis(delay))));
+    }
+
+    public long getTickMillis()
+    {
+        return tickMillis;
+    }
+
+    private void turn()
+    {
+        long tick = 0;
+        while (running) {
+            long sleepMillis = startMillis + tick * tickMillis - System.currentTimeMillis();
+            if (sleepMillis > 0) {
+                try {
+                    Thread.sleep(sleepMillis);
+                }
+                catch (InterruptedException e) {
+                    continue;
+                }
+            }
+
+            // items due by this tick are expired right away, the others wait in their slot
+            _Timeout<T> timeout;
+            while ((timeout = scheduled.poll()) != null) {
+                timeout.dueTick = (timeout.dueMillis - startMillis + tickMillis - 1) / tickMillis;
+                if (timeout.dueTick <= tick) {
+                    expire(timeout);
+                }
+                else {
+                    slots.get((int) (timeout.dueTick % slots.size())).add(timeout);
+                }
+            }
+
+            Iterator<_Timeout<T>> iterator = slots.get((int) (tick % slots.size())).iterator();
+            while (iterator.hasNext()) {
+                timeout = iterator.next();
+                // the other ones are due in a later turn of the wheel
+                if (timeout.dueTick <= tick) {
+                    iterator.remove();
+                    expire(timeout);
+                }
+            }
+
+            tick++;
+        }
+    }
+
+    private void expire(_Timeout<T> timeout)
+    {
+        try {
+            handler.expired(timeout.item, timeout.dueMillis);
+        }
+        catch (RuntimeException e) {
+            log.warn(e, "Got RuntimeException expiring %s", timeout.item);
+        }
+    }
+
+    private static class _Timeout<T>
+    {
+        private final T item;
+        private final long dueMillis;
+        private long dueTick;
+
+        private _Timeout(T item, long dueMillis)
+        {
+            this.item = item;
+            this.dueMillis = dueMillis;
+        }
+    }
+}
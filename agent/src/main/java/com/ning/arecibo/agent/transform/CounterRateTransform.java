@@ -22,8 +22,9 @@ public class CounterRateTransform extends Transform
 {
 	private static final Logger log = Logger.getLogger(CounterRateTransform.class);
 
-	Long lastUpdate;
-	Object lastValue;
+	long lastUpdate;
+	double lastValue;
+	boolean hasLastValue = false;
 
 	/**
 	 * Calculate the rate of change of the given value. As this function is called repeatedly, each value is compared
@@ -34,19 +35,29 @@ public class CounterRateTransform extends Transform
 	 * If the rate shows a spurious negative value, no value is emitted, but the lastUpdate/lastValue are updated.
 	 */
 	@Override
-	public Object process(Object value)
+	public Object process(Object value, long timeMillis)
 	{
-		Long time = System.currentTimeMillis();
-		if (this.lastValue == null) {
-			this.lastUpdate = time;
-			this.lastValue = value;
+		double doubleValue = RateTransform.toDouble(value);
+		double rate = this.hasLastValue ? rate(doubleValue, timeMillis, this.lastValue, this.lastUpdate) : Double.NaN;
+
+		// update last values before returning, even when no rate can be emitted
+		this.lastUpdate = timeMillis;
+		this.lastValue = doubleValue;
+		this.hasLastValue = true;
+
+		if (Double.isNaN(rate)) {
 			return null;					        // no value at this time
 		}
-		if (!(value instanceof Number)) {
-			throw new IllegalArgumentException(String.format("Rate requested, but value '%s' is not a number", value.toString()));
-		}
-		double diff = ((Number) value).doubleValue() - ((Number) this.lastValue).doubleValue();
-		double timeChangeInSeconds = ((double)(time - this.lastUpdate)) / 1000.0;
+		return rate;
+	}
+
+	/**
+	 * @return the change per second from lastValue to value, or NaN if there is no valid (non-negative) rate for the interval
+	 */
+	static double rate(double value, long time, double lastValue, long lastUpdate)
+	{
+		double diff = value - lastValue;
+		double timeChangeInSeconds = ((double)(time - lastUpdate)) / 1000.0;
 		
 		double rate;
 		if(timeChangeInSeconds == 0.0)
@@ -55,15 +66,10 @@ public class CounterRateTransform extends Transform
 		    rate = diff / timeChangeInSeconds;
 
 		if (Double.isNaN(rate) || rate == Double.POSITIVE_INFINITY || rate == Double.NEGATIVE_INFINITY || rate < 0.0) {
-			log.info("Overflow in rate calculation: val=%f, last val=%f; time=%tc, last time=%tc", ((Number) value).doubleValue(), ((Number) this.lastValue).doubleValue(), time, this.lastUpdate);
-			this.lastUpdate = time;
-			this.lastValue = value;
-			return null;					        // no value at this time
+			log.info("Overflow in rate calculation: val=%f, last val=%f; time=%tc, last time=%tc", value, lastValue, time, lastUpdate);
+			return Double.NaN;
 		}
 
-		// success. update last values before returning
-		this.lastUpdate = time;
-		this.lastValue = value;
 		return rate;
 	}
 
@@ -33,8 +33,9 @@ public class RateTransform extends Transform
 
 	private static final double EPS = 1e-12;
 
-	Long lastUpdate;
-	Object lastValue;
+	long lastUpdate;
+	double lastValue;
+	boolean hasLastValue = false;
 
 	/**
 	 * Calculate the rate of change of the given value. As this function is called repeatedly, each value is compared
@@ -46,19 +47,37 @@ public class RateTransform extends Transform
 	 * be monotonically increasing, then it's a rollover. It depends on semantics outside of this function.
 	 */
 	@Override
-	public Object process(Object value)
+	public Object process(Object value, long timeMillis)
 	{
-		Long time = System.currentTimeMillis();
-		if (this.lastValue == null) {
-			this.lastUpdate = time;
-			this.lastValue = value;
+		double doubleValue = toDouble(value);
+		double rate = this.hasLastValue ? rate(doubleValue, timeMillis, this.lastValue, this.lastUpdate) : Double.NaN;
+
+		// update last values before returning, even when no rate can be emitted
+		this.lastUpdate = timeMillis;
+		this.lastValue = doubleValue;
+		this.hasLastValue = true;
+
+		if (Double.isNaN(rate)) {
 			return null;					        // no value at this time
 		}
+		return rate;
+	}
+
+	static double toDouble(Object value)
+	{
 		if (!(value instanceof Number)) {
-			throw new IllegalArgumentException(String.format("Rate requested, but value '%s' of type '%s' is not a number", value.toString(),value.getClass().getName()));
+			throw new IllegalArgumentException(String.format("Rate requested, but value '%s' of type '%s' is not a number", value, value == null ? null : value.getClass().getName()));
 		}
-		double diff = ((Number) value).doubleValue() - ((Number) this.lastValue).doubleValue();
-		double timeChangeInSeconds = ((double)(time - this.lastUpdate)) / 1000.0;
+		return ((Number) value).doubleValue();
+	}
+
+	/**
+	 * @return the change per second from lastValue to value, or NaN if there is no valid rate for the interval
+	 */
+	static double rate(double value, long time, double lastValue, long lastUpdate)
+	{
+		double diff = value - lastValue;
+		double timeChangeInSeconds = ((double)(time - lastUpdate)) / 1000.0;
 		
 		double rate;
 		if(timeChangeInSeconds == 0.0)
@@ -72,15 +91,10 @@ public class RateTransform extends Transform
 
 		// overflow guards. Note that these use Double because the Numbers passed in are converted to doubles.
 		if (Double.isNaN(rate) || rate == Double.POSITIVE_INFINITY || rate == Double.NEGATIVE_INFINITY) {
-			log.warn("Overflow in rate calculation: val=%f, last val=%f; time=%tc, last time=%tc", ((Number) value).doubleValue(), ((Number) this.lastValue).doubleValue(), time, this.lastUpdate);
-			this.lastUpdate = time;
-			this.lastValue = value;
-			return null;					        // no value at this time
+			log.warn("Overflow in rate calculation: val=%f, last val=%f; time=%tc, last time=%tc", value, lastValue, time, lastUpdate);
+			return Double.NaN;
 		}
 
-		// success. update last values before returning
-		this.lastUpdate = time;
-		this.lastValue = value;
 		return rate;
 	}
 
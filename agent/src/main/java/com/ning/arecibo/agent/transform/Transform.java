@@ -27,10 +27,17 @@ package com.ning.arecibo.agent.transform;
  */
 public class Transform
 {
+	public Object process(Object value)
+	{
+		return process(value, System.currentTimeMillis());
+	}
+
 	/**
 	 * default transform does nothing
+	 *
+	 * @param timeMillis the time at which the value was read
 	 */
-	public Object process(Object value)
+	public Object process(Object value, long timeMillis)
 	{
 		return value;
 	}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ning.arecibo.agent.transform;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import com.ning.arecibo.util.Logger;
+
+/**
+ * The transforms of the attributes of one collector, compiled into flat arrays of output slots.
+ * <p/>
+ * Each attribute (config hash key) owns a contiguous run of slots, one per event attribute it
+ * emits: its value, its rate, or both. Rate slots keep their last value and time as primitives,
+ * so a poll allocates only the output map and the boxed rates. The output map is published as
+ * is, unless the poll produced group values.
+ * <p/>
+ * Not thread-safe: a collector processes one poll at a time.
+ */
+public final class TransformPlan
+{
+	private static final Logger log = Logger.getLogger(TransformPlan.class);
+
+	public static final String GROUP_DELIMITER_START = "{";
+
+	private static final byte VALUE = 0;
+	private static final byte RATE = 1;
+	private static final byte COUNTER_RATE = 2;
+
+	private final String eventType;
+	private final Map<String, Integer> attributeIndexes;	// config hash key --> attribute index
+	private final int[] firstSlots;							// attribute index --> first slot, plus an end marker
+	private final String[] names;							// slot --> event attribute type
+	private final byte[] kinds;
+	private final double[] lastValues;
+	private final long[] lastTimes;
+	private final boolean[] hasLastValues;
+	private final Map<String, _Member>[] members;			// slot --> transforms of the members of a group value, created lazily
+
+	@SuppressWarnings("unchecked")
+	private TransformPlan(String eventType, Map<String, Integer> attributeIndexes, int[] firstSlots, String[] names, byte[] kinds)
+	{
+		this.eventType = eventType;
+		this.attributeIndexes = attributeIndexes;
+		this.firstSlots = firstSlots;
+		this.names = names;
+		this.kinds = kinds;
+		this.lastValues = new double[names.length];
+		this.lastTimes = new long[names.length];
+		this.hasLastValues = new boolean[names.length];
+		this.members = new Map[names.length];
+	}
+
+	public int getSlotCount()
+	{
+		return this.names.length;
+	}
+
+	/**
+	 * @return the event attribute types emitted for the attribute, empty if it is not part of the plan
+	 */
+	public List<String> getEventAttributeTypes(String configHashKey)
+	{
+		Integer attribute = this.attributeIndexes.get(configHashKey);
+		if (attribute == null) {
+			return Collections.emptyList();
+		}
+		return Arrays.asList(this.names).subList(this.firstSlots[attribute], this.firstSlots[attribute + 1]);
+	}
+
+	/**
+	 * @param extraValues the number of values to be added besides the transformed ones
+	 * @return a map sized to hold the values of one poll without rehashing
+	 */
+	public Map<String, Object> newValueMap(int extraValues)
+	{
+		return new HashMap<String, Object>((int) ((this.names.length + extraValues) / 0.75f) + 1);
+	}
+
+	/**
+	 * Transform the values of one poll. Null and NaN values are dropped, as are the values of
+	 * attributes which are not part of the plan.
+	 *
+	 * @param values the values read from the data source, keyed by config hash key
+	 * @param timeMillis the time at which the values were read
+	 * @param eventValues receives the transformed values
+	 * @return false if eventValues holds group values, which are not to be published (see withoutGroupValues)
+	 */
+	public boolean process(Map<String, Object> values, long timeMillis, Map<String, Object> eventValues)
+	{
+		boolean publishable = true;
+		for (Map.Entry<String, Object> entry : values.entrySet()) {
+			Object value = entry.getValue();
+
+			// don't allow nulls or NaN's
+			if (value == null || (value instanceof Number && Double.isNaN(((Number) value).doubleValue()))) {
+				continue;
+			}
+
+			Integer attribute = this.attributeIndexes.get(entry.getKey());
+			if (attribute == null) {
+				log.warn("No record found for attribute '%s' of eventType '%s'. Skipping.", entry.getKey(), this.eventType);
+				continue;
+			}
+
+			int endSlot = this.firstSlots[attribute + 1];
+			for (int slot = this.firstSlots[attribute]; slot < endSlot; slot++) {
+				if (value instanceof Map) {
+					processGroup(slot, (Map<String, Object>) value, timeMillis, eventValues);
+					publishable = false;
+				}
+				else {
+					Object processedValue = processSlot(slot, value, timeMillis);
+					if (processedValue != null) {
+						eventValues.put(this.names[slot], processedValue);
+						publishable &= !isGroupValue(processedValue);
+					}
+				}
+			}
+		}
+		return publishable;
+	}
+
+	/**
+	 * @return a copy of the values, without any group values (their members are present as individual entries)
+	 */
+	public static Map<String, Object> withoutGroupValues(Map<String, Object> eventValues)
+	{
+		Map<String, Object> publishValues = new HashMap<String, Object>();
+		for (Map.Entry<String, Object> entry : eventValues.entrySet()) {
+			if (!isGroupValue(entry.getValue())) {
+				publishValues.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return publishValues;
+	}
+
+	private Object processSlot(int slot, Object value, long timeMillis)
+	{
+		byte kind = this.kinds[slot];
+		if (kind == VALUE) {
+			return value;
+		}
+
+		double doubleValue = RateTransform.toDouble(value);
+		double rate = Double.NaN;
+		if (this.hasLastValues[slot]) {
+			if (kind == COUNTER_RATE) {
+				rate = CounterRateTransform.rate(doubleValue, timeMillis, this.lastValues[slot], this.lastTimes[slot]);
+			}
+			else {
+				rate = RateTransform.rate(doubleValue, timeMillis, this.lastValues[slot], this.lastTimes[slot]);
+			}
+		}
+
+		this.lastValues[slot] = doubleValue;
+		this.lastTimes[slot] = timeMillis;
+		this.hasLastValues[slot] = true;
+
+		if (Double.isNaN(rate)) {
+			return null;					        // no value at this time
+		}
+		return rate;
+	}
+
+	// apply the transform of the slot to each member of the group, each with its own state
+	private void processGroup(int slot, Map<String, Object> groupValue, long timeMillis, Map<String, Object> eventValues)
+	{
+		Map<String, _Member> slotMembers = this.members[slot];
+		if (slotMembers == null) {
+			slotMembers = new HashMap<String, _Member>();
+			this.members[slot] = slotMembers;
+		}
+
+		StringBuilder valueDescription = new StringBuilder(GROUP_DELIMITER_START);
+		for (Map.Entry<String, Object> memberEntry : groupValue.entrySet()) {
+			_Member member = slotMembers.get(memberEntry.getKey());
+			if (member == null) {
+				member = new _Member(this.names[slot] + "_" + memberEntry.getKey(), newTransform(this.kinds[slot]));
+				slotMembers.put(memberEntry.getKey(), member);
+			}
+
+			Object processedValue = member.transform.process(memberEntry.getValue(), timeMillis);
+			if (processedValue != null) {
+				eventValues.put(member.name, processedValue);
+				valueDescription.append(memberEntry.getKey()).append('=').append(processedValue);
+			}
+		}
+		valueDescription.append('}');
+		eventValues.put(this.names[slot], valueDescription.toString());
+	}
+
+	private static boolean isGroupValue(Object value)
+	{
+		return value instanceof String && ((String) value).startsWith(GROUP_DELIMITER_START);
+	}
+
+	private static Transform newTransform(byte kind)
+	{
+		switch (kind) {
+			case RATE:
+				return new RateTransform();
+			case COUNTER_RATE:
+				return new CounterRateTransform();
+			default:
+				return new Transform();
+		}
+	}
+
+	private static class _Member
+	{
+		private final String name;
+		private final Transform transform;
+
+		_Member(String name, Transform transform)
+		{
+			this.name = name;
+			this.transform = transform;
+		}
+	}
+
+	public static final class Builder
+	{
+		private final String eventType;
+		private final Map<String, _Attribute> attributes = new LinkedHashMap<String, _Attribute>();
+
+		public Builder(String eventType)
+		{
+			this.eventType = eventType;
+		}
+
+		/**
+		 * Add an attribute, replacing any previous attribute with the same config hash key.
+		 * <p/>
+		 * An attribute emits its value as eventAttributeType, or its rate if it is only a rate. If it
+		 * is both, its rate is emitted as eventAttributeType + "Rate". Rates of counters are never negative.
+		 */
+		public Builder addAttribute(String configHashKey, String eventAttributeType, boolean rate, boolean bothValueAndRate, boolean counter)
+		{
+			byte rateKind = counter ? COUNTER_RATE : RATE;
+			_Attribute attribute = new _Attribute();
+			if (bothValueAndRate) {
+				attribute.add(eventAttributeType, VALUE);
+				attribute.add(eventAttributeType + "Rate", rateKind);
+			}
+			else if (rate) {
+				attribute.add(eventAttributeType, rateKind);
+			}
+			else {
+				attribute.add(eventAttributeType, VALUE);
+			}
+
+			if (this.attributes.put(configHashKey, attribute) != null) {
+				log.warn("Replacing transform for '%s' (eventAttributeType '%s').", configHashKey, eventAttributeType);
+			}
+			return this;
+		}
+
+		public TransformPlan build()
+		{
+			Map<String, Integer> attributeIndexes = new HashMap<String, Integer>();
+			int[] firstSlots = new int[this.attributes.size() + 1];
+			List<String> names = new ArrayList<String>();
+			List<Byte> kinds = new ArrayList<Byte>();
+
+			int attributeIndex = 0;
+			for (Map.Entry<String, _Attribute> entry : this.attributes.entrySet()) {
+				attributeIndexes.put(entry.getKey(), attributeIndex);
+				firstSlots[attributeIndex] = names.size();
+				names.addAll(entry.getValue().names);
+				kinds.addAll(entry.getValue().kinds);
+				attributeIndex++;
+			}
+			firstSlots[attributeIndex] = names.size();
+
+			byte[] kindArray = new byte[kinds.size()];
+			for (int i = 0; i < kindArray.length; i++) {
+				kindArray[i] = kinds.get(i);
+			}
+			return new TransformPlan(this.eventType, attributeIndexes, firstSlots, names.toArray(new String[names.size()]), kindArray);
+		}
+	}
+
+	private static class _Attribute
+	{
+		private final List<String> names = new ArrayList<String>(2);
+		private final List<Byte> kinds = new ArrayList<Byte>(2);
+
+		void add(String name, byte kind)
+		{
+			this.names.add(name);
+			this.kinds.add(kind);
+		}
+	}
+}
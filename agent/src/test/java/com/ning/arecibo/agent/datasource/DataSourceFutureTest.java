@@ -0,0 +1,119 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.agent.datasource;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.testng.annotations.Test;
+
+public class DataSourceFutureTest
+{
+    @Test(groups = "fast")
+    public void listenersAreCalledOnceWithTheValues() throws Exception
+    {
+        DataSourceFuture future = new DataSourceFuture();
+        final List<DataSourceFuture> completed = new ArrayList<DataSourceFuture>();
+        DataSourceFuture.Listener listener = new DataSourceFuture.Listener()
+        {
+            public void completed(DataSourceFuture future)
+            {
+                completed.add(future);
+            }
+        };
+
+        future.addListener(listener);
+        assertFalse(future.isDone());
+        assertEquals(completed.size(), 0);
+
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("connectCheckResult", 1);
+        assertTrue(future.set(values));
+        assertTrue(future.isDone());
+        assertEquals(completed.size(), 1);
+        assertSame(future.getValues(), values);
+        assertSame(future.get(), values);
+
+        // set once only
+        assertFalse(future.set(new HashMap<String, Object>()));
+        assertFalse(future.setFailure(new DataSourceException("too late")));
+        assertEquals(completed.size(), 1);
+        assertSame(future.getValues(), values);
+
+        // a listener added once done is called right away
+        future.addListener(listener);
+        assertEquals(completed.size(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void failureIsThrownToTheWaiters() throws Exception
+    {
+        DataSourceFuture future = new DataSourceFuture();
+        DataSourceException failure = new DataSourceException("connect refused");
+        assertTrue(future.setFailure(failure));
+
+        try {
+            future.getValues();
+            fail("expected the failure of the poll");
+        }
+        catch (DataSourceException e) {
+            assertSame(e, failure);
+        }
+        try {
+            future.get();
+            fail("expected the failure of the poll");
+        }
+        catch (ExecutionException e) {
+            assertSame(e.getCause(), failure);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void getTimesOutUntilSet() throws Exception
+    {
+        final DataSourceFuture future = new DataSourceFuture();
+        try {
+            future.get(10, TimeUnit.MILLISECONDS);
+            fail("expected a timeout");
+        }
+        catch (TimeoutException e) {
+            // expected
+        }
+
+        final Map<String, Object> values = new HashMap<String, Object>();
+        Thread setter = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                future.set(values);
+            }
+        });
+        setter.start();
+        assertSame(future.get(5, TimeUnit.SECONDS), values);
+        setter.join();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.agent.datasource;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.testng.annotations.Test;
+
+public class InFlightLimiterTest
+{
+    @Test(groups = "fast")
+    public void checksOverTheLimitAreQueued()
+    {
+        InFlightLimiter limiter = new InFlightLimiter(2);
+        List<Integer> started = new ArrayList<Integer>();
+
+        for (int i = 0; i < 5; i++) {
+            limiter.submit(new _Check(started, i, null));
+        }
+        assertEquals(started.size(), 2);
+        assertEquals(limiter.getInFlight(), 2);
+        assertEquals(limiter.getQueued(), 3);
+
+        // each completion hands its slot to the oldest queued check
+        limiter.release();
+        assertEquals(started.size(), 3);
+        assertEquals(started.get(2), Integer.valueOf(2));
+        assertEquals(limiter.getInFlight(), 2);
+        assertEquals(limiter.getQueued(), 2);
+
+        limiter.release();
+        limiter.release();
+        assertEquals(started.size(), 5);
+        assertEquals(limiter.getQueued(), 0);
+
+        limiter.release();
+        limiter.release();
+        assertEquals(limiter.getInFlight(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void checksCompletingRightAwayDoNotRecurse()
+    {
+        final InFlightLimiter limiter = new InFlightLimiter(1);
+        List<Integer> started = new ArrayList<Integer>();
+        final List<Integer> stackDepths = new ArrayList<Integer>();
+
+        // hold the only slot, so that the rest is queued
+        limiter.submit(new _Check(started, -1, null));
+        int numChecks = 20000;
+        for (int i = 0; i < numChecks; i++) {
+            limiter.submit(new _Check(started, i, new Runnable()
+            {
+                public void run()
+                {
+                    stackDepths.add(Thread.currentThread().getStackTrace().length);
+                    // e.g. a connect failing right away
+                    limiter.release();
+                }
+            }));
+        }
+        assertEquals(limiter.getQueued(), numChecks);
+
+        // releasing the slot runs the whole queue, from the releasing thread
+        limiter.release();
+        assertEquals(started.size(), numChecks + 1);
+        assertEquals(limiter.getQueued(), 0);
+        assertEquals(limiter.getInFlight(), 0);
+
+        int minDepth = Integer.MAX_VALUE;
+        int maxDepth = 0;
+        for (int depth : stackDepths) {
+            minDepth = Math.min(minDepth, depth);
+            maxDepth = Math.max(maxDepth, depth);
+        }
+        assertEquals(maxDepth, minDepth);
+    }
+
+    @Test(groups = "fast")
+    public void checkThrowingReleasesItsSlot()
+    {
+        InFlightLimiter limiter = new InFlightLimiter(1);
+        List<Integer> started = new ArrayList<Integer>();
+
+        limiter.submit(new Runnable()
+        {
+            public void run()
+            {
+                throw new IllegalArgumentException("bad port");
+            }
+        });
+        assertEquals(limiter.getInFlight(), 0);
+
+        limiter.submit(new _Check(started, 0, null));
+        assertEquals(started.size(), 1);
+        assertEquals(limiter.getInFlight(), 1);
+    }
+
+    private static class _Check implements Runnable
+    {
+        private final List<Integer> started;
+        private final int id;
+        private final Runnable onStart;
+
+        _Check(List<Integer> started, int id, Runnable onStart)
+        {
+            this.started = started;
+            this.id = id;
+            this.onStart = onStart;
+        }
+
+        public void run()
+        {
+            started.add(id);
+            if (onStart != null) {
+                onStart.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.agent.datasource.http;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.skife.config.ConfigurationObjectFactory;
+import org.skife.config.TimeSpan;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.ning.arecibo.agent.config.Config;
+import com.ning.arecibo.agent.config.http.HTTPResponseCheckConfig;
+import com.ning.arecibo.agent.guice.AgentConfig;
+import com.ning.arecibo.agent.guice.GuiceDefaultsForDataSources;
+
+public class HTTPResponseCheckDataSourceTest
+{
+    private HTTPCheckClient httpCheckClient;
+    private _Server redirecting;
+    private _Server serving;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception
+    {
+        httpCheckClient = new HTTPCheckClient(new TimeSpan("5s"), "arecibo-test", null, 0, 2);
+        serving = new _Server("200 OK", null, "all healthy");
+        redirecting = new _Server("302 Found", "http://127.0.0.1:" + serving.getPort() + "/elsewhere", "");
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception
+    {
+        httpCheckClient.close();
+        redirecting.close();
+        serving.close();
+    }
+
+    @Test(groups = "fast")
+    public void redirectIsFollowedToTheOtherHost() throws Exception
+    {
+        Map<String, Object> values = poll(redirecting.getPort(), true);
+
+        assertEquals(values.get(HTTPResponseCheckDataSource.RESPONSE_STATUS_CODE), 200);
+        assertEquals(values.get(HTTPResponseCheckDataSource.RESPONSE_BODY_MATCH), 1);
+        assertEquals(values.get(HTTPResponseCheckDataSource.RESPONSE_BODY_SIZE), (long)"all healthy".length());
+
+        // the redirect keeps the configured uri
+        assertEquals(redirecting.requests.size(), 1);
+        assertEquals(serving.requests, Arrays.asList("GET /status HTTP/1.1"));
+        assertEquals(httpCheckClient.getRequestsStarted(), 2L);
+        assertEquals(httpCheckClient.getRequestsInFlight(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void redirectIsNotFollowedUnlessConfigured() throws Exception
+    {
+        Map<String, Object> values = poll(redirecting.getPort(), false);
+
+        assertEquals(values.get(HTTPResponseCheckDataSource.RESPONSE_STATUS_CODE), 302);
+        assertEquals(redirecting.requests.size(), 1);
+        assertEquals(serving.requests.size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void redirectLoopStopsAfterMaxRedirects() throws Exception
+    {
+        _Server looping = new _Server("302 Found", null, "");
+        try {
+            looping.location = "http://127.0.0.1:" + looping.getPort() + "/again";
+            Map<String, Object> values = poll(looping.getPort(), true);
+
+            assertEquals(values.get(HTTPResponseCheckDataSource.RESPONSE_STATUS_CODE), 302);
+            assertEquals(looping.requests.size(), HTTPResponseCheckDataSource.MAX_REDIRECTS + 1);
+            assertEquals(httpCheckClient.getRequestsInFlight(), 0);
+        }
+        finally {
+            looping.close();
+        }
+    }
+
+    // returns the values by attribute
+    private Map<String, Object> poll(int port, boolean followRedirects) throws Exception
+    {
+        AgentConfig agentConfig = new ConfigurationObjectFactory(new Properties()).build(AgentConfig.class);
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put(Config.EVENT_TYPE, "HTTPResponseCheck");
+        options.put(HTTPResponseCheckConfig.PORT, String.valueOf(port));
+        options.put(HTTPResponseCheckConfig.URI, "/status");
+        options.put(HTTPResponseCheckConfig.VIRTUAL_HOST, "status.example.com");
+        options.put(HTTPResponseCheckConfig.FOLLOW_REDIRECTS_FLAG, String.valueOf(followRedirects));
+        options.put(HTTPResponseCheckConfig.MATCH_BODY_SUB_STRING, "healthy");
+        HTTPResponseCheckConfig config = new HTTPResponseCheckConfig("127.0.0.1", "/", "test", new GuiceDefaultsForDataSources(agentConfig), options);
+
+        HTTPResponseCheckDataSource dataSource = new HTTPResponseCheckDataSource(config, httpCheckClient);
+        Map<String, Config> configs = new HashMap<String, Config>();
+        configs.put(config.getConfigHashKey(), config);
+        Map<String, String> attributesByKey = new HashMap<String, String>();
+        for (Config expanded : dataSource.expandConfigs(configs).values()) {
+            dataSource.prepareConfig(expanded);
+            attributesByKey.put(expanded.getConfigHashKey(), expanded.getEventAttributeType());
+        }
+        dataSource.finalizePreparation();
+        dataSource.initialize();
+
+        Map<String, Object> values = dataSource.getValuesAsync().get(10, TimeUnit.SECONDS);
+        Map<String, Object> valuesByAttribute = new HashMap<String, Object>();
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            String attribute = attributesByKey.get(entry.getKey());
+            if (attribute != null) {
+                valuesByAttribute.put(attribute, entry.getValue());
+            }
+        }
+        return valuesByAttribute;
+    }
+
+    // answers every request with the same response, then closes the connection
+    private static class _Server implements Runnable
+    {
+        private final ServerSocket serverSocket;
+        private final String status;
+        private final String body;
+        private final List<String> requests = new CopyOnWriteArrayList<String>();
+        private volatile String location;
+
+        _Server(String status, String location, String body) throws IOException
+        {
+            this.serverSocket = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+            this.status = status;
+            this.location = location;
+            this.body = body;
+
+            Thread thread = new Thread(this, "HTTPResponseCheckDataSourceTest-" + serverSocket.getLocalPort());
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort()
+        {
+            return serverSocket.getLocalPort();
+        }
+
+        void close() throws IOException
+        {
+            serverSocket.close();
+        }
+
+        public void run()
+        {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    try {
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+                        String requestLine = reader.readLine();
+                        String header;
+                        do {
+                            header = reader.readLine();
+                        }
+                        while (header != null && header.length() > 0);
+                        requests.add(requestLine);
+
+                        byte[] bodyBytes = body.getBytes("ISO-8859-1");
+                        StringBuilder response = new StringBuilder();
+                        response.append("HTTP/1.1 ").append(status).append("\r\n");
+                        if (location != null) {
+                            response.append("Location: ").append(location).append("\r\n");
+                        }
+                        response.append("Content-Length: ").append(bodyBytes.length).append("\r\n");
+                        response.append("Connection: close\r\n\r\n");
+
+                        OutputStream out = socket.getOutputStream();
+                        out.write(response.toString().getBytes("ISO-8859-1"));
+                        out.write(bodyBytes);
+                        out.flush();
+                    }
+                    finally {
+                        socket.close();
+                    }
+                }
+                catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.agent.datasource.jmx;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.ning.arecibo.agent.datasource.jmx.JMXBulkReader.Registration;
+
+public class JMXBulkReaderTest
+{
+    private static final int NUM_MBEANS = 10;
+
+    private final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    private final List<ObjectName> objectNames = new ArrayList<ObjectName>();
+    private _Connection connection;
+    private ExecutorService executor;
+    private ExecutorService pollers;
+    private JMXBulkReader reader;
+    private List<Registration> registrations;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception
+    {
+        for (int i = 0; i < NUM_MBEANS; i++) {
+            ObjectName objectName = new ObjectName("arecibo.test:type=JMXBulkReaderTest,name=value" + i);
+            mbeanServer.registerMBean(new StandardMBean(new _Value(i), _ValueMBean.class), objectName);
+            objectNames.add(objectName);
+        }
+        connection = new _Connection(mbeanServer);
+        executor = Executors.newFixedThreadPool(2);
+        pollers = Executors.newCachedThreadPool();
+        reader = new JMXBulkReader("localhost:1234", connection.client(), executor, 2, 60000L);
+        registrations = new ArrayList<Registration>();
+        for (ObjectName objectName : objectNames) {
+            registrations.add(reader.register(reader.getMBean(objectName.toString()), new String[]{"value"}));
+        }
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception
+    {
+        connection.release();
+        executor.shutdownNow();
+        pollers.shutdownNow();
+        for (ObjectName objectName : objectNames) {
+            if (mbeanServer.isRegistered(objectName)) {
+                mbeanServer.unregisterMBean(objectName);
+            }
+        }
+        objectNames.clear();
+    }
+
+    @Test(groups = "fast")
+    public void dataSourcesPollingTogetherShareOneBulkRead()
+    {
+        for (int cycle = 1; cycle <= 3; cycle++) {
+            for (int i = 0; i < NUM_MBEANS; i++) {
+                assertEquals(poll(i), i);
+            }
+            assertEquals(connection.roundTrips.get(), cycle * NUM_MBEANS);
+            assertEquals(reader.getRoundTrips(), (long) cycle * NUM_MBEANS);
+            assertEquals(reader.getBulkReads(), (long) cycle);
+            assertEquals(reader.getValuesReused(), (long) cycle * (NUM_MBEANS - 1));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void dataSourcePollingMoreOftenOnlyRereadsItsMBean()
+    {
+        for (int i = 0; i < 5; i++) {
+            assertEquals(poll(0), 0);
+        }
+        assertEquals(connection.roundTrips.get(), NUM_MBEANS + 4);
+
+        // the others still have the values of the first read
+        for (int i = 1; i < NUM_MBEANS; i++) {
+            assertEquals(poll(i), i);
+        }
+        assertEquals(connection.roundTrips.get(), NUM_MBEANS + 4);
+    }
+
+    @Test(groups = "fast")
+    public void pollsWithFreshValuesDoNotWaitForARead() throws Exception
+    {
+        poll(0);
+        connection.block(objectNames.get(0));
+        Future<Integer> blocked = pollAsync(0);
+        assertTrue(connection.blockedRead.await(5, TimeUnit.SECONDS));
+
+        assertEquals(pollAsync(1).get(5, TimeUnit.SECONDS), Integer.valueOf(1));
+        assertFalse(blocked.isDone());
+
+        connection.release();
+        assertEquals(blocked.get(5, TimeUnit.SECONDS), Integer.valueOf(0));
+        assertEquals(connection.roundTrips.get(), NUM_MBEANS + 1);
+    }
+
+    @Test(groups = "fast")
+    public void pollsCoveredByAReadInProgressWaitForIt() throws Exception
+    {
+        // with 2 chunks, the MBeans 0 and 2 are read one after the other by the same thread
+        connection.block(objectNames.get(0));
+        Future<Integer> first = pollAsync(0);
+        assertTrue(connection.blockedRead.await(5, TimeUnit.SECONDS));
+
+        Future<Integer> second = pollAsync(2);
+        try {
+            second.get(200, TimeUnit.MILLISECONDS);
+            fail("the values were not read yet");
+        }
+        catch (TimeoutException e) {
+            // expected
+        }
+
+        connection.release();
+        assertEquals(first.get(5, TimeUnit.SECONDS), Integer.valueOf(0));
+        assertEquals(second.get(5, TimeUnit.SECONDS), Integer.valueOf(2));
+        assertEquals(connection.roundTrips.get(), NUM_MBEANS);
+        assertEquals(reader.getBulkReads(), 1L);
+    }
+
+    @Test(groups = "fast")
+    public void failedReadGoesToItsDataSource() throws Exception
+    {
+        mbeanServer.unregisterMBean(objectNames.get(3));
+
+        for (int i = 0; i < NUM_MBEANS; i++) {
+            if (i == 3) {
+                try {
+                    poll(i);
+                    fail("the MBean is gone");
+                }
+                catch (RuntimeException e) {
+                    // expected
+                }
+            }
+            else {
+                assertEquals(poll(i), i);
+            }
+        }
+        assertEquals(connection.roundTrips.get(), NUM_MBEANS);
+    }
+
+    @Test(groups = "fast")
+    public void readsOnThePollingThreadOnceTheExecutorIsShutDown()
+    {
+        executor.shutdown();
+        for (int i = 0; i < NUM_MBEANS; i++) {
+            assertEquals(poll(i), i);
+        }
+        assertEquals(connection.roundTrips.get(), NUM_MBEANS);
+    }
+
+    @Test(groups = "fast")
+    public void unregisteredDataSourceStillGetsItsValues()
+    {
+        reader.unregister(registrations.get(4));
+        assertEquals(poll(4), 4);
+        assertEquals(reader.getNumRegistrations(), NUM_MBEANS - 1);
+        assertEquals(connection.roundTrips.get(), NUM_MBEANS);
+    }
+
+    private int poll(int i)
+    {
+        Map<String, Object> values = reader.getAttributeValues(registrations.get(i));
+        return (Integer) values.get("Value");
+    }
+
+    private Future<Integer> pollAsync(final int i)
+    {
+        return pollers.submit(new Callable<Integer>()
+        {
+            public Integer call()
+            {
+                return poll(i);
+            }
+        });
+    }
+
+    public interface _ValueMBean
+    {
+        int getValue();
+    }
+
+    public static class _Value implements _ValueMBean
+    {
+        private final int value;
+
+        public _Value(int value)
+        {
+            this.value = value;
+        }
+
+        public int getValue()
+        {
+            return value;
+        }
+    }
+
+    /**
+     * Counts the getAttributes round trips, and can hold the ones of an MBean until released
+     */
+    private static class _Connection implements InvocationHandler
+    {
+        private final MBeanServerConnection delegate;
+        private final AtomicInteger roundTrips = new AtomicInteger();
+        private final CountDownLatch blockedRead = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private volatile ObjectName blockedName = null;
+
+        private _Connection(MBeanServerConnection delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        private JMXClient client()
+        {
+            return new JMXClient((MBeanServerConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                                                 new Class<?>[]{MBeanServerConnection.class},
+                                                                                 this));
+        }
+
+        private void block(ObjectName objectName)
+        {
+            blockedName = objectName;
+        }
+
+        private void release()
+        {
+            released.countDown();
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            if (method.getName().equals("getAttributes")) {
+                roundTrips.incrementAndGet();
+                if (args[0].equals(blockedName)) {
+                    blockedRead.countDown();
+                    released.await(10, TimeUnit.SECONDS);
+                }
+            }
+            try {
+                return method.invoke(delegate, args);
+            }
+            catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
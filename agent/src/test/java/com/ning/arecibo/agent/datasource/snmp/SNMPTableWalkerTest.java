@@ -0,0 +1,189 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ning.arecibo.agent.datasource.snmp;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.testng.annotations.Test;
+import com.ning.arecibo.agent.datasource.DataSourceException;
+import com.ning.arecibo.util.Pair;
+
+public class SNMPTableWalkerTest
+{
+    private static final int[] IF_DESCR = {1, 3, 6, 1, 2, 1, 2, 2, 1, 2};
+    private static final int[] IF_TYPE = {1, 3, 6, 1, 2, 1, 2, 2, 1, 3};
+    private static final int[] IF_IN_OCTETS = {1, 3, 6, 1, 2, 1, 2, 2, 1, 10};
+    private static final int[] IF_OUT_OCTETS = {1, 3, 6, 1, 2, 1, 2, 2, 1, 16};
+    private static final int[] SYS_UP_TIME = {1, 3, 6, 1, 2, 1, 1, 3};
+    private static final int[] LAST_COLUMN = {1, 3, 6, 1, 2, 1, 99, 1};
+    private static final int NUM_ROWS = 37;
+
+    @Test(groups = "fast")
+    public void walkFetchesSeveralColumnsPerPdu() throws Exception
+    {
+        _Agent agent = newAgent();
+        int[][] columns = {IF_DESCR, IF_IN_OCTETS, SYS_UP_TIME, IF_OUT_OCTETS};
+
+        SNMPTableWalker walker = new SNMPTableWalker(10, 2);
+        List<SortedMap<Integer, Object>> results = walker.walk(agent, columns);
+
+        for (int i = 0; i < columns.length; i++) {
+            assertEquals(results.get(i), agent.getColumn(columns[i]));
+        }
+        assertEquals(results.get(0).size(), NUM_ROWS);
+        assertEquals(results.get(2).size(), 1);
+        assertEquals(walker.getPdus(), agent.pdus);
+        assertTrue(agent.maxOidsPerPdu <= 2);
+
+        // one column at a time, as walked before
+        SNMPTableWalker singleColumnWalker = new SNMPTableWalker(10, 1);
+        for (int[] column : columns) {
+            singleColumnWalker.walk(agent, new int[][]{column});
+        }
+        assertTrue(walker.getPdus() < singleColumnWalker.getPdus(), walker.getPdus() + " >= " + singleColumnWalker.getPdus());
+    }
+
+    @Test(groups = "fast")
+    public void walkStopsAtEndOfMibView() throws Exception
+    {
+        _Agent agent = newAgent();
+        SNMPTableWalker walker = new SNMPTableWalker(5, 4);
+        List<SortedMap<Integer, Object>> results = walker.walk(agent, new int[][]{IF_TYPE, LAST_COLUMN});
+
+        assertEquals(results.get(0), agent.getColumn(IF_TYPE));
+        // the endOfMibView binding doesn't replace the last row
+        assertEquals(results.get(1), agent.getColumn(LAST_COLUMN));
+        assertEquals(results.get(1).get(3), "last3");
+    }
+
+    @Test(groups = "fast")
+    public void collectorsOfADeviceShareWalks() throws Exception
+    {
+        _Agent agent = newAgent();
+        SNMPTableWalker walker = new SNMPTableWalker(50, 4);
+        SNMPTableWalkCache.Device device = new SNMPTableWalkCache.Device("key", "host:161", agent, walker, 60000L);
+
+        SNMPTableWalkCache.Registration first = device.register(new int[][]{IF_IN_OCTETS, IF_OUT_OCTETS});
+        SNMPTableWalkCache.Registration second = device.register(new int[][]{IF_IN_OCTETS, IF_DESCR});
+
+        Map<String, SortedMap<Integer, Object>> values = device.getColumnValues(first);
+        assertEquals(values.get(SNMPTableWalker.toKey(IF_OUT_OCTETS)), agent.getColumn(IF_OUT_OCTETS));
+        assertEquals(walker.getWalks(), 1);
+        long pdus = walker.getPdus();
+
+        // the second collector polls the same cycle, and gets its rows from the first walk
+        values = device.getColumnValues(second);
+        assertEquals(values.get(SNMPTableWalker.toKey(IF_DESCR)), agent.getColumn(IF_DESCR));
+        assertEquals(walker.getWalks(), 1);
+        assertEquals(walker.getPdus(), pdus);
+
+        // the next cycle
+        device.getColumnValues(first);
+        assertEquals(walker.getWalks(), 2);
+
+        device.unregister(second);
+        SNMPTableWalkCache.Registration third = device.register(new int[][]{IF_TYPE});
+        values = device.getColumnValues(third);
+        assertEquals(values.get(SNMPTableWalker.toKey(IF_TYPE)), agent.getColumn(IF_TYPE));
+        assertNull(values.get(SNMPTableWalker.toKey(IF_DESCR)));
+        assertEquals(walker.getWalks(), 3);
+    }
+
+    private static _Agent newAgent()
+    {
+        _Agent agent = new _Agent();
+        agent.put(SYS_UP_TIME, 0, 123456L);
+        agent.put(new int[]{1, 3, 6, 1, 2, 1, 1, 5}, 0, "switch");
+        for (int row = 1; row <= NUM_ROWS; row++) {
+            agent.put(IF_DESCR, row, "eth" + row);
+            agent.put(IF_TYPE, row, 6);
+            agent.put(IF_IN_OCTETS, row, 1000L * row);
+            agent.put(IF_OUT_OCTETS, row, 2000L * row);
+            agent.put(new int[]{1, 3, 6, 1, 2, 1, 2, 2, 1, 20}, row, 0L);
+        }
+        for (int row = 1; row <= 3; row++) {
+            agent.put(LAST_COLUMN, row, "last" + row);
+        }
+        return agent;
+    }
+
+    /**
+     * A stand-in for an SNMP agent, answering GetBulk requests from a sorted MIB view
+     */
+    private static class _Agent implements SNMPTableWalker.Transport
+    {
+        private final TreeMap<int[], Object> mib = new TreeMap<int[], Object>(new Comparator<int[]>()
+        {
+            public int compare(int[] oid1, int[] oid2)
+            {
+                return SNMPTableWalker.compare(oid1, oid2);
+            }
+        });
+        private long pdus = 0;
+        private int maxOidsPerPdu = 0;
+
+        void put(int[] column, int row, Object value)
+        {
+            int[] oid = new int[column.length + 1];
+            System.arraycopy(column, 0, oid, 0, column.length);
+            oid[column.length] = row;
+            mib.put(oid, value);
+        }
+
+        SortedMap<Integer, Object> getColumn(int[] column)
+        {
+            SortedMap<Integer, Object> rows = new TreeMap<Integer, Object>();
+            for (Map.Entry<int[], Object> entry : mib.entrySet()) {
+                if (SNMPTableWalker.isInSubtree(column, entry.getKey())) {
+                    rows.put(entry.getKey()[entry.getKey().length - 1], entry.getValue());
+                }
+            }
+            return rows;
+        }
+
+        public List<Pair<int[], Object>> getBulk(int[][] oids, int maxRepetitions) throws DataSourceException
+        {
+            pdus++;
+            maxOidsPerPdu = Math.max(maxOidsPerPdu, oids.length);
+
+            List<Pair<int[], Object>> varBinds = new ArrayList<Pair<int[], Object>>();
+            for (int[] oid : oids) {
+                int[] current = oid;
+                for (int i = 0; i < maxRepetitions; i++) {
+                    int[] next = mib.higherKey(current);
+                    if (next == null) {
+                        // endOfMibView
+                        varBinds.add(new Pair<int[], Object>(current, null));
+                        break;
+                    }
+                    varBinds.add(new Pair<int[], Object>(next, mib.get(next)));
+                    current = next;
+                }
+            }
+            return varBinds;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.agent.datasource.tcp;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.skife.config.ConfigurationObjectFactory;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+import com.ning.arecibo.agent.config.Config;
+import com.ning.arecibo.agent.config.tcp.TCPConnectCheckConfig;
+import com.ning.arecibo.agent.datasource.DataSourceFuture;
+import com.ning.arecibo.agent.guice.AgentConfig;
+import com.ning.arecibo.agent.guice.GuiceDefaultsForDataSources;
+
+public class TCPConnectCheckerTest
+{
+    @Test(groups = "fast")
+    public void connectToListeningPortSucceeds() throws Exception
+    {
+        TCPConnectChecker checker = new TCPConnectChecker(5000L, 10);
+        ServerSocket server = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+        try {
+            _Result result = check(checker, new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+            assertNull(result.failure);
+            assertTrue(result.connectNanos > 0L);
+            // the listener is not called from the selector thread
+            assertEquals(result.threadName, "TCPConnectChecker-completions");
+
+            assertEquals(checker.getConnectsStarted(), 1L);
+            assertEquals(checker.getConnectsFailed(), 0L);
+            assertEquals(checker.getConnectsInFlight(), 0);
+        }
+        finally {
+            server.close();
+            checker.stop();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void connectToClosedPortFails() throws Exception
+    {
+        ServerSocket server = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+        int closedPort = server.getLocalPort();
+        server.close();
+
+        TCPConnectChecker checker = new TCPConnectChecker(5000L, 10);
+        try {
+            _Result result = check(checker, new InetSocketAddress("127.0.0.1", closedPort));
+            assertNotNull(result.failure);
+            assertEquals(checker.getConnectsFailed(), 1L);
+            assertEquals(checker.getConnectsTimedOut(), 0L);
+            assertEquals(checker.getConnectsInFlight(), 0);
+        }
+        finally {
+            checker.stop();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void connectToUnroutableAddressTimesOut() throws Exception
+    {
+        TCPConnectChecker checker = new TCPConnectChecker(200L, 10);
+        try {
+            _Result result = check(checker, new InetSocketAddress("10.255.255.1", 80));
+            if (!(result.failure instanceof SocketTimeoutException)) {
+                // e.g. no route at all from the build host, the connect fails, or is answered, right away
+                throw new SkipException("10.255.255.1 is not blackholed from this host: " + result.failure);
+            }
+            assertTrue(result.connectNanos >= TimeUnit.MILLISECONDS.toNanos(200L));
+            assertEquals(checker.getConnectsTimedOut(), 1L);
+            assertEquals(checker.getConnectsFailed(), 1L);
+            assertEquals(checker.getConnectsInFlight(), 0);
+        }
+        finally {
+            checker.stop();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void connectsOverTheLimitWaitForASlot() throws Exception
+    {
+        TCPConnectChecker checker = new TCPConnectChecker(5000L, 1);
+        // never accepted, so leave room in the backlog for all of them
+        ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        try {
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+            final CountDownLatch done = new CountDownLatch(20);
+            for (int i = 0; i < 20; i++) {
+                checker.check(address, new TCPConnectChecker.Listener()
+                {
+                    public void completed(Throwable failure, long connectNanos)
+                    {
+                        if (failure == null) {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(checker.getConnectsStarted(), 20L);
+            assertEquals(checker.getConnectsInFlight(), 0);
+            assertEquals(checker.getConnectsQueued(), 0);
+        }
+        finally {
+            server.close();
+            checker.stop();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void dataSourcePollsAsynchronously() throws Exception
+    {
+        TCPConnectChecker checker = new TCPConnectChecker(5000L, 10);
+        ServerSocket server = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+        try {
+            AgentConfig agentConfig = new ConfigurationObjectFactory(new Properties()).build(AgentConfig.class);
+            Map<String, Object> options = new HashMap<String, Object>();
+            options.put(Config.EVENT_TYPE, "TCPConnectCheck");
+            options.put(TCPConnectCheckConfig.PORT, String.valueOf(server.getLocalPort()));
+            TCPConnectCheckConfig config = new TCPConnectCheckConfig("127.0.0.1", "/", "test", new GuiceDefaultsForDataSources(agentConfig), options);
+
+            TCPConnectCheckDataSource dataSource = new TCPConnectCheckDataSource(config, checker);
+            Map<String, Config> configs = new HashMap<String, Config>();
+            configs.put(config.getConfigHashKey(), config);
+            Map<String, String> keysByAttribute = new HashMap<String, String>();
+            for (Config expanded : dataSource.expandConfigs(configs).values()) {
+                dataSource.prepareConfig(expanded);
+                keysByAttribute.put(expanded.getEventAttributeType(), expanded.getConfigHashKey());
+            }
+            dataSource.finalizePreparation();
+
+            DataSourceFuture future = dataSource.getValuesAsync();
+            Map<String, Object> values = future.get(5, TimeUnit.SECONDS);
+            assertEquals(values.get(keysByAttribute.get(TCPConnectCheckDataSource.CONNECT_CHECK_RESULT)), TCPConnectCheckDataSource.SUCCESSFUL_CONNECT_RESULT);
+            assertEquals(values.get(keysByAttribute.get(TCPConnectCheckDataSource.CONNECT_TEST_MESSAGE)), TCPConnectCheckDataSource.SUCCESSFUL_CONNECT_MESSAGE);
+            assertNotNull(values.get(keysByAttribute.get(TCPConnectCheckDataSource.CONNECT_TEST_TIME_MS)));
+        }
+        finally {
+            server.close();
+            checker.stop();
+        }
+    }
+
+    private static _Result check(TCPConnectChecker checker, InetSocketAddress address) throws InterruptedException
+    {
+        final _Result result = new _Result();
+        checker.check(address, new TCPConnectChecker.Listener()
+        {
+            public void completed(Throwable failure, long connectNanos)
+            {
+                result.failure = failure;
+                result.connectNanos = connectNanos;
+                result.threadName = Thread.currentThread().getName();
+                result.done.countDown();
+            }
+        });
+        assertTrue(result.done.await(5, TimeUnit.SECONDS));
+        return result;
+    }
+
+    private static class _Result
+    {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Throwable failure = null;
+        private volatile long connectNanos = 0L;
+        private volatile String threadName = null;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.agent.polling;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.annotations.Test;
+
+public class PollingEngineTest
+{
+    @Test(groups = "slow")
+    public void slowHostOnlyDelaysItself() throws Exception
+    {
+        final PollingEngine engine = new PollingEngine(4, 1, 10, TimeUnit.MILLISECONDS);
+        engine.start();
+        try {
+            final CountDownLatch blockSlowHost = new CountDownLatch(1);
+            final CountDownLatch slowPollStarted = new CountDownLatch(1);
+            final CountDownLatch fastPolled = new CountDownLatch(1);
+            final CountDownLatch secondSlowPolled = new CountDownLatch(1);
+
+            engine.schedule(new _Task("slow")
+            {
+                public void poll(PollingEngine.HostPermit permit)
+                {
+                    slowPollStarted.countDown();
+                    await(blockSlowHost);
+                }
+            }, 0, TimeUnit.MILLISECONDS);
+            assertTrue(slowPollStarted.await(5, TimeUnit.SECONDS));
+
+            engine.schedule(new _Task("slow")
+            {
+                public void poll(PollingEngine.HostPermit permit)
+                {
+                    secondSlowPolled.countDown();
+                }
+            }, 0, TimeUnit.MILLISECONDS);
+            engine.schedule(new _Task("fast")
+            {
+                public void poll(PollingEngine.HostPermit permit)
+                {
+                    fastPolled.countDown();
+                }
+            }, 0, TimeUnit.MILLISECONDS);
+
+            // the other host is polled, the second poll of the slow host waits without a thread
+            assertTrue(fastPolled.await(5, TimeUnit.SECONDS));
+            assertFalse(secondSlowPolled.await(100, TimeUnit.MILLISECONDS));
+            assertEquals(engine.getPollsWaitingForHost(), 1);
+            assertEquals(engine.getPollsDeferred(), 1);
+
+            blockSlowHost.countDown();
+            assertTrue(secondSlowPolled.await(5, TimeUnit.SECONDS));
+            assertEquals(engine.getPollsWaitingForHost(), 0);
+            assertTrue(engine.getSchedulingLagMax() >= 100);
+        }
+        finally {
+            engine.stop();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void permitReleasedEarly() throws Exception
+    {
+        final PollingEngine engine = new PollingEngine(4, 1, 10, TimeUnit.MILLISECONDS);
+        engine.start();
+        try {
+            final CountDownLatch blockFirstPoll = new CountDownLatch(1);
+            final CountDownLatch secondPolled = new CountDownLatch(1);
+
+            engine.schedule(new _Task("host")
+            {
+                public void poll(PollingEngine.HostPermit permit)
+                {
+                    permit.release();
+                    permit.release();
+                    await(blockFirstPoll);
+                }
+            }, 0, TimeUnit.MILLISECONDS);
+            engine.schedule(new _Task("host")
+            {
+                public void poll(PollingEngine.HostPermit permit)
+                {
+                    secondPolled.countDown();
+                }
+            }, 20, TimeUnit.MILLISECONDS);
+
+            assertTrue(secondPolled.await(5, TimeUnit.SECONDS));
+            blockFirstPoll.countDown();
+        }
+        finally {
+            engine.stop();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void timeoutsNeverExpireEarly() throws Exception
+    {
+        final AtomicInteger early = new AtomicInteger();
+        final CountDownLatch expired = new CountDownLatch(200);
+        final TimingWheel<Long> wheel = new TimingWheel<Long>("test", new TimingWheel.Handler<Long>()
+        {
+            public void expired(Long scheduledAtMillis, long dueMillis)
+            {
+                if (System.currentTimeMillis() < dueMillis) {
+                    early.incrementAndGet();
+                }
+                expired.countDown();
+            }
+        }, 5, TimeUnit.MILLISECONDS, 8);
+        wheel.start();
+        try {
+            // delays beyond a full turn of the wheel included
+            for (int i = 0; i < 200; i++) {
+                wheel.schedule(System.currentTimeMillis(), i % 100, TimeUnit.MILLISECONDS);
+            }
+            assertTrue(expired.await(5, TimeUnit.SECONDS));
+            assertEquals(early.get(), 0);
+        }
+        finally {
+            wheel.stop();
+        }
+    }
+
+    private static void await(CountDownLatch latch)
+    {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private abstract static class _Task implements PollingEngine.PollingTask
+    {
+        private final String hostName;
+
+        private _Task(String hostName)
+        {
+            this.hostName = hostName;
+        }
+
+        public String getHostName()
+        {
+            return hostName;
+        }
+    }
+}
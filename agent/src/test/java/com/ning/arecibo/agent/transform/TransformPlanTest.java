@@ -0,0 +1,129 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ning.arecibo.agent.transform;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.testng.annotations.Test;
+
+public class TransformPlanTest
+{
+    @Test(groups = "fast")
+    public void valuesAndRatesTest()
+    {
+        TransformPlan plan = new TransformPlan.Builder("test")
+                .addAttribute("gauge()", "gauge", false, false, false)
+                .addAttribute("counter()", "counter", true, false, true)
+                .addAttribute("both()", "both", false, true, false)
+                .build();
+        assertEquals(plan.getSlotCount(), 4);
+        assertEquals(plan.getEventAttributeTypes("both()"), Arrays.asList("both", "bothRate"));
+        assertTrue(plan.getEventAttributeTypes("unknown()").isEmpty());
+
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("gauge()", 7);
+        values.put("counter()", 100L);
+        values.put("both()", 10.0);
+        values.put("unknown()", 1);
+        Map<String, Object> eventValues = plan.newValueMap(0);
+        assertTrue(plan.process(values, 10000L, eventValues));
+
+        // no rates until the second poll
+        assertEquals(eventValues.get("gauge"), 7);
+        assertEquals(eventValues.get("both"), 10.0);
+        assertEquals(eventValues.size(), 2);
+
+        values.put("counter()", 300L);
+        values.put("both()", 5.0);
+        eventValues = plan.newValueMap(0);
+        plan.process(values, 12000L, eventValues);
+        assertEquals(eventValues.get("counter"), 100.0);
+        assertEquals(eventValues.get("bothRate"), -2.5);
+        assertEquals(eventValues.size(), 4);
+
+        // a counter going backwards has no rate
+        values.put("counter()", 200L);
+        eventValues = plan.newValueMap(0);
+        plan.process(values, 14000L, eventValues);
+        assertNull(eventValues.get("counter"));
+        values.put("counter()", 400L);
+        eventValues = plan.newValueMap(0);
+        plan.process(values, 16000L, eventValues);
+        assertEquals(eventValues.get("counter"), 100.0);
+    }
+
+    @Test(groups = "fast")
+    public void nullAndNaNValuesTest()
+    {
+        TransformPlan plan = new TransformPlan.Builder("test")
+                .addAttribute("a()", "a", true, false, false)
+                .addAttribute("b()", "b", false, false, false)
+                .build();
+
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("a()", 1.0);
+        values.put("b()", null);
+        plan.process(values, 1000L, plan.newValueMap(0));
+
+        // the NaN isn't taken as the last value of the rate
+        values.put("a()", Double.NaN);
+        Map<String, Object> eventValues = plan.newValueMap(0);
+        plan.process(values, 2000L, eventValues);
+        assertTrue(eventValues.isEmpty());
+
+        values.put("a()", 3.0);
+        eventValues = plan.newValueMap(0);
+        plan.process(values, 3000L, eventValues);
+        assertEquals(eventValues.get("a"), 1.0);
+    }
+
+    @Test(groups = "fast")
+    public void groupValuesTest()
+    {
+        TransformPlan plan = new TransformPlan.Builder("test")
+                .addAttribute("disk()", "disk", true, false, true)
+                .build();
+
+        Map<String, Object> group = new HashMap<String, Object>();
+        group.put("sda", 10L);
+        group.put("sdb", 1000L);
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("disk()", group);
+        plan.process(values, 1000L, plan.newValueMap(0));
+
+        // each member has its own last value
+        group.put("sda", 20L);
+        group.put("sdb", 1100L);
+        Map<String, Object> eventValues = plan.newValueMap(0);
+        assertFalse(plan.process(values, 2000L, eventValues));
+        assertEquals(eventValues.get("disk_sda"), 10.0);
+        assertEquals(eventValues.get("disk_sdb"), 100.0);
+        assertTrue(((String) eventValues.get("disk")).startsWith(TransformPlan.GROUP_DELIMITER_START));
+
+        // the group value itself isn't published
+        Map<String, Object> publishValues = TransformPlan.withoutGroupValues(eventValues);
+        assertFalse(publishValues.containsKey("disk"));
+        assertEquals(publishValues.size(), 2);
+    }
+}
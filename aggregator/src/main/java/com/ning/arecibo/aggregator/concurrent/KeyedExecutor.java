@@ -17,200 +17,281 @@
 package com.ning.arecibo.aggregator.concurrent;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import org.weakref.jmx.Managed;
 import com.google.inject.Inject;
-import com.ning.arecibo.aggregator.concurrent.guice.KeyedExecutorSupport;
+import com.ning.arecibo.aggregator.concurrent.guice.KeyedExecutorConfig;
 import com.ning.arecibo.util.Logger;
 import com.ning.arecibo.util.jmx.MonitorableManaged;
+import com.ning.arecibo.util.jmx.MonitoringType;
+import com.ning.arecibo.util.metrics.ValueStats;
 
+/**
+ * Runs the tasks of a key one at a time, in submission order.
+ * <p/>
+ * Keys are hashed to a fixed number of lanes, each one a single thread draining a bounded
+ * queue, so the tasks of all the keys of a lane are run in the order they were submitted:
+ * a hot key only delays the other keys of its lane by the tasks it already queued. When a
+ * lane is full, the submitting thread blocks (BLOCK) or the task is dropped (DROP). Tasks
+ * submitted by the lanes themselves, e.g. aggregated events fed back to the aggregator,
+ * are dropped rather than blocking, which could deadlock the lanes.
+ * <p/>
+ * With a time slice, a lane yields its CPU after running tasks for that long, so that busy
+ * lanes don't starve the others when there are more lanes than cores.
+ */
 public class KeyedExecutor
 {
 	private static final Logger log = Logger.getLogger(KeyedExecutor.class);
 
-	private final ConcurrentHashMap<String, KeyedBucket> buckets = new ConcurrentHashMap<String, KeyedBucket>();
-	private final ExecutorService globalExecutor;
-    private final AtomicInteger numScheduledBuckets;
-    private final AtomicInteger numExecutingBuckets;
+	private static final int DRAIN_BATCH_SIZE = 64;
+
+	public enum OverflowPolicy
+	{
+		BLOCK,
+		DROP
+	}
+
+	private final Lane[] lanes;
+	private final OverflowPolicy overflowPolicy;
+	private final long timeSliceNanos;
+	private final AtomicLong tasksDropped = new AtomicLong(0);
 
-    @Inject
-	public KeyedExecutor(@KeyedExecutorSupport ExecutorService exe)
+	@Inject
+	public KeyedExecutor(KeyedExecutorConfig config)
 	{
-		this.globalExecutor = exe ;
-        this.numScheduledBuckets = new AtomicInteger(0);
-        this.numExecutingBuckets = new AtomicInteger(0);
+		this(config.getNumThreads(),
+		     config.getQueueSize(),
+		     OverflowPolicy.valueOf(config.getOverflowPolicy()),
+		     config.getTimeSlice().getMillis(),
+		     TimeUnit.MILLISECONDS);
 	}
 
-	public void execute(String key, final Runnable r)
+	public KeyedExecutor(int numLanes, int queueSize, OverflowPolicy overflowPolicy, long timeSlice, TimeUnit timeSliceUnit)
 	{
-		if ( !buckets.containsKey(key) ) {
-			buckets.putIfAbsent(key, new KeyedBucket(key)) ;
+		this.overflowPolicy = overflowPolicy;
+		this.timeSliceNanos = timeSliceUnit.toNanos(timeSlice);
+		this.lanes = new Lane[numLanes];
+		for (int i = 0; i < numLanes; i++) {
+			lanes[i] = new Lane(i, queueSize);
+			lanes[i].start();
 		}
-		execute(buckets.get(key), r);
-	}
-
-	private void execute(final KeyedBucket bucket, Runnable r)
-	{
-		bucket.queue.add(r);
-		synchronized (bucket.guard) {
-			if (!bucket.guard.get()) {
-				bucket.guard.set(true);
-                bucket.setWaitTimeStart();
-				globalExecutor.execute(new Runnable()
-				{
-					public void run()
-					{
-                        bucket.setWaitTimeEnd();
-                        numExecutingBuckets.getAndIncrement();
-
-						//log.debug("entering active thread for key %s", bucket.key );
-						try {
-							while (!bucket.queue.isEmpty()) {
-								while (!bucket.queue.isEmpty()) {
-									Runnable theRunnable = bucket.queue.take();
-									//log.debug("processing for key %s", bucket.key );
-									if (theRunnable != null) {
-										theRunnable.run();
-									}
-								}
-							}
-						}
-						catch (InterruptedException e) {
-							Thread.currentThread().interrupt();
-						}
-						synchronized (bucket.guard) {
-							bucket.guard.set(false);
-						}
-						//log.debug("leaving active thread for key %s", bucket.key);
-
-                        numExecutingBuckets.getAndDecrement();
-                        numScheduledBuckets.getAndDecrement();
-					}
-				});
+	}
 
-                numScheduledBuckets.getAndIncrement();
+	/**
+	 * @return false if the task was dropped, its lane being full
+	 */
+	public boolean execute(String key, final Runnable r)
+	{
+		Lane lane = lanes[laneIndex(key)];
+		QueuedTask task = new QueuedTask(r);
+		lane.depths.record(lane.queue.size());
+		if (lane.queue.offer(task)) {
+			return true;
+		}
+		if (overflowPolicy == OverflowPolicy.BLOCK && !(Thread.currentThread() instanceof Lane)) {
+			try {
+				lane.queue.put(task);
+				return true;
 			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		long dropped = tasksDropped.incrementAndGet();
+		// Don't flood the log when a lane can't keep up
+		if (Long.bitCount(dropped) == 1) {
+			log.warn("lane %d is full, dropped a task for key %s, total dropped = %d", lane.index, key, dropped);
 		}
+		return false;
+	}
+
+	private int laneIndex(String key)
+	{
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return (h & Integer.MAX_VALUE) % lanes.length;
 	}
 
-	private class KeyedBucket
+	private static class QueuedTask
 	{
-		final LinkedBlockingQueue<Runnable> queue ;
-		final AtomicBoolean guard ;
-        private final AtomicLong waitTimeStart;
-        private final AtomicLong waitTimeEnd;
-        private final String key;
+		private final Runnable runnable;
+		private final long queuedNanos = System.nanoTime();
 
-		private KeyedBucket(String key)
+		private QueuedTask(Runnable runnable)
 		{
-			this.guard = new AtomicBoolean();
-			this.queue = new LinkedBlockingQueue<Runnable>();
-			this.key = key;
-            this.waitTimeStart = new AtomicLong(0L);
-            this.waitTimeEnd = new AtomicLong(0L);
+			this.runnable = runnable;
 		}
+	}
 
-        public void setWaitTimeStart() {
-            waitTimeStart.set(System.currentTimeMillis());
-            waitTimeEnd.set(0L);
-        }
-
-        public void setWaitTimeEnd() {
-            waitTimeEnd.set(System.currentTimeMillis());
-        }
-
-        public long getLastWaitTime() {
-            long startMs = waitTimeStart.get();
-            long endMs = waitTimeEnd.get();
-
-            if(startMs == 0L) {
-                return 0L;
-            }
-            else if(endMs > 0L) {
-                return endMs - startMs;
-            }
-            else {
-                return System.currentTimeMillis() - startMs;
-            }
-        }
-	}
-
-    @Managed
-    public int getNumWaitingBuckets() {
-        return numScheduledBuckets.get() - numExecutingBuckets.get();
-    }
-
-    @Managed
-    public int getNumExecutingBuckets() {
-        return numExecutingBuckets.get();
-    }
-
-    @MonitorableManaged(monitored = true)
-    public Map<String,Object> getBucketStats()
-    {
-        HashMap<String,Object> statsMap = new HashMap<String,Object>();
-
-        int numBuckets = buckets.size();
-
-        int minQueueSize = -1;
-        int maxQueueSize = -1;
-        int totalQueueSize = 0;
-        double avgQueueSize = 0.0;
-        long totalLastWaitTime = 0L;
-        double avgLastWaitTime = 0.0;
-        for ( KeyedBucket b : buckets.values() ) {
-
-            int queueSize = b.queue.size();
-            if(queueSize > maxQueueSize)
-                maxQueueSize = queueSize;
-            if(minQueueSize == -1 || queueSize < minQueueSize)
-                minQueueSize = queueSize;
-
-            totalQueueSize += queueSize;
-            totalLastWaitTime += b.getLastWaitTime();
-        }
-        
-        if(numBuckets > 0) {
-            avgQueueSize = (double)totalQueueSize / (double)numBuckets;
-            avgLastWaitTime = (double)totalLastWaitTime / (double)numBuckets;
-        }
-        else {
-            minQueueSize = 0;
-            maxQueueSize = 0;
-        }
-
-        statsMap.put("numBuckets", numBuckets);
-        statsMap.put("numWaitingBuckets", getNumWaitingBuckets());
-        statsMap.put("numExecutingBuckets", getNumExecutingBuckets());
-
-        statsMap.put("minQueueSize", minQueueSize);
-        statsMap.put("maxQueueSize", maxQueueSize);
-        statsMap.put("avgQueueSize", avgQueueSize);
-        statsMap.put("avgLastWaitTime", avgLastWaitTime);
-
-        return statsMap;
-    }
+	private class Lane extends Thread
+	{
+		private final int index;
+		private final ArrayBlockingQueue<QueuedTask> queue;
+		// Sampled when a task is submitted, and measured when it starts, in microseconds
+		private final ValueStats depths = new ValueStats();
+		private final ValueStats waitTimes = new ValueStats();
+		private final AtomicLong tasksExecuted = new AtomicLong(0);
+		private volatile boolean busy = false;
+
+		private Lane(int index, int queueSize)
+		{
+			super("KeyedExecutor-lane-" + index);
+			this.index = index;
+			this.queue = new ArrayBlockingQueue<QueuedTask>(queueSize);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run()
+		{
+			List<QueuedTask> batch = new ArrayList<QueuedTask>(DRAIN_BATCH_SIZE);
+			long sliceStart = System.nanoTime();
+			while (true) {
+				try {
+					if (queue.isEmpty()) {
+						busy = false;
+						batch.add(queue.take());
+						sliceStart = System.nanoTime();
+					}
+					busy = true;
+					queue.drainTo(batch, DRAIN_BATCH_SIZE - batch.size());
+				}
+				catch (InterruptedException e) {
+					log.info("%s interrupted, exiting", getName());
+					return;
+				}
+
+				for (QueuedTask task : batch) {
+					waitTimes.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - task.queuedNanos));
+					try {
+						task.runnable.run();
+					}
+					catch (RuntimeException e) {
+						log.error(e, "task failed in %s", getName());
+					}
+					tasksExecuted.incrementAndGet();
+				}
+				batch.clear();
+
+				if (timeSliceNanos > 0 && System.nanoTime() - sliceStart >= timeSliceNanos) {
+					Thread.yield();
+					sliceStart = System.nanoTime();
+				}
+			}
+		}
+	}
 
 	@Managed
-	public String[] getBucketQueueSizes()
+	public int getNumLanes()
 	{
-		List<String> list = new ArrayList<String>();
-		for ( KeyedBucket b : buckets.values() ) {
-			if ( b.guard.get() ) {
-				list.add(String.format("%s %d (active)", b.key, b.queue.size()));
+		return lanes.length;
+	}
+
+	@MonitorableManaged(monitored = true)
+	public int getNumBusyLanes()
+	{
+		int busy = 0;
+		for (Lane lane : lanes) {
+			if (lane.busy) {
+				busy++;
 			}
-            else {
-                list.add(String.format("%s %d", b.key, b.queue.size()));
-            }
 		}
-		return list.toArray(new String[list.size()]) ;
+		return busy;
+	}
+
+	@MonitorableManaged(monitored = true)
+	public int getQueuedTasks()
+	{
+		int queued = 0;
+		for (Lane lane : lanes) {
+			queued += lane.queue.size();
+		}
+		return queued;
+	}
+
+	@MonitorableManaged(description = "Depth of the fullest lane queue", monitored = true)
+	public int getMaxQueueDepth()
+	{
+		int max = 0;
+		for (Lane lane : lanes) {
+			max = Math.max(max, lane.queue.size());
+		}
+		return max;
+	}
+
+	@MonitorableManaged(description = "Highest 99th percentile of the lane queue depths, over the last minute", monitored = true)
+	public long getQueueDepth99thPercentile()
+	{
+		long max = -1;
+		for (Lane lane : lanes) {
+			max = Math.max(max, lane.depths.getQuantile(0.99));
+		}
+		return max;
+	}
+
+	@MonitorableManaged(description = "Highest 99th percentile of the time tasks waited in a lane queue, in microseconds, over the last minute", monitored = true)
+	public long getWaitTime99thPercentile()
+	{
+		long max = -1;
+		for (Lane lane : lanes) {
+			max = Math.max(max, lane.waitTimes.getQuantile(0.99));
+		}
+		return max;
+	}
+
+	@MonitorableManaged(description = "Average time tasks waited in a lane queue, in microseconds, over the last minute", monitored = true)
+	public long getWaitTimeAverage()
+	{
+		double total = 0.0;
+		int count = 0;
+		for (Lane lane : lanes) {
+			double average = lane.waitTimes.getAverage();
+			if (average >= 0) {
+				total += average;
+				count++;
+			}
+		}
+		return count == 0 ? -1 : (long) (total / count);
+	}
+
+	@MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
+	public long getTasksExecuted()
+	{
+		long executed = 0;
+		for (Lane lane : lanes) {
+			executed += lane.tasksExecuted.get();
+		}
+		return executed;
+	}
+
+	@MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
+	public long getTasksDropped()
+	{
+		return tasksDropped.get();
+	}
+
+	/**
+	 * @return for each lane, its queue depth and the distributions of its depth and wait time over the last minute
+	 */
+	@Managed
+	public String[] getLaneStats()
+	{
+		String[] stats = new String[lanes.length];
+		for (Lane lane : lanes) {
+			stats[lane.index] = String.format("%s depth %d (median %d, p99 %d, max %d) wait us (median %d, p99 %d, max %d)%s",
+			                                  lane.getName(),
+			                                  lane.queue.size(),
+			                                  lane.depths.getQuantile(0.5),
+			                                  lane.depths.getQuantile(0.99),
+			                                  lane.depths.getMax(),
+			                                  lane.waitTimes.getQuantile(0.5),
+			                                  lane.waitTimes.getQuantile(0.99),
+			                                  lane.waitTimes.getMax(),
+			                                  lane.busy ? " (active)" : "");
+		}
+		return stats;
 	}
 }
@@ -18,10 +18,27 @@ package com.ning.arecibo.aggregator.concurrent.guice;
 
 import org.skife.config.Config;
 import org.skife.config.Default;
+import org.skife.config.TimeSpan;
 
 public interface KeyedExecutorConfig
 {
+    // Number of lanes, each one a thread
     @Config("arecibo.events.aggregator.keyedExecutorNumThreads")
     @Default("100")
     int getNumThreads();
+
+    // Capacity of the queue of each lane
+    @Config("arecibo.events.aggregator.keyedExecutorQueueSize")
+    @Default("10000")
+    int getQueueSize();
+
+    // BLOCK or DROP, when a lane queue is full
+    @Config("arecibo.events.aggregator.keyedExecutorOverflowPolicy")
+    @Default("BLOCK")
+    String getOverflowPolicy();
+
+    // How long a lane runs tasks before yielding, 0 to never yield
+    @Config("arecibo.events.aggregator.keyedExecutorTimeSlice")
+    @Default("0ms")
+    TimeSpan getTimeSlice();
 }
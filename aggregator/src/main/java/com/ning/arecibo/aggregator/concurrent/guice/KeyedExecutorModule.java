@@ -16,7 +16,6 @@
 
 package com.ning.arecibo.aggregator.concurrent.guice;
 
-import java.util.concurrent.ExecutorService;
 import org.skife.config.ConfigurationObjectFactory;
 import org.weakref.jmx.guice.ExportBuilder;
 import org.weakref.jmx.guice.MBeanModule;
@@ -31,7 +30,6 @@ public class KeyedExecutorModule extends AbstractModule
         KeyedExecutorConfig config = new ConfigurationObjectFactory(System.getProperties()).build(KeyedExecutorConfig.class);
 
         bind(KeyedExecutorConfig.class).toInstance(config);
-        bind(ExecutorService.class).annotatedWith(KeyedExecutorSupport.class).toProvider(KeyedExecutorThreadPoolProvider.class).asEagerSingleton();
 	    bind(KeyedExecutor.class).asEagerSingleton();
 
 	    ExportBuilder builder = MBeanModule.newExporter(binder());
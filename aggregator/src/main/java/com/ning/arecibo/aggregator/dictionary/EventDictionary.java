@@ -32,6 +32,7 @@ import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import com.espertech.esper.client.EPAdministrator;
 import com.espertech.esper.client.EventType;
 import com.google.inject.Inject;
@@ -44,6 +45,8 @@ import com.ning.arecibo.eventlogger.Event;
 import com.ning.arecibo.util.Logger;
 import com.ning.arecibo.util.UUIDUtil;
 import com.ning.arecibo.util.jmx.MonitorableManaged;
+import com.ning.arecibo.util.jmx.MonitoringType;
+import com.ning.arecibo.util.metrics.StripedCounter;
 
 /**
  * A dictionary of Auto-generated Events
@@ -59,6 +62,11 @@ public class EventDictionary implements EventPreProcessorListener
 	final CopyOnWriteArrayList<EventRegistrationListener> listeners = new CopyOnWriteArrayList<EventRegistrationListener>();
 	private final String[] namespaces;
 
+    // Direct-mapped cache of the event shapes already registered, indexed by fingerprint (see registerEvent)
+    static final int SHAPE_CACHE_SIZE = 4096;
+    private final AtomicReferenceArray<EventShape> shapeCache = new AtomicReferenceArray<EventShape>(SHAPE_CACHE_SIZE);
+    private final StripedCounter shapeCacheHits = new StripedCounter();
+    private final StripedCounter shapeCacheMisses = new StripedCounter();
 
 
     // TODO: this list needs to be defined by different plugins, and used on a per-plugin basis
@@ -93,6 +101,18 @@ public class EventDictionary implements EventPreProcessorListener
 		return outputEvents.size();
 	}
 
+    @MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
+    public long getShapeCacheHits()
+    {
+        return shapeCacheHits.sum();
+    }
+
+    @MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
+    public long getShapeCacheMisses()
+    {
+        return shapeCacheMisses.sum();
+    }
+
 	public void reset()
 	{
 		inputEvents.clear();
@@ -100,6 +120,9 @@ public class EventDictionary implements EventPreProcessorListener
         inputEventRegistrationsValid.clear();
         outputEvents.clear();
 		listeners.clear();
+        for (int i = 0; i < SHAPE_CACHE_SIZE; i++) {
+            shapeCache.set(i, null);
+        }
 	}
 
 	public String[] getNamespaces()
@@ -125,7 +148,26 @@ public class EventDictionary implements EventPreProcessorListener
 	// use this method if you only have the input event
     public String registerEvent(Event event, Map<String, Object> attributes)
 	{
-        return registerEventOrDefinition(event,attributes,null);
+        if (event == null || attributes == null) {
+            return registerEventOrDefinition(event,attributes,null);
+        }
+
+        // Almost all events have a shape seen before: skip the signature and the esper name checks for those
+        int fingerprint = EventShape.fingerprint(event.getEventType(), attributes);
+        int slot = fingerprint & (SHAPE_CACHE_SIZE - 1);
+        EventShape shape = shapeCache.get(slot);
+        if (shape != null && shape.matches(fingerprint, event.getEventType(), attributes) && inputEventRegistrationsValid.contains(shape.escapedEventType)) {
+            shapeCacheHits.increment();
+            return shape.escapedEventType;
+        }
+
+        shapeCacheMisses.increment();
+        String escapedEventType = registerEventOrDefinition(event,attributes,null);
+        if (escapedEventType != null) {
+            // The signature of the shape is now registered, as well as the stream of its type
+            shapeCache.set(slot, new EventShape(fingerprint, event.getEventType(), escapedEventType, attributes));
+        }
+        return escapedEventType;
 	}
 
 	// use this method if you already have an EventDefinition
@@ -505,4 +547,75 @@ public class EventDictionary implements EventPreProcessorListener
 		set.addAll(outputEvents.keySet());
 		return set ;
 	}
+
+    /**
+     * The event type and the attribute names and classes of an event whose signature is registered
+     */
+    static final class EventShape
+    {
+        private final int fingerprint;
+        private final String eventType;
+        private final String escapedEventType;
+        private final Map<String, Class> types;
+
+        private EventShape(int fingerprint, String eventType, String escapedEventType, Map<String, Object> attributes)
+        {
+            this.fingerprint = fingerprint;
+            this.eventType = eventType;
+            this.escapedEventType = escapedEventType;
+            this.types = new HashMap<String, Class>();
+            for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+                if (entry.getValue() != null) {
+                    types.put(entry.getKey(), entry.getValue().getClass());
+                }
+            }
+        }
+
+        /**
+         * Hash of the event type and of the attribute names and classes, independent of the
+         * iteration order of the attributes, null ones excluded as in the registration
+         */
+        static int fingerprint(String eventType, Map<String, Object> attributes)
+        {
+            int sum = 0;
+            int count = 0;
+            for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+                Object value = entry.getValue();
+                if (value != null) {
+                    sum += mix(31 * entry.getKey().hashCode() + value.getClass().hashCode());
+                    count++;
+                }
+            }
+            return mix(31 * (31 * eventType.hashCode() + sum) + count);
+        }
+
+        // The finalizer of MurmurHash3
+        private static int mix(int h)
+        {
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return h;
+        }
+
+        private boolean matches(int fingerprint, String eventType, Map<String, Object> attributes)
+        {
+            if (fingerprint != this.fingerprint || !eventType.equals(this.eventType)) {
+                return false;
+            }
+            int count = 0;
+            for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+                Object value = entry.getValue();
+                if (value != null) {
+                    if (types.get(entry.getKey()) != value.getClass()) {
+                        return false;
+                    }
+                    count++;
+                }
+            }
+            return count == types.size();
+        }
+    }
 }
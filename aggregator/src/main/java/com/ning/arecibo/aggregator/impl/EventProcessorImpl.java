@@ -39,9 +39,9 @@ import com.ning.arecibo.event.TransformableEvent;
 import com.ning.arecibo.event.receiver.EventProcessor;
 import com.ning.arecibo.eventlogger.Event;
 import com.ning.arecibo.util.Logger;
-import com.ning.arecibo.util.esper.MiniEsperEngine;
 import com.ning.arecibo.util.jmx.MonitorableManaged;
 import com.ning.arecibo.util.jmx.MonitoringType;
+import com.ning.arecibo.util.metrics.ValueStats;
 
 public class EventProcessorImpl implements EventProcessor
 {
@@ -54,7 +54,7 @@ public class EventProcessorImpl implements EventProcessor
 	private final ConcurrentHashMap<String, List<EventProcessorListener>> listeners = new ConcurrentHashMap<String, List<EventProcessorListener>>();
     private final EsperStatsManager esperStatsManager;
 	private final KeyedExecutor executor;
-	private final MiniEsperEngine<Long> stats;
+	private final ValueStats stats = new ValueStats();
 	private final AtomicBoolean isSuspending = new AtomicBoolean(false);
 
 	@Inject
@@ -67,7 +67,6 @@ public class EventProcessorImpl implements EventProcessor
 		this.namespaces = namespaces;
 		this.executor = exe;
         this.esperStatsManager = esperStatsManager;
-		this.stats = new MiniEsperEngine<Long>(EventProcessorImpl.class.getName(), Long.class);
 
         // add the main event dictionary as a pre-processor
         addEventPreProcessorListener("EventDictionary",dictionary);
@@ -171,7 +170,7 @@ public class EventProcessorImpl implements EventProcessor
 							log.error(e1);
 						}
 						finally {
-							stats.send(System.currentTimeMillis() - startT) ;
+							stats.record(System.currentTimeMillis() - startT) ;
 						}
 
 					}
@@ -198,7 +197,7 @@ public class EventProcessorImpl implements EventProcessor
 						log.error(e);
 					}
 					finally {
-						stats.send(System.currentTimeMillis() - startT) ;
+						stats.record(System.currentTimeMillis() - startT) ;
 					}
 				}
 			});
@@ -247,13 +246,13 @@ public class EventProcessorImpl implements EventProcessor
     @MonitorableManaged(monitored = true)
     public long getMaxEventProcessTime()
     {
-        return stats.getMax().longValue() ;
+        return stats.getMax() ;
     }
 
     @MonitorableManaged(monitored = true)
     public long getMinEventProcessTime()
     {
-        return stats.getMin().longValue() ;
+        return stats.getMin() ;
     }
 
     @MonitorableManaged(monitored = true)
@@ -261,4 +260,10 @@ public class EventProcessorImpl implements EventProcessor
     {
         return (long) stats.getAverage();
     }
+
+    @MonitorableManaged(monitored = true)
+    public long getEventProcessTime99thPercentile()
+    {
+        return stats.getQuantile(0.99);
+    }
 }
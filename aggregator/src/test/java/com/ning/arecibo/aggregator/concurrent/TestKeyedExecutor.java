@@ -0,0 +1,207 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.aggregator.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestKeyedExecutor
+{
+    @Test(groups = "fast")
+    public void testTasksOfAKeyRunInOrder() throws Exception
+    {
+        final KeyedExecutor executor = new KeyedExecutor(4, 1000, KeyedExecutor.OverflowPolicy.BLOCK, 0, TimeUnit.MILLISECONDS);
+        final int numKeys = 50;
+        final int tasksPerKey = 200;
+        final CountDownLatch done = new CountDownLatch(numKeys * tasksPerKey);
+        final Map<String, List<Integer>> ranByKey = new HashMap<String, List<Integer>>();
+        final Map<String, Set<String>> threadsByKey = new HashMap<String, Set<String>>();
+        for (int k = 0; k < numKeys; k++) {
+            ranByKey.put("key" + k, Collections.synchronizedList(new ArrayList<Integer>()));
+            threadsByKey.put("key" + k, Collections.synchronizedSet(new HashSet<String>()));
+        }
+
+        // interleave the keys, so that every lane holds the tasks of several keys
+        for (int i = 0; i < tasksPerKey; i++) {
+            for (int k = 0; k < numKeys; k++) {
+                final String key = "key" + k;
+                final int seq = i;
+                Assert.assertTrue(executor.execute(key, new Runnable()
+                {
+                    public void run()
+                    {
+                        ranByKey.get(key).add(seq);
+                        threadsByKey.get(key).add(Thread.currentThread().getName());
+                        done.countDown();
+                    }
+                }));
+            }
+        }
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        final Set<String> lanesUsed = new HashSet<String>();
+        for (int k = 0; k < numKeys; k++) {
+            final List<Integer> ran = ranByKey.get("key" + k);
+            Assert.assertEquals(ran.size(), tasksPerKey);
+            for (int i = 0; i < tasksPerKey; i++) {
+                Assert.assertEquals(ran.get(i).intValue(), i, "key" + k);
+            }
+            Assert.assertEquals(threadsByKey.get("key" + k).size(), 1);
+            lanesUsed.addAll(threadsByKey.get("key" + k));
+        }
+        Assert.assertEquals(lanesUsed.size(), 4);
+        Assert.assertEquals(executor.getTasksExecuted(), (long) numKeys * tasksPerKey);
+        Assert.assertEquals(executor.getTasksDropped(), 0L);
+    }
+
+    @Test(groups = "fast")
+    public void testFullLaneDropsTasks() throws Exception
+    {
+        final KeyedExecutor executor = new KeyedExecutor(1, 2, KeyedExecutor.OverflowPolicy.DROP, 0, TimeUnit.MILLISECONDS);
+        final CountDownLatch release = blockLane(executor);
+
+        final CountDownLatch ran = new CountDownLatch(2);
+        Assert.assertTrue(executor.execute("a", countDown(ran)));
+        Assert.assertTrue(executor.execute("b", countDown(ran)));
+        for (int i = 0; i < 3; i++) {
+            Assert.assertFalse(executor.execute("c", countDown(ran)));
+        }
+        Assert.assertEquals(executor.getTasksDropped(), 3L);
+        Assert.assertEquals(executor.getQueuedTasks(), 2);
+
+        release.countDown();
+        Assert.assertTrue(ran.await(5, TimeUnit.SECONDS));
+        waitForExecuted(executor, 3);
+        Assert.assertEquals(executor.getTasksDropped(), 3L);
+    }
+
+    @Test(groups = "fast")
+    public void testFullLaneBlocksTheProducer() throws Exception
+    {
+        final KeyedExecutor executor = new KeyedExecutor(1, 1, KeyedExecutor.OverflowPolicy.BLOCK, 0, TimeUnit.MILLISECONDS);
+        final CountDownLatch release = blockLane(executor);
+
+        final CountDownLatch ran = new CountDownLatch(2);
+        Assert.assertTrue(executor.execute("a", countDown(ran)));
+
+        final AtomicBoolean accepted = new AtomicBoolean(false);
+        final Thread producer = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                accepted.set(executor.execute("b", countDown(ran)));
+            }
+        });
+        producer.start();
+
+        producer.join(200);
+        Assert.assertTrue(producer.isAlive());
+        Assert.assertEquals(producer.getState(), Thread.State.WAITING);
+
+        release.countDown();
+        producer.join(5000);
+        Assert.assertFalse(producer.isAlive());
+        Assert.assertTrue(accepted.get());
+        Assert.assertTrue(ran.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(executor.getTasksDropped(), 0L);
+    }
+
+    @Test(groups = "fast")
+    public void testLaneSubmittingToAFullLaneDoesNotBlock() throws Exception
+    {
+        final KeyedExecutor executor = new KeyedExecutor(1, 1, KeyedExecutor.OverflowPolicy.BLOCK, 0, TimeUnit.MILLISECONDS);
+        final CountDownLatch fedBack = new CountDownLatch(1);
+        final AtomicBoolean accepted = new AtomicBoolean(true);
+
+        executor.execute("a", new Runnable()
+        {
+            public void run()
+            {
+                // the first one fills the queue, the second one would wait on this very lane
+                executor.execute("a", new Runnable()
+                {
+                    public void run()
+                    {
+                    }
+                });
+                accepted.set(executor.execute("a", new Runnable()
+                {
+                    public void run()
+                    {
+                    }
+                }));
+                fedBack.countDown();
+            }
+        });
+
+        Assert.assertTrue(fedBack.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse(accepted.get());
+        Assert.assertEquals(executor.getTasksDropped(), 1L);
+    }
+
+    // returns the latch that lets the only lane go, once it is busy with a task
+    private static CountDownLatch blockLane(final KeyedExecutor executor) throws InterruptedException
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute("blocker", new Runnable()
+        {
+            public void run()
+            {
+                started.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    private static Runnable countDown(final CountDownLatch latch)
+    {
+        return new Runnable()
+        {
+            public void run()
+            {
+                latch.countDown();
+            }
+        };
+    }
+
+    private static void waitForExecuted(final KeyedExecutor executor, final long expected) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (executor.getTasksExecuted() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(executor.getTasksExecuted(), expected);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.aggregator.dictionary;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import com.ning.arecibo.aggregator.listeners.EventRegistrationListener;
+import com.ning.arecibo.event.MapEvent;
+
+public class TestEventDictionary
+{
+    private static final String NAMESPACE = "TestEventDictionary";
+    // the Esper engine of the namespace outlives the dictionaries: an event type per test
+    private static final AtomicInteger eventTypes = new AtomicInteger();
+
+    @Test(groups = "fast")
+    public void testKnownShapesHitTheCache()
+    {
+        final EventDictionary dictionary = new EventDictionary(new String[]{NAMESPACE});
+        final String eventType = newEventType();
+
+        Assert.assertEquals(register(dictionary, eventType, "requests", 1L, "hostName", "web1"), eventType);
+        Assert.assertEquals(dictionary.getShapeCacheMisses(), 1L);
+        Assert.assertEquals(dictionary.getShapeCacheHits(), 0L);
+
+        Assert.assertEquals(register(dictionary, eventType, "requests", 2L, "hostName", "web2"), eventType);
+        Assert.assertEquals(dictionary.getShapeCacheHits(), 1L);
+
+        // null values are not part of the shape, as they are not registered
+        Assert.assertEquals(register(dictionary, eventType, "requests", 3L, "hostName", "web3", "missing", null), eventType);
+        Assert.assertEquals(dictionary.getShapeCacheHits(), 2L);
+        Assert.assertEquals(dictionary.getShapeCacheMisses(), 1L);
+    }
+
+    @Test(groups = "fast")
+    public void testAttributeOrderDoesNotMatter()
+    {
+        final EventDictionary dictionary = new EventDictionary(new String[]{NAMESPACE});
+        final String eventType = newEventType();
+
+        final Map<String, Object> attributes = attributes("a", 1L, "b", "x", "c", 2.5);
+        final Map<String, Object> reversed = attributes("c", 3.5, "b", "y", "a", 2L);
+        Assert.assertEquals(EventDictionary.EventShape.fingerprint(eventType, attributes), EventDictionary.EventShape.fingerprint(eventType, reversed));
+
+        register(dictionary, eventType, attributes);
+        register(dictionary, eventType, reversed);
+        Assert.assertEquals(dictionary.getShapeCacheMisses(), 1L);
+        Assert.assertEquals(dictionary.getShapeCacheHits(), 1L);
+    }
+
+    @Test(groups = "fast")
+    public void testOtherShapesMiss()
+    {
+        final EventDictionary dictionary = new EventDictionary(new String[]{NAMESPACE});
+        final String eventType = newEventType();
+        final String otherEventType = newEventType();
+
+        register(dictionary, eventType, "a", 1L);
+        // another class
+        register(dictionary, eventType, "a", 1.0);
+        // another attribute
+        register(dictionary, eventType, "a", 1L, "b", "x");
+        // another event type
+        register(dictionary, otherEventType, "a", 1L);
+        Assert.assertEquals(dictionary.getShapeCacheMisses(), 4L);
+        Assert.assertEquals(dictionary.getShapeCacheHits(), 0L);
+        Assert.assertTrue(dictionary.getInputEventDefinition(eventType).getProperties().containsKey("b"));
+        Assert.assertNotNull(dictionary.getInputEventDefinition(otherEventType));
+    }
+
+    @Test(groups = "fast")
+    public void testFingerprintCollisions()
+    {
+        final EventDictionary dictionary = new EventDictionary(new String[]{NAMESPACE});
+        final String eventType = newEventType();
+
+        // names with the same hash code: two single attribute shapes with the same fingerprint
+        final String first = "Aa";
+        final String second = "BB";
+        Assert.assertEquals(EventDictionary.EventShape.fingerprint(eventType, Collections.<String, Object>singletonMap(first, 1L)),
+                            EventDictionary.EventShape.fingerprint(eventType, Collections.<String, Object>singletonMap(second, 1L)));
+
+        register(dictionary, eventType, first, 1L);
+        // not mistaken for the cached shape: its attribute gets registered
+        register(dictionary, eventType, second, 1L);
+        Assert.assertEquals(dictionary.getShapeCacheMisses(), 2L);
+        Assert.assertEquals(dictionary.getShapeCacheHits(), 0L);
+        Assert.assertTrue(dictionary.getInputEventDefinition(eventType).getProperties().containsKey(first));
+        Assert.assertTrue(dictionary.getInputEventDefinition(eventType).getProperties().containsKey(second));
+
+        // they share a slot: the last one registered is the one cached
+        register(dictionary, eventType, second, 2L);
+        register(dictionary, eventType, first, 2L);
+        Assert.assertEquals(dictionary.getShapeCacheHits(), 1L);
+        Assert.assertEquals(dictionary.getShapeCacheMisses(), 3L);
+    }
+
+    @Test(groups = "fast")
+    public void testInvalidatedRegistrationsBypassTheCache()
+    {
+        final EventDictionary dictionary = new EventDictionary(new String[]{NAMESPACE});
+        final String eventType = newEventType();
+        final AtomicInteger registrations = new AtomicInteger();
+        dictionary.addEventRegistrationListener(new EventRegistrationListener()
+        {
+            public void eventRegistered(final EventDefinition def)
+            {
+                registrations.incrementAndGet();
+            }
+
+            public void eventUnRegistered(final EventDefinition def)
+            {
+            }
+        });
+
+        register(dictionary, eventType, "a", 1L);
+        register(dictionary, eventType, "a", 2L);
+        Assert.assertEquals(registrations.get(), 1);
+        Assert.assertEquals(dictionary.getShapeCacheHits(), 1L);
+
+        // e.g. once its statements are gone: the next event of the shape registers it again
+        dictionary.invalidateInputEventStreams(eventType);
+        Assert.assertNull(dictionary.getInputEventDefintion(eventType));
+        register(dictionary, eventType, "a", 3L);
+        Assert.assertEquals(registrations.get(), 2);
+        Assert.assertEquals(dictionary.getShapeCacheMisses(), 2L);
+        Assert.assertNotNull(dictionary.getInputEventDefintion(eventType));
+
+        register(dictionary, eventType, "a", 4L);
+        Assert.assertEquals(registrations.get(), 2);
+        Assert.assertEquals(dictionary.getShapeCacheHits(), 2L);
+
+        // and so does a reset
+        dictionary.reset();
+        register(dictionary, eventType, "a", 5L);
+        Assert.assertEquals(dictionary.getShapeCacheMisses(), 3L);
+        Assert.assertNotNull(dictionary.getInputEventDefintion(eventType));
+    }
+
+    private static String newEventType()
+    {
+        return "ShapeCacheEvent" + eventTypes.incrementAndGet();
+    }
+
+    private static String register(final EventDictionary dictionary, final String eventType, final Object... namesAndValues)
+    {
+        return register(dictionary, eventType, attributes(namesAndValues));
+    }
+
+    private static String register(final EventDictionary dictionary, final String eventType, final Map<String, Object> attributes)
+    {
+        return dictionary.registerEvent(new MapEvent(System.currentTimeMillis(), eventType, new UUID(0, 1), attributes), attributes);
+    }
+
+    private static Map<String, Object> attributes(final Object... namesAndValues)
+    {
+        final Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            attributes.put((String) namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return attributes;
+    }
+}
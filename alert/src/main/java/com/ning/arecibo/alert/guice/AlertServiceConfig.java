@@ -50,6 +50,11 @@ public interface AlertServiceConfig
     @Default("25")
     int getEventHandlerNumThreads();
 
+    @Config("arecibo.alert.thresholdEvaluation")
+    @Description("How events are checked against thresholds: ESPER (a statement per threshold), INDEX (in-process index) or COMPARE (both, Esper driving the alerts)")
+    @Default("ESPER")
+    String getThresholdEvaluation();
+
     @Config("arecibo.alert.smtpHost")
     @Default("smtp")
     String getSMTPHost();
@@ -89,6 +89,7 @@ public class AlertServiceModule extends AbstractModule
         final ExportBuilder builder = MBeanModule.newExporter(binder());
 
         builder.export(AsynchronousEventHandler.class).as("arecibo.alert:name=AsynchronousEventHandler");
+        builder.export(AlertManager.class).as("arecibo.alert:name=AlertManager");
 
         for (final String guiceModule : alertServiceConfig.getExtraGuiceModules().split(",")) {
             if (guiceModule.isEmpty()) {
@@ -78,10 +78,17 @@ public class AlertEventProcessor implements EventProcessor
         public void run()
         {
             String eventType = evt.getEventType();
+            if (eventType.startsWith(AlertManager.THRESHOLD_INDEX_EVENT_PREFIX)) {
+                alertManager.handleIndexedEvent(evt);
+
+                eventsHandled.getAndIncrement();
+                return;
+            }
+
             int endIndex = eventType.lastIndexOf('_');
             if (endIndex >= 0) {
                 Long configId = Long.parseLong(eventType.substring(endIndex + 1));
-                alertManager.handleThresholdEvent(configId, evt);
+                alertManager.handleEsperThresholdEvent(configId, evt);
 
                 eventsHandled.getAndIncrement();
             }
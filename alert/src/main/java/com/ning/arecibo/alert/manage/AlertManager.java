@@ -22,16 +22,28 @@ import com.ning.arecibo.alert.guice.AlertServiceConfig;
 import com.ning.arecibo.alert.objects.AlertIncidentLog;
 import com.ning.arecibo.alert.objects.ThresholdConfig;
 import com.ning.arecibo.client.AggregatorService;
+import com.ning.arecibo.event.BatchedEvent;
+import com.ning.arecibo.event.MapEvent;
 import com.ning.arecibo.eventlogger.Event;
 import com.ning.arecibo.lang.Aggregator;
 import com.ning.arecibo.lang.ExternalPublisher;
 import com.ning.arecibo.util.Logger;
+import com.ning.arecibo.util.jmx.MonitorableManaged;
+import com.ning.arecibo.util.jmx.MonitoringType;
+import org.weakref.jmx.Managed;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.ning.arecibo.alert.client.AlertActivationStatus.ERROR;
 import static com.ning.arecibo.alert.client.AlertActivationStatus.NORMAL;
@@ -51,6 +63,9 @@ import static com.ning.arecibo.alert.manage.AlertFreshnessStatus.STALE;
 
 /*
 ** This class is synchronized on a per config basis
+**
+** Depending on the ThresholdEvaluationMode, events are checked against a threshold by an Esper statement of its own,
+** by the in-process ThresholdIndex, fed by one forwarding statement per monitored event type, or by both.
  */
 
 public class AlertManager
@@ -61,11 +76,27 @@ public class AlertManager
     private final static int THREAD_COUNT = 50;
     private final static String AGGREGATOR_NAMESPACE = "dynamic";
 
+    // Prefix of the events forwarded to the ThresholdIndex, followed by the monitored event type
+    public final static String THRESHOLD_INDEX_EVENT_PREFIX = "ThresholdIndex_";
+
     private final AggregatorService aggService;
     private final ScheduledThreadPoolExecutor executor;
     private final ConcurrentHashMap<Long, ThresholdConfig> thresholdConfigs;
     private final ConcurrentHashMap<Long, ConcurrentHashMap<String, ScheduledFuture<?>>> schedFutures;
     private final AlertServiceConfig alertServiceConfig;
+    private final ThresholdEvaluationMode evaluationMode;
+
+    private final ThresholdIndex thresholdIndex = new ThresholdIndex();
+    // Guarded by itself: the forwarding aggregator of each monitored event type, and the event type of each indexed config
+    private final Map<String, _Forwarder> forwarders = new HashMap<String, _Forwarder>();
+    private final Map<Long, String> indexedEventTypes = new HashMap<Long, String>();
+
+    private final AtomicLong indexedEventsEvaluated = new AtomicLong(0L);
+    private final AtomicLong indexMatches = new AtomicLong(0L);
+    private final AtomicLong esperMatches = new AtomicLong(0L);
+    // Only kept in COMPARE mode
+    private final ConcurrentHashMap<Long, AtomicLong> indexMatchesByConfig = new ConcurrentHashMap<Long, AtomicLong>();
+    private final ConcurrentHashMap<Long, AtomicLong> esperMatchesByConfig = new ConcurrentHashMap<Long, AtomicLong>();
 
     @Inject
     public AlertManager(AggregatorService aggService,
@@ -76,6 +107,7 @@ public class AlertManager
         this.executor = new ScheduledThreadPoolExecutor(THREAD_COUNT);
         this.thresholdConfigs = new ConcurrentHashMap<Long, ThresholdConfig>();
         this.schedFutures = new ConcurrentHashMap<Long, ConcurrentHashMap<String, ScheduledFuture<?>>>();
+        this.evaluationMode = ThresholdEvaluationMode.valueOf(alertServiceConfig.getThresholdEvaluation().trim().toUpperCase());
     }
 
     public Set<Long> getActiveThresholdConfigIds()
@@ -91,19 +123,14 @@ public class AlertManager
 
             this.thresholdConfigs.put(config.getId(), config);
 
-            Aggregator agg = getAggregator(config);
-
-            try {
-                aggService.getAggregatorService().register(agg,
-                    2 * alertServiceConfig.getConfigUpdateInterval().getPeriod(),
-                    alertServiceConfig.getConfigUpdateInterval().getUnit());
-                return true;
+            boolean registered = true;
+            if (evaluationMode != ThresholdEvaluationMode.INDEX) {
+                registered = registerAggregator(getAggregator(config));
             }
-            catch (Exception ex) {
-                // could be RemoteException, ServiceNotAvailableException, or any RuntimeException
-                log.warn(ex);
-                return false;
+            if (evaluationMode != ThresholdEvaluationMode.ESPER) {
+                registered = indexThresholdConfig(config) && registered;
             }
+            return registered;
         }
     }
 
@@ -113,19 +140,14 @@ public class AlertManager
         synchronized (config) {
             log.info("ReRegistering thresholdConfig: " + config.getId());
 
-            Aggregator agg = getAggregator(config);
-
-            try {
-                aggService.getAggregatorService().register(agg,
-                    2 * alertServiceConfig.getConfigUpdateInterval().getPeriod(),
-                    alertServiceConfig.getConfigUpdateInterval().getUnit());
-                return true;
+            boolean registered = true;
+            if (evaluationMode != ThresholdEvaluationMode.INDEX) {
+                registered = registerAggregator(getAggregator(config));
             }
-            catch (Exception ex) {
-                // could be RemoteException, ServiceNotAvailableException, or any RuntimeException
-                log.warn(ex);
-                return false;
+            if (evaluationMode != ThresholdEvaluationMode.ESPER) {
+                registered = indexThresholdConfig(config) && registered;
             }
+            return registered;
         }
     }
 
@@ -137,16 +159,45 @@ public class AlertManager
 
             unscheduleAllFreshnessMonitors(config);
             thresholdConfigs.remove(config.getId());
+            indexMatchesByConfig.remove(config.getId());
+            esperMatchesByConfig.remove(config.getId());
 
-            try {
-                aggService.getAggregatorService().unregister(AGGREGATOR_NAMESPACE + "/" + config.getAggregatorName());
-                return true;
+            boolean unregistered = true;
+            if (evaluationMode != ThresholdEvaluationMode.INDEX) {
+                unregistered = unregisterAggregator(config.getAggregatorName());
             }
-            catch (Exception ex) {
-                // could be RemoteException, ServiceNotAvailableException, or any RuntimeException
-                log.warn(ex);
-                return false;
+            if (evaluationMode != ThresholdEvaluationMode.ESPER) {
+                unregistered = unindexThresholdConfig(config) && unregistered;
             }
+            return unregistered;
+        }
+    }
+
+    private boolean registerAggregator(Aggregator agg)
+    {
+        try {
+            aggService.getAggregatorService().register(agg,
+                2 * alertServiceConfig.getConfigUpdateInterval().getPeriod(),
+                alertServiceConfig.getConfigUpdateInterval().getUnit());
+            return true;
+        }
+        catch (Exception ex) {
+            // could be RemoteException, ServiceNotAvailableException, or any RuntimeException
+            log.warn(ex);
+            return false;
+        }
+    }
+
+    private boolean unregisterAggregator(String name)
+    {
+        try {
+            aggService.getAggregatorService().unregister(AGGREGATOR_NAMESPACE + "/" + name);
+            return true;
+        }
+        catch (Exception ex) {
+            // could be RemoteException, ServiceNotAvailableException, or any RuntimeException
+            log.warn(ex);
+            return false;
         }
     }
 
@@ -164,6 +215,79 @@ public class AlertManager
         return agg;
     }
 
+    private Aggregator getForwardingAggregator(String monitoredEventType)
+    {
+        String name = THRESHOLD_INDEX_EVENT_PREFIX + monitoredEventType;
+
+        Aggregator agg = new Aggregator(AGGREGATOR_NAMESPACE, name, monitoredEventType)
+            .setStatement(" select * from " + monitoredEventType)
+            .setOutputEvent(name)
+            .addOutputProcessor(new ExternalPublisher("AreciboAlertService"));
+
+        return agg;
+    }
+
+    /*
+    ** Add (or refresh) a config in the index, and make sure the events it monitors are forwarded.
+    ** Every config re-registers on each config update, so the lease of a forwarder is only renewed
+    ** once per half update interval, rather than once per config.
+     */
+    private boolean indexThresholdConfig(ThresholdConfig config)
+    {
+        thresholdIndex.add(config);
+
+        String eventType = config.getMonitoredEventType();
+        if (eventType == null) {
+            return true;
+        }
+
+        synchronized (forwarders) {
+            String previousEventType = indexedEventTypes.put(config.getId(), eventType);
+            _Forwarder forwarder = forwarders.get(eventType);
+            if (forwarder == null) {
+                forwarder = new _Forwarder();
+                forwarders.put(eventType, forwarder);
+            }
+            if (!eventType.equals(previousEventType)) {
+                forwarder.numConfigs++;
+                if (previousEventType != null) {
+                    releaseForwarder(previousEventType);
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            long renewalIntervalMs = alertServiceConfig.getConfigUpdateInterval().getMillis() / 2;
+            if (now - forwarder.lastRegistrationMs < renewalIntervalMs) {
+                return true;
+            }
+            if (!registerAggregator(getForwardingAggregator(eventType))) {
+                return false;
+            }
+            forwarder.lastRegistrationMs = now;
+            return true;
+        }
+    }
+
+    private boolean unindexThresholdConfig(ThresholdConfig config)
+    {
+        thresholdIndex.remove(config);
+
+        synchronized (forwarders) {
+            String eventType = indexedEventTypes.remove(config.getId());
+            return eventType == null || releaseForwarder(eventType);
+        }
+    }
+
+    private boolean releaseForwarder(String eventType)
+    {
+        _Forwarder forwarder = forwarders.get(eventType);
+        if (forwarder == null || --forwarder.numConfigs > 0) {
+            return true;
+        }
+        forwarders.remove(eventType);
+        return unregisterAggregator(THRESHOLD_INDEX_EVENT_PREFIX + eventType);
+    }
+
     private void addScheduledFuture(ScheduledFuture<?> schedFuture, ThresholdConfig config, String contextIdentifier)
     {
         ConcurrentHashMap<String, ScheduledFuture<?>> configSchedFutures = schedFutures.get(config.getId());
@@ -251,6 +375,74 @@ public class AlertManager
         config.updateAlertActivationStatus(status, true);
     }
 
+    /*
+    ** Handle the output of the Esper statement of a threshold config
+     */
+    public void handleEsperThresholdEvent(Long configId, Event evt)
+    {
+        if (evaluationMode == ThresholdEvaluationMode.COMPARE) {
+            int numEvents = evt instanceof BatchedEvent ? ((BatchedEvent) evt).getEvents().size() : 1;
+            esperMatches.addAndGet(numEvents);
+            countMatches(esperMatchesByConfig, configId, numEvents);
+        }
+
+        handleThresholdEvent(configId, evt);
+    }
+
+    /*
+    ** Handle an event forwarded to the threshold index: each config whose threshold it crosses handles
+    ** the event its own Esper statement would have output (in COMPARE mode, the matches are only counted)
+     */
+    public void handleIndexedEvent(Event evt)
+    {
+        String monitoredEventType = evt.getEventType().substring(THRESHOLD_INDEX_EVENT_PREFIX.length());
+
+        List<Event> events;
+        if (evt instanceof BatchedEvent) {
+            events = ((BatchedEvent) evt).getEvents();
+        }
+        else {
+            events = Collections.singletonList(evt);
+        }
+
+        for (Event subEvt : events) {
+            if (!(subEvt instanceof MapEvent)) {
+                continue;
+            }
+            MapEvent mapEvt = (MapEvent) subEvt;
+            indexedEventsEvaluated.getAndIncrement();
+
+            for (Long configId : thresholdIndex.findCrossedThresholds(monitoredEventType, mapEvt.getMap())) {
+                ThresholdConfig config = thresholdConfigs.get(configId);
+                if (config == null) {
+                    continue;
+                }
+                indexMatches.getAndIncrement();
+
+                if (evaluationMode == ThresholdEvaluationMode.COMPARE) {
+                    countMatches(indexMatchesByConfig, configId, 1);
+                }
+                else {
+                    MapEvent thresholdEvt = new MapEvent(mapEvt.getTimestamp(), config.getAggregatorName(), mapEvt.getSourceUUID(), mapEvt.getMap());
+                    handleThresholdEvent(configId, new BatchedEvent(thresholdEvt));
+                }
+            }
+        }
+    }
+
+    private void countMatches(ConcurrentHashMap<Long, AtomicLong> matchesByConfig, Long configId, int numMatches)
+    {
+        AtomicLong matches = matchesByConfig.get(configId);
+        if (matches == null) {
+            AtomicLong newMatches = new AtomicLong(0L);
+            matches = matchesByConfig.putIfAbsent(configId, newMatches);
+            if (matches == null) {
+                matches = newMatches;
+            }
+        }
+        matches.addAndGet(numMatches);
+    }
+
     public void handleThresholdEvent(Long configId, Event evt)
     {
 
@@ -274,9 +466,9 @@ public class AlertManager
                 status = NORMAL;
             }
 
-            if (config.getAlertFreshnessStatus(evt) == STALE) {
+            if (config.getAlertFreshnessStatus(contextIdentifier) == STALE) {
 
-                if (!config.checkMinThresholdSamplesReached(evt)) {
+                if (!config.checkMinThresholdSamplesReached(evt, contextIdentifier)) {
                     log.info("Not transitioning state for thresholdConfig, insufficient samples received: " + contextIdentifier);
                     return;
                 }
@@ -327,6 +519,71 @@ public class AlertManager
         }
     }
 
+    @Managed
+    public String getThresholdEvaluationMode()
+    {
+        return evaluationMode.toString();
+    }
+
+    @Managed
+    public int getNumIndexedThresholdConfigs()
+    {
+        return thresholdIndex.size();
+    }
+
+    @Managed
+    public int getNumThresholdIndexForwarders()
+    {
+        synchronized (forwarders) {
+            return forwarders.size();
+        }
+    }
+
+    @MonitorableManaged(monitored = true, monitoringType = {MonitoringType.COUNTER, MonitoringType.RATE})
+    public long getIndexedEventsEvaluated()
+    {
+        return indexedEventsEvaluated.get();
+    }
+
+    @MonitorableManaged(monitored = true, monitoringType = {MonitoringType.COUNTER, MonitoringType.RATE})
+    public long getThresholdIndexMatches()
+    {
+        return indexMatches.get();
+    }
+
+    @MonitorableManaged(monitored = true, monitoringType = {MonitoringType.COUNTER, MonitoringType.RATE})
+    public long getEsperThresholdMatches()
+    {
+        return esperMatches.get();
+    }
+
+    /*
+    ** In COMPARE mode, the configs for which the Esper statements and the index found a different number of
+    ** matches.  The two paths see each event at slightly different times, so a config can show up here
+    ** briefly; a difference that keeps growing is a real one.
+     */
+    @Managed
+    public String[] getThresholdEvaluationMismatches()
+    {
+        List<String> mismatches = new ArrayList<String>();
+        for (Long configId : thresholdConfigs.keySet()) {
+            AtomicLong esper = esperMatchesByConfig.get(configId);
+            AtomicLong index = indexMatchesByConfig.get(configId);
+            long esperCount = esper == null ? 0L : esper.get();
+            long indexCount = index == null ? 0L : index.get();
+            if (esperCount != indexCount) {
+                mismatches.add(String.format("%d: esper=%d index=%d", configId, esperCount, indexCount));
+            }
+        }
+        return mismatches.toArray(new String[mismatches.size()]);
+    }
+
+    private static class _Forwarder
+    {
+        private int numConfigs = 0;
+        private long lastRegistrationMs = 0L;
+    }
+
     private class _FreshnessMonitor implements Runnable
     {
         private final AlertManager alertManager;
@@ -14,25 +14,17 @@
  * under the License.
  */
 
-package com.ning.arecibo.aggregator.concurrent.guice;
+package com.ning.arecibo.alert.manage;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import com.google.inject.Inject;
-import com.google.inject.Provider;
-
-public class KeyedExecutorThreadPoolProvider implements Provider<ExecutorService>
+/**
+ * How the events of monitored event types are checked against the thresholds.
+ */
+public enum ThresholdEvaluationMode
 {
-    private final KeyedExecutorConfig config;
-
-    @Inject
-    public KeyedExecutorThreadPoolProvider(KeyedExecutorConfig config)
-    {
-        this.config = config;
-    }
-
-    public ExecutorService get()
-	{
-		return Executors.newFixedThreadPool(config.getNumThreads());
-	}
-}
\ No newline at end of file
+    // One Esper statement per threshold config, in the aggregator
+    ESPER,
+    // One forwarding statement per monitored event type, checked against the in-process ThresholdIndex
+    INDEX,
+    // Both: the Esper statements drive the alerts, the index only counts its matches for comparison
+    COMPARE
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.alert.manage;
+
+import com.ning.arecibo.alert.objects.ThresholdConfig;
+import com.ning.arecibo.alert.objects.ThresholdQualifyingAttr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the threshold configs crossed by an event, without an Esper statement per threshold.
+ * <p/>
+ * Thresholds are grouped by monitored event type and attribute.  For an attribute, the max
+ * thresholds are sorted by value, so that the ones a value reaches (attr >= max) are a prefix
+ * found by binary search; likewise the min thresholds (attr <= min) are a suffix.  Checking
+ * an event against all the thresholds of an attribute is O(log n), plus the matches, whose
+ * qualifying attributes (attr = 'value') are then compared.
+ * <p/>
+ * Lookups use an immutable snapshot, rebuilt by the first lookup after a threshold changed.
+ */
+public class ThresholdIndex
+{
+    private final ConcurrentHashMap<Long, Threshold> thresholds = new ConcurrentHashMap<Long, Threshold>();
+    private final Object rebuildLock = new Object();
+
+    private volatile boolean stale = false;
+    private volatile Map<String, Map<String, AttributeThresholds>> snapshot = Collections.emptyMap();
+
+    /**
+     * Add a config, or update it if already indexed
+     *
+     * @param config the threshold config
+     */
+    public void add(ThresholdConfig config)
+    {
+        if (config.getMonitoredEventType() == null || config.getMonitoredAttributeType() == null ||
+            (config.getMinThresholdValue() == null && config.getMaxThresholdValue() == null)) {
+            remove(config);
+            return;
+        }
+
+        Threshold threshold = new Threshold(config);
+        Threshold previous = thresholds.put(threshold.configId, threshold);
+        if (!threshold.equals(previous)) {
+            stale = true;
+        }
+    }
+
+    public void remove(ThresholdConfig config)
+    {
+        if (thresholds.remove(config.getId()) != null) {
+            stale = true;
+        }
+    }
+
+    public int size()
+    {
+        return thresholds.size();
+    }
+
+    /**
+     * @param eventType  the type of the event
+     * @param attributes the attributes of the event
+     * @return the ids of the configs whose thresholds the event crosses
+     */
+    public List<Long> findCrossedThresholds(String eventType, Map<String, Object> attributes)
+    {
+        Map<String, AttributeThresholds> byAttribute = getSnapshot().get(eventType);
+        if (byAttribute == null) {
+            return Collections.emptyList();
+        }
+
+        List<Long> crossed = null;
+        for (Map.Entry<String, AttributeThresholds> entry : byAttribute.entrySet()) {
+            Object value = attributes.get(entry.getKey());
+            if (value instanceof Number) {
+                crossed = entry.getValue().findCrossed(((Number) value).doubleValue(), attributes, crossed);
+            }
+        }
+
+        if (crossed == null) {
+            return Collections.emptyList();
+        }
+        return crossed;
+    }
+
+    private Map<String, Map<String, AttributeThresholds>> getSnapshot()
+    {
+        if (stale) {
+            synchronized (rebuildLock) {
+                if (stale) {
+                    // Cleared before reading the thresholds, so that a change made during the rebuild triggers another one
+                    stale = false;
+                    snapshot = build();
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private Map<String, Map<String, AttributeThresholds>> build()
+    {
+        Map<String, Map<String, List<Threshold>>> grouped = new HashMap<String, Map<String, List<Threshold>>>();
+        for (Threshold threshold : thresholds.values()) {
+            Map<String, List<Threshold>> byAttribute = grouped.get(threshold.eventType);
+            if (byAttribute == null) {
+                byAttribute = new HashMap<String, List<Threshold>>();
+                grouped.put(threshold.eventType, byAttribute);
+            }
+            List<Threshold> list = byAttribute.get(threshold.attribute);
+            if (list == null) {
+                list = new ArrayList<Threshold>();
+                byAttribute.put(threshold.attribute, list);
+            }
+            list.add(threshold);
+        }
+
+        Map<String, Map<String, AttributeThresholds>> result = new HashMap<String, Map<String, AttributeThresholds>>();
+        for (Map.Entry<String, Map<String, List<Threshold>>> byEventType : grouped.entrySet()) {
+            Map<String, AttributeThresholds> byAttribute = new HashMap<String, AttributeThresholds>();
+            for (Map.Entry<String, List<Threshold>> entry : byEventType.getValue().entrySet()) {
+                byAttribute.put(entry.getKey(), new AttributeThresholds(entry.getValue()));
+            }
+            result.put(byEventType.getKey(), byAttribute);
+        }
+        return result;
+    }
+
+    /**
+     * What the index needs of a config, copied so that a change can be detected
+     */
+    private static final class Threshold
+    {
+        private final long configId;
+        private final String eventType;
+        private final String attribute;
+        private final Double min;
+        private final Double max;
+        private final String[] qualifyingTypes;
+        private final String[] qualifyingValues;
+
+        Threshold(ThresholdConfig config)
+        {
+            this.configId = config.getId();
+            this.eventType = config.getMonitoredEventType();
+            this.attribute = config.getMonitoredAttributeType();
+            this.min = config.getMinThresholdValue();
+            this.max = config.getMaxThresholdValue();
+
+            List<String> types = new ArrayList<String>();
+            List<String> values = new ArrayList<String>();
+            for (ThresholdQualifyingAttr qualifyingAttribute : config.getThresholdQualifyingAttrs()) {
+                types.add(qualifyingAttribute.getAttributeType());
+                values.add(qualifyingAttribute.getAttributeValue());
+            }
+            this.qualifyingTypes = types.toArray(new String[types.size()]);
+            this.qualifyingValues = values.toArray(new String[values.size()]);
+        }
+
+        boolean isQualified(Map<String, Object> attributes)
+        {
+            for (int i = 0; i < qualifyingTypes.length; i++) {
+                Object value = attributes.get(qualifyingTypes[i]);
+                if (value == null || !value.toString().equals(qualifyingValues[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Threshold)) {
+                return false;
+            }
+            Threshold other = (Threshold) o;
+            return configId == other.configId &&
+                eventType.equals(other.eventType) &&
+                attribute.equals(other.attribute) &&
+                (min == null ? other.min == null : min.equals(other.min)) &&
+                (max == null ? other.max == null : max.equals(other.max)) &&
+                Arrays.equals(qualifyingTypes, other.qualifyingTypes) &&
+                Arrays.equals(qualifyingValues, other.qualifyingValues);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (int) (configId ^ (configId >>> 32));
+        }
+    }
+
+    /**
+     * The thresholds on one attribute of an event type
+     */
+    private static final class AttributeThresholds
+    {
+        // Sorted by ascending threshold value
+        private final Threshold[] maxThresholds;
+        private final double[] maxValues;
+        private final Threshold[] minThresholds;
+        private final double[] minValues;
+
+        AttributeThresholds(List<Threshold> thresholds)
+        {
+            List<Threshold> withMax = new ArrayList<Threshold>();
+            List<Threshold> withMin = new ArrayList<Threshold>();
+            for (Threshold threshold : thresholds) {
+                if (threshold.max != null) {
+                    withMax.add(threshold);
+                }
+                if (threshold.min != null) {
+                    withMin.add(threshold);
+                }
+            }
+
+            maxThresholds = withMax.toArray(new Threshold[withMax.size()]);
+            Arrays.sort(maxThresholds, new Comparator<Threshold>()
+            {
+                public int compare(Threshold a, Threshold b)
+                {
+                    return Double.compare(a.max, b.max);
+                }
+            });
+            maxValues = new double[maxThresholds.length];
+            for (int i = 0; i < maxThresholds.length; i++) {
+                maxValues[i] = maxThresholds[i].max;
+            }
+
+            minThresholds = withMin.toArray(new Threshold[withMin.size()]);
+            Arrays.sort(minThresholds, new Comparator<Threshold>()
+            {
+                public int compare(Threshold a, Threshold b)
+                {
+                    return Double.compare(a.min, b.min);
+                }
+            });
+            minValues = new double[minThresholds.length];
+            for (int i = 0; i < minThresholds.length; i++) {
+                minValues[i] = minThresholds[i].min;
+            }
+        }
+
+        List<Long> findCrossed(double value, Map<String, Object> attributes, List<Long> crossed)
+        {
+            // Never crosses a threshold, as in Esper
+            if (Double.isNaN(value)) {
+                return crossed;
+            }
+
+            // value >= max: the thresholds before the first max above the value
+            int end = firstAbove(maxValues, value);
+            for (int i = 0; i < end; i++) {
+                crossed = addIfQualified(maxThresholds[i], attributes, crossed);
+            }
+
+            // value <= min: the thresholds from the first min not below the value
+            for (int i = firstNotBelow(minValues, value); i < minThresholds.length; i++) {
+                Threshold threshold = minThresholds[i];
+                if (threshold.max != null && value >= threshold.max) {
+                    // Already matched on its max
+                    continue;
+                }
+                crossed = addIfQualified(threshold, attributes, crossed);
+            }
+
+            return crossed;
+        }
+
+        private static List<Long> addIfQualified(Threshold threshold, Map<String, Object> attributes, List<Long> crossed)
+        {
+            if (!threshold.isQualified(attributes)) {
+                return crossed;
+            }
+            if (crossed == null) {
+                crossed = new ArrayList<Long>();
+            }
+            crossed.add(threshold.configId);
+            return crossed;
+        }
+
+        private static int firstAbove(double[] values, double value)
+        {
+            int low = 0;
+            int high = values.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[mid] <= value) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private static int firstNotBelow(double[] values, double value)
+        {
+            int low = 0;
+            int high = values.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[mid] < value) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -41,10 +41,10 @@ import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.ning.arecibo.alert.client.AlertActivationStatus.ERROR;
 import static com.ning.arecibo.alert.client.AlertActivationStatus.NORMAL;
@@ -92,6 +92,8 @@ public class ThresholdConfig extends ConfDataThresholdConfig implements Stateful
     private volatile String lastContextAttributeSignature = null;
     private volatile LastConfigAction lastConfigAction;
     private volatile ManagingKeyActionType managingAction = ManagingKeyActionType.NO_ACTION;
+    // built on first use, reset when the context attributes change
+    private volatile _ContextKeyExtractor contextKeyExtractor = null;
 
     public ThresholdConfig()
     {
@@ -336,12 +338,20 @@ public class ThresholdConfig extends ConfDataThresholdConfig implements Stateful
         if (!this.contextAttributes.contains(contextAttribute)) {
             this.contextAttributes.add(contextAttribute);
         }
+        this.contextKeyExtractor = null;
     }
 
     // no synchronization needed
     public void removeThresholdContextAttr(ThresholdContextAttr contextAttribute)
     {
         this.contextAttributes.remove(contextAttribute);
+        this.contextKeyExtractor = null;
+    }
+
+    // no synchronization needed, called when a linked context attribute is updated in place
+    public void contextAttributesChanged()
+    {
+        this.contextKeyExtractor = null;
     }
 
     // no synchronization needed
@@ -373,7 +383,13 @@ public class ThresholdConfig extends ConfDataThresholdConfig implements Stateful
     // no synchronization needed
     public AlertFreshnessStatus getAlertFreshnessStatus(Event evt)
     {
-        _ActiveThresholdContext atc = this.activeThresholdContexts.get(getContextIdentifier(evt));
+        return getAlertFreshnessStatus(getContextIdentifier(evt));
+    }
+
+    // no synchronization needed
+    public AlertFreshnessStatus getAlertFreshnessStatus(String contextIdentifier)
+    {
+        _ActiveThresholdContext atc = this.activeThresholdContexts.get(contextIdentifier);
         AlertFreshnessStatus status = (atc == null) ? null : atc.getAlertFreshnessStatus();
 
         // we only store the fresh ones for threshold alerts
@@ -412,7 +428,7 @@ public class ThresholdConfig extends ConfDataThresholdConfig implements Stateful
             if (atc != null) {
                 atc.setAlertFreshnessStatus(null);
                 atc.setLastEventValue(null);
-                atc.setSampleWindowQueue(null);
+                atc.setSampleWindow(null);
 
                 if (atc.isEmpty()) {
                     this.activeThresholdContexts.remove(contextIdentifier);
@@ -481,51 +497,38 @@ public class ThresholdConfig extends ConfDataThresholdConfig implements Stateful
         return getAggregatorQuery(true);
     }
 
-    public synchronized boolean checkMinThresholdSamplesReached(Event evt)
+    public boolean checkMinThresholdSamplesReached(Event evt)
     {
+        return checkMinThresholdSamplesReached(evt, getContextIdentifier(evt));
+    }
 
-        if (this.minThresholdSamples == null || this.minThresholdSamples <= 1 ||
-            this.maxSampleWindowMs == null || this.maxSampleWindowMs <= 0) {
+    /*
+    ** No config level synchronization needed: the sample window of a context synchronizes on itself
+     */
+    public boolean checkMinThresholdSamplesReached(Event evt, String contextIdentifier)
+    {
+        final Long localMinThresholdSamples = this.minThresholdSamples;
+        final Long localMaxSampleWindowMs = this.maxSampleWindowMs;
+        if (localMinThresholdSamples == null || localMinThresholdSamples <= 1 ||
+            localMaxSampleWindowMs == null || localMaxSampleWindowMs <= 0) {
             return true;
         }
 
-        String contextIdentifier = getContextIdentifier(evt);
-
         _ActiveThresholdContext atc = this.activeThresholdContexts.get(contextIdentifier);
-
-        ConcurrentLinkedQueue<Event> queue = (atc == null) ? null : atc.getSampleWindowQueue();
-        if (queue == null) {
-            // start a new queue
-            queue = new ConcurrentLinkedQueue<Event>();
-
+        if (atc == null) {
+            final _ActiveThresholdContext newAtc = new _ActiveThresholdContext(contextIdentifier);
+            atc = this.activeThresholdContexts.putIfAbsent(contextIdentifier, newAtc);
             if (atc == null) {
-                atc = new _ActiveThresholdContext(contextIdentifier);
-                this.activeThresholdContexts.put(contextIdentifier, atc);
+                atc = newAtc;
             }
-            atc.setSampleWindowQueue(queue);
         }
-        queue.add(evt);
-
-        // remove all entries older than the sample window
-        // assume the events are in chronological sorted order! stop when find one within sample window
-        long sampleWindowStartMillis = System.currentTimeMillis() - this.maxSampleWindowMs;
-        while (queue.size() > 0) {
 
-            Event headEvt = queue.peek();
-            if (headEvt == null || headEvt.getTimestamp() > sampleWindowStartMillis) {
-                break;
-            }
+        // only the most recent minThresholdSamples timestamps are needed to tell whether there are enough of them
+        final int capacity = (int) Math.min(localMinThresholdSamples, Integer.MAX_VALUE);
+        final long sampleWindowStartMillis = System.currentTimeMillis() - localMaxSampleWindowMs;
+        final int samplesInWindow = atc.getOrCreateSampleWindow().add(evt.getTimestamp(), sampleWindowStartMillis, capacity);
 
-            // remove it
-            queue.poll();
-        }
-
-        if (queue.size() >= this.minThresholdSamples) {
-            return true;
-        }
-        else {
-            return false;
-        }
+        return samplesInWindow >= localMinThresholdSamples;
     }
 
     // no synchronization needed
@@ -560,7 +563,8 @@ public class ThresholdConfig extends ConfDataThresholdConfig implements Stateful
         return this.monitoredEventType;
     }
 
-    public synchronized String getContextIdentifier(Event evt)
+    // no synchronization needed
+    public String getContextIdentifier(Event evt)
     {
 
         final Long localId = this.id;
@@ -570,49 +574,13 @@ public class ThresholdConfig extends ConfDataThresholdConfig implements Stateful
             return null;
         }
 
-        final String idString = localId.toString();
-
-        if (contextAttributes.size() == 0) {
-            return idString;
-        }
-
-        Map<String, Object> evtMap = getEventMap(evt);
-        if (evtMap == null) {
-            return idString;
-        }
-
-        ArrayList<String> matchList = null;
-
-        for (ThresholdContextAttr contextAttribute : contextAttributes) {
-            if (evtMap.containsKey(contextAttribute.getAttributeType())) {
-                if (matchList == null) {
-                    matchList = new ArrayList<String>();
-                }
-                matchList.add(contextAttribute.getAttributeType());
-            }
-        }
-
-        // if no contextAttrs, then return the default
-        if (matchList == null || matchList.size() == 0) {
-            return idString;
+        _ContextKeyExtractor extractor = this.contextKeyExtractor;
+        if (extractor == null || !extractor.getId().equals(localId)) {
+            extractor = new _ContextKeyExtractor(localId, contextAttributes);
+            this.contextKeyExtractor = extractor;
         }
 
-        // make sure we have guaranteed ordering
-        Collections.sort(matchList);
-
-        StringBuilder sb = new StringBuilder();
-        sb.append(idString);
-
-        for (String matchKey : matchList) {
-            Object value = evtMap.get(matchKey);
-
-            sb.append("&");
-            sb.append(matchKey);
-            sb.append("=");
-            sb.append(value.toString());
-        }
-
-        return sb.toString();
+        return extractor.getContextIdentifier(getEventMap(evt));
     }
 
 
@@ -1171,7 +1139,7 @@ public class ThresholdConfig extends ConfDataThresholdConfig implements Stateful
         private volatile AlertActivationStatus alertActivationStatus;
         private volatile Object lastEventValue;
         private volatile Long currentActivationStatusStartTime;
-        private volatile ConcurrentLinkedQueue<Event> sampleWindowQueue;
+        private volatile _SampleWindow sampleWindow;
         private volatile AlertIncidentLog aiLog;
 
         public _ActiveThresholdContext(String contextIdentifier)
@@ -1224,14 +1192,17 @@ public class ThresholdConfig extends ConfDataThresholdConfig implements Stateful
             this.lastEventValue = lastEventValue;
         }
 
-        public ConcurrentLinkedQueue<Event> getSampleWindowQueue()
+        public synchronized _SampleWindow getOrCreateSampleWindow()
         {
-            return this.sampleWindowQueue;
+            if (this.sampleWindow == null) {
+                this.sampleWindow = new _SampleWindow();
+            }
+            return this.sampleWindow;
         }
 
-        public void setSampleWindowQueue(ConcurrentLinkedQueue<Event> sampleWindowQueue)
+        public synchronized void setSampleWindow(_SampleWindow sampleWindow)
         {
-            this.sampleWindowQueue = sampleWindowQueue;
+            this.sampleWindow = sampleWindow;
         }
 
         public AlertIncidentLog getAlertIncidentLog()
@@ -1250,7 +1221,7 @@ public class ThresholdConfig extends ConfDataThresholdConfig implements Stateful
                 this.alertActivationStatus == null &&
                 this.lastEventValue == null &&
                 this.currentActivationStatusStartTime == null &&
-                this.sampleWindowQueue == null &&
+                this.sampleWindow == null &&
                 this.aiLog == null) {
                 return true;
             }
@@ -1259,4 +1230,159 @@ public class ThresholdConfig extends ConfDataThresholdConfig implements Stateful
             }
         }
     }
+
+    /*
+    ** Builds the context identifier of an event: the config id, followed by the value of each of the
+    ** context attributes present in the event, in attribute name order.
+    ** The identifiers are kept in a tree of the attribute values, so that the events of a known context
+    ** get the same identifier back without building it again.
+     */
+    private static class _ContextKeyExtractor
+    {
+        // beyond that many contexts, the identifiers of the new ones are built every time
+        private static final int MAX_CACHED_KEYS = 10000;
+        private static final Object MISSING_VALUE = new Object();
+
+        private final Long id;
+        private final String idString;
+        private final String[] attributeTypes;
+        private final _KeyNode root = new _KeyNode();
+        private final AtomicInteger numCachedKeys = new AtomicInteger(0);
+
+        public _ContextKeyExtractor(Long id, Set<ThresholdContextAttr> contextAttributes)
+        {
+            this.id = id;
+            this.idString = id.toString();
+
+            ArrayList<String> types = new ArrayList<String>();
+            for (ThresholdContextAttr contextAttribute : contextAttributes) {
+                types.add(contextAttribute.getAttributeType());
+            }
+            Collections.sort(types);
+            this.attributeTypes = types.toArray(new String[types.size()]);
+        }
+
+        public Long getId()
+        {
+            return this.id;
+        }
+
+        public String getContextIdentifier(Map<String, Object> evtMap)
+        {
+            if (attributeTypes.length == 0 || evtMap == null) {
+                return idString;
+            }
+
+            _KeyNode node = root;
+            for (String attributeType : attributeTypes) {
+                Object value = evtMap.get(attributeType);
+                node = node.getChild(value == null ? MISSING_VALUE : value, numCachedKeys.get() < MAX_CACHED_KEYS);
+                if (node == null) {
+                    return buildContextIdentifier(evtMap);
+                }
+            }
+
+            String key = node.key;
+            if (key == null) {
+                key = buildContextIdentifier(evtMap);
+                node.key = key;
+                numCachedKeys.incrementAndGet();
+            }
+            return key;
+        }
+
+        private String buildContextIdentifier(Map<String, Object> evtMap)
+        {
+            StringBuilder sb = null;
+            for (String attributeType : attributeTypes) {
+                Object value = evtMap.get(attributeType);
+                if (value == null) {
+                    continue;
+                }
+                if (sb == null) {
+                    sb = new StringBuilder(idString);
+                }
+                sb.append('&').append(attributeType).append('=').append(value.toString());
+            }
+
+            // if no context attributes in the event, then return the default
+            return sb == null ? idString : sb.toString();
+        }
+    }
+
+    private static class _KeyNode
+    {
+        private final ConcurrentHashMap<Object, _KeyNode> children = new ConcurrentHashMap<Object, _KeyNode>();
+        private volatile String key;
+
+        // returns null if the child is unknown and create is false
+        public _KeyNode getChild(Object value, boolean create)
+        {
+            _KeyNode child = children.get(value);
+            if (child == null && create) {
+                _KeyNode newChild = new _KeyNode();
+                child = children.putIfAbsent(value, newChild);
+                if (child == null) {
+                    child = newChild;
+                }
+            }
+            return child;
+        }
+    }
+
+    /*
+    ** Ring buffer of the timestamps of the most recent samples of a context, oldest first.
+    ** Like the events they come from, the timestamps are assumed to be in chronological order.
+     */
+    private static class _SampleWindow
+    {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private long[] timestamps = new long[0];
+        private int head = 0;
+        private int size = 0;
+
+        /*
+        ** Add a sample, then drop the samples not newer than the start of the window
+        **
+        ** capacity: the number of most recent samples to keep
+        ** returns the number of samples kept
+         */
+        public synchronized int add(long timestamp, long windowStartMillis, int capacity)
+        {
+            if (size == timestamps.length || timestamps.length > capacity) {
+                resize(Math.min(capacity, Math.max(INITIAL_CAPACITY, 2 * timestamps.length)));
+            }
+            if (size == timestamps.length) {
+                // full, at capacity: drop the oldest
+                head = (head + 1) % timestamps.length;
+                size--;
+            }
+            timestamps[(head + size) % timestamps.length] = timestamp;
+            size++;
+
+            while (size > 0 && timestamps[head] <= windowStartMillis) {
+                head = (head + 1) % timestamps.length;
+                size--;
+            }
+
+            return size;
+        }
+
+        // keeps the most recent samples which fit
+        private void resize(int newCapacity)
+        {
+            if (newCapacity == timestamps.length) {
+                return;
+            }
+            long[] newTimestamps = new long[newCapacity];
+            int kept = Math.min(size, newCapacity);
+            for (int i = 0; i < kept; i++) {
+                newTimestamps[i] = timestamps[(head + size - kept + i) % timestamps.length];
+            }
+            timestamps = newTimestamps;
+            head = 0;
+            size = kept;
+        }
+    }
 }
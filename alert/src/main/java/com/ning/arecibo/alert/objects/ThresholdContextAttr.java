@@ -69,6 +69,12 @@ public class ThresholdContextAttr extends ConfDataThresholdContextAttr implement
 
     @Override
     public synchronized boolean update(ConfigManager confManager,AlertManager alertManager, ConfigurableObject newConfig) {
-        return ConfigurableObjectUtils.updateConfigurableObject((ConfDataObject) this, (ConfDataObject) newConfig);
+        boolean updated = ConfigurableObjectUtils.updateConfigurableObject((ConfDataObject) this, (ConfDataObject) newConfig);
+
+        // the attribute type is part of the context identifiers of the threshold config
+        if (this.thresholdConfig != null)
+            this.thresholdConfig.contextAttributesChanged();
+
+        return updated;
     }
 }
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.alert.manage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import org.skife.config.ConfigurationObjectFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import com.ning.arecibo.alert.guice.AlertServiceConfig;
+import com.ning.arecibo.alert.objects.ThresholdConfig;
+import com.ning.arecibo.alert.objects.ThresholdQualifyingAttr;
+import com.ning.arecibo.event.MapEvent;
+
+public class TestThresholdIndex
+{
+    private static final String EVENT_TYPE = "CPU";
+    private static final String ATTRIBUTE = "load";
+
+    @Test(groups = "fast")
+    public void testMaxThresholdIncludesItsValue()
+    {
+        final ThresholdIndex index = new ThresholdIndex();
+        index.add(config(1L, null, 10.0));
+
+        Assert.assertEquals(index.findCrossedThresholds(EVENT_TYPE, event(10.0)), ids(1L));
+        Assert.assertEquals(index.findCrossedThresholds(EVENT_TYPE, event(1e9)), ids(1L));
+        Assert.assertEquals(index.findCrossedThresholds(EVENT_TYPE, event(9.999)), ids());
+        // an integral attribute compares the same way
+        Assert.assertEquals(index.findCrossedThresholds(EVENT_TYPE, event(10)), ids(1L));
+    }
+
+    @Test(groups = "fast")
+    public void testMinThresholdIncludesItsValue()
+    {
+        final ThresholdIndex index = new ThresholdIndex();
+        index.add(config(1L, 5.0, null));
+
+        Assert.assertEquals(index.findCrossedThresholds(EVENT_TYPE, event(5.0)), ids(1L));
+        Assert.assertEquals(index.findCrossedThresholds(EVENT_TYPE, event(-1.0)), ids(1L));
+        Assert.assertEquals(index.findCrossedThresholds(EVENT_TYPE, event(5.001)), ids());
+    }
+
+    @Test(groups = "fast")
+    public void testMinAndMaxThresholds()
+    {
+        final ThresholdIndex index = new ThresholdIndex();
+        index.add(config(1L, 5.0, 10.0));
+        // overlapping bounds: every value crosses one of them, and the config is reported once
+        index.add(config(2L, 10.0, 5.0));
+
+        Assert.assertEquals(sorted(index.findCrossedThresholds(EVENT_TYPE, event(5.0))), ids(1L, 2L));
+        Assert.assertEquals(index.findCrossedThresholds(EVENT_TYPE, event(7.0)), ids(2L));
+        Assert.assertEquals(sorted(index.findCrossedThresholds(EVENT_TYPE, event(10.0))), ids(1L, 2L));
+        Assert.assertEquals(sorted(index.findCrossedThresholds(EVENT_TYPE, event(11.0))), ids(1L, 2L));
+        Assert.assertEquals(index.findCrossedThresholds(EVENT_TYPE, event(Double.NaN)), ids());
+    }
+
+    @Test(groups = "fast")
+    public void testManyThresholdsOnAnAttribute()
+    {
+        final ThresholdIndex index = new ThresholdIndex();
+        for (long i = 1; i <= 100; i++) {
+            index.add(config(i, null, (double) i));
+            index.add(config(1000 + i, (double) i, null));
+        }
+
+        final List<Long> crossed = sorted(index.findCrossedThresholds(EVENT_TYPE, event(40.0)));
+        final List<Long> expected = new ArrayList<Long>();
+        for (long i = 1; i <= 40; i++) {
+            expected.add(i);
+        }
+        for (long i = 40; i <= 100; i++) {
+            expected.add(1000 + i);
+        }
+        Assert.assertEquals(crossed, expected);
+    }
+
+    @Test(groups = "fast")
+    public void testQualifyingAttributesFilterTheEvents()
+    {
+        final ThresholdIndex index = new ThresholdIndex();
+        final ThresholdConfig web = config(1L, null, 10.0);
+        web.addThresholdQualifyingAttr(qualifier(1L, "hostName", "web1"));
+        web.addThresholdQualifyingAttr(qualifier(2L, "port", "8080"));
+        index.add(web);
+        index.add(config(2L, null, 10.0));
+
+        final Map<String, Object> attributes = event(20.0);
+        Assert.assertEquals(index.findCrossedThresholds(EVENT_TYPE, attributes), ids(2L));
+
+        attributes.put("hostName", "web1");
+        Assert.assertEquals(index.findCrossedThresholds(EVENT_TYPE, attributes), ids(2L));
+
+        // compared as strings
+        attributes.put("port", 8080);
+        Assert.assertEquals(sorted(index.findCrossedThresholds(EVENT_TYPE, attributes)), ids(1L, 2L));
+
+        attributes.put("hostName", "web2");
+        Assert.assertEquals(index.findCrossedThresholds(EVENT_TYPE, attributes), ids(2L));
+    }
+
+    @Test(groups = "fast")
+    public void testUpdatesAreSeenByTheNextLookup()
+    {
+        final ThresholdIndex index = new ThresholdIndex();
+        final ThresholdConfig config = config(1L, null, 10.0);
+        index.add(config);
+        Assert.assertEquals(index.findCrossedThresholds(EVENT_TYPE, event(15.0)), ids(1L));
+
+        config.setMaxThresholdValue(20.0);
+        index.add(config);
+        Assert.assertEquals(index.findCrossedThresholds(EVENT_TYPE, event(15.0)), ids());
+
+        // other event types and attributes, and non numeric values, never cross it
+        Assert.assertEquals(index.findCrossedThresholds("Memory", event(25.0)), ids());
+        final Map<String, Object> other = new HashMap<String, Object>();
+        other.put("idle", 25.0);
+        other.put(ATTRIBUTE, "25.0");
+        Assert.assertEquals(index.findCrossedThresholds(EVENT_TYPE, other), ids());
+
+        index.remove(config);
+        Assert.assertEquals(index.size(), 0);
+        Assert.assertEquals(index.findCrossedThresholds(EVENT_TYPE, event(25.0)), ids());
+    }
+
+    @Test(groups = "fast")
+    public void testCompareModeReportsMismatches()
+    {
+        final Properties properties = new Properties();
+        properties.setProperty("arecibo.alert.thresholdEvaluation", "compare");
+        final AlertServiceConfig alertServiceConfig = new ConfigurationObjectFactory(properties).build(AlertServiceConfig.class);
+        // without an aggregator service: the statements can't be registered, but the configs are indexed
+        final AlertManager alertManager = new AlertManager(null, alertServiceConfig);
+        alertManager.registerThresholdConfig(config(1L, null, 10.0));
+        alertManager.registerThresholdConfig(config(2L, 5.0, null));
+        Assert.assertEquals(alertManager.getNumIndexedThresholdConfigs(), 2);
+
+        final UUID source = new UUID(0, 1);
+        final String forwardedType = AlertManager.THRESHOLD_INDEX_EVENT_PREFIX + EVENT_TYPE;
+        alertManager.handleIndexedEvent(new MapEvent(1300000000000L, forwardedType, source, event(12.0)));
+        alertManager.handleIndexedEvent(new MapEvent(1300000001000L, forwardedType, source, event(7.0)));
+
+        // only the index saw the first event: config 1 is reported until its statement catches up
+        Assert.assertEquals(alertManager.getIndexedEventsEvaluated(), 2L);
+        Assert.assertEquals(alertManager.getThresholdIndexMatches(), 1L);
+        final String[] mismatches = alertManager.getThresholdEvaluationMismatches();
+        Assert.assertEquals(mismatches.length, 1);
+        Assert.assertEquals(mismatches[0], "1: esper=0 index=1");
+    }
+
+    private static ThresholdConfig config(final long id, final Double min, final Double max)
+    {
+        final ThresholdConfig config = new ThresholdConfig();
+        config.setId(id);
+        config.setMonitoredEventType(EVENT_TYPE);
+        config.setMonitoredAttributeType(ATTRIBUTE);
+        config.setMinThresholdValue(min);
+        config.setMaxThresholdValue(max);
+        config.setClearingIntervalMs(60000L);
+        return config;
+    }
+
+    private static ThresholdQualifyingAttr qualifier(final long id, final String type, final String value)
+    {
+        final ThresholdQualifyingAttr qualifier = new ThresholdQualifyingAttr();
+        qualifier.setId(id);
+        // the configs keep their attributes sorted by label
+        qualifier.setLabel("qualifier" + id);
+        qualifier.setAttributeType(type);
+        qualifier.setAttributeValue(value);
+        return qualifier;
+    }
+
+    private static Map<String, Object> event(final Object value)
+    {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put(ATTRIBUTE, value);
+        return attributes;
+    }
+
+    private static List<Long> ids(final Long... ids)
+    {
+        final List<Long> list = new ArrayList<Long>();
+        Collections.addAll(list, ids);
+        return list;
+    }
+
+    private static List<Long> sorted(final List<Long> ids)
+    {
+        final List<Long> list = new ArrayList<Long>(ids);
+        Collections.sort(list);
+        return list;
+    }
+}
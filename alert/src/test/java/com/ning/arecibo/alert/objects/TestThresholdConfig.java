@@ -0,0 +1,155 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.alert.objects;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import com.ning.arecibo.event.BatchedEvent;
+import com.ning.arecibo.event.MapEvent;
+import com.ning.arecibo.eventlogger.Event;
+
+public class TestThresholdConfig
+{
+    private static final UUID SOURCE = new UUID(0, 1);
+
+    @Test(groups = "fast")
+    public void testSampleWindowWrapsAround()
+    {
+        final ThresholdConfig config = config();
+        config.setMinThresholdSamples(3L);
+        config.setMaxSampleWindowMs(200000L);
+        // samples every 10 seconds, starting 100 seconds ago
+        final long start = System.currentTimeMillis() - 100000L;
+
+        Assert.assertFalse(addSample(config, start));
+        Assert.assertFalse(addSample(config, start + 10000L));
+        for (int i = 2; i < 7; i++) {
+            Assert.assertTrue(addSample(config, start + i * 10000L));
+        }
+
+        // the new sample pushes out the one at +40s, and the one at +50s is now out of the window
+        config.setMaxSampleWindowMs(45000L);
+        Assert.assertFalse(addSample(config, start + 70000L));
+        Assert.assertTrue(addSample(config, start + 80000L));
+    }
+
+    @Test(groups = "fast")
+    public void testSampleWindowFollowsMinThresholdSamples()
+    {
+        final ThresholdConfig config = config();
+        config.setMinThresholdSamples(3L);
+        config.setMaxSampleWindowMs(200000L);
+        final long start = System.currentTimeMillis() - 100000L;
+        for (int i = 0; i < 5; i++) {
+            addSample(config, start + i * 10000L);
+        }
+
+        // the wrapped samples are kept in order when the window grows
+        config.setMinThresholdSamples(5L);
+        Assert.assertFalse(addSample(config, start + 50000L));
+        Assert.assertTrue(addSample(config, start + 60000L));
+        config.setMaxSampleWindowMs(65000L);
+        Assert.assertFalse(addSample(config, start + 70000L));
+
+        // and the most recent ones when it shrinks
+        config.setMinThresholdSamples(2L);
+        Assert.assertTrue(addSample(config, start + 80000L));
+    }
+
+    @Test(groups = "fast")
+    public void testContextIdentifier()
+    {
+        final ThresholdConfig config = config();
+        Assert.assertEquals(config.getContextIdentifier(event("web1", "east")), "1");
+
+        config.addThresholdContextAttr(contextAttribute(1L, "hostName"));
+        config.addThresholdContextAttr(contextAttribute(2L, "dc"));
+        final String identifier = config.getContextIdentifier(event("web1", "east"));
+        Assert.assertEquals(identifier, "1&dc=east&hostName=web1");
+        Assert.assertSame(config.getContextIdentifier(event("web1", "east")), identifier);
+        Assert.assertEquals(config.getContextIdentifier(event("web2", "east")), "1&dc=east&hostName=web2");
+        Assert.assertEquals(config.getContextIdentifier(event("web1", null)), "1&hostName=web1");
+        Assert.assertEquals(config.getContextIdentifier(event(null, null)), "1");
+    }
+
+    @Test(groups = "fast")
+    public void testContextIdentifierFollowsTheContextAttributes()
+    {
+        final ThresholdConfig config = config();
+        final ThresholdContextAttr hostName = contextAttribute(1L, "hostName");
+        config.addThresholdContextAttr(hostName);
+        Assert.assertEquals(config.getContextIdentifier(event("web1", "east")), "1&hostName=web1");
+
+        // updated in place
+        hostName.setAttributeType("dc");
+        config.contextAttributesChanged();
+        Assert.assertEquals(config.getContextIdentifier(event("web1", "east")), "1&dc=east");
+
+        config.removeThresholdContextAttr(hostName);
+        Assert.assertEquals(config.getContextIdentifier(event("web1", "east")), "1");
+
+        config.addThresholdContextAttr(contextAttribute(2L, "hostName"));
+        Assert.assertEquals(config.getContextIdentifier(event("web1", "east")), "1&hostName=web1");
+
+        config.setId(2L);
+        Assert.assertEquals(config.getContextIdentifier(event("web1", "east")), "2&hostName=web1");
+    }
+
+    private static ThresholdConfig config()
+    {
+        final ThresholdConfig config = new ThresholdConfig();
+        config.setId(1L);
+        config.setMonitoredEventType("CPU");
+        config.setMonitoredAttributeType("load");
+        config.setMaxThresholdValue(10.0);
+        config.setClearingIntervalMs(60000L);
+        return config;
+    }
+
+    private static ThresholdContextAttr contextAttribute(final long id, final String type)
+    {
+        final ThresholdContextAttr contextAttribute = new ThresholdContextAttr();
+        contextAttribute.setId(id);
+        contextAttribute.setLabel("context" + id);
+        contextAttribute.setAttributeType(type);
+        return contextAttribute;
+    }
+
+    private static boolean addSample(final ThresholdConfig config, final long timestamp)
+    {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("load", 20.0);
+        final Event event = new BatchedEvent(new MapEvent(timestamp, "CPU", SOURCE, attributes));
+        return config.checkMinThresholdSamplesReached(event, "1");
+    }
+
+    private static Event event(final String hostName, final String dc)
+    {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("load", 20.0);
+        if (hostName != null) {
+            attributes.put("hostName", hostName);
+        }
+        if (dc != null) {
+            attributes.put("dc", dc);
+        }
+        return new BatchedEvent(new MapEvent(System.currentTimeMillis(), "CPU", SOURCE, attributes));
+    }
+}
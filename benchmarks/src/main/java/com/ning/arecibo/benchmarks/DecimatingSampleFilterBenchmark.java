@@ -0,0 +1,118 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.skife.config.TimeSpan;
+
+import com.ning.arecibo.util.timeline.DecimatingSampleFilter;
+import com.ning.arecibo.util.timeline.DecimationMode;
+import com.ning.arecibo.util.timeline.samples.SampleCoder;
+import com.ning.arecibo.util.timeline.samples.SampleCoderImpl;
+import com.ning.arecibo.util.timeline.samples.SampleConsumer;
+import com.ning.arecibo.util.timeline.samples.SampleCursor;
+import com.ning.arecibo.util.timeline.samples.SampleOpcode;
+import com.ning.arecibo.util.timeline.samples.ScalarSample;
+
+/**
+ * Decimation of one chunk of samples down to outputCount points, as done for dashboard
+ * graphs.  Scores are per chunk; divide by chunkLength for the cost of processOneSample().
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecimatingSampleFilterBenchmark
+{
+    private static final TimeSpan POLLING_INTERVAL = new TimeSpan("30s");
+
+    @Param({"CONSTANT", "COUNTERS", "NOISY_DOUBLES"})
+    public ValueDistribution distribution;
+
+    @Param({"720", "3600"})
+    public int chunkLength;
+
+    @Param({"100"})
+    public int outputCount;
+
+    @Param({"PEAK_PICK", "AVERAGE"})
+    public DecimationMode decimationMode;
+
+    private DateTime[] times;
+    private SampleOpcode[] opcodes;
+    private Object[] values;
+
+    @Setup
+    public void setUp()
+    {
+        final SampleCoder sampleCoder = new SampleCoderImpl();
+        final List<DateTime> timeList = ValueDistribution.generateTimes(chunkLength, (int) (POLLING_INTERVAL.getMillis() / 1000));
+        final List<ScalarSample> samples = new ArrayList<ScalarSample>();
+        for (final ScalarSample sample : distribution.generateSamples(chunkLength)) {
+            samples.add(sampleCoder.compressSample(sample));
+        }
+        times = timeList.toArray(new DateTime[chunkLength]);
+        opcodes = new SampleOpcode[chunkLength];
+        values = new Object[chunkLength];
+        // Feed the filter what it gets when scanning stored samples
+        final SampleCursor cursor = new SampleCursor(sampleCoder.compressSamples(samples));
+        int sampleNumber = 0;
+        while (cursor.nextOpcode() != null) {
+            for (int i = 0; i < cursor.getRepeatCount(); i++) {
+                opcodes[sampleNumber] = cursor.getOpcode().getReplacement();
+                values[sampleNumber] = cursor.getValue();
+                sampleNumber++;
+            }
+        }
+    }
+
+    @Benchmark
+    public DecimatingSampleFilter processOneSample(final Blackhole blackhole)
+    {
+        final DecimatingSampleFilter filter = new DecimatingSampleFilter(times[0], times[chunkLength - 1], outputCount, chunkLength, POLLING_INTERVAL, decimationMode,
+                                                                         new SampleConsumer()
+                                                                         {
+                                                                             @Override
+                                                                             public void consumeSample(final int sampleNumber, final SampleOpcode opcode, final Object value, final DateTime time)
+                                                                             {
+                                                                                 blackhole.consume(value);
+                                                                             }
+                                                                         });
+        for (int i = 0; i < chunkLength; i++) {
+            filter.processOneSample(times[i], opcodes[i], values[i]);
+        }
+        return filter;
+    }
+}
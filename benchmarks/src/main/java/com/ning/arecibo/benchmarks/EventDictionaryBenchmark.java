@@ -0,0 +1,130 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.benchmarks;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ning.arecibo.aggregator.dictionary.EventDictionary;
+import com.ning.arecibo.aggregator.esper.EsperNamingUtils;
+import com.ning.arecibo.event.MonitoringEvent;
+import com.ning.arecibo.util.UUIDUtil;
+
+/**
+ * Per-event cost of EventDictionary.registerEvent on a stream of MonitoringEvents from many
+ * hosts and a few event types, all of them already registered, as in steady state. The
+ * signature benchmark is the work registerEvent did for every event before the shape cache:
+ * the sorted map of attribute types, its MD5 signature and the esper name check.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventDictionaryBenchmark
+{
+    private static final int NB_HOSTS = 200;
+    private static final int NB_EVENT_TYPES = 20;
+
+    @Param({"8", "40"})
+    public int attributeCount;
+
+    private EventDictionary dictionary;
+    private MonitoringEvent[] events;
+    private Map<String, Object>[] attributes;
+    private int next = 0;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp()
+    {
+        final Random random = new Random(attributeCount);
+        dictionary = new EventDictionary(new String[]{EventDictionaryBenchmark.class.getSimpleName()});
+        events = new MonitoringEvent[NB_HOSTS * NB_EVENT_TYPES];
+        attributes = new Map[events.length];
+        for (int i = 0; i < events.length; i++) {
+            final int eventType = i % NB_EVENT_TYPES;
+            final Map<String, Object> values = new HashMap<String, Object>();
+            for (int j = 0; j < attributeCount; j++) {
+                // The same attribute names and types for all the events of a type
+                if ((eventType + j) % 3 == 0) {
+                    values.put("counter" + j, (long) random.nextInt(1000000));
+                }
+                else {
+                    values.put("gauge" + j, random.nextDouble() * 100);
+                }
+            }
+            events[i] = new MonitoringEvent(System.currentTimeMillis(), "JMXEvent" + eventType, UUID.randomUUID(),
+                                            "host-" + (i / NB_EVENT_TYPES) + ".example.com", "prod", null, "core", "/web", values);
+            // What the aggregator registers: the event as a map, with its null values removed
+            attributes[i] = events[i].toMap();
+            dictionary.preProcessEvent(attributes[i]);
+            dictionary.registerEvent(events[i], attributes[i]);
+        }
+    }
+
+    @Benchmark
+    public String registerEvent()
+    {
+        final int i = nextIndex();
+        return dictionary.registerEvent(events[i], attributes[i]);
+    }
+
+    @Benchmark
+    public String signature() throws NoSuchAlgorithmException
+    {
+        final int i = nextIndex();
+        final SortedMap<String, Class> types = new TreeMap<String, Class>();
+        for (final Map.Entry<String, Object> entry : attributes[i].entrySet()) {
+            if (entry.getValue() != null) {
+                types.put(entry.getKey(), entry.getValue().getClass());
+            }
+        }
+        final MessageDigest md5 = MessageDigest.getInstance("MD5");
+        for (final Map.Entry<String, Class> entry : types.entrySet()) {
+            md5.update(entry.getKey().getBytes());
+            md5.update(entry.getValue().getSimpleName().getBytes());
+        }
+        return EsperNamingUtils.checkWordIsLegalEsperName(events[i].getEventType()) + UUIDUtil.md5ToString(md5.digest());
+    }
+
+    private int nextIndex()
+    {
+        next = (next + 1) % events.length;
+        return next;
+    }
+}
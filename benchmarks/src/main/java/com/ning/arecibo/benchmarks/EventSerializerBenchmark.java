@@ -0,0 +1,191 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ning.arecibo.event.MapEvent;
+import com.ning.arecibo.event.MonitoringEvent;
+import com.ning.arecibo.event.transport.BinaryEventSerializer;
+import com.ning.arecibo.event.transport.EventSerializer;
+import com.ning.arecibo.event.transport.EventSerializerUDPUtil;
+import com.ning.arecibo.event.transport.EventService;
+import com.ning.arecibo.event.transport.JavaEventSerializer;
+import com.ning.arecibo.event.transport.JsonEventSerializer;
+import com.ning.arecibo.event.transport.MapEventSerializer;
+import com.ning.arecibo.eventlogger.Event;
+
+/**
+ * Encoding and decoding of one agent event (a MapEvent with a few string attributes and
+ * attributeCount numeric ones) with the binary, Java map and JSON serializers.  Scores are per
+ * event; the encoded sizes are printed at setup.
+ * <p/>
+ * MapEventSerializer decodes a serialized Map (not a serialized MapEvent), so its decoding
+ * benchmark uses a payload in that shape.
+ * <p/>
+ * The *UDPPacket benchmarks decode whole datagrams, headers included: binary headers for the
+ * binary serializer, text headers for the Java one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventSerializerBenchmark
+{
+    private final BinaryEventSerializer binarySerializer = new BinaryEventSerializer();
+    private final MapEventSerializer mapSerializer = new MapEventSerializer();
+    private final JsonEventSerializer jsonSerializer = new JsonEventSerializer();
+    private final JavaEventSerializer javaSerializer = new JavaEventSerializer();
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(65536);
+
+    @Param({"8", "64"})
+    public int attributeCount;
+
+    private MapEvent event;
+    private byte[] binaryBytes;
+    private byte[] mapBytes;
+    private byte[] jsonBytes;
+    private byte[] binaryPacket;
+    private byte[] javaPacket;
+    private Map<String, EventSerializer> serializersByContentType;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        final Random random = new Random(attributeCount);
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put(MonitoringEvent.KEY_HOST, "host-" + random.nextInt(1000) + ".example.com");
+        attributes.put(MonitoringEvent.KEY_TYPE, "core");
+        attributes.put(MonitoringEvent.KEY_CONFIG_PATH, "/web");
+        for (int i = 0; i < attributeCount; i++) {
+            if (i % 2 == 0) {
+                attributes.put("counter" + i, (long) random.nextInt(1000000));
+            }
+            else {
+                attributes.put("gauge" + i, random.nextDouble() * 100);
+            }
+        }
+        event = new MapEvent(System.currentTimeMillis(), "JMXEvent", UUID.randomUUID(), attributes);
+
+        binaryBytes = EventSerializerUDPUtil.toByteArray(binarySerializer, event);
+        jsonBytes = EventSerializerUDPUtil.toByteArray(jsonSerializer, event);
+        // What MapEventSerializer expects on the wire: the map, with the UUID as a string
+        final Map<String, Object> wireMap = event.toMap();
+        wireMap.put(MapEvent.KEY_UUID, event.getSourceUUID().toString());
+        final ByteArrayOutputStream mapOut = new ByteArrayOutputStream();
+        final ObjectOutputStream objectOut = new ObjectOutputStream(mapOut);
+        objectOut.writeObject(wireMap);
+        objectOut.close();
+        mapBytes = mapOut.toByteArray();
+
+        serializersByContentType = new HashMap<String, EventSerializer>();
+        serializersByContentType.put(binarySerializer.getContentType(), binarySerializer);
+        serializersByContentType.put(javaSerializer.getContentType(), javaSerializer);
+        binaryPacket = EventSerializerUDPUtil.toUDPPacket(headers(binarySerializer), event, binarySerializer);
+        javaPacket = EventSerializerUDPUtil.toUDPPacket(headers(javaSerializer), event, javaSerializer);
+
+        System.out.printf("%nEncoded sizes for %d attributes: binary=%d map=%d json=%d, UDP packets: binary=%d java=%d%n",
+                          attributeCount, binaryBytes.length, mapBytes.length, jsonBytes.length, binaryPacket.length, javaPacket.length);
+    }
+
+    private Map<String, String> headers(final EventSerializer serializer)
+    {
+        final Map<String, String> headers = new HashMap<String, String>();
+        headers.put(EventService.HEADER_EVENT_TYPE, event.getEventType());
+        headers.put(EventService.HEADER_EVENT_KEY, event.getSourceUUID().toString());
+        headers.put(EventService.HEADER_SENDER_TYPE, "agent");
+        headers.put(EventSerializer.HEADER_CONTENT_TYPE, serializer.getContentType());
+        return headers;
+    }
+
+    private int serialize(final EventSerializer serializer) throws IOException
+    {
+        out.reset();
+        serializer.serialize(event, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int serializeBinary() throws IOException
+    {
+        return serialize(binarySerializer);
+    }
+
+    @Benchmark
+    public int serializeMap() throws IOException
+    {
+        return serialize(mapSerializer);
+    }
+
+    @Benchmark
+    public int serializeJson() throws IOException
+    {
+        return serialize(jsonSerializer);
+    }
+
+    @Benchmark
+    public Event deserializeBinary() throws IOException
+    {
+        return binarySerializer.deserialize(new ByteArrayInputStream(binaryBytes));
+    }
+
+    @Benchmark
+    public Event deserializeMap() throws IOException
+    {
+        return mapSerializer.deserialize(new ByteArrayInputStream(mapBytes));
+    }
+
+    @Benchmark
+    public Event deserializeJson() throws IOException
+    {
+        return jsonSerializer.deserialize(new ByteArrayInputStream(jsonBytes));
+    }
+
+    @Benchmark
+    public Event decodeBinaryUDPPacket() throws IOException
+    {
+        return EventSerializerUDPUtil.fromUDPPacket(binaryPacket, serializersByContentType);
+    }
+
+    @Benchmark
+    public Event decodeJavaUDPPacket() throws IOException
+    {
+        return EventSerializerUDPUtil.fromUDPPacket(javaPacket, serializersByContentType);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ning.arecibo.util.timeline.HostSamplesForTimestamp;
+import com.ning.arecibo.util.timeline.persistent.FileBackedBuffer;
+import com.ning.arecibo.util.timeline.samples.ScalarSample;
+
+/**
+ * Spooling of one chunk's worth of samples for one host and event category, using the collector's
+ * default segment settings.  The buffer is discarded after each chunk so that the disk usage stays
+ * bounded; scores are per chunk, and include spilling to disk when the chunk doesn't fit in memory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-XX:MaxDirectMemorySize=512m"})
+public class FileBackedBufferBenchmark
+{
+    private static final int SEGMENTS_SIZE = 1024 * 1024;
+    private static final int MAX_NB_SEGMENTS = 10;
+
+    @Param({"10", "100"})
+    public int sampleKindsPerHost;
+
+    @Param({"CONSTANT", "NOISY_DOUBLES"})
+    public ValueDistribution distribution;
+
+    @Param({"720"})
+    public int chunkLength;
+
+    private File spoolDir;
+    private FileBackedBuffer buffer;
+    private List<HostSamplesForTimestamp> hostSamples;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        spoolDir = File.createTempFile("arecibo-benchmarks", "");
+        if (!spoolDir.delete() || !spoolDir.mkdir()) {
+            throw new IOException(String.format("Unable to create spool directory %s", spoolDir));
+        }
+        buffer = new FileBackedBuffer(spoolDir.getAbsolutePath(), "FileBackedBufferBenchmark", SEGMENTS_SIZE, MAX_NB_SEGMENTS);
+
+        final List<DateTime> times = ValueDistribution.generateTimes(chunkLength, 30);
+        final Random random = new Random(ValueDistribution.SEED);
+        final long[][] states = new long[sampleKindsPerHost][1];
+        hostSamples = new ArrayList<HostSamplesForTimestamp>(chunkLength);
+        for (final DateTime time : times) {
+            final Map<Integer, ScalarSample> samples = new HashMap<Integer, ScalarSample>();
+            for (int sampleKindId = 0; sampleKindId < sampleKindsPerHost; sampleKindId++) {
+                samples.put(sampleKindId, distribution.nextSample(random, states[sampleKindId]));
+            }
+            hostSamples.add(new HostSamplesForTimestamp(1, "JVM", time, samples));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        buffer.discard();
+        FileUtils.deleteDirectory(spoolDir);
+    }
+
+    @Benchmark
+    public FileBackedBuffer append()
+    {
+        for (final HostSamplesForTimestamp samples : hostSamples) {
+            buffer.append(samples);
+        }
+        buffer.discard();
+        return buffer;
+    }
+}
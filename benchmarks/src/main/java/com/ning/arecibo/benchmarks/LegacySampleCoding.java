@@ -0,0 +1,233 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ning.arecibo.util.timeline.samples.HalfFloat;
+import com.ning.arecibo.util.timeline.samples.RepeatSample;
+import com.ning.arecibo.util.timeline.samples.SampleBase;
+import com.ning.arecibo.util.timeline.samples.SampleCoder;
+import com.ning.arecibo.util.timeline.samples.SampleCoderImpl;
+import com.ning.arecibo.util.timeline.samples.SampleOpcode;
+import com.ning.arecibo.util.timeline.samples.ScalarSample;
+
+/**
+ * A copy of the ScalarSample based sample coding as it was before the primitive encoding and
+ * the SampleCursor: compressSample(), SampleAccumulator.addSample() and decompressSamples(),
+ * including the opcode lookup by scanning values().  It is the baseline of the *LegacyPath
+ * benchmarks; encodeSample() and decodeScalarValue() are unchanged and come from the coder.
+ */
+final class LegacySampleCoding
+{
+    private static final ScalarSample<Void> DOUBLE_ZERO_SAMPLE = new ScalarSample<Void>(SampleOpcode.DOUBLE_ZERO, null);
+    private static final ScalarSample<Void> INT_ZERO_SAMPLE = new ScalarSample<Void>(SampleOpcode.INT_ZERO, null);
+
+    private static final double MIN_BYTE_DOUBLE_VALUE = ((double)Byte.MIN_VALUE) * (1.0 + SampleCoderImpl.HALF_MAX_FRACTION_ERROR);
+    private static final double MAX_BYTE_DOUBLE_VALUE = ((double)Byte.MAX_VALUE) * (1.0 + SampleCoderImpl.HALF_MAX_FRACTION_ERROR);
+
+    private static final double MIN_SHORT_DOUBLE_VALUE = ((double)Short.MIN_VALUE) * (1.0 + SampleCoderImpl.HALF_MAX_FRACTION_ERROR);
+    private static final double MAX_SHORT_DOUBLE_VALUE = ((double)Short.MAX_VALUE) * (1.0 + SampleCoderImpl.HALF_MAX_FRACTION_ERROR);
+
+    private final SampleCoder sampleCoder;
+
+    LegacySampleCoding(final SampleCoder sampleCoder)
+    {
+        this.sampleCoder = sampleCoder;
+    }
+
+    ScalarSample compressSample(final ScalarSample sample)
+    {
+        switch (sample.getOpcode()) {
+        case INT:
+            final int intValue = (Integer)sample.getSampleValue();
+            if (intValue == 0) {
+                return INT_ZERO_SAMPLE;
+            }
+            else if (intValue >= Byte.MIN_VALUE && intValue <= Byte.MAX_VALUE) {
+                return new ScalarSample(SampleOpcode.BYTE, new Byte((byte)intValue));
+            }
+            else if (intValue >= Short.MIN_VALUE && intValue <= Short.MAX_VALUE) {
+                return new ScalarSample(SampleOpcode.SHORT, new Short((short)intValue));
+            }
+            else {
+                return sample;
+            }
+        case LONG:
+            final long longValue = (Long)sample.getSampleValue();
+            if (longValue == 0) {
+                return INT_ZERO_SAMPLE;
+            }
+            else if (longValue >= Byte.MIN_VALUE && longValue <= Byte.MAX_VALUE) {
+                return new ScalarSample(SampleOpcode.BYTE, new Byte((byte)longValue));
+            }
+            else if (longValue >= Short.MIN_VALUE && longValue <= Short.MAX_VALUE) {
+                return new ScalarSample(SampleOpcode.SHORT, new Short((short)longValue));
+            }
+            else if (longValue >= Integer.MIN_VALUE && longValue <= Integer.MAX_VALUE) {
+                return new ScalarSample(SampleOpcode.INT, new Integer((int)longValue));
+            }
+            else {
+                return sample;
+            }
+        case FLOAT:
+            return encodeFloatOrDoubleSample(sample, (double)((Float)sample.getSampleValue()));
+        case DOUBLE:
+            return encodeFloatOrDoubleSample(sample, (Double)sample.getSampleValue());
+        default:
+            // BIGINT and STRING samples don't occur in the benchmarks
+            return sample;
+        }
+    }
+
+    private ScalarSample encodeFloatOrDoubleSample(final ScalarSample sample, final double value)
+    {
+        if (value == 0.0) {
+            return DOUBLE_ZERO_SAMPLE;
+        }
+        final boolean integral = value >= MIN_SHORT_DOUBLE_VALUE && value <= MAX_SHORT_DOUBLE_VALUE && (Math.abs((value - (double)((int)value)) / value) <= SampleCoderImpl.MAX_FRACTION_ERROR);
+        if (integral && value >= MIN_BYTE_DOUBLE_VALUE && value <= MAX_BYTE_DOUBLE_VALUE) {
+            return new ScalarSample<Byte>(SampleOpcode.BYTE_FOR_DOUBLE, (byte)value);
+        }
+        else if (integral && value >= MIN_SHORT_DOUBLE_VALUE && value <= MAX_SHORT_DOUBLE_VALUE) {
+            return new ScalarSample<Short>(SampleOpcode.SHORT_FOR_DOUBLE, (short)value);
+        }
+        else {
+            final int halfFloatValue = HalfFloat.fromFloat((float)value);
+            if ((Math.abs(value - HalfFloat.toFloat(halfFloatValue)) / value) <= SampleCoderImpl.MAX_FRACTION_ERROR) {
+                return new ScalarSample<Short>(SampleOpcode.HALF_FLOAT_FOR_DOUBLE, (short)halfFloatValue);
+            }
+            else if (value >= Float.MIN_VALUE && value <= Float.MAX_VALUE) {
+                return new ScalarSample<Float>(SampleOpcode.FLOAT_FOR_DOUBLE, (float)value);
+            }
+            else {
+                return sample;
+            }
+        }
+    }
+
+    Accumulator newAccumulator()
+    {
+        return new Accumulator();
+    }
+
+    List<ScalarSample> decompressSamples(final byte[] sampleBytes) throws IOException
+    {
+        final List<ScalarSample> returnedSamples = new ArrayList<ScalarSample>();
+        final ByteArrayInputStream byteStream = new ByteArrayInputStream(sampleBytes);
+        final DataInputStream inputStream = new DataInputStream(byteStream);
+        while (true) {
+            final int opcodeByte;
+            opcodeByte = inputStream.read();
+            if (opcodeByte == -1) {
+                break; // At "eof"
+            }
+            final SampleOpcode opcode = getOpcodeFromIndex(opcodeByte);
+            switch(opcode) {
+            case REPEAT_BYTE:
+            case REPEAT_SHORT:
+                final int repeatCount = opcode == SampleOpcode.REPEAT_BYTE ? inputStream.readUnsignedByte() : inputStream.readUnsignedShort();
+                final SampleOpcode repeatedOpcode = getOpcodeFromIndex(inputStream.read());
+                final Object value = sampleCoder.decodeScalarValue(inputStream, repeatedOpcode);
+                for (int i=0; i<repeatCount; i++) {
+                    returnedSamples.add(new ScalarSample(repeatedOpcode, value));
+                }
+                break;
+            default:
+                returnedSamples.add(new ScalarSample(opcode, sampleCoder.decodeScalarValue(inputStream, opcode)));
+            break;
+            }
+        }
+        return returnedSamples;
+    }
+
+    private static SampleOpcode getOpcodeFromIndex(final int index)
+    {
+        for (SampleOpcode opcode : SampleOpcode.values()) {
+            if (opcode.getOpcodeIndex() == index) {
+                return opcode;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Could not find opcode for index %d", index));
+    }
+
+    /**
+     * SampleAccumulator.addSample() and getEncodedSamples(), pending runs held in RepeatSamples
+     */
+    final class Accumulator
+    {
+        private final ByteArrayOutputStream byteStream = new ByteArrayOutputStream(100);
+        private final DataOutputStream outputStream = new DataOutputStream(byteStream);
+        private SampleBase lastSample;
+
+        synchronized void addSample(final ScalarSample sample)
+        {
+            if (lastSample == null) {
+                lastSample = sample;
+            }
+            else {
+                final SampleOpcode lastOpcode = lastSample.getOpcode();
+                final SampleOpcode sampleOpcode = sample.getOpcode();
+                if (lastSample instanceof RepeatSample) {
+                    final RepeatSample repeatSample = (RepeatSample)lastSample;
+                    final ScalarSample sampleRepeated = repeatSample.getSampleRepeated();
+                    if (sampleRepeated.getOpcode() == sampleOpcode &&
+                        (sampleOpcode.getNoArgs() || ScalarSample.sameSampleValues(sampleRepeated.getSampleValue(), sample.getSampleValue())) &&
+                        repeatSample.getRepeatCount() < RepeatSample.MAX_SHORT_REPEAT_COUNT) {
+                        repeatSample.incrementRepeatCount();
+                    }
+                    else {
+                        addLastSample();
+                        lastSample = sample;
+                    }
+                }
+                else {
+                    final ScalarSample lastScalarSample = (ScalarSample)lastSample;
+                    if (sampleOpcode == lastOpcode &&
+                        (sampleOpcode.getNoArgs() || ScalarSample.sameSampleValues(sample.getSampleValue(), lastScalarSample.getSampleValue()))) {
+                        lastSample = new RepeatSample(2, lastScalarSample);
+                    }
+                    else {
+                        addLastSample();
+                        lastSample = sample;
+                    }
+                }
+            }
+        }
+
+        synchronized byte[] getEncodedBytes() throws IOException
+        {
+            addLastSample();
+            outputStream.flush();
+            return byteStream.toByteArray();
+        }
+
+        private void addLastSample()
+        {
+            if (lastSample != null) {
+                sampleCoder.encodeSample(outputStream, lastSample);
+                lastSample = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ning.arecibo.util.timeline.samples.SampleAccumulator;
+import com.ning.arecibo.util.timeline.samples.SampleCoder;
+import com.ning.arecibo.util.timeline.samples.SampleCoderImpl;
+import com.ning.arecibo.util.timeline.samples.SampleCursor;
+import com.ning.arecibo.util.timeline.samples.SampleOpcode;
+import com.ning.arecibo.util.timeline.samples.ScalarSample;
+
+/**
+ * Encoding, decoding and combining of the samples of one sample kind.  Scores are
+ * per call, i.e. per chunk except for combineSampleBytes, which combines four chunks.
+ * <p/>
+ * The *ObjectPath and *PrimitivePath pairs compare the ScalarSample based API with
+ * the primitive one on the same data, and the *LegacyPath ones run the object path as it
+ * was before both were rewritten (see LegacySampleCoding); run with -prof gc to compare
+ * allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SampleCoderBenchmark
+{
+    private static final int CHUNKS_TO_COMBINE = 4;
+
+    private final SampleCoder sampleCoder = new SampleCoderImpl();
+    private final LegacySampleCoding legacySampleCoding = new LegacySampleCoding(sampleCoder);
+
+    @Param({"CONSTANT", "COUNTERS", "NOISY_DOUBLES"})
+    public ValueDistribution distribution;
+
+    @Param({"60", "720", "3600"})
+    public int chunkLength;
+
+    private List<ScalarSample> samples;
+    private long[] longValues;
+    private double[] doubleValues;
+    private byte[] encodedSamples;
+    private List<byte[]> chunksToCombine;
+
+    @Setup
+    public void setUp()
+    {
+        final List<ScalarSample> allSamples = distribution.generateSamples(chunkLength * CHUNKS_TO_COMBINE);
+        chunksToCombine = new ArrayList<byte[]>();
+        for (int i = 0; i < CHUNKS_TO_COMBINE; i++) {
+            chunksToCombine.add(compress(allSamples.subList(i * chunkLength, (i + 1) * chunkLength)));
+        }
+        samples = allSamples.subList(0, chunkLength);
+        encodedSamples = chunksToCombine.get(0);
+        longValues = new long[chunkLength];
+        doubleValues = new double[chunkLength];
+        for (int i = 0; i < chunkLength; i++) {
+            final Number value = (Number) samples.get(i).getSampleValue();
+            longValues[i] = value.longValue();
+            doubleValues[i] = value.doubleValue();
+        }
+    }
+
+    private byte[] compress(final List<ScalarSample> samples)
+    {
+        final List<ScalarSample> compressedSamples = new ArrayList<ScalarSample>(samples.size());
+        for (final ScalarSample sample : samples) {
+            compressedSamples.add(sampleCoder.compressSample(sample));
+        }
+        return sampleCoder.compressSamples(compressedSamples);
+    }
+
+    @Benchmark
+    public byte[] compressSamples()
+    {
+        return sampleCoder.compressSamples(samples);
+    }
+
+    @Benchmark
+    public List<ScalarSample> decompressSamples() throws IOException
+    {
+        return sampleCoder.decompressSamples(encodedSamples);
+    }
+
+    @Benchmark
+    public byte[] combineSampleBytes()
+    {
+        return sampleCoder.combineSampleBytes(chunksToCombine);
+    }
+
+    @Benchmark
+    public byte[] encodeObjectPath()
+    {
+        final SampleAccumulator accumulator = new SampleAccumulator(sampleCoder);
+        for (final ScalarSample sample : samples) {
+            accumulator.addSample(sampleCoder.compressSample(sample));
+        }
+        return accumulator.getEncodedSamples().getEncodedBytes();
+    }
+
+    @Benchmark
+    public byte[] encodeLegacyPath() throws IOException
+    {
+        final LegacySampleCoding.Accumulator accumulator = legacySampleCoding.newAccumulator();
+        for (final ScalarSample sample : samples) {
+            accumulator.addSample(legacySampleCoding.compressSample(sample));
+        }
+        return accumulator.getEncodedBytes();
+    }
+
+    @Benchmark
+    public byte[] encodePrimitivePath()
+    {
+        final SampleAccumulator accumulator = new SampleAccumulator(sampleCoder);
+        if (distribution == ValueDistribution.COUNTERS) {
+            for (final long value : longValues) {
+                accumulator.addLongSample(value);
+            }
+        }
+        else {
+            for (final double value : doubleValues) {
+                accumulator.addDoubleSample(value);
+            }
+        }
+        return accumulator.getEncodedSamples().getEncodedBytes();
+    }
+
+    @Benchmark
+    public double decodeObjectPath() throws IOException
+    {
+        double sum = 0.0;
+        for (final ScalarSample sample : sampleCoder.decompressSamples(encodedSamples)) {
+            sum += sample.getOpcode() == SampleOpcode.NULL ? 0.0 : ((Number) sample.getSampleValue()).doubleValue();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double decodeLegacyPath() throws IOException
+    {
+        double sum = 0.0;
+        for (final ScalarSample sample : legacySampleCoding.decompressSamples(encodedSamples)) {
+            sum += sample.getOpcode() == SampleOpcode.NULL ? 0.0 : ((Number) sample.getSampleValue()).doubleValue();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double decodePrimitivePath()
+    {
+        double sum = 0.0;
+        final SampleCursor cursor = new SampleCursor(encodedSamples);
+        while (cursor.nextOpcode() != null) {
+            sum += cursor.getRepeatCount() * cursor.getDoubleValue();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ning.arecibo.util.timeline.times.TimelineCoder;
+import com.ning.arecibo.util.timeline.times.TimelineCoderImpl;
+
+/**
+ * Encoding, decoding and combining of sample times.  Scores are per call, i.e. per chunk
+ * except for combineTimelines, which combines four chunks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimelineCoderBenchmark
+{
+    private static final int CHUNKS_TO_COMBINE = 4;
+
+    private final TimelineCoder timelineCoder = new TimelineCoderImpl();
+
+    @Param({"60", "720", "3600"})
+    public int chunkLength;
+
+    @Param({"30"})
+    public int pollingSeconds;
+
+    private List<DateTime> times;
+    private List<byte[]> chunksToCombine;
+
+    @Setup
+    public void setUp()
+    {
+        times = ValueDistribution.generateTimes(chunkLength * CHUNKS_TO_COMBINE, pollingSeconds);
+        chunksToCombine = new ArrayList<byte[]>();
+        for (int i = 0; i < CHUNKS_TO_COMBINE; i++) {
+            chunksToCombine.add(timelineCoder.compressDateTimes(times.subList(i * chunkLength, (i + 1) * chunkLength)));
+        }
+        times = times.subList(0, chunkLength);
+    }
+
+    @Benchmark
+    public byte[] compressDateTimes()
+    {
+        return timelineCoder.compressDateTimes(times);
+    }
+
+    @Benchmark
+    public List<DateTime> decompressDateTimes()
+    {
+        return timelineCoder.decompressDateTimes(chunksToCombine.get(0));
+    }
+
+    @Benchmark
+    public byte[] combineTimelines()
+    {
+        return timelineCoder.combineTimelines(chunksToCombine, null);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ning.arecibo.collector.persistent.BackgroundDBChunkWriter;
+import com.ning.arecibo.collector.persistent.TimelineHostEventAccumulator;
+import com.ning.arecibo.util.timeline.HostSamplesForTimestamp;
+import com.ning.arecibo.util.timeline.samples.SampleCoder;
+import com.ning.arecibo.util.timeline.samples.SampleCoderImpl;
+import com.ning.arecibo.util.timeline.samples.ScalarSample;
+import com.ning.arecibo.util.timeline.times.TimelineCoder;
+import com.ning.arecibo.util.timeline.times.TimelineCoderImpl;
+
+/**
+ * Ingestion of one chunk's worth of samples for one host and event category into a fresh
+ * accumulator.  Scores are per chunk; divide by chunkLength for the cost of addHostSamples().
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimelineHostEventAccumulatorBenchmark
+{
+    private static final int HOST_ID = 1;
+    private static final int EVENT_CATEGORY_ID = 1;
+
+    private final TimelineCoder timelineCoder = new TimelineCoderImpl();
+    private final SampleCoder sampleCoder = new SampleCoderImpl();
+    private final BackgroundDBChunkWriter backgroundWriter = new BackgroundDBChunkWriter(null, null, true);
+
+    @Param({"10", "100"})
+    public int sampleKindsPerHost;
+
+    @Param({"CONSTANT", "COUNTERS", "NOISY_DOUBLES"})
+    public ValueDistribution distribution;
+
+    @Param({"60", "720"})
+    public int chunkLength;
+
+    private List<HostSamplesForTimestamp> hostSamples;
+
+    @Setup
+    public void setUp()
+    {
+        final List<DateTime> times = ValueDistribution.generateTimes(chunkLength, 30);
+        final Random random = new Random(ValueDistribution.SEED);
+        final long[][] states = new long[sampleKindsPerHost][1];
+        hostSamples = new ArrayList<HostSamplesForTimestamp>(chunkLength);
+        for (final DateTime time : times) {
+            final Map<Integer, ScalarSample> samples = new HashMap<Integer, ScalarSample>();
+            for (int sampleKindId = 0; sampleKindId < sampleKindsPerHost; sampleKindId++) {
+                samples.put(sampleKindId, distribution.nextSample(random, states[sampleKindId]));
+            }
+            hostSamples.add(new HostSamplesForTimestamp(HOST_ID, "JVM", time, samples));
+        }
+    }
+
+    @Benchmark
+    public TimelineHostEventAccumulator addHostSamples()
+    {
+        // Without a timeline length, the accumulator never ends its chunk, so nothing gets written
+        final TimelineHostEventAccumulator accumulator = new TimelineHostEventAccumulator(null, timelineCoder, sampleCoder, backgroundWriter,
+                                                                                          HOST_ID, EVENT_CATEGORY_ID, ValueDistribution.START_TIME, null);
+        for (final HostSamplesForTimestamp samples : hostSamples) {
+            accumulator.addHostSamples(samples);
+        }
+        return accumulator;
+    }
+}
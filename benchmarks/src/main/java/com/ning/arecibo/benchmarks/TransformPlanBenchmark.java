@@ -0,0 +1,161 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ning.arecibo.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ning.arecibo.agent.AgentDataCollector;
+import com.ning.arecibo.agent.transform.CounterRateTransform;
+import com.ning.arecibo.agent.transform.RateTransform;
+import com.ning.arecibo.agent.transform.Transform;
+import com.ning.arecibo.agent.transform.TransformPlan;
+
+/**
+ * Transforming the values of one poll of a collector into the values to publish: the
+ * AgentDataCollector way before TransformPlan (a map of Transforms per attribute, the event
+ * values copied into the publish values), against a TransformPlan. A third of the attributes
+ * are values, a third rates of counters and a third both.  Scores are per poll; run with
+ * -prof gc, whose gc.alloc.rate.norm is the allocated bytes per poll.
+ * <p/>
+ * The Transforms of legacyTransforms keep primitive state too: it only measures the per-poll
+ * lookups and maps, not the boxed last values and times the rates used to allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformPlanBenchmark
+{
+    @Param({"500"})
+    public int attributeCount;
+
+    private final Map<String, Map<String, Transform>> transformsByAttribute = new HashMap<String, Map<String, Transform>>();
+    private TransformPlan plan;
+    // Counters increase from one poll to the next, so that every rate is emitted
+    private Map<String, Object>[] polls;
+    private int poll = 0;
+    private long timeMillis = 0;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp()
+    {
+        final TransformPlan.Builder builder = new TransformPlan.Builder("JMXEvent");
+        for (int i = 0; i < attributeCount; i++) {
+            final String configHashKey = "attribute" + i + "()";
+            final String eventAttributeType = "attribute" + i;
+            final Map<String, Transform> transforms = new HashMap<String, Transform>();
+            switch (i % 3) {
+                case 0:
+                    builder.addAttribute(configHashKey, eventAttributeType, false, false, false);
+                    transforms.put(eventAttributeType, new Transform());
+                    break;
+                case 1:
+                    builder.addAttribute(configHashKey, eventAttributeType, true, false, true);
+                    transforms.put(eventAttributeType, new CounterRateTransform());
+                    break;
+                default:
+                    builder.addAttribute(configHashKey, eventAttributeType, false, true, false);
+                    transforms.put(eventAttributeType, new Transform());
+                    transforms.put(eventAttributeType + "Rate", new RateTransform());
+                    break;
+            }
+            transformsByAttribute.put(configHashKey, transforms);
+        }
+        plan = builder.build();
+
+        polls = new Map[64];
+        for (int p = 0; p < polls.length; p++) {
+            polls[p] = new HashMap<String, Object>();
+            for (int i = 0; i < attributeCount; i++) {
+                polls[p].put("attribute" + i + "()", (long) (p * 1000 + i));
+            }
+        }
+        // Prime the last values of the rates
+        legacyTransforms();
+        transformPlan();
+    }
+
+    private Map<String, Object> nextPoll()
+    {
+        timeMillis += 30000;
+        poll = (poll + 1) % polls.length;
+        if (poll == 0) {
+            // Counters only increase: restart from higher values
+            for (final Map<String, Object> values : polls) {
+                for (final Map.Entry<String, Object> entry : values.entrySet()) {
+                    entry.setValue((Long) entry.getValue() + polls.length * 1000L);
+                }
+            }
+        }
+        return polls[poll];
+    }
+
+    @Benchmark
+    public Map<String, Object> legacyTransforms()
+    {
+        final Map<String, Object> newValues = nextPoll();
+        final Map<String, Object> eventValues = new HashMap<String, Object>();
+        for (final Map.Entry<String, Object> entry : newValues.entrySet()) {
+            final Object value = entry.getValue();
+            if (value == null || (value instanceof Number && Double.compare(((Number) value).doubleValue(), Double.NaN) == 0)) {
+                continue;
+            }
+            final Map<String, Transform> transforms = transformsByAttribute.get(entry.getKey());
+            for (final Map.Entry<String, Transform> transformEntry : transforms.entrySet()) {
+                final Object processedValue = transformEntry.getValue().process(value, timeMillis);
+                if (processedValue != null) {
+                    eventValues.put(transformEntry.getKey(), processedValue);
+                }
+            }
+        }
+
+        final Map<String, Object> publishValues = new HashMap<String, Object>();
+        for (final Map.Entry<String, Object> entry : eventValues.entrySet()) {
+            if (entry.getValue() instanceof String && ((String) entry.getValue()).startsWith(AgentDataCollector.GROUP_DELIMITER_START)) {
+                continue;
+            }
+            publishValues.put(entry.getKey(), entry.getValue());
+        }
+        return publishValues;
+    }
+
+    @Benchmark
+    public Map<String, Object> transformPlan()
+    {
+        final Map<String, Object> newValues = nextPoll();
+        final Map<String, Object> eventValues = plan.newValueMap(1);
+        return plan.process(newValues, timeMillis, eventValues) ? eventValues : TransformPlan.withoutGroupValues(eventValues);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import com.ning.arecibo.util.timeline.samples.SampleOpcode;
+import com.ning.arecibo.util.timeline.samples.ScalarSample;
+
+/**
+ * The shapes of sample streams we see in production, used to parameterize the benchmarks
+ */
+public enum ValueDistribution
+{
+    /**
+     * Gauges that don't move, e.g. pool sizes: these end up as long repeats
+     */
+    CONSTANT {
+        @Override
+        public ScalarSample nextSample(final Random random, final long[] state)
+        {
+            return new ScalarSample<Double>(SampleOpcode.DOUBLE, 42.0);
+        }
+    },
+    /**
+     * Monotonic counters, e.g. requests served, sent as longs
+     */
+    COUNTERS {
+        @Override
+        public ScalarSample nextSample(final Random random, final long[] state)
+        {
+            state[0] += random.nextInt(1000);
+            return new ScalarSample<Long>(SampleOpcode.LONG, state[0]);
+        }
+    },
+    /**
+     * Measurements which rarely repeat, e.g. latencies and load averages
+     */
+    NOISY_DOUBLES {
+        @Override
+        public ScalarSample nextSample(final Random random, final long[] state)
+        {
+            return new ScalarSample<Double>(SampleOpcode.DOUBLE, 1000.0 + random.nextGaussian() * 100.0);
+        }
+    };
+
+    public static final long SEED = 0xA2EC1B0L;
+    public static final DateTime START_TIME = new DateTime(2012, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC);
+
+    /**
+     * @param random the source of noise
+     * @param state  one long of state per stream, e.g. the value of a counter
+     * @return the next sample of the stream
+     */
+    public abstract ScalarSample nextSample(final Random random, final long[] state);
+
+    /**
+     * @return sampleCount samples of a single stream, always the same for a given distribution and count
+     */
+    public List<ScalarSample> generateSamples(final int sampleCount)
+    {
+        final Random random = new Random(SEED);
+        final long[] state = new long[1];
+        final List<ScalarSample> samples = new ArrayList<ScalarSample>(sampleCount);
+        for (int i = 0; i < sampleCount; i++) {
+            samples.add(nextSample(random, state));
+        }
+        return samples;
+    }
+
+    /**
+     * @return sampleCount sample times, pollingSeconds apart, with the occasional late poll
+     */
+    public static List<DateTime> generateTimes(final int sampleCount, final int pollingSeconds)
+    {
+        final Random random = new Random(SEED);
+        final List<DateTime> times = new ArrayList<DateTime>(sampleCount);
+        DateTime time = START_TIME;
+        for (int i = 0; i < sampleCount; i++) {
+            times.add(time);
+            time = time.plusSeconds(random.nextInt(20) == 0 ? pollingSeconds + 1 + random.nextInt(pollingSeconds) : pollingSeconds);
+        }
+        return times;
+    }
+}
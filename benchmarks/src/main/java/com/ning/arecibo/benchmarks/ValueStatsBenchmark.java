@@ -0,0 +1,101 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ning.arecibo.util.esper.MiniEsperEngine;
+import com.ning.arecibo.util.metrics.StripedCounter;
+import com.ning.arecibo.util.metrics.ValueStats;
+
+/**
+ * Per-event cost of recording a value (a datagram size, a processing time) in the stats of
+ * the UDP handler and of the aggregator: MiniEsperEngine, which they used to send every value
+ * to, against ValueStats. The *Contended variants record from four threads into shared stats,
+ * as the dispatcher threads do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValueStatsBenchmark
+{
+    private final MiniEsperEngine<Long> miniEsperEngine = new MiniEsperEngine<Long>(ValueStatsBenchmark.class.getSimpleName(), Long.class);
+    private final ValueStats valueStats = new ValueStats();
+    private final StripedCounter counter = new StripedCounter();
+
+    private long value = 0;
+
+    private long nextValue()
+    {
+        // Racy on purpose in the contended benchmarks, any spread of values will do
+        value = (value + 7919) & 0xFFFF;
+        return value;
+    }
+
+    @Benchmark
+    public void miniEsperEngine()
+    {
+        miniEsperEngine.send(nextValue());
+    }
+
+    @Benchmark
+    public void valueStats()
+    {
+        valueStats.record(nextValue());
+    }
+
+    @Benchmark
+    public void stripedCounter()
+    {
+        counter.increment();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void miniEsperEngineContended()
+    {
+        miniEsperEngine.send(nextValue());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void valueStatsContended()
+    {
+        valueStats.record(nextValue());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void stripedCounterContended()
+    {
+        counter.increment();
+    }
+}
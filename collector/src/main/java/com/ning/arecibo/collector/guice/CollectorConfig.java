@@ -17,6 +17,7 @@
 package com.ning.arecibo.collector.guice;
 
 import org.skife.config.Config;
+import org.skife.config.DataAmount;
 import org.skife.config.Default;
 import org.skife.config.DefaultNull;
 import org.skife.config.Description;
@@ -41,7 +42,7 @@ public interface CollectorConfig
 
     @Config("arecibo.collector.eventSerializersKlass")
     @Description("Serializers classes to use to deserialize incoming events")
-    @Default("com.ning.arecibo.event.transport.JavaEventSerializer,com.ning.arecibo.event.transport.JsonEventSerializer,com.ning.arecibo.event.transport.MapEventSerializer")
+    @Default("com.ning.arecibo.event.transport.JavaEventSerializer,com.ning.arecibo.event.transport.JsonEventSerializer,com.ning.arecibo.event.transport.MapEventSerializer,com.ning.arecibo.event.transport.BinaryEventSerializer")
     String getEventSerializers();
 
     @Config("arecibo.collector.eventFilterKlass")
@@ -86,6 +87,31 @@ public interface CollectorConfig
     @Default("1m")
     TimeSpan getBackgroundWriteMaxDelay();
 
+    @Config("arecibo.collector.timelines.backgroundWriteThreads")
+    @Description("The number of threads writing batches of TimelineChunks to the db; the chunks of a given host are always written by the same thread")
+    @Default("1")
+    int getBackgroundWriteThreads();
+
+    @Config("arecibo.collector.timelines.backgroundWriteMaxPendingBytes")
+    @Description("The amount of TimelineChunk bytes queued for, or in the middle of, background writes above which incoming samples are held back")
+    @Default("256MB")
+    DataAmount getBackgroundWriteMaxPendingBytes();
+
+    @Config("arecibo.collector.timelines.backgroundWriteMaxBackpressureWait")
+    @Description("The longest time incoming samples are held back by backgroundWriteMaxPendingBytes; they are already in the spool files, so after this they are accumulated anyway")
+    @Default("10s")
+    TimeSpan getBackgroundWriteMaxBackpressureWait();
+
+    @Config("arecibo.collector.timelines.backgroundWriteRetryDelay")
+    @Description("The delay before retrying a batch of TimelineChunks whose write failed; it doubles with each failure of the batch, up to backgroundWriteMaxRetryDelay")
+    @Default("1s")
+    TimeSpan getBackgroundWriteRetryDelay();
+
+    @Config("arecibo.collector.timelines.backgroundWriteMaxRetryDelay")
+    @Description("The longest delay between retries of a batch of TimelineChunks whose write failed")
+    @Default("1m")
+    TimeSpan getBackgroundWriteMaxRetryDelay();
+
     @Config("arecibo.collector.timelines.timelineAggregationEnabled")
     @Description("If true, periodically perform timeline aggregation; if false, don't aggregate")
     @Default("true")
@@ -117,6 +143,16 @@ public interface CollectorConfig
     @Default("50ms")
     TimeSpan getAggregationSleepBetweenBatches();
 
+    @Config("arecibo.collector.timelines.aggregationPartitions")
+    @Description("The number of host_id hash buckets each aggregation level is split into; each partition is streamed and written independently. 1 means a single unpartitioned pass")
+    @Default("1")
+    int getAggregationPartitions();
+
+    @Config("arecibo.collector.timelines.aggregationThreads")
+    @Description("The number of worker threads used to aggregate partitions concurrently, when aggregationPartitions is greater than 1")
+    @Default("4")
+    int getAggregationThreads();
+
     @Config("arecibo.collector.timelines.maxChunkIdsToInvalidateOrDelete")
     @Description("If the number of queued chunkIds to invalidate or delete is greater than or equal to this count, perform aggregated timeline writes and delete or invalidate the chunks aggregated")
     @Default("1000")
@@ -142,11 +178,51 @@ public interface CollectorConfig
     @Default("10")
     int getMaxNbSegments();
 
+    @Config("arecibo.collector.timelines.writeAheadLogEnabled")
+    @Description("If true, log incoming samples to memory-mapped write-ahead log segments in the spool directory, instead of buffering them in direct memory and spilling them to disk in Smile")
+    @Default("false")
+    boolean getWriteAheadLogEnabled();
+
+    @Config("arecibo.collector.timelines.writeAheadLogSegmentSize")
+    @Description("The size of each write-ahead log segment file")
+    @Default("64MB")
+    DataAmount getWriteAheadLogSegmentSize();
+
+    @Config("arecibo.collector.timelines.writeAheadLogSyncInterval")
+    @Description("How often the write-ahead log is forced to disk; 0ms forces it on every append")
+    @Default("100ms")
+    TimeSpan getWriteAheadLogSyncInterval();
+
+    @Config("arecibo.collector.timelines.chunkSamplesCacheSize")
+    @Description("The memory used to cache the decoded samples of persisted chunks returned by the REST API; 0 disables the cache")
+    @Default("64MB")
+    DataAmount getChunkSamplesCacheSize();
+
+    @Config("arecibo.collector.timelines.storedChunksShardSize")
+    @Description("If positive, REST queries for more hosts than this are split into shards of that many hosts, queried and decoded concurrently; 0 queries all hosts at once")
+    @Default("0")
+    int getStoredChunksShardSize();
+
+    @Config("arecibo.collector.timelines.storedChunksShardThreads")
+    @Description("The number of threads, shared by all REST requests, querying and decoding shards of stored chunks")
+    @Default("8")
+    int getStoredChunksShardThreads();
+
+    @Config("arecibo.collector.timelines.maxConcurrentShardsPerRequest")
+    @Description("The maximum number of shards of a single REST request queried or buffered at the same time")
+    @Default("4")
+    int getMaxConcurrentShardsPerRequest();
+
     @Config("arecibo.collector.timelines.spoolDir")
     @Description("Spool directory for in-memory data")
     @Default("/var/tmp/arecibo")
     String getSpoolDir();
 
+    @Config("arecibo.collector.timelines.replayThreads")
+    @Description("The number of threads replaying the spool files on startup; samples of a given host are always replayed in order. 1 means a sequential replay")
+    @Default("1")
+    int getReplayThreads();
+
     @Config("arecibo.collector.rt.kafka.enabled")
     @Description("Whether Kafka is enabled")
     @Default("false")
@@ -27,6 +27,7 @@ import com.ning.arecibo.collector.healthchecks.DAOHealthCheck;
 import com.ning.arecibo.collector.healthchecks.TimelineEventHandlerHealthCheck;
 import com.ning.arecibo.collector.persistent.BackgroundDBChunkWriter;
 import com.ning.arecibo.collector.persistent.TimelineAggregator;
+import com.ning.arecibo.collector.persistent.TimelineChunkSamplesCache;
 import com.ning.arecibo.collector.persistent.TimelineEventHandler;
 import com.ning.arecibo.collector.process.EventHandler;
 import com.ning.arecibo.collector.rt.kafka.KafkaEventHandler;
@@ -41,6 +42,7 @@ import com.ning.arecibo.util.service.DummyServiceLocator;
 import com.ning.arecibo.util.service.ServiceLocator;
 import com.ning.arecibo.util.timeline.persistent.FileBackedBuffer;
 import com.ning.arecibo.util.timeline.persistent.TimelineDAO;
+import com.ning.arecibo.util.timeline.persistent.WriteAheadLogBuffer;
 import com.ning.arecibo.util.timeline.samples.SampleCoder;
 import com.ning.arecibo.util.timeline.samples.SampleCoderImpl;
 import com.ning.arecibo.util.timeline.times.TimelineCoder;
@@ -73,6 +75,7 @@ public class CollectorModule extends AbstractModule
         configureFileBackedBuffer(config);
         configureDao();
         configureTimelineObjects();
+        configureTimelineChunkSamplesCache();
         configureTimelineAggregator();
         configureBackgroundDBChunkWriter();
         configureStats();
@@ -95,7 +98,14 @@ public class CollectorModule extends AbstractModule
         // Persistent buffer for in-memory samples
         try {
             final boolean deleteFilesOnClose = config.getShutdownSaveMode().equals("save_all_timelines");
-            final FileBackedBuffer fileBackedBuffer = new FileBackedBuffer(config.getSpoolDir(), "TimelineEventHandler", deleteFilesOnClose, config.getSegmentsSize(), config.getMaxNbSegments());
+            final FileBackedBuffer fileBackedBuffer;
+            if (config.getWriteAheadLogEnabled()) {
+                fileBackedBuffer = new WriteAheadLogBuffer(config.getSpoolDir(), "TimelineEventHandler", deleteFilesOnClose,
+                        (int) config.getWriteAheadLogSegmentSize().getNumberOfBytes(), config.getWriteAheadLogSyncInterval().getMillis());
+            }
+            else {
+                fileBackedBuffer = new FileBackedBuffer(config.getSpoolDir(), "TimelineEventHandler", deleteFilesOnClose, config.getSegmentsSize(), config.getMaxNbSegments());
+            }
             exporter.export(ObjectNames.generatedNameOf(FileBackedBuffer.class), fileBackedBuffer);
             bind(FileBackedBuffer.class).toInstance(fileBackedBuffer);
         }
@@ -117,6 +127,14 @@ public class CollectorModule extends AbstractModule
         bind(SampleCoder.class).to(SampleCoderImpl.class).asEagerSingleton();
     }
 
+    protected void configureTimelineChunkSamplesCache()
+    {
+        bind(TimelineChunkSamplesCache.class).asEagerSingleton();
+
+        final ExportBuilder builder = MBeanModule.newExporter(binder());
+        builder.export(TimelineChunkSamplesCache.class).withGeneratedName();
+    }
+
     protected void configureTimelineAggregator()
     {
         final LifecycledProvider<TimelineAggregator> lifecycledProvider = new LifecycledProvider<TimelineAggregator>(binder(), TimelineAggregator.class);
@@ -18,6 +18,8 @@ package com.ning.arecibo.collector.persistent;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -36,6 +38,9 @@ import com.ning.arecibo.collector.guice.CollectorConfig;
 import com.ning.arecibo.util.Logger;
 import com.ning.arecibo.util.timeline.chunks.TimelineChunk;
 import com.ning.arecibo.util.timeline.persistent.TimelineDAO;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MeterMetric;
+import com.yammer.metrics.core.TimerMetric;
 
 /**
  * This class runs a thread that batch-writes TimelineChunks to the db.
@@ -47,6 +52,23 @@ import com.ning.arecibo.util.timeline.persistent.TimelineDAO;
  * chunks if there are at least config.getBackgroundWriteBatchSize()
  * TimelineChunks to be written, or if the time since the last write exceeds
  * config.getBackgroundWriteMaxDelay().
+ * <p/>
+ * The inventory is cut into batches of about config.getBackgroundWriteBatchSize()
+ * chunks, which are handed to config.getBackgroundWriteThreads() writer threads.
+ * The TimelineDAO keeps one handle per thread, so each writer commits its batches
+ * independently.  A TimelineHostEventAccumulator expects its PendingChunkMaps to be
+ * consumed in the order they were queued, so all the maps of a host go to the same
+ * writer thread, which handles its batches in order.
+ * <p/>
+ * The bytes of the chunks queued or being written are tracked; when they exceed
+ * config.getBackgroundWriteMaxPendingBytes(), awaitPendingCapacity() holds back
+ * the threads about to queue more chunks, for at most config.getBackgroundWriteMaxBackpressureWait().
+ * <p/>
+ * A batch whose write fails is retried by its writer thread, after a delay doubling from
+ * config.getBackgroundWriteRetryDelay() up to config.getBackgroundWriteMaxRetryDelay(), so
+ * the later batches of its hosts wait for it.  Its maps are only marked consumed, and its
+ * bytes released, once it is written.  Once shutting down, a failed batch is given up on,
+ * leaving its maps pending in their accumulators.
  */
 @Singleton
 public class BackgroundDBChunkWriter
@@ -59,10 +81,17 @@ public class BackgroundDBChunkWriter
 
     private final AtomicInteger pendingChunkCount = new AtomicInteger();
     private final AtomicBoolean shuttingDown = new AtomicBoolean();
+    private final CountDownLatch shutdownLatch = new CountDownLatch(1);
     private List<PendingChunkMap> pendingChunks = new ArrayList<PendingChunkMap>();
     private DateTime lastWriteTime = new DateTime();
     private AtomicBoolean doingWritesNow = new AtomicBoolean();
     private final ScheduledExecutorService backgroundWriteThread = Executors.newSingleThreadScheduledExecutor("TimelineCommitter");
+    private final ExecutorService[] writerThreads;
+
+    // The bytes of chunks added but not yet written, and the monitor backpressured threads wait on
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final Object pendingBytesMonitor = new Object();
+    private final AtomicInteger batchesInFlight = new AtomicInteger();
 
     private final AtomicLong maybePerformBackgroundWritesCount = new AtomicLong();
     private final AtomicLong backgroundWritesCount = new AtomicLong();
@@ -73,6 +102,15 @@ public class BackgroundDBChunkWriter
     private final AtomicLong pendingChunkMapsMarkedConsumed = new AtomicLong();
     private final AtomicLong foregroundChunkMapsWritten = new AtomicLong();
     private final AtomicLong foregroundChunksWritten = new AtomicLong();
+    private final AtomicLong batchesWritten = new AtomicLong();
+    private final AtomicLong batchWriteFailures = new AtomicLong();
+    private final AtomicLong batchesAbandoned = new AtomicLong();
+    private final AtomicLong backpressureWaits = new AtomicLong();
+    private final AtomicLong backpressureTimeouts = new AtomicLong();
+    private final AtomicLong msSpentInBackpressure = new AtomicLong();
+
+    private final TimerMetric batchWriteTimer = Metrics.newTimer(BackgroundDBChunkWriter.class, "batchWrites", TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+    private final MeterMetric chunksWrittenMeter = Metrics.newMeter(BackgroundDBChunkWriter.class, "chunksWritten", "chunks", TimeUnit.SECONDS);
 
     @Inject
     public BackgroundDBChunkWriter(final TimelineDAO timelineDAO, final CollectorConfig config)
@@ -85,6 +123,15 @@ public class BackgroundDBChunkWriter
         this.timelineDAO = timelineDAO;
         this.config = config;
         this.performForegroundWrites = performForegroundWrites;
+        if (performForegroundWrites) {
+            this.writerThreads = new ExecutorService[0];
+        }
+        else {
+            this.writerThreads = new ExecutorService[Math.max(1, config.getBackgroundWriteThreads())];
+            for (int i = 0; i < writerThreads.length; i++) {
+                writerThreads[i] = Executors.newSingleThreadExecutor("TimelineCommitter-" + i);
+            }
+        }
     }
 
     public synchronized void addPendingChunkMap(final PendingChunkMap chunkMap)
@@ -106,10 +153,46 @@ public class BackgroundDBChunkWriter
                 pendingChunksAdded.addAndGet(chunkCount);
                 pendingChunks.add(chunkMap);
                 pendingChunkCount.addAndGet(chunkCount);
+                pendingBytes.addAndGet(getByteCount(chunkMap));
             }
         }
     }
 
+    /**
+     * Called by threads about to add samples which make an accumulator queue its chunks, before
+     * they take the accumulator lock.  If the chunks waiting to be written exceed the configured
+     * memory cap, wait until the writers catch up, or until the max backpressure wait has elapsed.
+     */
+    public void awaitPendingCapacity()
+    {
+        if (performForegroundWrites || pendingBytes.get() < config.getBackgroundWriteMaxPendingBytes().getNumberOfBytes()) {
+            return;
+        }
+        backpressureWaits.incrementAndGet();
+        final long maxPendingBytes = config.getBackgroundWriteMaxPendingBytes().getNumberOfBytes();
+        final long startTime = System.currentTimeMillis();
+        final long deadline = startTime + config.getBackgroundWriteMaxBackpressureWait().getMillis();
+        try {
+            synchronized (pendingBytesMonitor) {
+                while (pendingBytes.get() >= maxPendingBytes && !shuttingDown.get()) {
+                    final long waitMs = deadline - System.currentTimeMillis();
+                    if (waitMs <= 0) {
+                        backpressureTimeouts.incrementAndGet();
+                        log.warn("Pending chunk bytes %d still over the limit of %d after waiting %d ms", pendingBytes.get(), maxPendingBytes, System.currentTimeMillis() - startTime);
+                        return;
+                    }
+                    pendingBytesMonitor.wait(waitMs);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            msSpentInBackpressure.addAndGet(System.currentTimeMillis() - startTime);
+        }
+    }
+
     private void performBackgroundWrites()
     {
         backgroundWritesCount.incrementAndGet();
@@ -119,19 +202,137 @@ public class BackgroundDBChunkWriter
             pendingChunks = new ArrayList<PendingChunkMap>();
             pendingChunkCount.set(0);
         }
+        if (chunkMapsToWrite.isEmpty()) {
+            return;
+        }
+        // Deal the maps to the writer of their host, preserving their order, then cut each writer's
+        // share into batches without splitting a map, since a map is consumed as a whole
+        final List<List<PendingChunkMap>> writerShares = new ArrayList<List<PendingChunkMap>>(writerThreads.length);
+        for (int i = 0; i < writerThreads.length; i++) {
+            writerShares.add(new ArrayList<PendingChunkMap>());
+        }
+        for (final PendingChunkMap map : chunkMapsToWrite) {
+            writerShares.get(getWriterIndex(map)).add(map);
+        }
+        final int batchSize = Math.max(1, config.getBackgroundWriteBatchSize());
+        for (int i = 0; i < writerThreads.length; i++) {
+            List<PendingChunkMap> batch = new ArrayList<PendingChunkMap>();
+            int batchChunkCount = 0;
+            for (final PendingChunkMap map : writerShares.get(i)) {
+                batch.add(map);
+                batchChunkCount += map.getChunkCount();
+                if (batchChunkCount >= batchSize) {
+                    submitBatch(i, batch);
+                    batch = new ArrayList<PendingChunkMap>();
+                    batchChunkCount = 0;
+                }
+            }
+            if (!batch.isEmpty()) {
+                submitBatch(i, batch);
+            }
+        }
+    }
+
+    private int getWriterIndex(final PendingChunkMap map)
+    {
+        return (map.getAccumulator().getHostId() & Integer.MAX_VALUE) % writerThreads.length;
+    }
+
+    private void submitBatch(final int writerIndex, final List<PendingChunkMap> batch)
+    {
+        batchesInFlight.incrementAndGet();
+        writerThreads[writerIndex].execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    writeBatch(batch);
+                }
+                finally {
+                    batchesInFlight.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    private void writeBatch(final List<PendingChunkMap> chunkMapsToWrite)
+    {
         final List<TimelineChunk> chunks = new ArrayList<TimelineChunk>();
+        long byteCount = 0;
         for (PendingChunkMap map : chunkMapsToWrite) {
-            pendingChunkMapsWritten.incrementAndGet();
-            pendingChunksWritten.addAndGet(map.getChunkMap().size());
             chunks.addAll(map.getChunkMap().values());
+            byteCount += getByteCount(map);
         }
-        timelineDAO.bulkInsertTimelineChunks(chunks);
+        if (!insertWithRetries(chunks)) {
+            batchesAbandoned.incrementAndGet();
+            log.error("Giving up on a batch of %d TimelineChunks while shutting down; their maps stay pending", chunks.size());
+            releasePendingBytes(byteCount);
+            return;
+        }
+        chunksWrittenMeter.mark(chunks.size());
+        batchesWritten.incrementAndGet();
+        // Release the waiting producers before marking the maps consumed, since a producer may
+        // be holding the lock of an accumulator whose map is in this batch
+        releasePendingBytes(byteCount);
         for (PendingChunkMap map : chunkMapsToWrite) {
+            pendingChunkMapsWritten.incrementAndGet();
+            pendingChunksWritten.addAndGet(map.getChunkMap().size());
             pendingChunkMapsMarkedConsumed.incrementAndGet();
             map.getAccumulator().markPendingChunkMapConsumed(map.getPendingChunkMapId());
         }
     }
 
+    /**
+     * @return true once the chunks are written, false if the write failed while shutting down
+     */
+    private boolean insertWithRetries(final List<TimelineChunk> chunks)
+    {
+        long retryDelayMs = config.getBackgroundWriteRetryDelay().getMillis();
+        while (true) {
+            final long startTime = System.nanoTime();
+            try {
+                timelineDAO.bulkInsertTimelineChunks(chunks);
+                batchWriteTimer.update(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+                return true;
+            }
+            catch (RuntimeException e) {
+                batchWriteFailures.incrementAndGet();
+                if (shuttingDown.get()) {
+                    log.error(e, "Exception writing a batch of %d TimelineChunks", chunks.size());
+                    return false;
+                }
+                log.error(e, "Exception writing a batch of %d TimelineChunks, retrying in %d ms", chunks.size(), retryDelayMs);
+            }
+            try {
+                // Shutting down cuts the delay short, for a last attempt
+                shutdownLatch.await(retryDelayMs, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            retryDelayMs = Math.min(2 * retryDelayMs, config.getBackgroundWriteMaxRetryDelay().getMillis());
+        }
+    }
+
+    private void releasePendingBytes(final long byteCount)
+    {
+        pendingBytes.addAndGet(-byteCount);
+        synchronized (pendingBytesMonitor) {
+            pendingBytesMonitor.notifyAll();
+        }
+    }
+
+    private static long getByteCount(final PendingChunkMap map)
+    {
+        long byteCount = 0;
+        for (final TimelineChunk chunk : map.getChunkMap().values()) {
+            byteCount += chunk.getTimes().length + chunk.getSamples().length;
+        }
+        return byteCount;
+    }
+
     private void maybePerformBackgroundWrites()
     {
         // If already running background writes, just return
@@ -161,12 +362,16 @@ public class BackgroundDBChunkWriter
 
     public synchronized boolean getShutdownFinished()
     {
-        return doingWritesNow.get() == false && pendingChunks.size() == 0;
+        return doingWritesNow.get() == false && pendingChunks.size() == 0 && batchesInFlight.get() == 0;
     }
 
     public void initiateShutdown()
     {
         shuttingDown.set(true);
+        shutdownLatch.countDown();
+        synchronized (pendingBytesMonitor) {
+            pendingBytesMonitor.notifyAll();
+        }
     }
 
     public void runBackgroundWriteThread() {
@@ -188,6 +393,9 @@ public class BackgroundDBChunkWriter
     public void stopBackgroundWriteThread() {
         if (!performForegroundWrites) {
             backgroundWriteThread.shutdown();
+            for (final ExecutorService writerThread : writerThreads) {
+                writerThread.shutdown();
+            }
         }
     }
 
@@ -244,4 +452,82 @@ public class BackgroundDBChunkWriter
     {
         return foregroundChunksWritten.get();
     }
+
+    @Managed
+    public int getPendingChunkCount()
+    {
+        return pendingChunkCount.get();
+    }
+
+    @Managed
+    public long getPendingBytes()
+    {
+        return pendingBytes.get();
+    }
+
+    @Managed
+    public int getBatchesInFlight()
+    {
+        return batchesInFlight.get();
+    }
+
+    @Managed
+    public long getBatchesWritten()
+    {
+        return batchesWritten.get();
+    }
+
+    @Managed
+    public long getBatchWriteFailures()
+    {
+        return batchWriteFailures.get();
+    }
+
+    @Managed
+    public long getBatchesAbandoned()
+    {
+        return batchesAbandoned.get();
+    }
+
+    @Managed
+    public double getBatchWriteMillis50thPercentile()
+    {
+        return batchWriteTimer.percentile(0.5);
+    }
+
+    @Managed
+    public double getBatchWriteMillis95thPercentile()
+    {
+        return batchWriteTimer.percentile(0.95);
+    }
+
+    @Managed
+    public double getBatchWriteMillis99thPercentile()
+    {
+        return batchWriteTimer.percentile(0.99);
+    }
+
+    @Managed
+    public double getChunksWrittenPerSecondOneMinuteRate()
+    {
+        return chunksWrittenMeter.oneMinuteRate();
+    }
+
+    @Managed
+    public long getBackpressureWaits()
+    {
+        return backpressureWaits.get();
+    }
+
+    @Managed
+    public long getBackpressureTimeouts()
+    {
+        return backpressureTimeouts.get();
+    }
+
+    @Managed
+    public long getMsSpentInBackpressure()
+    {
+        return msSpentInBackpressure.get();
+    }
 }
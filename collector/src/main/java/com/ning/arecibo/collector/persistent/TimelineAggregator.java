@@ -21,6 +21,9 @@ import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -50,6 +53,12 @@ import com.ning.arecibo.util.timeline.times.TimelineCoder;
  * This class runs a thread that periodically looks for unaggregated timelines.
  * When it finds them, it combines them intelligently as if they were originally
  * a single sequence of times.
+ * <p/>
+ * If arecibo.collector.timelines.aggregationPartitions is greater than 1, each aggregation
+ * level is split into that many host_id hash buckets.  Each partition is streamed through its
+ * own cursor and written in its own batched transactions by a pool of aggregationThreads
+ * workers; a level is completed by all partitions before the next level is started, since
+ * the higher level consumes the chunks the lower one creates.
  */
 public class TimelineAggregator
 {
@@ -62,7 +71,9 @@ public class TimelineAggregator
     private final CollectorConfig config;
     private final TimelineAggregatorDAO aggregatorDao;
     private final TimelineChunkMapper timelineChunkMapper;
+    private final TimelineChunkSamplesCache samplesCache;
     private final ScheduledExecutorService aggregatorThread = Executors.newSingleThreadScheduledExecutor("TimelineAggregator");
+    private final ExecutorService partitionExecutor;
 
     private Map<String, AtomicLong> aggregatorCounters = new LinkedHashMap<String, AtomicLong>();
 
@@ -82,12 +93,11 @@ public class TimelineAggregator
     private final AtomicLong msSpentSleeping = makeCounter("msSpentSleeping");
     private final AtomicLong msWritingDb = makeCounter("msWritingDb");
 
-    // These lists support batching of aggregated chunk writes and updates or deletes of the chunks aggregated
-    private final List<TimelineChunk> chunksToWrite = new ArrayList<TimelineChunk>();
-    private final List<Long> chunkIdsToInvalidateOrDelete = new ArrayList<Long>();
+    private final AggregationPartition[] partitions;
 
     @Inject
-    public TimelineAggregator(final IDBI dbi, final DefaultTimelineDAO timelineDao, final TimelineCoder timelineCoder, final SampleCoder sampleCoder, final CollectorConfig config)
+    public TimelineAggregator(final IDBI dbi, final DefaultTimelineDAO timelineDao, final TimelineCoder timelineCoder, final SampleCoder sampleCoder, final CollectorConfig config,
+                              final TimelineChunkSamplesCache samplesCache)
     {
         this.dbi = dbi;
         this.timelineDao = timelineDao;
@@ -96,9 +106,22 @@ public class TimelineAggregator
         this.config = config;
         this.aggregatorDao = dbi.onDemand(TimelineAggregatorDAO.class);
         this.timelineChunkMapper = new TimelineChunkMapper(sampleCoder);
+        this.samplesCache = samplesCache;
+
+        final int partitionCount = Math.max(1, config.getAggregationPartitions());
+        this.partitions = new AggregationPartition[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new AggregationPartition(i, partitionCount);
+        }
+        if (partitionCount > 1) {
+            this.partitionExecutor = Executors.newFixedThreadPool(Math.max(1, Math.min(partitionCount, config.getAggregationThreads())), "TimelineAggregatorPartition");
+        }
+        else {
+            this.partitionExecutor = null;
+        }
     }
 
-    private int aggregateTimelineCandidates(final List<TimelineChunk> timelineChunkCandidates, final int aggregationLevel, final int chunksToAggregate)
+    private int aggregateTimelineCandidates(final AggregationPartition partition, final List<TimelineChunk> timelineChunkCandidates, final int aggregationLevel, final int chunksToAggregate)
     {
         final TimelineChunk firstCandidate = timelineChunkCandidates.get(0);
         final int hostId = firstCandidate.getHostId();
@@ -112,7 +135,7 @@ public class TimelineAggregator
             chunkIndex += chunksToAggregate;
             timelineChunksCombined.addAndGet(chunksToAggregate);
             try {
-                aggregateHostSampleChunks(chunkCandidates, aggregationLevel);
+                aggregateHostSampleChunks(partition, chunkCandidates, aggregationLevel);
             }
             catch (IOException e) {
                 log.error(e, "IOException aggregating {} chunks, host_id {}, sampleKindId {}, looking to aggregate {} candidates in {} chunks",
@@ -134,9 +157,10 @@ public class TimelineAggregator
      * any TimelineChunks that happen to be in the cache.</li>
      * <p/>
      *
+     * @param partition      the partition whose write batch receives the aggregated chunk
      * @param timelineChunks the TimelineChunks to be aggregated
      */
-    private void aggregateHostSampleChunks(final List<TimelineChunk> timelineChunks, final int aggregationLevel) throws IOException
+    private void aggregateHostSampleChunks(final AggregationPartition partition, final List<TimelineChunk> timelineChunks, final int aggregationLevel) throws IOException
     {
         final TimelineChunk firstTimesChunk = timelineChunks.get(0);
         final TimelineChunk lastTimesChunk = timelineChunks.get(timelineChunks.size() - 1);
@@ -165,12 +189,12 @@ public class TimelineAggregator
             final int totalSampleCount = sampleCount;
             final TimelineChunk chunk = new TimelineChunk(sampleCoder, 0, hostId, firstTimesChunk.getSampleKindId(), startTime, endTime,
                     combinedTimeBytes, combinedSampleBytes, totalSampleCount, aggregationLevel + 1, false, false);
-            chunksToWrite.add(chunk);
-            chunkIdsToInvalidateOrDelete.addAll(timelineChunkIds);
+            partition.chunksToWrite.add(chunk);
+            partition.chunkIdsToInvalidateOrDelete.addAll(timelineChunkIds);
             timelineChunksQueuedForCreation.incrementAndGet();
 
-            if (chunkIdsToInvalidateOrDelete.size() >= config.getMaxChunkIdsToInvalidateOrDelete()) {
-                performWrites();
+            if (partition.chunkIdsToInvalidateOrDelete.size() >= config.getMaxChunkIdsToInvalidateOrDelete()) {
+                performWrites(partition);
             }
         }
         catch (Exception e) {
@@ -179,10 +203,13 @@ public class TimelineAggregator
         }
     }
 
-    private void performWrites()
+    private void performWrites(final AggregationPartition partition)
     {
+        final List<TimelineChunk> chunksToWrite = partition.chunksToWrite;
+        final List<Long> chunkIdsToInvalidateOrDelete = partition.chunkIdsToInvalidateOrDelete;
         // This is the atomic operation: bulk insert the new aggregated TimelineChunk objects, and delete
-        // or invalidate the ones that were aggregated.  This should be very fast.
+        // or invalidate the ones that were aggregated.  This should be very fast.  The on-demand DAO
+        // keeps one handle per thread, so concurrent partitions each get their own transaction.
         final long startWriteTime = System.currentTimeMillis();
         aggregatorDao.begin();
         timelineDao.bulkInsertTimelineChunks(chunksToWrite);
@@ -193,10 +220,12 @@ public class TimelineAggregator
             aggregatorDao.makeTimelineChunksInvalid(chunkIdsToInvalidateOrDelete);
         }
         aggregatorDao.commit();
+        samplesCache.invalidate(chunkIdsToInvalidateOrDelete);
         msWritingDb.addAndGet(System.currentTimeMillis() - startWriteTime);
 
         timelineChunksWritten.addAndGet(chunksToWrite.size());
         timelineChunksInvalidatedOrDeleted.addAndGet(chunkIdsToInvalidateOrDelete.size());
+        partition.recordBatch(chunksToWrite.size());
         chunksToWrite.clear();
         chunkIdsToInvalidateOrDelete.clear();
         final long sleepMs = config.getAggregationSleepBetweenBatches().getMillis();
@@ -233,7 +262,7 @@ public class TimelineAggregator
             final Map<String, Long> initialCounters = captureAggregatorCounters();
             final int chunkCountIndex = aggregationLevel >= chunkCountsToAggregate.length ? chunkCountsToAggregate.length - 1 : aggregationLevel;
             final int chunksToAggregate = Integer.parseInt(chunkCountsToAggregate[chunkCountIndex]);
-            streamingAggregateLevel(aggregationLevel, chunksToAggregate);
+            aggregateLevel(aggregationLevel, chunksToAggregate);
             final Map<String, Long> counterDeltas = subtractFromAggregatorCounters(initialCounters);
             final long netAggregatesCreated = aggregatesCreated.get() - startingAggregatesCreated;
             if (netAggregatesCreated == 0) {
@@ -263,7 +292,40 @@ public class TimelineAggregator
         isAggregating.set(false);
     }
 
-    private void streamingAggregateLevel(final int aggregationLevel, final int chunksToAggregate)
+    private void aggregateLevel(final int aggregationLevel, final int chunksToAggregate)
+    {
+        if (partitionExecutor == null) {
+            streamingAggregateLevel(partitions[0], aggregationLevel, chunksToAggregate);
+            return;
+        }
+
+        final List<Future<?>> futures = new ArrayList<Future<?>>(partitions.length);
+        for (final AggregationPartition partition : partitions) {
+            futures.add(partitionExecutor.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    streamingAggregateLevel(partition, aggregationLevel, chunksToAggregate);
+                }
+            }));
+        }
+        // The next level aggregates the chunks created by this one, so wait for every partition to finish
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (ExecutionException e) {
+                log.error(e.getCause(), "Exception during aggregation of level %d, partition %d", aggregationLevel, i);
+            }
+        }
+    }
+
+    private void streamingAggregateLevel(final AggregationPartition partition, final int aggregationLevel, final int chunksToAggregate)
     {
         final List<TimelineChunk> hostTimelineCandidates = new ArrayList<TimelineChunk>();
         final TimelineChunkConsumer aggregationConsumer = new TimelineChunkConsumer() {
@@ -274,6 +336,7 @@ public class TimelineAggregator
             @Override
             public void processTimelineChunk(TimelineChunk candidate) {
                 timelineChunksConsidered.incrementAndGet();
+                partition.chunksConsidered.incrementAndGet();
                 final int hostId = candidate.getHostId();
                 final int sampleKindId = candidate.getSampleKindId();
                 if (lastHostId == 0) {
@@ -281,7 +344,7 @@ public class TimelineAggregator
                     lastSampleKindId = sampleKindId;
                 }
                 if (lastHostId != hostId || lastSampleKindId != sampleKindId) {
-                    aggregatesCreated.addAndGet(aggregateTimelineCandidates(hostTimelineCandidates, aggregationLevel, chunksToAggregate));
+                    partition.recordAggregates(aggregateTimelineCandidates(partition, hostTimelineCandidates, aggregationLevel, chunksToAggregate));
                     hostTimelineCandidates.clear();
                     lastHostId = hostId;
                     lastSampleKindId = sampleKindId;
@@ -296,8 +359,16 @@ public class TimelineAggregator
                 @Override
                 public Void withHandle(Handle handle) throws Exception
                 {
-                    Query<Map<String, Object>> query = handle.createQuery("getStreamingAggregationCandidates")
-                        .setFetchSize(Integer.MIN_VALUE)
+                    final Query<Map<String, Object>> query;
+                    if (partition.partitionCount == 1) {
+                        query = handle.createQuery("getStreamingAggregationCandidates");
+                    }
+                    else {
+                        query = handle.createQuery("getStreamingAggregationCandidatesForPartition")
+                            .bind("partition", partition.partition)
+                            .bind("partitionCount", partition.partitionCount);
+                    }
+                    query.setFetchSize(Integer.MIN_VALUE)
                         .bind("aggregationLevel", aggregationLevel);
                     query.setStatementLocator(new StringTemplate3StatementLocator(TimelineAggregatorDAO.class));
                     ResultIterator<TimelineChunk> iterator = null;
@@ -310,7 +381,7 @@ public class TimelineAggregator
                         }
                     }
                     catch (Exception e) {
-                        log.error(e, "Exception during aggregation of level %d", aggregationLevel);
+                        log.error(e, "Exception during aggregation of level %d, partition %d", aggregationLevel, partition.partition);
                     }
                     finally {
                         if (iterator != null) {
@@ -322,10 +393,10 @@ public class TimelineAggregator
 
             });
             if (hostTimelineCandidates.size() >= chunksToAggregate) {
-                aggregatesCreated.addAndGet(aggregateTimelineCandidates(hostTimelineCandidates, aggregationLevel, chunksToAggregate));
+                partition.recordAggregates(aggregateTimelineCandidates(partition, hostTimelineCandidates, aggregationLevel, chunksToAggregate));
             }
-            if (chunkIdsToInvalidateOrDelete.size() > 0) {
-                performWrites();
+            if (partition.chunkIdsToInvalidateOrDelete.size() > 0) {
+                performWrites(partition);
             }
         }
         finally {
@@ -377,6 +448,9 @@ public class TimelineAggregator
     public void stopAggregationThread()
     {
         aggregatorThread.shutdown();
+        if (partitionExecutor != null) {
+            partitionExecutor.shutdown();
+        }
     }
 
     @Managed
@@ -451,6 +525,27 @@ public class TimelineAggregator
         return msWritingDb.get();
     }
 
+    @Managed
+    public int getAggregationPartitions()
+    {
+        return partitions.length;
+    }
+
+    @Managed
+    public String getPartitionProgress()
+    {
+        final StringBuilder builder = new StringBuilder();
+        for (final Map.Entry<String, AtomicLong> entry : aggregatorCounters.entrySet()) {
+            if (entry.getKey().startsWith(AggregationPartition.COUNTER_PREFIX)) {
+                if (builder.length() > 0) {
+                    builder.append(", ");
+                }
+                builder.append(entry.getKey()).append(": ").append(entry.getValue().get());
+            }
+        }
+        return builder.toString();
+    }
+
     @Managed(description = "Aggregate candidate timelines")
     public void initiateAggregation()
     {
@@ -463,4 +558,58 @@ public class TimelineAggregator
             }
         });
     }
+
+    /**
+     * The per-partition state: the pending write batch, which is only touched by the thread
+     * aggregating the partition, and the progress counters, which are registered in
+     * aggregatorCounters when more than one partition is configured.
+     */
+    private final class AggregationPartition
+    {
+        private static final String COUNTER_PREFIX = "partition";
+
+        private final int partition;
+        private final int partitionCount;
+
+        // These lists support batching of aggregated chunk writes and updates or deletes of the chunks aggregated
+        private final List<TimelineChunk> chunksToWrite = new ArrayList<TimelineChunk>();
+        private final List<Long> chunkIdsToInvalidateOrDelete = new ArrayList<Long>();
+
+        private final AtomicLong chunksConsidered;
+        private final AtomicLong aggregatesCreated;
+        private final AtomicLong chunksWritten;
+        private final AtomicLong batchesProcessed;
+
+        private AggregationPartition(final int partition, final int partitionCount)
+        {
+            this.partition = partition;
+            this.partitionCount = partitionCount;
+            if (partitionCount > 1) {
+                final String prefix = COUNTER_PREFIX + partition + ".";
+                this.chunksConsidered = makeCounter(prefix + "chunksConsidered");
+                this.aggregatesCreated = makeCounter(prefix + "aggsCreated");
+                this.chunksWritten = makeCounter(prefix + "chunksWritten");
+                this.batchesProcessed = makeCounter(prefix + "batchesProcessed");
+            }
+            else {
+                // The global counters already describe the single partition
+                this.chunksConsidered = new AtomicLong();
+                this.aggregatesCreated = new AtomicLong();
+                this.chunksWritten = new AtomicLong();
+                this.batchesProcessed = new AtomicLong();
+            }
+        }
+
+        private void recordAggregates(final int created)
+        {
+            aggregatesCreated.addAndGet(created);
+            TimelineAggregator.this.aggregatesCreated.addAndGet(created);
+        }
+
+        private void recordBatch(final int written)
+        {
+            chunksWritten.addAndGet(written);
+            batchesProcessed.incrementAndGet();
+        }
+    }
 }
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.collector.persistent;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.weakref.jmx.Managed;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.ning.arecibo.collector.guice.CollectorConfig;
+import com.ning.arecibo.util.jmx.MonitorableManaged;
+import com.ning.arecibo.util.jmx.MonitoringType;
+import com.ning.arecibo.util.timeline.chunks.TimelineChunk;
+
+/**
+ * A bounded LRU cache of the CSV samples of persisted TimelineChunks, keyed by chunk id.
+ * <p/>
+ * A persisted chunk never changes once it has an id, so an entry is never stale: the
+ * TimelineAggregator only invalidates entries to free the memory of the chunks it deletes
+ * or invalidates.  Chunks without an id (in-memory chunks, or chunks not yet written)
+ * are decoded on every call.
+ * <p/>
+ * Only the undecimated samples are cached: a DecimatingSampleFilter carries its state from
+ * one chunk to the next of a host and sample kind, so decimated output can't be reused.
+ */
+@Singleton
+public class TimelineChunkSamplesCache
+{
+    // Rough size of a map entry, its Long key and the String header
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private final long maxBytes;
+    // Access-ordered, so that iteration starts with the least recently used entry
+    private final LinkedHashMap<Long, String> samplesByChunkId = new LinkedHashMap<Long, String>(1024, 0.75f, true);
+    private long bytes = 0L;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    @Inject
+    public TimelineChunkSamplesCache(final CollectorConfig config)
+    {
+        this(config.getChunkSamplesCacheSize().getNumberOfBytes());
+    }
+
+    public TimelineChunkSamplesCache(final long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param chunk the chunk to decode
+     * @return the samples of the chunk, as returned by chunk.getSamplesAsCSV()
+     */
+    public String getSamplesAsCSV(final TimelineChunk chunk) throws IOException
+    {
+        final long chunkId = chunk.getChunkId();
+        if (maxBytes <= 0 || chunkId <= 0) {
+            return chunk.getSamplesAsCSV();
+        }
+
+        synchronized (this) {
+            final String samples = samplesByChunkId.get(chunkId);
+            if (samples != null) {
+                hits.incrementAndGet();
+                return samples;
+            }
+        }
+
+        // Decode outside of the lock; racing readers of the same chunk may both decode it
+        misses.incrementAndGet();
+        final String samples = chunk.getSamplesAsCSV();
+        put(chunkId, samples);
+        return samples;
+    }
+
+    private synchronized void put(final long chunkId, final String samples)
+    {
+        final long size = sizeOf(samples);
+        if (size > maxBytes) {
+            return;
+        }
+        final String previous = samplesByChunkId.put(chunkId, samples);
+        if (previous != null) {
+            bytes -= sizeOf(previous);
+        }
+        bytes += size;
+
+        final Iterator<Map.Entry<Long, String>> iterator = samplesByChunkId.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            final Map.Entry<Long, String> eldest = iterator.next();
+            bytes -= sizeOf(eldest.getValue());
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drop the entries of chunks which have been deleted or invalidated
+     *
+     * @param chunkIds the ids of the chunks
+     */
+    public synchronized void invalidate(final Collection<Long> chunkIds)
+    {
+        for (final Long chunkId : chunkIds) {
+            final String samples = samplesByChunkId.remove(chunkId);
+            if (samples != null) {
+                bytes -= sizeOf(samples);
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    private static long sizeOf(final String samples)
+    {
+        return ENTRY_OVERHEAD_BYTES + 2L * samples.length();
+    }
+
+    @MonitorableManaged(description = "Return the fraction of lookups of persisted chunks served from the cache", monitored = true, monitoringType = {MonitoringType.VALUE})
+    public double getHitRatio()
+    {
+        final long hitCount = hits.get();
+        final long lookups = hitCount + misses.get();
+        return lookups == 0 ? 0.0 : (double) hitCount / lookups;
+    }
+
+    @MonitorableManaged(description = "Return the approximate memory used by the cached samples, in bytes", monitored = true, monitoringType = {MonitoringType.VALUE})
+    public synchronized long getMemoryUsed()
+    {
+        return bytes;
+    }
+
+    @Managed
+    public long getMaxMemory()
+    {
+        return maxBytes;
+    }
+
+    @Managed
+    public synchronized int getEntryCount()
+    {
+        return samplesByChunkId.size();
+    }
+
+    @MonitorableManaged(monitored = true, monitoringType = {MonitoringType.COUNTER, MonitoringType.RATE})
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    @MonitorableManaged(monitored = true, monitoringType = {MonitoringType.COUNTER, MonitoringType.RATE})
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    @Managed
+    public long getEvictionCount()
+    {
+        return evictions.get();
+    }
+
+    @Managed
+    public long getInvalidationCount()
+    {
+        return invalidations.get();
+    }
+}
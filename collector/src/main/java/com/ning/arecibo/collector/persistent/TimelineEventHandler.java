@@ -21,11 +21,11 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
@@ -56,7 +56,6 @@ import com.ning.arecibo.util.timeline.HostSamplesForTimestamp;
 import com.ning.arecibo.util.timeline.ShutdownSaveMode;
 import com.ning.arecibo.util.timeline.StartTimes;
 import com.ning.arecibo.util.timeline.chunks.TimelineChunk;
-import com.ning.arecibo.util.timeline.chunks.TimelineChunkAccumulator;
 import com.ning.arecibo.util.timeline.persistent.FileBackedBuffer;
 import com.ning.arecibo.util.timeline.persistent.Replayer;
 import com.ning.arecibo.util.timeline.persistent.TimelineDAO;
@@ -107,9 +106,10 @@ public class TimelineEventHandler implements EventHandler
     // A TimelineHostEventAccumulator records attributes for a specific host and event type.
     // This cache maps hostId -> categoryId -> accumulator
     //
-    // TODO: There are still timing windows in the use of accumulators.  Enumerate them and
-    // either fix them or prove they are benign
-    private final Map<Integer, HostAccumulatorsAndUpdateDate> accumulators = new ConcurrentHashMap<Integer, HostAccumulatorsAndUpdateDate>();
+    // Both levels are concurrent maps populated with putIfAbsent, so ingestion threads never
+    // serialize on the handler: they only contend on the accumulator of the host and category
+    // they feed.  Purged accumulators are retired, and writers that raced with the purge retry.
+    private final ConcurrentMap<Integer, HostAccumulatorsAndUpdateDate> accumulators = new ConcurrentHashMap<Integer, HostAccumulatorsAndUpdateDate>();
 
     private final CollectorConfig config;
     private final TimelineDAO timelineDAO;
@@ -127,13 +127,16 @@ public class TimelineEventHandler implements EventHandler
     private final AtomicLong handledEventCount = new AtomicLong();
     private final AtomicLong addedHostEventAccumulatorMapCount = new AtomicLong();
     private final AtomicLong addedHostEventAccumulatorCount = new AtomicLong();
+    private final AtomicLong retiredAccumulatorRetryCount = new AtomicLong();
     private final AtomicLong getInMemoryChunksCallCount = new AtomicLong();
-    private final AtomicLong accumulatorDeepCopyCount = new AtomicLong();
+    private final AtomicLong accumulatorSnapshotCount = new AtomicLong();
     private final AtomicLong inMemoryChunksReturnedCount = new AtomicLong();
     private final AtomicLong replayCount = new AtomicLong();
     private final AtomicLong replaySamplesFoundCount = new AtomicLong();
     private final AtomicLong replaySamplesOutsideTimeRangeCount = new AtomicLong();
     private final AtomicLong replaySamplesProcessedCount = new AtomicLong();
+    // The replayer of the current or last replay, for progress reporting
+    private volatile Replayer lastReplayer = null;
     private final AtomicLong forceCommitCallCount = new AtomicLong();
     private final AtomicLong purgedAccumsBecauseHostNotUpdated = new AtomicLong();
     private final AtomicLong purgedAccumsBecauseCategoryNotUpdated = new AtomicLong();
@@ -181,41 +184,35 @@ public class TimelineEventHandler implements EventHandler
         }
     }
 
-    public synchronized void purgeOldHostsAndAccumulators(final DateTime purgeIfBeforeDate)
+    public void purgeOldHostsAndAccumulators(final DateTime purgeIfBeforeDate)
     {
-        final List<Integer> oldHostIds = new ArrayList<Integer>();
         for (final Map.Entry<Integer, HostAccumulatorsAndUpdateDate> entry : accumulators.entrySet()) {
             final int hostId = entry.getKey();
             final HostAccumulatorsAndUpdateDate accumulatorsAndDate = entry.getValue();
             final DateTime lastUpdatedDate = accumulatorsAndDate.getLastUpdateDate();
             if (lastUpdatedDate.isBefore(purgeIfBeforeDate)) {
-                oldHostIds.add(hostId);
-                purgedAccumsBecauseHostNotUpdated.incrementAndGet();
-                for (TimelineHostEventAccumulator categoryAccumulator : accumulatorsAndDate.getCategoryAccumulators().values()) {
-                    categoryAccumulator.extractAndQueueTimelineChunks();
+                // Unlink first, so new samples for this host go to a fresh map, then retire what's left
+                if (accumulators.remove(hostId, accumulatorsAndDate)) {
+                    purgedAccumsBecauseHostNotUpdated.incrementAndGet();
+                    accumulatorsAndDate.markRetired();
+                    for (final TimelineHostEventAccumulator categoryAccumulator : accumulatorsAndDate.getCategoryAccumulators().values()) {
+                        categoryAccumulator.retireAndQueueTimelineChunks();
+                    }
                 }
             }
             else {
-                final List<Integer> categoryIdsToPurge = new ArrayList<Integer>();
-                final Map<Integer, TimelineHostEventAccumulator> categoryMap = accumulatorsAndDate.getCategoryAccumulators();
+                final ConcurrentMap<Integer, TimelineHostEventAccumulator> categoryMap = accumulatorsAndDate.getCategoryAccumulators();
                 for (final Map.Entry<Integer, TimelineHostEventAccumulator> eventEntry : categoryMap.entrySet()) {
                     final int categoryId = eventEntry.getKey();
                     final TimelineHostEventAccumulator categoryAccumulator = eventEntry.getValue();
                     final DateTime latestTime = categoryAccumulator.getLatestSampleAddTime();
-                    if (latestTime != null && latestTime.isBefore(purgeIfBeforeDate)) {
+                    if (latestTime != null && latestTime.isBefore(purgeIfBeforeDate) && categoryMap.remove(categoryId, categoryAccumulator)) {
                         purgedAccumsBecauseCategoryNotUpdated.incrementAndGet();
-                        categoryAccumulator.extractAndQueueTimelineChunks();
-                        categoryIdsToPurge.add(categoryId);
+                        categoryAccumulator.retireAndQueueTimelineChunks();
                     }
                 }
-                for (final int categoryId : categoryIdsToPurge) {
-                    categoryMap.remove(categoryId);
-                }
             }
         }
-        for (final int hostIdToPurge : oldHostIds) {
-            accumulators.remove(hostIdToPurge);
-        }
     }
 
     @Override
@@ -260,22 +257,33 @@ public class TimelineEventHandler implements EventHandler
         return this.getOrAddHostEventAccumulator(hostId, categoryId, firstSampleTime, (int)config.getTimelineLength().getMillis());
     }
 
-    public synchronized TimelineHostEventAccumulator getOrAddHostEventAccumulator(final int hostId, final int categoryId, final DateTime firstSampleTime, final int timelineLengthMillis)
+    public TimelineHostEventAccumulator getOrAddHostEventAccumulator(final int hostId, final int categoryId, final DateTime firstSampleTime, final int timelineLengthMillis)
     {
         HostAccumulatorsAndUpdateDate hostAccumulatorsAndUpdateDate = accumulators.get(hostId);
         if (hostAccumulatorsAndUpdateDate == null) {
-            addedHostEventAccumulatorMapCount.incrementAndGet();
-            hostAccumulatorsAndUpdateDate = new HostAccumulatorsAndUpdateDate(new HashMap<Integer, TimelineHostEventAccumulator>(), new DateTime());
-            accumulators.put(hostId, hostAccumulatorsAndUpdateDate);
+            final HostAccumulatorsAndUpdateDate newHostAccumulators = new HostAccumulatorsAndUpdateDate(new ConcurrentHashMap<Integer, TimelineHostEventAccumulator>(), new DateTime());
+            hostAccumulatorsAndUpdateDate = accumulators.putIfAbsent(hostId, newHostAccumulators);
+            if (hostAccumulatorsAndUpdateDate == null) {
+                addedHostEventAccumulatorMapCount.incrementAndGet();
+                hostAccumulatorsAndUpdateDate = newHostAccumulators;
+            }
         }
         hostAccumulatorsAndUpdateDate.markUpdated();
-        final Map<Integer, TimelineHostEventAccumulator> hostCategoryAccumulators = hostAccumulatorsAndUpdateDate.getCategoryAccumulators();
+        final ConcurrentMap<Integer, TimelineHostEventAccumulator> hostCategoryAccumulators = hostAccumulatorsAndUpdateDate.getCategoryAccumulators();
         TimelineHostEventAccumulator accumulator = hostCategoryAccumulators.get(categoryId);
         if (accumulator == null) {
-            addedHostEventAccumulatorCount.incrementAndGet();
-            accumulator = new TimelineHostEventAccumulator(timelineDAO, timelineCoder, sampleCoder, backgroundWriter, hostId, categoryId, firstSampleTime, timelineLengthMillis);
-            hostCategoryAccumulators.put(categoryId, accumulator);
-            log.debug("Created new Timeline for hostId [{}] and category [{}]", hostId, categoryId);
+            final TimelineHostEventAccumulator newAccumulator = new TimelineHostEventAccumulator(timelineDAO, timelineCoder, sampleCoder, backgroundWriter, hostId, categoryId, firstSampleTime, timelineLengthMillis);
+            accumulator = hostCategoryAccumulators.putIfAbsent(categoryId, newAccumulator);
+            if (accumulator == null) {
+                addedHostEventAccumulatorCount.incrementAndGet();
+                accumulator = newAccumulator;
+                log.debug("Created new Timeline for hostId [{}] and category [{}]", hostId, categoryId);
+                // The host map may have been purged while we were adding to it; if so the purge may
+                // not have seen the new accumulator, so retire it ourselves and let the caller retry
+                if (hostAccumulatorsAndUpdateDate.isRetired()) {
+                    accumulator.retireAndQueueTimelineChunks();
+                }
+            }
         }
         return accumulator;
     }
@@ -287,8 +295,16 @@ public class TimelineEventHandler implements EventHandler
         final String category = hostSamples.getCategory();
         final int categoryId = timelineDAO.getEventCategoryId(category);
         final DateTime timestamp = hostSamples.getTimestamp();
-        final TimelineHostEventAccumulator accumulator = getOrAddHostEventAccumulator(hostId, categoryId, timestamp);
-        accumulator.addHostSamples(hostSamples);
+        TimelineHostEventAccumulator accumulator = getOrAddHostEventAccumulator(hostId, categoryId, timestamp);
+        // Hold back while the db writers are behind, once per map of chunks handed to them, and outside of the accumulator lock
+        if (accumulator.isChunkDue(timestamp)) {
+            backgroundWriter.awaitPendingCapacity();
+        }
+        // If the accumulator got purged between the lookup and the add, it refuses the samples: look it up again
+        while (!accumulator.addHostSamples(hostSamples)) {
+            retiredAccumulatorRetryCount.incrementAndGet();
+            accumulator = getOrAddHostEventAccumulator(hostId, categoryId, timestamp);
+        }
     }
 
     public Collection<? extends TimelineChunk> getInMemoryTimelineChunks(final Integer hostId, @Nullable final DateTime filterStartTime, @Nullable final DateTime filterEndTime) throws IOException, ExecutionException
@@ -301,7 +317,7 @@ public class TimelineEventHandler implements EventHandler
         return getInMemoryTimelineChunks(hostId, ImmutableList.<Integer>of(sampleKindId), filterStartTime, filterEndTime);
     }
 
-    public synchronized Collection<? extends TimelineChunk> getInMemoryTimelineChunks(final Integer hostId, final List<Integer> sampleKindIds, @Nullable final DateTime filterStartTime, @Nullable final DateTime filterEndTime) throws IOException, ExecutionException
+    public Collection<? extends TimelineChunk> getInMemoryTimelineChunks(final Integer hostId, final List<Integer> sampleKindIds, @Nullable final DateTime filterStartTime, @Nullable final DateTime filterEndTime) throws IOException, ExecutionException
     {
         getInMemoryChunksCallCount.incrementAndGet();
         // Check first if there is an in-memory accumulator for this host
@@ -313,40 +329,7 @@ public class TimelineEventHandler implements EventHandler
         // Now, filter each accumulator for this host
         final List<TimelineChunk> samplesByHostName = new ArrayList<TimelineChunk>();
         for (final TimelineHostEventAccumulator accumulator : hostAccumulatorsAndDate.getCategoryAccumulators().values()) {
-            for (TimelineChunk chunk : accumulator.getPendingTimelineChunks()) {
-                if ((filterStartTime != null && chunk.getEndTime().isBefore(filterStartTime)) ||
-                    (filterEndTime != null && chunk.getStartTime().isAfter(filterEndTime)) ||
-                    !sampleKindIds.contains(chunk.getSampleKindId())) {
-                    continue;
-                }
-                else {
-                    samplesByHostName.add(chunk);
-                }
-            }
-            final List<DateTime> accumulatorTimes = accumulator.getTimes();
-            if (accumulatorTimes.size() == 0) {
-                continue;
-            }
-            final DateTime accumulatorStartTime = accumulator.getStartTime();
-            final DateTime accumulatorEndTime = accumulator.getEndTime();
-
-            // Check if the time filters apply
-            if ((filterStartTime != null && accumulatorEndTime.isBefore(filterStartTime)) || (filterEndTime != null && accumulatorStartTime.isAfter(filterEndTime))) {
-                // Ignore this accumulator
-                continue;
-            }
-
-            // This accumulator is in the right time range, now return only the sample kinds specified
-            final byte[] timeBytes = timelineCoder.compressDateTimes(accumulatorTimes);
-            for (final TimelineChunkAccumulator chunkAccumulator : accumulator.getTimelines().values()) {
-                if (sampleKindIds.contains(chunkAccumulator.getSampleKindId())) {
-                    // Extract the timeline for this chunk by copying it and reading encoded bytes
-                    accumulatorDeepCopyCount.incrementAndGet();
-                    final TimelineChunkAccumulator chunkAccumulatorCopy = chunkAccumulator.deepCopy();
-                    final TimelineChunk timelineChunk = chunkAccumulatorCopy.extractTimelineChunkAndReset(accumulatorStartTime, accumulatorEndTime, timeBytes);
-                    samplesByHostName.add(timelineChunk);
-                }
-            }
+            samplesByHostName.addAll(accumulator.getInMemoryTimelineChunks(sampleKindIds, filterStartTime, filterEndTime, accumulatorSnapshotCount));
         }
         inMemoryChunksReturnedCount.addAndGet(samplesByHostName.size());
         Collections.sort(samplesByHostName, CHUNK_COMPARATOR);
@@ -373,7 +356,8 @@ public class TimelineEventHandler implements EventHandler
     {
         replayCount.incrementAndGet();
         log.info("Starting replay of files in {}", spoolDir);
-        final Replayer replayer = new Replayer(spoolDir);
+        final Replayer replayer = new Replayer(spoolDir, backingBuffer);
+        lastReplayer = replayer;
         StartTimes lastStartTimes = null;
         if (shutdownSaveMode == ShutdownSaveMode.SAVE_START_TIMES) {
             lastStartTimes = timelineDAO.getLastStartTimes();
@@ -430,7 +414,7 @@ public class TimelineEventHandler implements EventHandler
 
                     return null;
                 }
-            });
+            }, config.getReplayThreads());
             if (shutdownSaveMode == ShutdownSaveMode.SAVE_START_TIMES) {
                 timelineDAO.deleteLastStartTimes();
                 log.info("Deleted old startTimes");
@@ -473,6 +457,7 @@ public class TimelineEventHandler implements EventHandler
         }
         performShutdown();
         backingBuffer.discard();
+        backingBuffer.close();
     }
 
     private void performShutdown()
@@ -503,7 +488,7 @@ public class TimelineEventHandler implements EventHandler
     private synchronized void purgeFilesAndAccumulators(final DateTime purgeAccumulatorsIfBefore, final DateTime purgeFilesIfBefore)
     {
         purgeOldHostsAndAccumulators(purgeAccumulatorsIfBefore);
-        final Replayer replayer = new Replayer(config.getSpoolDir());
+        final Replayer replayer = new Replayer(config.getSpoolDir(), backingBuffer);
         replayer.purgeOldFiles(purgeFilesIfBefore);
     }
 
@@ -536,17 +521,18 @@ public class TimelineEventHandler implements EventHandler
     // We use the lastUpdateDate to purge hosts and their accumulators from the map
     private static class HostAccumulatorsAndUpdateDate
     {
-        private final Map<Integer, TimelineHostEventAccumulator> categoryAccumulators;
-        private DateTime lastUpdateDate;
+        private final ConcurrentMap<Integer, TimelineHostEventAccumulator> categoryAccumulators;
+        private volatile DateTime lastUpdateDate;
+        private volatile boolean retired = false;
 
-        public HostAccumulatorsAndUpdateDate(Map<Integer, TimelineHostEventAccumulator> categoryAccumulators, DateTime lastUpdateDate)
+        public HostAccumulatorsAndUpdateDate(ConcurrentMap<Integer, TimelineHostEventAccumulator> categoryAccumulators, DateTime lastUpdateDate)
         {
             super();
             this.categoryAccumulators = categoryAccumulators;
             this.lastUpdateDate = lastUpdateDate;
         }
 
-        public Map<Integer, TimelineHostEventAccumulator> getCategoryAccumulators()
+        public ConcurrentMap<Integer, TimelineHostEventAccumulator> getCategoryAccumulators()
         {
             return categoryAccumulators;
         }
@@ -560,6 +546,16 @@ public class TimelineEventHandler implements EventHandler
         {
             lastUpdateDate = new DateTime();
         }
+
+        public boolean isRetired()
+        {
+            return retired;
+        }
+
+        public void markRetired()
+        {
+            retired = true;
+        }
     }
 
     @VisibleForTesting
@@ -615,6 +611,12 @@ public class TimelineEventHandler implements EventHandler
         return addedHostEventAccumulatorCount.get();
     }
 
+    @Managed
+    public long getRetiredAccumulatorRetryCount()
+    {
+        return retiredAccumulatorRetryCount.get();
+    }
+
     @Managed
     public long getGetInMemoryChunksCallCount()
     {
@@ -622,9 +624,9 @@ public class TimelineEventHandler implements EventHandler
     }
 
     @Managed
-    public long getAccumulatorDeepCopyCount()
+    public long getAccumulatorSnapshotCount()
     {
-        return accumulatorDeepCopyCount.get();
+        return accumulatorSnapshotCount.get();
     }
 
     @Managed
@@ -657,6 +659,34 @@ public class TimelineEventHandler implements EventHandler
         return replaySamplesProcessedCount.get();
     }
 
+    @Managed
+    public int getReplayFilesToReplay()
+    {
+        final Replayer replayer = lastReplayer;
+        return replayer == null ? 0 : replayer.getFilesToReplay();
+    }
+
+    @Managed
+    public int getReplayFilesReplayed()
+    {
+        final Replayer replayer = lastReplayer;
+        return replayer == null ? 0 : replayer.getFilesReplayed();
+    }
+
+    @Managed
+    public double getReplayProgress()
+    {
+        final Replayer replayer = lastReplayer;
+        return replayer == null ? 0.0 : replayer.getProgress();
+    }
+
+    @Managed
+    public long getReplayEstimatedMillisRemaining()
+    {
+        final Replayer replayer = lastReplayer;
+        return replayer == null ? -1 : replayer.getEstimatedMillisRemaining();
+    }
+
     @Managed
     public long getForceCommitCallCount()
     {
@@ -17,11 +17,15 @@
 package com.ning.arecibo.collector.persistent;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
 
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormatter;
@@ -29,6 +33,7 @@ import org.joda.time.format.ISODateTimeFormat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.ning.arecibo.util.timeline.EncodedBytesSnapshot;
 import com.ning.arecibo.util.timeline.HostSamplesForTimestamp;
 import com.ning.arecibo.util.timeline.chunks.TimelineChunk;
 import com.ning.arecibo.util.timeline.chunks.TimelineChunkAccumulator;
@@ -39,6 +44,7 @@ import com.ning.arecibo.util.timeline.samples.SampleCoder;
 import com.ning.arecibo.util.timeline.samples.ScalarSample;
 import com.ning.arecibo.util.timeline.times.TimelineCoder;
 import com.ning.arecibo.util.timeline.times.TimelineCoderImpl;
+import com.ning.arecibo.util.timeline.times.TimesAccumulator;
 
 /**
  * This class represents a collection of timeline chunks, one for each sample
@@ -87,9 +93,12 @@ public class TimelineHostEventAccumulator
     private DateTime chunkEndTime = null;
     private DateTime startTime = null;
     private DateTime endTime = null;
-    private DateTime latestSampleAddTime;
+    private volatile DateTime latestSampleAddTime;
     private long sampleSequenceNumber = 0;
     private int sampleCount = 0;
+    // Set once the accumulator has been purged from the TimelineEventHandler registry; samples
+    // arriving after that are refused so the caller can retry against the replacement accumulator
+    private boolean retired = false;
 
     /**
      * Maps the sample kind id to the accumulator for that sample kind
@@ -97,9 +106,16 @@ public class TimelineHostEventAccumulator
     private final Map<Integer, TimelineChunkAccumulator> timelines = new ConcurrentHashMap<Integer, TimelineChunkAccumulator>();
 
     /**
-     * Holds the sampling times of the samples
+     * Holds the encoded sampling times of the samples
+     */
+    private final TimesAccumulator times = new TimesAccumulator();
+
+    /**
+     * The view of the in-memory chunks handed to readers.  It is built on demand, under the
+     * accumulator lock, and dropped whenever the accumulator changes, so readers of an unchanged
+     * accumulator share it without locking or copying anything.
      */
-    private final List<DateTime> times = new ArrayList<DateTime>();
+    private volatile InMemoryChunksSnapshot snapshot = null;
 
     public TimelineHostEventAccumulator(final TimelineDAO dao, final TimelineCoder timelineCoder, final SampleCoder sampleCoder,
             final BackgroundDBChunkWriter backgroundWriter, final int hostId, final int eventCategoryId, final DateTime firstSampleTime, Integer timelineLengthMillis)
@@ -124,10 +140,18 @@ public class TimelineHostEventAccumulator
         this(timelineDAO, timelineCoder, sampleCoder, new BackgroundDBChunkWriter(timelineDAO, null, true), hostId, eventTypeId, firstSampleTime, Integer.MAX_VALUE);
     }
 
-    @SuppressWarnings("unchecked")
-    // TODO - we can probably do better than synchronize the whole method
-    public synchronized void addHostSamples(final HostSamplesForTimestamp samples)
+    /**
+     * Add the samples for one timestamp.  The lock is per host and event category, so
+     * ingestion threads only contend when they feed the same accumulator.
+     *
+     * @param samples the samples to add
+     * @return false if this accumulator has been retired and the samples were not added, true otherwise
+     */
+    public synchronized boolean addHostSamples(final HostSamplesForTimestamp samples)
     {
+        if (retired) {
+            return false;
+        }
         final DateTime timestamp = samples.getTimestamp();
 
         if (chunkEndTime != null && chunkEndTime.isBefore(timestamp)) {
@@ -145,7 +169,7 @@ public class TimelineHostEventAccumulator
         else if (!timestamp.isAfter(endTime)) {
             log.warn("Adding samples for host {}, timestamp {} is not after the end time {}; ignored",
                 new Object[]{hostId, dateFormatter.print(timestamp), dateFormatter.print(endTime)});
-            return;
+            return true;
         }
         sampleSequenceNumber++;
         latestSampleAddTime = new DateTime();
@@ -167,8 +191,7 @@ public class TimelineHostEventAccumulator
                 }
                 timelines.put(sampleKindId, timeline);
             }
-            final ScalarSample compressedSample = sampleCoder.compressSample(sample);
-            timeline.addSample(compressedSample);
+            timeline.addCompressedSample(sample);
         }
         for (Map.Entry<Integer, SampleSequenceNumber> entry : sampleKindIdCounters.entrySet()) {
             final SampleSequenceNumber counter = entry.getValue();
@@ -182,11 +205,13 @@ public class TimelineHostEventAccumulator
         // Now we can update the state
         endTime = timestamp;
         sampleCount++;
-        times.add(timestamp);
+        times.addTime(timestamp);
+        snapshot = null;
 
         if (checkEveryAccess) {
             checkSampleCounts(sampleCount);
         }
+        return true;
     }
 
     private void addPlaceholders(final TimelineChunkAccumulator timeline, int countToAdd)
@@ -201,6 +226,14 @@ public class TimelineHostEventAccumulator
         }
     }
 
+    /**
+     * @return true if samples with this timestamp would first queue the chunks accumulated so far
+     */
+    public synchronized boolean isChunkDue(final DateTime timestamp)
+    {
+        return !retired && chunkEndTime != null && chunkEndTime.isBefore(timestamp);
+    }
+
     /**
      * This method queues a map of TimelineChunks extracted from the TimelineChunkAccumulators
      * to be written to the db.  When memory chunks are requested, any queued chunk will be included
@@ -208,24 +241,76 @@ public class TimelineHostEventAccumulator
      */
     public synchronized void extractAndQueueTimelineChunks()
     {
-        if (times.size() > 0) {
+        if (times.getTimeCount() > 0) {
             final Map<Integer, TimelineChunk> chunkMap = new HashMap<Integer, TimelineChunk>();
-            final byte[] timeBytes = timelineCoder.compressDateTimes(times);
+            final byte[] timeBytes = times.getEncodedTimes();
             for (final Map.Entry<Integer, TimelineChunkAccumulator> entry : timelines.entrySet()) {
                 final int sampleKindId = entry.getKey();
                 final TimelineChunkAccumulator accumulator = entry.getValue();
                 final TimelineChunk chunk = accumulator.extractTimelineChunkAndReset(startTime, endTime, timeBytes);
                 chunkMap.put(sampleKindId, chunk);
             }
-            times.clear();
+            times.reset();
             sampleCount = 0;
             final long counter = pendingChunkMapIdCounter++;
             final PendingChunkMap newChunkMap = new PendingChunkMap(this, counter, chunkMap);
             pendingChunkMaps.add(newChunkMap);
+            snapshot = null;
             backgroundWriter.addPendingChunkMap(newChunkMap);
         }
     }
 
+    /**
+     * Queue the accumulated chunks and refuse any further samples.  This is used when the
+     * accumulator is purged, so that a writer which looked it up just before the purge
+     * doesn't add samples that would never be written.
+     */
+    public synchronized void retireAndQueueTimelineChunks()
+    {
+        extractAndQueueTimelineChunks();
+        retired = true;
+    }
+
+    public synchronized boolean isRetired()
+    {
+        return retired;
+    }
+
+    /**
+     * Return the pending chunks and the chunks for the samples accumulated so far, restricted to
+     * the sample kinds and time range given.  Readers never block ingestion for more than the
+     * time it takes to capture a snapshot, and the samples are only copied once per snapshot.
+     *
+     * @param sampleKindIds   the sample kinds to return
+     * @param filterStartTime if not null, chunks ending before this time are skipped
+     * @param filterEndTime   if not null, chunks starting after this time are skipped
+     * @param snapshotCount   incremented when a new snapshot of the accumulator had to be taken
+     * @return the matching in-memory chunks
+     */
+    public List<TimelineChunk> getInMemoryTimelineChunks(final Collection<Integer> sampleKindIds, @Nullable final DateTime filterStartTime,
+                                                         @Nullable final DateTime filterEndTime, final AtomicLong snapshotCount)
+    {
+        InMemoryChunksSnapshot currentSnapshot = snapshot;
+        if (currentSnapshot == null) {
+            currentSnapshot = takeSnapshot(snapshotCount);
+        }
+        return currentSnapshot.getTimelineChunks(sampleKindIds, filterStartTime, filterEndTime);
+    }
+
+    private synchronized InMemoryChunksSnapshot takeSnapshot(final AtomicLong snapshotCount)
+    {
+        // Another reader may have taken it while we were waiting for the lock
+        if (snapshot == null) {
+            final Map<Integer, EncodedBytesSnapshot> samplesSnapshots = new HashMap<Integer, EncodedBytesSnapshot>();
+            for (final Map.Entry<Integer, TimelineChunkAccumulator> entry : timelines.entrySet()) {
+                samplesSnapshots.put(entry.getKey(), entry.getValue().getEncodedSamplesSnapshot());
+            }
+            snapshot = new InMemoryChunksSnapshot(sampleCoder, hostId, startTime, endTime, getPendingTimelineChunks(), times.getEncodedTimesSnapshot(), samplesSnapshots);
+            snapshotCount.incrementAndGet();
+        }
+        return snapshot;
+    }
+
     public synchronized void markPendingChunkMapConsumed(final long pendingChunkMapId)
     {
         final PendingChunkMap pendingChunkMap = pendingChunkMaps.size() > 0 ? pendingChunkMaps.get(0) : null;
@@ -238,6 +323,7 @@ public class TimelineHostEventAccumulator
         }
         else {
             pendingChunkMaps.remove(0);
+            snapshot = null;
         }
     }
 
@@ -303,9 +389,9 @@ public class TimelineHostEventAccumulator
         return timelines;
     }
 
-    public List<DateTime> getTimes()
+    public int getTimeCount()
     {
-        return times;
+        return times.getTimeCount();
     }
 
     public DateTime getLatestSampleAddTime()
@@ -313,6 +399,82 @@ public class TimelineHostEventAccumulator
         return latestSampleAddTime;
     }
 
+    /**
+     * An immutable view of the chunks of one accumulator.  The chunks for the samples
+     * accumulated so far are materialized lazily, at most once per sample kind.
+     */
+    private static final class InMemoryChunksSnapshot
+    {
+        private final SampleCoder sampleCoder;
+        private final int hostId;
+        private final DateTime startTime;
+        private final DateTime endTime;
+        private final List<TimelineChunk> pendingChunks;
+        private final EncodedBytesSnapshot timesSnapshot;
+        private final Map<Integer, EncodedBytesSnapshot> samplesSnapshots;
+        private final Map<Integer, TimelineChunk> accumulatedChunks = new ConcurrentHashMap<Integer, TimelineChunk>();
+        private volatile byte[] timeBytes = null;
+
+        public InMemoryChunksSnapshot(final SampleCoder sampleCoder, final int hostId, final DateTime startTime, final DateTime endTime, final List<TimelineChunk> pendingChunks,
+                                      final EncodedBytesSnapshot timesSnapshot, final Map<Integer, EncodedBytesSnapshot> samplesSnapshots)
+        {
+            this.sampleCoder = sampleCoder;
+            this.hostId = hostId;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.pendingChunks = pendingChunks;
+            this.timesSnapshot = timesSnapshot;
+            this.samplesSnapshots = samplesSnapshots;
+        }
+
+        public List<TimelineChunk> getTimelineChunks(final Collection<Integer> sampleKindIds, @Nullable final DateTime filterStartTime, @Nullable final DateTime filterEndTime)
+        {
+            final List<TimelineChunk> chunks = new ArrayList<TimelineChunk>();
+            for (final TimelineChunk chunk : pendingChunks) {
+                if ((filterStartTime != null && chunk.getEndTime().isBefore(filterStartTime)) ||
+                    (filterEndTime != null && chunk.getStartTime().isAfter(filterEndTime)) ||
+                    !sampleKindIds.contains(chunk.getSampleKindId())) {
+                    continue;
+                }
+                chunks.add(chunk);
+            }
+            if (timesSnapshot.getCount() == 0) {
+                return chunks;
+            }
+
+            // Check if the time filters apply
+            if ((filterStartTime != null && endTime.isBefore(filterStartTime)) || (filterEndTime != null && startTime.isAfter(filterEndTime))) {
+                return chunks;
+            }
+
+            // This accumulator is in the right time range, now return only the sample kinds specified
+            for (final Map.Entry<Integer, EncodedBytesSnapshot> entry : samplesSnapshots.entrySet()) {
+                final Integer sampleKindId = entry.getKey();
+                if (sampleKindIds.contains(sampleKindId)) {
+                    TimelineChunk chunk = accumulatedChunks.get(sampleKindId);
+                    if (chunk == null) {
+                        // Racing readers may both build it; the chunks are identical
+                        final EncodedBytesSnapshot samplesSnapshot = entry.getValue();
+                        chunk = new TimelineChunk(sampleCoder, 0, hostId, sampleKindId, startTime, endTime, getTimeBytes(), samplesSnapshot.getEncodedBytes(), samplesSnapshot.getCount());
+                        accumulatedChunks.put(sampleKindId, chunk);
+                    }
+                    chunks.add(chunk);
+                }
+            }
+            return chunks;
+        }
+
+        private byte[] getTimeBytes()
+        {
+            byte[] bytes = timeBytes;
+            if (bytes == null) {
+                bytes = timesSnapshot.getEncodedBytes();
+                timeBytes = bytes;
+            }
+            return bytes;
+        }
+    }
+
     private static class SampleSequenceNumber
     {
         private long sequenceNumber;
@@ -17,6 +17,7 @@
 package com.ning.arecibo.collector.resources;
 
 import com.ning.arecibo.collector.guice.CollectorConfig;
+import com.ning.arecibo.collector.persistent.TimelineChunkSamplesCache;
 import com.ning.arecibo.collector.persistent.TimelineEventHandler;
 import com.ning.arecibo.util.Logger;
 import com.ning.arecibo.util.timeline.CSVSampleConsumer;
@@ -41,7 +42,10 @@ import com.google.common.base.Strings;
 import com.google.common.cache.CacheLoader;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
 import com.google.inject.Singleton;
+import com.mogwee.executors.Executors;
 import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.map.ObjectWriter;
@@ -67,10 +71,15 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicReference;
 
 @Singleton
@@ -84,14 +93,25 @@ public class HostDataResource
     private final SampleCoder sampleCoder;
     private final CollectorConfig config;
     private final TimelineEventHandler processor;
+    private final TimelineChunkSamplesCache samplesCache;
+    // Shared by all requests; null if stored chunks are queried in a single shard
+    private final ExecutorService shardExecutor;
 
     @Inject
-    public HostDataResource(final TimelineDAO dao, final SampleCoder sampleCoder, final CollectorConfig config, final TimelineEventHandler processor)
+    public HostDataResource(final TimelineDAO dao, final SampleCoder sampleCoder, final CollectorConfig config, final TimelineEventHandler processor,
+                            final TimelineChunkSamplesCache samplesCache)
     {
         this.dao = dao;
         this.sampleCoder = sampleCoder;
         this.config = config;
         this.processor = processor;
+        this.samplesCache = samplesCache;
+        if (config.getStoredChunksShardSize() > 0) {
+            this.shardExecutor = Executors.newFixedThreadPool(Math.max(1, config.getStoredChunksShardThreads()), "HostDataResourceShard");
+        }
+        else {
+            this.shardExecutor = null;
+        }
     }
 
     @GET
@@ -380,8 +400,22 @@ public class HostDataResource
         }
     }
 
-    private void writeJsonForStoredChunks(final JsonGenerator generator, final ObjectWriter writer, final Map<Integer, Map<Integer, DecimatingSampleFilter>> filters, final List<Integer> hostIdsList,
-                                          final List<Integer> sampleKindIdsList, final DateTime startTime, final DateTime endTime, final boolean decodeSamples)
+    @VisibleForTesting
+    void writeJsonForStoredChunks(final JsonGenerator generator, final ObjectWriter writer, final Map<Integer, Map<Integer, DecimatingSampleFilter>> filters, final List<Integer> hostIdsList,
+                                  final List<Integer> sampleKindIdsList, final DateTime startTime, final DateTime endTime, final boolean decodeSamples)
+            throws IOException, ExecutionException
+    {
+        final int shardSize = config.getStoredChunksShardSize();
+        if (shardExecutor == null || hostIdsList.size() <= shardSize) {
+            writeJsonForStoredChunksInOneQuery(generator, writer, filters, hostIdsList, sampleKindIdsList, startTime, endTime, decodeSamples);
+        }
+        else {
+            writeJsonForStoredChunksInShards(generator, writer, filters, hostIdsList, sampleKindIdsList, startTime, endTime, decodeSamples, shardSize);
+        }
+    }
+
+    private void writeJsonForStoredChunksInOneQuery(final JsonGenerator generator, final ObjectWriter writer, final Map<Integer, Map<Integer, DecimatingSampleFilter>> filters, final List<Integer> hostIdsList,
+                                                    final List<Integer> sampleKindIdsList, final DateTime startTime, final DateTime endTime, final boolean decodeSamples)
             throws IOException, ExecutionException
     {
         final AtomicReference<Integer> lastHostId = new AtomicReference<Integer>(null);
@@ -427,30 +461,140 @@ public class HostDataResource
         }
     }
 
-    private void writeJsonForChunks(final JsonGenerator generator, final ObjectWriter writer, final Map<Integer, Map<Integer, DecimatingSampleFilter>> filters, final Iterable<? extends TimelineChunk> chunksForHostAndSampleKind, final boolean decodeSamples)
+    /**
+     * The query orders chunks by host id, so the hosts are sorted and cut into contiguous shards:
+     * writing the shards in order yields the same output as a single query.  Shards are queried
+     * and decoded on the shared shard pool, at most config.getMaxConcurrentShardsPerRequest() at
+     * a time, while the request thread writes the completed ones in order.  Each filter belongs
+     * to a single host, hence to a single shard.
+     */
+    private void writeJsonForStoredChunksInShards(final JsonGenerator generator, final ObjectWriter writer, final Map<Integer, Map<Integer, DecimatingSampleFilter>> filters, final List<Integer> hostIdsList,
+                                                  final List<Integer> sampleKindIdsList, final DateTime startTime, final DateTime endTime, final boolean decodeSamples, final int shardSize)
             throws IOException, ExecutionException
     {
-        for (final TimelineChunk chunk : chunksForHostAndSampleKind) {
-            if (decodeSamples) {
-                writer.writeValue(generator, new TimelineChunkDecoded(chunk, sampleCoder));
+        final List<Integer> sortedHostIds = Ordering.<Integer>natural().nullsFirst().sortedCopy(new HashSet<Integer>(hostIdsList));
+        final Iterator<List<Integer>> shards = Lists.partition(sortedHostIds, shardSize).iterator();
+        final int maxShardsInFlight = Math.max(1, config.getMaxConcurrentShardsPerRequest());
+
+        final LinkedList<Future<List<Object>>> shardsInFlight = new LinkedList<Future<List<Object>>>();
+        try {
+            while (shards.hasNext() || !shardsInFlight.isEmpty()) {
+                while (shards.hasNext() && shardsInFlight.size() < maxShardsInFlight) {
+                    final List<Integer> shardHostIds = shards.next();
+                    shardsInFlight.add(shardExecutor.submit(new Callable<List<Object>>()
+                    {
+                        @Override
+                        public List<Object> call() throws Exception
+                        {
+                            return getJsonObjectsForStoredChunks(filters, shardHostIds, sampleKindIdsList, startTime, endTime, decodeSamples);
+                        }
+                    }));
+                }
+
+                final List<Object> jsonObjects;
+                try {
+                    jsonObjects = shardsInFlight.removeFirst().get();
+                }
+                catch (ExecutionException e) {
+                    // Surface the failure the way the single query would have
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw e;
+                }
+                for (final Object jsonObject : jsonObjects) {
+                    writeJsonObject(generator, writer, jsonObject, decodeSamples);
+                }
             }
-            else {
-                final String hostName = dao.getHost(chunk.getHostId());
-                final CategoryIdAndSampleKind categoryIdAndSampleKind = dao.getCategoryIdAndSampleKind(chunk.getSampleKindId());
-                final String eventCategory = dao.getEventCategory(categoryIdAndSampleKind.getEventCategoryId());
-                final String sampleKind = categoryIdAndSampleKind.getSampleKind();
-                // TODO pass compact form
-                final DecimatingSampleFilter filter = filters.get(chunk.getHostId()).get(chunk.getSampleKindId());
-                final String samples = filter == null ? chunk.getSamplesAsCSV() : chunk.getSamplesAsCSV(filter);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WebApplicationException(e, buildServiceUnavailableResponse());
+        }
+        finally {
+            for (final Future<List<Object>> future : shardsInFlight) {
+                future.cancel(true);
+            }
+        }
+    }
 
-                // Don't write out empty samples
-                if (!Strings.isNullOrEmpty(samples)) {
-                    generator.writeObject(new SamplesForSampleKindAndHost(hostName, eventCategory, sampleKind, samples));
+    private List<Object> getJsonObjectsForStoredChunks(final Map<Integer, Map<Integer, DecimatingSampleFilter>> filters, final List<Integer> hostIdsList,
+                                                       final List<Integer> sampleKindIdsList, final DateTime startTime, final DateTime endTime, final boolean decodeSamples)
+    {
+        final List<Object> jsonObjects = new ArrayList<Object>();
+        dao.getSamplesByHostIdsAndSampleKindIds(hostIdsList, sampleKindIdsList, startTime, endTime, new TimelineChunkConsumer()
+        {
+            @Override
+            public void processTimelineChunk(final TimelineChunk chunk)
+            {
+                try {
+                    final Object jsonObject = getJsonObjectForChunk(filters, chunk, decodeSamples);
+                    if (jsonObject != null) {
+                        jsonObjects.add(jsonObject);
+                    }
+                }
+                catch (IOException e) {
+                    throw new WebApplicationException(e, buildServiceUnavailableResponse());
                 }
+                catch (ExecutionException e) {
+                    throw new WebApplicationException(e, buildServiceUnavailableResponse());
+                }
+            }
+        });
+        return jsonObjects;
+    }
+
+    private void writeJsonForChunks(final JsonGenerator generator, final ObjectWriter writer, final Map<Integer, Map<Integer, DecimatingSampleFilter>> filters, final Iterable<? extends TimelineChunk> chunksForHostAndSampleKind, final boolean decodeSamples)
+            throws IOException, ExecutionException
+    {
+        for (final TimelineChunk chunk : chunksForHostAndSampleKind) {
+            final Object jsonObject = getJsonObjectForChunk(filters, chunk, decodeSamples);
+            if (jsonObject != null) {
+                writeJsonObject(generator, writer, jsonObject, decodeSamples);
             }
         }
     }
 
+    /**
+     * @return the object to serialize for the chunk, or null if there is nothing to write out
+     */
+    @Nullable
+    private Object getJsonObjectForChunk(final Map<Integer, Map<Integer, DecimatingSampleFilter>> filters, final TimelineChunk chunk, final boolean decodeSamples)
+            throws IOException, ExecutionException
+    {
+        if (decodeSamples) {
+            return new TimelineChunkDecoded(chunk, sampleCoder);
+        }
+
+        final String hostName = dao.getHost(chunk.getHostId());
+        final CategoryIdAndSampleKind categoryIdAndSampleKind = dao.getCategoryIdAndSampleKind(chunk.getSampleKindId());
+        final String eventCategory = dao.getEventCategory(categoryIdAndSampleKind.getEventCategoryId());
+        final String sampleKind = categoryIdAndSampleKind.getSampleKind();
+        // TODO pass compact form
+        final DecimatingSampleFilter filter = filters.get(chunk.getHostId()).get(chunk.getSampleKindId());
+        // Persisted chunks are immutable: their undecimated samples are decoded once and cached
+        final String samples = filter == null ? samplesCache.getSamplesAsCSV(chunk) : chunk.getSamplesAsCSV(filter);
+
+        // Don't write out empty samples
+        if (Strings.isNullOrEmpty(samples)) {
+            return null;
+        }
+        return new SamplesForSampleKindAndHost(hostName, eventCategory, sampleKind, samples);
+    }
+
+    private void writeJsonObject(final JsonGenerator generator, final ObjectWriter writer, final Object jsonObject, final boolean decodeSamples) throws IOException
+    {
+        if (decodeSamples) {
+            writer.writeValue(generator, jsonObject);
+        }
+        else {
+            generator.writeObject(jsonObject);
+        }
+    }
+
     @VisibleForTesting
     Set<CategoryIdAndSampleKind> findCategoryIdsAndSampleKindsForHosts(final List<String> hostNames) throws CacheLoader.InvalidCacheLoadException
     {
@@ -16,8 +16,10 @@
 
 package com.ning.arecibo.collector;
 
+import com.google.common.collect.ImmutableList;
 import com.ning.arecibo.collector.persistent.TimelineHostEventAccumulator;
 import com.ning.arecibo.util.timeline.HostSamplesForTimestamp;
+import com.ning.arecibo.util.timeline.chunks.TimelineChunk;
 import com.ning.arecibo.util.timeline.samples.SampleCoderImpl;
 import com.ning.arecibo.util.timeline.samples.SampleCoder;
 import com.ning.arecibo.util.timeline.samples.SampleOpcode;
@@ -31,8 +33,11 @@ import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TestTimelineHostEventAccumulator
 {
@@ -77,6 +82,46 @@ public class TestTimelineHostEventAccumulator
         Assert.assertEquals(accumulator.getTimelines().get(secondSampleKindId).getSampleKindId(), secondSampleKindId);
     }
 
+    @Test(groups = "fast")
+    public void testInMemoryChunksSnapshot() throws IOException
+    {
+        final DateTime startTime = new DateTime(DateTimeZone.UTC);
+        final TimelineHostEventAccumulator accumulator = new TimelineHostEventAccumulator(dao, timelineCoder, sampleCoder, HOST_ID, EVENT_CATEGORY_ID, startTime);
+        final AtomicLong snapshotCount = new AtomicLong();
+        final List<Integer> sampleKindIds = ImmutableList.<Integer>of(1, 2);
+
+        sendData(accumulator, startTime, 20, 1);
+        final List<TimelineChunk> chunks = accumulator.getInMemoryTimelineChunks(sampleKindIds, null, null, snapshotCount);
+        Assert.assertEquals(chunks.size(), 1);
+        Assert.assertEquals(chunks.get(0).getSampleCount(), 20);
+        Assert.assertEquals(timelineCoder.decompressDateTimes(chunks.get(0).getTimes()).size(), 20);
+        Assert.assertEquals(sampleCoder.decompressSamples(chunks.get(0).getSamples()).size(), 20);
+        Assert.assertEquals(snapshotCount.get(), 1);
+
+        // Nothing changed, the same chunks are handed out again
+        final List<TimelineChunk> sameChunks = accumulator.getInMemoryTimelineChunks(sampleKindIds, null, null, snapshotCount);
+        Assert.assertSame(sameChunks.get(0), chunks.get(0));
+        Assert.assertEquals(snapshotCount.get(), 1);
+
+        // New samples invalidate the snapshot, but not the chunks already handed out
+        sendData(accumulator, startTime.plusSeconds(20), 10, 2);
+        final List<TimelineChunk> newChunks = accumulator.getInMemoryTimelineChunks(sampleKindIds, null, null, snapshotCount);
+        Assert.assertEquals(snapshotCount.get(), 2);
+        Assert.assertEquals(newChunks.size(), 2);
+        for (final TimelineChunk chunk : newChunks) {
+            Assert.assertEquals(chunk.getSampleCount(), 30);
+        }
+        Assert.assertEquals(chunks.get(0).getSampleCount(), 20);
+        Assert.assertEquals(sampleCoder.decompressSamples(chunks.get(0).getSamples()).size(), 20);
+
+        // The snapshot times are encoded the same way as extracted chunks
+        final List<DateTime> times = new ArrayList<DateTime>();
+        for (int i = 0; i < 30; i++) {
+            times.add(startTime.plusSeconds(i));
+        }
+        Assert.assertEquals(newChunks.get(0).getTimes(), timelineCoder.compressDateTimes(times));
+    }
+
     private void sendData(final TimelineHostEventAccumulator accumulator, final DateTime startTime, final int sampleCount, final int sampleKindId)
     {
         final Map<Integer, ScalarSample> samples = new HashMap<Integer, ScalarSample>();
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.collector.persistent;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.skife.config.ConfigurationObjectFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.ning.arecibo.collector.MockTimelineDAO;
+import com.ning.arecibo.collector.guice.CollectorConfig;
+import com.ning.arecibo.util.timeline.HostSamplesForTimestamp;
+import com.ning.arecibo.util.timeline.persistent.TimelineDAO;
+import com.ning.arecibo.util.timeline.samples.SampleCoder;
+import com.ning.arecibo.util.timeline.samples.SampleCoderImpl;
+import com.ning.arecibo.util.timeline.samples.SampleOpcode;
+import com.ning.arecibo.util.timeline.samples.ScalarSample;
+import com.ning.arecibo.util.timeline.times.TimelineCoder;
+import com.ning.arecibo.util.timeline.times.TimelineCoderImpl;
+
+public class TestBackgroundDBChunkWriter
+{
+    private static final TimelineCoder timelineCoder = new TimelineCoderImpl();
+    private static final SampleCoder sampleCoder = new SampleCoderImpl();
+    private static final String EVENT_TYPE = "eventType";
+    private static final int HOST_COUNT = 7;
+    private static final int CHUNK_MAPS_PER_HOST = 5;
+    private static final int SAMPLE_KINDS = 3;
+
+    private final TimelineDAO dao = new MockTimelineDAO();
+
+    @Test(groups = "fast")
+    public void testMultipleWritersConsumeChunkMapsInOrder() throws Exception
+    {
+        final Properties properties = new Properties();
+        properties.setProperty("arecibo.collector.timelines.backgroundWriteThreads", "3");
+        properties.setProperty("arecibo.collector.timelines.backgroundWriteBatchSize", "4");
+        properties.setProperty("arecibo.collector.timelines.backgroundWriteCheckInterval", "10ms");
+        final CollectorConfig config = new ConfigurationObjectFactory(properties).build(CollectorConfig.class);
+        final BackgroundDBChunkWriter writer = new BackgroundDBChunkWriter(dao, config, false);
+
+        final int eventCategoryId = dao.getOrAddEventCategory(EVENT_TYPE);
+        final DateTime startTime = new DateTime(DateTimeZone.UTC);
+        final List<TimelineHostEventAccumulator> accumulators = new ArrayList<TimelineHostEventAccumulator>();
+        for (int hostId = 1; hostId <= HOST_COUNT; hostId++) {
+            final TimelineHostEventAccumulator accumulator = new TimelineHostEventAccumulator(dao, timelineCoder, sampleCoder, writer, hostId, eventCategoryId, startTime, null);
+            for (int i = 0; i < CHUNK_MAPS_PER_HOST; i++) {
+                accumulator.addHostSamples(createSamples(hostId, startTime.plusSeconds(i * 30)));
+                accumulator.extractAndQueueTimelineChunks();
+            }
+            accumulators.add(accumulator);
+        }
+        Assert.assertEquals(writer.getPendingChunkCount(), HOST_COUNT * CHUNK_MAPS_PER_HOST * SAMPLE_KINDS);
+        Assert.assertTrue(writer.getPendingBytes() > 0);
+
+        writer.runBackgroundWriteThread();
+        try {
+            final long deadline = System.currentTimeMillis() + 10000;
+            while (writer.getPendingChunkMapsMarkedConsumed() < HOST_COUNT * CHUNK_MAPS_PER_HOST && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            writer.initiateShutdown();
+            while (!writer.getShutdownFinished() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+        finally {
+            writer.stopBackgroundWriteThread();
+        }
+
+        Assert.assertEquals(writer.getPendingChunkMapsMarkedConsumed(), HOST_COUNT * CHUNK_MAPS_PER_HOST);
+        Assert.assertEquals(writer.getPendingChunksWritten(), HOST_COUNT * CHUNK_MAPS_PER_HOST * SAMPLE_KINDS);
+        Assert.assertEquals(writer.getPendingBytes(), 0);
+        Assert.assertEquals(writer.getBatchWriteFailures(), 0);
+        Assert.assertTrue(writer.getBatchesWritten() >= HOST_COUNT);
+        // A map consumed out of order is left behind in its accumulator
+        for (final TimelineHostEventAccumulator accumulator : accumulators) {
+            Assert.assertEquals(accumulator.getPendingTimelineChunks().size(), 0);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testFailedBatchIsRetried() throws Exception
+    {
+        final MockTimelineDAO mockDAO = new MockTimelineDAO();
+        // Fail the first batch write, as a db hiccup would
+        final AtomicInteger bulkInserts = new AtomicInteger();
+        final TimelineDAO failingDAO = (TimelineDAO) Proxy.newProxyInstance(TimelineDAO.class.getClassLoader(), new Class[]{TimelineDAO.class}, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+            {
+                if (method.getName().equals("bulkInsertTimelineChunks") && bulkInserts.getAndIncrement() == 0) {
+                    throw new IllegalStateException("db hiccup");
+                }
+                try {
+                    return method.invoke(mockDAO, args);
+                }
+                catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        });
+
+        final Properties properties = new Properties();
+        properties.setProperty("arecibo.collector.timelines.backgroundWriteThreads", "1");
+        properties.setProperty("arecibo.collector.timelines.backgroundWriteBatchSize", "1000");
+        properties.setProperty("arecibo.collector.timelines.backgroundWriteCheckInterval", "10ms");
+        properties.setProperty("arecibo.collector.timelines.backgroundWriteRetryDelay", "10ms");
+        final CollectorConfig config = new ConfigurationObjectFactory(properties).build(CollectorConfig.class);
+        final BackgroundDBChunkWriter writer = new BackgroundDBChunkWriter(failingDAO, config, false);
+
+        final int eventCategoryId = failingDAO.getOrAddEventCategory(EVENT_TYPE);
+        final DateTime startTime = new DateTime(DateTimeZone.UTC);
+        final TimelineHostEventAccumulator accumulator = new TimelineHostEventAccumulator(failingDAO, timelineCoder, sampleCoder, writer, 1, eventCategoryId, startTime, null);
+        for (int i = 0; i < CHUNK_MAPS_PER_HOST; i++) {
+            accumulator.addHostSamples(createSamples(1, startTime.plusSeconds(i * 30)));
+            accumulator.extractAndQueueTimelineChunks();
+        }
+
+        writer.runBackgroundWriteThread();
+        try {
+            final long deadline = System.currentTimeMillis() + 10000;
+            while (writer.getPendingChunkMapsMarkedConsumed() < CHUNK_MAPS_PER_HOST && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+        finally {
+            writer.stopBackgroundWriteThread();
+        }
+
+        Assert.assertEquals(writer.getBatchWriteFailures(), 1);
+        Assert.assertEquals(writer.getBatchesAbandoned(), 0);
+        Assert.assertEquals(writer.getPendingChunkMapsMarkedConsumed(), CHUNK_MAPS_PER_HOST);
+        Assert.assertEquals(writer.getPendingBytes(), 0);
+        Assert.assertEquals(mockDAO.getTimelineChunks().size(), CHUNK_MAPS_PER_HOST * SAMPLE_KINDS);
+        Assert.assertEquals(accumulator.getPendingTimelineChunks().size(), 0);
+    }
+
+    private HostSamplesForTimestamp createSamples(final int hostId, final DateTime timestamp)
+    {
+        final Map<Integer, ScalarSample> samples = new ImmutableMap.Builder<Integer, ScalarSample>()
+            .put(1, new ScalarSample(SampleOpcode.LONG, (long) hostId))
+            .put(2, new ScalarSample(SampleOpcode.INT, hostId))
+            .put(3, new ScalarSample(SampleOpcode.DOUBLE, 1.5 * hostId))
+            .build();
+        return new HostSamplesForTimestamp(hostId, EVENT_TYPE, timestamp, samples);
+    }
+}
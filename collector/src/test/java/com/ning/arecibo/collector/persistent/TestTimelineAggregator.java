@@ -17,7 +17,9 @@
 package com.ning.arecibo.collector.persistent;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Properties;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -26,6 +28,8 @@ import javax.inject.Inject;
 import org.apache.commons.io.IOUtils;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
+import org.skife.config.ConfigurationObjectFactory;
+import org.skife.jdbi.v2.IDBI;
 import org.testng.Assert;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
@@ -36,10 +40,12 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.inject.Injector;
 import com.ning.arecibo.collector.TestModulesFactory;
+import com.ning.arecibo.collector.guice.CollectorConfig;
 import com.ning.arecibo.dao.MysqlTestingHelper;
 import com.ning.arecibo.util.timeline.HostSamplesForTimestamp;
 import com.ning.arecibo.util.timeline.chunks.TimelineChunk;
 import com.ning.arecibo.util.timeline.chunks.TimelineChunkConsumer;
+import com.ning.arecibo.util.timeline.persistent.DefaultTimelineDAO;
 import com.ning.arecibo.util.timeline.persistent.TimelineDAO;
 import com.ning.arecibo.util.timeline.samples.SampleCoderImpl;
 import com.ning.arecibo.util.timeline.samples.SampleCoder;
@@ -57,6 +63,7 @@ public class TestTimelineAggregator
     private static final int EVENT_TYPE_ID = 123;
     private static final String MIN_HEAPUSED_KIND = "min_heapUsed";
     private static final String MAX_HEAPUSED_KIND = "max_heapUsed";
+    private static final int PARTITIONS = 3;
     private static final DateTime START_TIME = new DateTime(DateTimeZone.UTC);
     private static final TimelineCoder timelineCoder = new TimelineCoderImpl();
     private static final SampleCoder sampleCoder = new SampleCoderImpl();
@@ -139,6 +146,69 @@ public class TestTimelineAggregator
         checkSamplesForATimeline(124, 66, 2);
     }
 
+    @Test(groups = "slow")
+    public void testPartitionedAggregation() throws Exception
+    {
+        final Properties properties = new Properties(System.getProperties());
+        properties.setProperty("arecibo.collector.timelines.aggregationPartitions", String.valueOf(PARTITIONS));
+        properties.setProperty("arecibo.collector.timelines.aggregationThreads", "2");
+        properties.setProperty("arecibo.collector.timelines.aggregationSleepBetweenBatches", "0ms");
+        final CollectorConfig config = new ConfigurationObjectFactory(properties).build(CollectorConfig.class);
+        final TimelineAggregator partitionedAggregator = new TimelineAggregator(injector.getInstance(IDBI.class), injector.getInstance(DefaultTimelineDAO.class),
+                                                                                timelineCoder, sampleCoder, config, injector.getInstance(TimelineChunkSamplesCache.class));
+
+        // Two chunks per sample kind for each host, with a gap as in testAggregation
+        final int hostCount = 2 * PARTITIONS;
+        final int[] hostIds = new int[hostCount];
+        final int[] hostsPerPartition = new int[PARTITIONS];
+        for (int i = 0; i < hostCount; i++) {
+            hostId = timelineDAO.getOrAddHost(HOST_NAME + "-" + i);
+            hostIds[i] = hostId;
+            hostsPerPartition[hostId % PARTITIONS]++;
+            minHeapUsedKindId = timelineDAO.getOrAddSampleKind(hostId, EVENT_TYPE_ID, MIN_HEAPUSED_KIND);
+            maxHeapUsedKindId = timelineDAO.getOrAddSampleKind(hostId, EVENT_TYPE_ID, MAX_HEAPUSED_KIND);
+            createAOneHourTimelineChunk(125);
+            createAOneHourTimelineChunk(60);
+            checkSamplesForATimeline(125, 0, 4);
+        }
+
+        try {
+            partitionedAggregator.getAndProcessTimelineAggregationCandidates();
+        }
+        finally {
+            partitionedAggregator.stopAggregationThread();
+        }
+
+        // Each host was aggregated, whichever partition it fell in
+        for (final int id : hostIds) {
+            hostId = id;
+            checkSamplesForATimeline(64, 61, 2);
+            checkSamplesForATimeline(125, 0, 2);
+        }
+        Assert.assertEquals(partitionedAggregator.getAggregationPartitions(), PARTITIONS);
+        Assert.assertEquals(partitionedAggregator.getTimelineChunksWritten(), (long) 2 * hostCount);
+        Assert.assertEquals(partitionedAggregator.getTimelineChunksInvalidatedOrDeleted(), (long) 4 * hostCount);
+
+        // Per host: 4 chunks considered and 2 aggregates created at level 0, then the 2 aggregates considered at level 1
+        final Map<String, Long> progress = parsePartitionProgress(partitionedAggregator.getPartitionProgress());
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            Assert.assertTrue(hostsPerPartition[partition] > 0);
+            Assert.assertEquals(progress.get("partition" + partition + ".chunksConsidered"), Long.valueOf(6 * hostsPerPartition[partition]));
+            Assert.assertEquals(progress.get("partition" + partition + ".aggsCreated"), Long.valueOf(2 * hostsPerPartition[partition]));
+            Assert.assertEquals(progress.get("partition" + partition + ".chunksWritten"), Long.valueOf(2 * hostsPerPartition[partition]));
+        }
+    }
+
+    private Map<String, Long> parsePartitionProgress(final String partitionProgress)
+    {
+        final Map<String, Long> progress = new HashMap<String, Long>();
+        for (final String counter : partitionProgress.split(", ")) {
+            final String[] nameAndValue = counter.split(": ");
+            progress.put(nameAndValue[0], Long.valueOf(nameAndValue[1]));
+        }
+        return progress;
+    }
+
     private void checkSamplesForATimeline(final Integer startTimeMinutesAgo, final Integer endTimeMinutesAgo, final long expectedChunks) throws InterruptedException
     {
         final AtomicLong timelineChunkSeen = new AtomicLong(0);
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.collector.persistent;
+
+import com.google.common.collect.ImmutableList;
+import com.ning.arecibo.util.timeline.chunks.TimelineChunk;
+import com.ning.arecibo.util.timeline.chunks.TimelineChunkAccumulator;
+import com.ning.arecibo.util.timeline.samples.SampleCoder;
+import com.ning.arecibo.util.timeline.samples.SampleCoderImpl;
+import com.ning.arecibo.util.timeline.samples.SampleOpcode;
+import com.ning.arecibo.util.timeline.samples.ScalarSample;
+import com.ning.arecibo.util.timeline.times.TimelineCoder;
+import com.ning.arecibo.util.timeline.times.TimelineCoderImpl;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestTimelineChunkSamplesCache
+{
+    private static final TimelineCoder timelineCoder = new TimelineCoderImpl();
+    private static final SampleCoder sampleCoder = new SampleCoderImpl();
+    private static final DateTime START_TIME = new DateTime(DateTimeZone.UTC).minusHours(1);
+
+    @Test(groups = "fast")
+    public void testHitsAndInvalidation() throws Exception
+    {
+        final TimelineChunkSamplesCache cache = new TimelineChunkSamplesCache(1024 * 1024);
+        final TimelineChunk chunk = createChunk(12L, 10);
+        final String expected = chunk.getSamplesAsCSV();
+
+        Assert.assertEquals(cache.getSamplesAsCSV(chunk), expected);
+        Assert.assertEquals(cache.getSamplesAsCSV(chunk), expected);
+        Assert.assertEquals(cache.getHitCount(), 1);
+        Assert.assertEquals(cache.getMissCount(), 1);
+        Assert.assertEquals(cache.getHitRatio(), 0.5);
+        Assert.assertEquals(cache.getEntryCount(), 1);
+        Assert.assertTrue(cache.getMemoryUsed() > 2 * expected.length());
+
+        cache.invalidate(ImmutableList.<Long>of(12L, 13L));
+        Assert.assertEquals(cache.getEntryCount(), 0);
+        Assert.assertEquals(cache.getMemoryUsed(), 0);
+        Assert.assertEquals(cache.getInvalidationCount(), 1);
+        Assert.assertEquals(cache.getSamplesAsCSV(chunk), expected);
+        Assert.assertEquals(cache.getMissCount(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testUnpersistedChunksAreNotCached() throws Exception
+    {
+        final TimelineChunkSamplesCache cache = new TimelineChunkSamplesCache(1024 * 1024);
+        final TimelineChunk chunk = createChunk(0L, 10);
+
+        Assert.assertEquals(cache.getSamplesAsCSV(chunk), chunk.getSamplesAsCSV());
+        Assert.assertEquals(cache.getSamplesAsCSV(chunk), chunk.getSamplesAsCSV());
+        Assert.assertEquals(cache.getEntryCount(), 0);
+        Assert.assertEquals(cache.getHitCount() + cache.getMissCount(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testLeastRecentlyUsedEviction() throws Exception
+    {
+        final TimelineChunk first = createChunk(1L, 50);
+        final TimelineChunk second = createChunk(2L, 50);
+        final TimelineChunk third = createChunk(3L, 50);
+        // Room for two of the chunks, not three (the samples of all three have the same length)
+        final long entrySize = 96 + 2 * first.getSamplesAsCSV().length();
+        final TimelineChunkSamplesCache cache = new TimelineChunkSamplesCache(2 * entrySize + entrySize / 2);
+
+        cache.getSamplesAsCSV(first);
+        cache.getSamplesAsCSV(second);
+        // Touch the first one, so that the second one is the eldest
+        cache.getSamplesAsCSV(first);
+        cache.getSamplesAsCSV(third);
+        Assert.assertEquals(cache.getEntryCount(), 2);
+        Assert.assertEquals(cache.getEvictionCount(), 1);
+        Assert.assertTrue(cache.getMemoryUsed() <= cache.getMaxMemory());
+
+        final long hitsBefore = cache.getHitCount();
+        cache.getSamplesAsCSV(first);
+        cache.getSamplesAsCSV(third);
+        Assert.assertEquals(cache.getHitCount(), hitsBefore + 2);
+        cache.getSamplesAsCSV(second);
+        Assert.assertEquals(cache.getHitCount(), hitsBefore + 2);
+    }
+
+    private TimelineChunk createChunk(final long chunkId, final int sampleCount)
+    {
+        final TimelineChunkAccumulator accumulator = new TimelineChunkAccumulator(1, 2, sampleCoder);
+        final List<DateTime> times = new ArrayList<DateTime>();
+        for (int i = 0; i < sampleCount; i++) {
+            accumulator.addSample(new ScalarSample<Long>(SampleOpcode.LONG, 1000L * i + chunkId));
+            times.add(START_TIME.plusSeconds(30 * i));
+        }
+        final TimelineChunk chunk = accumulator.extractTimelineChunkAndReset(times.get(0), times.get(sampleCount - 1), timelineCoder.compressDateTimes(times));
+        return new TimelineChunk(sampleCoder, chunkId, chunk);
+    }
+}
@@ -17,12 +17,24 @@
 package com.ning.arecibo.collector.persistent;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.skife.config.ConfigurationObjectFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -31,15 +43,19 @@ import com.ning.arecibo.collector.MockFileBackedBuffer;
 import com.ning.arecibo.collector.MockTimelineDAO;
 import com.ning.arecibo.collector.guice.CollectorConfig;
 import com.ning.arecibo.util.timeline.HostSamplesForTimestamp;
+import com.ning.arecibo.util.timeline.persistent.Replayer;
 import com.ning.arecibo.util.timeline.persistent.TimelineDAO;
+import com.ning.arecibo.util.timeline.persistent.WriteAheadLogBuffer;
 import com.ning.arecibo.util.timeline.samples.SampleCoderImpl;
 import com.ning.arecibo.util.timeline.samples.SampleCoder;
+import com.ning.arecibo.util.timeline.samples.SampleOpcode;
 import com.ning.arecibo.util.timeline.samples.ScalarSample;
 import com.ning.arecibo.util.timeline.times.TimelineCoder;
 import com.ning.arecibo.util.timeline.times.TimelineCoderImpl;
 
 public class TestTimelineEventHandler
 {
+    private static final Logger log = LoggerFactory.getLogger(TestTimelineEventHandler.class);
     private static final File basePath = new File(System.getProperty("java.io.tmpdir"), "TestTimelineEventHandler-" + System.currentTimeMillis());
     private static final String EVENT_TYPE = "eventType";
     private static final TimelineCoder timelineCoder = new TimelineCoderImpl();
@@ -124,4 +140,114 @@ public class TestTimelineEventHandler
         final Collection<TimelineHostEventAccumulator> accumulators = handler.getAccumulators();
         Assert.assertEquals(accumulators.size(), 1);
     }
+
+    @Test(groups = "fast")
+    public void testReplayLeavesWriteAheadLogAlone() throws Exception
+    {
+        final File spoolDir = new File(System.getProperty("java.io.tmpdir"), "TestTimelineEventHandler-wal-" + System.nanoTime());
+        Assert.assertTrue(spoolDir.mkdir());
+        final Properties properties = new Properties(System.getProperties());
+        properties.setProperty("arecibo.collector.timelines.spoolDir", spoolDir.getAbsolutePath());
+        final CollectorConfig config = new ConfigurationObjectFactory(properties).build(CollectorConfig.class);
+
+        // As built at injection time, before the replay on START
+        final WriteAheadLogBuffer buffer = new WriteAheadLogBuffer(spoolDir.getAbsolutePath(), "TimelineEventHandler", true, 4096, 0);
+        final TimelineEventHandler handler = new TimelineEventHandler(config, dao, timelineCoder, sampleCoder, new BackgroundDBChunkWriter(dao, config, true), buffer);
+        final Map<Integer, ScalarSample> samples = ImmutableMap.<Integer, ScalarSample>of(1, new ScalarSample<Long>(SampleOpcode.LONG, 12L));
+        final DateTime startTime = new DateTime(DateTimeZone.UTC);
+
+        // A sample handled before the replay starts
+        Assert.assertTrue(buffer.append(new HostSamplesForTimestamp(1, EVENT_TYPE, startTime, samples)));
+        handler.replay(spoolDir.getAbsolutePath());
+        Assert.assertEquals(handler.getReplaySamplesFoundCount(), 0);
+        Assert.assertTrue(buffer.append(new HostSamplesForTimestamp(1, EVENT_TYPE, startTime.plusSeconds(1), samples)));
+
+        Assert.assertEquals(buffer.getFilesInUse().size(), 1);
+        for (final File segment : buffer.getFilesInUse()) {
+            Assert.assertTrue(segment.exists());
+        }
+        buffer.close();
+        final List<HostSamplesForTimestamp> replayed = new Replayer(spoolDir.getAbsolutePath()).readAll();
+        Assert.assertEquals(replayed.size(), 2);
+        Assert.assertEquals(replayed.get(1).getTimestamp(), startTime.plusSeconds(1));
+        Assert.assertTrue(spoolDir.delete());
+    }
+
+    @Test(groups = "slow")
+    public void testIngestionScalesWithThreads() throws Exception
+    {
+        final Properties properties = new Properties(System.getProperties());
+        properties.setProperty("arecibo.collector.timelines.spoolDir", basePath.getAbsolutePath());
+        // Long enough that no accumulator rolls over to a new chunk during the test
+        properties.setProperty("arecibo.collector.timelines.length", "20d");
+        final CollectorConfig config = new ConfigurationObjectFactory(properties).build(CollectorConfig.class);
+
+        final int maxThreads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        final int hostCount = 8 * maxThreads;
+        final int samplesPerHost = 4000;
+
+        final double singleThreadRate = measureIngestionRate(config, 1, hostCount, samplesPerHost);
+        final double multiThreadRate = measureIngestionRate(config, maxThreads, hostCount, samplesPerHost);
+        final double speedup = multiThreadRate / singleThreadRate;
+        log.info(String.format("Ingestion with 1 thread: %.0f samples/sec, with %d threads: %.0f samples/sec, speedup %.2f",
+                               singleThreadRate, maxThreads, multiThreadRate, speedup));
+
+        // Only check the scaling when there are spare cores to scale onto
+        if (Runtime.getRuntime().availableProcessors() >= maxThreads) {
+            Assert.assertTrue(speedup >= 0.5 * maxThreads, String.format("Speedup %.2f with %d threads", speedup, maxThreads));
+        }
+    }
+
+    private double measureIngestionRate(final CollectorConfig config, final int threadCount, final int hostCount, final int samplesPerHost) throws Exception
+    {
+        final MockTimelineDAO timelineDAO = new MockTimelineDAO();
+        final TimelineEventHandler handler = new TimelineEventHandler(config, timelineDAO, timelineCoder, sampleCoder, new BackgroundDBChunkWriter(timelineDAO, config, true), new MockFileBackedBuffer());
+        final int eventCategoryId = timelineDAO.getOrAddEventCategory(EVENT_TYPE);
+        final Map<Integer, ScalarSample> samples = new HashMap<Integer, ScalarSample>();
+        for (int i = 0; i < 10; i++) {
+            final int sampleKindId = timelineDAO.getOrAddSampleKind(null, eventCategoryId, "sampleKind" + i);
+            samples.put(sampleKindId, new ScalarSample<Long>(SampleOpcode.LONG, (long) i * 1000L));
+        }
+        final DateTime startTime = new DateTime(DateTimeZone.UTC);
+
+        // Each thread owns a disjoint set of hosts, since samples for one host must be added in time order
+        final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < threadCount; t++) {
+            final int firstHostId = t + 1;
+            futures.add(executor.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    startLatch.await();
+                    for (int i = 0; i < samplesPerHost; i++) {
+                        final DateTime timestamp = startTime.plusMillis(i);
+                        for (int hostId = firstHostId; hostId <= hostCount; hostId += threadCount) {
+                            handler.processSamples(new HostSamplesForTimestamp(hostId, EVENT_TYPE, timestamp, samples));
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        final long startNanos = System.nanoTime();
+        startLatch.countDown();
+        for (final Future<?> future : futures) {
+            future.get();
+        }
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        executor.shutdown();
+
+        final Collection<TimelineHostEventAccumulator> accumulators = handler.getAccumulators();
+        Assert.assertEquals(accumulators.size(), hostCount);
+        for (final TimelineHostEventAccumulator accumulator : accumulators) {
+            Assert.assertTrue(accumulator.checkSampleCounts(samplesPerHost));
+        }
+        Assert.assertEquals(handler.getAddedHostEventAccumulatorCount(), hostCount);
+
+        return (double) hostCount * samplesPerHost * TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.collector.process;
+
+import com.google.common.base.Function;
+import com.ning.arecibo.collector.MockTimelineDAO;
+import com.ning.arecibo.collector.persistent.TimelineHostEventAccumulator;
+import com.ning.arecibo.util.timeline.HostSamplesForTimestamp;
+import com.ning.arecibo.util.timeline.chunks.TimelineChunk;
+import com.ning.arecibo.util.timeline.persistent.Replayer;
+import com.ning.arecibo.util.timeline.persistent.WriteAheadLogBuffer;
+import com.ning.arecibo.util.timeline.samples.SampleCoder;
+import com.ning.arecibo.util.timeline.samples.SampleCoderImpl;
+import com.ning.arecibo.util.timeline.samples.SampleOpcode;
+import com.ning.arecibo.util.timeline.samples.ScalarSample;
+import com.ning.arecibo.util.timeline.times.TimelineCoder;
+import com.ning.arecibo.util.timeline.times.TimelineCoderImpl;
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class TestParallelReplay
+{
+    private static final int NB_HOSTS = 13;
+    private static final int NB_CATEGORIES = 2;
+    private static final int NB_TIMESTAMPS = 200;
+    private static final int NB_THREADS = 4;
+    private static final DateTime START_TIME = new DateTime(DateTimeZone.UTC).minusHours(2);
+    private static final TimelineCoder timelineCoder = new TimelineCoderImpl();
+    private static final SampleCoder sampleCoder = new SampleCoderImpl();
+
+    private File basePath;
+
+    @BeforeMethod(groups = "slow")
+    public void setUp() throws Exception
+    {
+        basePath = new File(System.getProperty("java.io.tmpdir"), "TestParallelReplay-" + System.nanoTime());
+        Assert.assertTrue(basePath.mkdir());
+    }
+
+    @AfterMethod(groups = "slow")
+    public void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory(basePath);
+    }
+
+    @Test(groups = "slow")
+    public void testParallelReplayMatchesSequentialReplay() throws Exception
+    {
+        // Small segments, so that each host's samples are spread across many files
+        final WriteAheadLogBuffer buffer = new WriteAheadLogBuffer(basePath.getAbsolutePath(), "test", false, 4096, 0);
+        for (int i = 0; i < NB_TIMESTAMPS; i++) {
+            for (int hostId = 1; hostId <= NB_HOSTS; hostId++) {
+                for (int categoryId = 0; categoryId < NB_CATEGORIES; categoryId++) {
+                    final Map<Integer, ScalarSample> samples = new HashMap<Integer, ScalarSample>();
+                    samples.put(1, new ScalarSample<Integer>(SampleOpcode.INT, hostId * i));
+                    samples.put(2, new ScalarSample<Double>(SampleOpcode.DOUBLE, (hostId + categoryId) / (i + 1.0)));
+                    buffer.append(new HostSamplesForTimestamp(hostId, "category" + categoryId, START_TIME.plusSeconds(30 * i), samples));
+                }
+            }
+        }
+        buffer.close();
+        final int nbFiles = FileUtils.listFiles(basePath, null, false).size();
+        Assert.assertTrue(nbFiles > NB_THREADS);
+
+        final Replayer sequentialReplayer = new Replayer(basePath.getAbsolutePath());
+        final Map<String, TimelineChunk> sequentialChunks = replay(sequentialReplayer, 1);
+        Assert.assertEquals(sequentialReplayer.getFilesReplayed(), nbFiles);
+        Assert.assertEquals(sequentialChunks.size(), NB_HOSTS * NB_CATEGORIES * 2);
+
+        final Replayer parallelReplayer = new Replayer(basePath.getAbsolutePath());
+        final Map<String, TimelineChunk> parallelChunks = replay(parallelReplayer, NB_THREADS);
+        Assert.assertEquals(parallelReplayer.getFilesReplayed(), nbFiles);
+        Assert.assertEquals(parallelReplayer.getProgress(), 1.0);
+        Assert.assertEquals(parallelReplayer.getEstimatedMillisRemaining(), 0);
+
+        Assert.assertEquals(parallelChunks.keySet(), sequentialChunks.keySet());
+        for (final String key : sequentialChunks.keySet()) {
+            final TimelineChunk expected = sequentialChunks.get(key);
+            final TimelineChunk actual = parallelChunks.get(key);
+            // Samples replayed out of order would have been dropped by the accumulator
+            Assert.assertEquals(actual.getSampleCount(), NB_TIMESTAMPS);
+            Assert.assertEquals(actual.getSampleCount(), expected.getSampleCount());
+            Assert.assertEquals(actual.getStartTime(), expected.getStartTime());
+            Assert.assertEquals(actual.getEndTime(), expected.getEndTime());
+            Assert.assertTrue(Arrays.equals(actual.getTimes(), expected.getTimes()), key);
+            Assert.assertTrue(Arrays.equals(actual.getSamples(), expected.getSamples()), key);
+        }
+    }
+
+    /**
+     * Replay the spool files, without deleting them, into one accumulator per host and category
+     *
+     * @return the chunks created, keyed by host, category and sample kind
+     */
+    private Map<String, TimelineChunk> replay(final Replayer replayer, final int nbThreads)
+    {
+        final MockTimelineDAO dao = new MockTimelineDAO();
+        final Map<String, TimelineHostEventAccumulator> accumulators = new HashMap<String, TimelineHostEventAccumulator>();
+        replayer.readAll(false, null, new Function<HostSamplesForTimestamp, Void>()
+        {
+            @Override
+            public Void apply(@Nullable final HostSamplesForTimestamp input)
+            {
+                final String key = input.getHostId() + "/" + input.getCategory();
+                TimelineHostEventAccumulator accumulator;
+                synchronized (accumulators) {
+                    accumulator = accumulators.get(key);
+                    if (accumulator == null) {
+                        final int categoryId = Integer.valueOf(input.getCategory().substring("category".length()));
+                        accumulator = new TimelineHostEventAccumulator(dao, timelineCoder, sampleCoder, input.getHostId(), categoryId, input.getTimestamp());
+                        accumulators.put(key, accumulator);
+                    }
+                }
+                Assert.assertTrue(accumulator.addHostSamples(input));
+                return null;
+            }
+        }, nbThreads);
+
+        final Map<String, TimelineChunk> chunks = new TreeMap<String, TimelineChunk>();
+        for (final TimelineHostEventAccumulator accumulator : accumulators.values()) {
+            final int chunksBefore = dao.getTimelineChunks().size();
+            accumulator.extractAndQueueTimelineChunks();
+            for (int i = chunksBefore; i < dao.getTimelineChunks().size(); i++) {
+                final TimelineChunk chunk = dao.getTimelineChunks().get(i);
+                chunks.put(accumulator.getHostId() + "/" + accumulator.getEventCategoryId() + "/" + chunk.getSampleKindId(), chunk);
+            }
+        }
+        return chunks;
+    }
+}
@@ -20,6 +20,7 @@ import com.ning.arecibo.collector.MockFileBackedBuffer;
 import com.ning.arecibo.collector.MockTimelineDAO;
 import com.ning.arecibo.collector.guice.CollectorConfig;
 import com.ning.arecibo.collector.persistent.BackgroundDBChunkWriter;
+import com.ning.arecibo.collector.persistent.TimelineChunkSamplesCache;
 import com.ning.arecibo.collector.persistent.TimelineEventHandler;
 import com.ning.arecibo.collector.persistent.TimelineHostEventAccumulator;
 import com.ning.arecibo.event.MapEvent;
@@ -52,6 +53,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
 
@@ -90,7 +92,7 @@ public class TestHostDataResource
         dao = new MockTimelineDAO();
         final CollectorConfig config = new ConfigurationObjectFactory(System.getProperties()).build(CollectorConfig.class);
         handler = new TimelineEventHandler(config, dao, timelineCoder, sampleCoder, new BackgroundDBChunkWriter(dao, config, true), new MockFileBackedBuffer());
-        resource = new HostDataResource(dao, sampleCoder, config, handler);
+        resource = new HostDataResource(dao, sampleCoder, config, handler, new TimelineChunkSamplesCache(config));
 
         // Create the hosts. host1 and host2 are used in testGetHostSamplesParsing, host3 in testWriteJsonForInMemoryChunks
         hostId1 = dao.getOrAddHost(HOST_NAME_1);
@@ -242,6 +244,48 @@ public class TestHostDataResource
         Assert.assertEquals(samplesForSampleKindAndHost.size(), 3);
     }
 
+    @Test(groups = "fast")
+    public void testShardedStoredChunksMatchSingleQuery() throws Exception
+    {
+        final DateTime startTime = new DateTime(DateTimeZone.UTC).minusHours(2);
+        for (final Integer hostId : ImmutableList.<Integer>of(hostId3, hostId1, hostId2)) {
+            sendSamples(hostId, sampleKindId1, startTime);
+            sendSamples(hostId, sampleKindId2, startTime.plusHours(1));
+        }
+
+        // One host per shard, two shards at a time
+        final Properties properties = new Properties();
+        properties.putAll(System.getProperties());
+        properties.setProperty("arecibo.collector.timelines.storedChunksShardSize", "1");
+        properties.setProperty("arecibo.collector.timelines.storedChunksShardThreads", "2");
+        properties.setProperty("arecibo.collector.timelines.maxConcurrentShardsPerRequest", "2");
+        final CollectorConfig shardedConfig = new ConfigurationObjectFactory(properties).build(CollectorConfig.class);
+        final HostDataResource shardedResource = new HostDataResource(dao, sampleCoder, shardedConfig, handler, new TimelineChunkSamplesCache(shardedConfig));
+
+        final List<Integer> hostIds = ImmutableList.<Integer>of(hostId2, hostId3, hostId1);
+        final List<Integer> sampleKindIds = ImmutableList.<Integer>of(sampleKindId1, sampleKindId2);
+        for (final boolean decodeSamples : new boolean[]{false, true}) {
+            final String expected = writeStoredChunks(resource, hostIds, sampleKindIds, startTime, decodeSamples);
+            final String actual = writeStoredChunks(shardedResource, hostIds, sampleKindIds, startTime, decodeSamples);
+            Assert.assertTrue(expected.length() > 0);
+            Assert.assertEquals(actual, expected);
+        }
+    }
+
+    private String writeStoredChunks(final HostDataResource hostDataResource, final List<Integer> hostIds, final List<Integer> sampleKindIds,
+                                     final DateTime startTime, final boolean decodeSamples) throws Exception
+    {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(output);
+        final DateTime endTime = new DateTime(DateTimeZone.UTC);
+        final Map<Integer, Map<Integer, DecimatingSampleFilter>> filters = hostDataResource.createDecimatingSampleFilters(hostIds, sampleKindIds, DecimationMode.PEAK_PICK, startTime, endTime, null);
+        generator.writeStartArray();
+        hostDataResource.writeJsonForStoredChunks(generator, mapper.writer(), filters, hostIds, sampleKindIds, startTime, endTime, decodeSamples);
+        generator.writeEndArray();
+        generator.close();
+        return output.toString();
+    }
+
     private void sendSamples(final Integer hostId, final Integer sampleKindId, final DateTime startTime) throws IOException
     {
         final TimelineHostEventAccumulator accumulator = handler.getOrAddHostEventAccumulator(hostId, eventTypeId, startTime, Integer.MAX_VALUE);
@@ -38,6 +38,7 @@ public class AreciboEventPublisher extends AbstractEventPublisher
 	private final Selector selector;
     private final ExecutorService globalExecutor;
     private final AsynchronousSender asyncSender;
+    private final BatchingUDPSender batchingSender;
 	private final Spool spool;
 	private final AtomicLong eventsDiscarded = new AtomicLong(0);
 	private final AtomicLong restEventsDelivered = new AtomicLong(0);
@@ -64,6 +65,17 @@ public class AreciboEventPublisher extends AbstractEventPublisher
 			}
 		};
 
+		if (config.isUDPBatchingEnabled()) {
+			this.batchingSender = new BatchingUDPSender(chooser,
+			                                            config.getUDPBatchMaxPacketSize(),
+			                                            config.getUDPBatchLinger().getPeriod(),
+			                                            config.getUDPBatchLinger().getUnit(),
+			                                            config.getMaxEventBufferSize());
+		}
+		else {
+			this.batchingSender = null;
+		}
+
 		File spoolRoot = config.getLocalSpoolRoot().getAbsoluteFile();
 		File publisherRoot = new File(spoolRoot, "publisher");
 		this.spool = new Spool(config.getEventServiceName(),
@@ -71,7 +83,11 @@ public class AreciboEventPublisher extends AbstractEventPublisher
 		                       this.serviceLocator,
 		                       this.selector,
 		                       this.globalExecutor,
-		                       config.getSpooledEventExpiration()) {
+		                       config.getSpooledEventExpiration(),
+		                       config.getMaxSpoolSize().getNumberOfBytes(),
+		                       (int) config.getSpoolSegmentSize().getNumberOfBytes(),
+		                       config.getSpoolDrainBatchSize(),
+		                       config.getSpoolDrainThreads()) {
 			protected void sendViaREST(Event evt) throws IOException
 			{
 				sendREST(evt);
@@ -90,7 +106,12 @@ public class AreciboEventPublisher extends AbstractEventPublisher
 	{
 		switch (publishMode) {
 			case ASYNCHRONOUS:
-				if ( spool.hasCluster() ) {
+				if ( spool.hasCluster() && batchingSender != null ) {
+					if ( !batchingSender.send(event) ) {
+						eventsDiscarded.incrementAndGet();
+					}
+				}
+				else if ( spool.hasCluster() ) {
 					asyncSender.execute(new Runnable(){
 						public void run()
 						{
@@ -150,6 +171,9 @@ public class AreciboEventPublisher extends AbstractEventPublisher
 	{
 		this.asyncSender.shutdown();
 		this.asyncSender.awaitTermination(l,timeUnit);
+		if (this.batchingSender != null) {
+			this.batchingSender.shutdown(l, timeUnit);
+		}
 		this.chooser.stop();
 		this.spool.stop(l, timeUnit);
 	}
@@ -166,10 +190,28 @@ public class AreciboEventPublisher extends AbstractEventPublisher
         return spool.getRetryQueueSize();
     }
 
+    @MonitorableManaged(monitored = true)
+    public long getSpoolQueueBytes()
+    {
+        return spool.getSpoolQueueBytes();
+    }
+
+    @MonitorableManaged(monitored = true)
+    public long getRetryQueueBytes()
+    {
+        return spool.getRetryQueueBytes();
+    }
+
+    @MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
+    public long getSpoolEventsDropped()
+    {
+        return spool.getEventsDropped();
+    }
+
     @MonitorableManaged(monitored = true)
 	public int getEventBackLog()
 	{
-		return asyncSender.getQueueSize() ;
+		return asyncSender.getQueueSize() + (batchingSender == null ? 0 : batchingSender.getQueueSize());
 	}
 
     @MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
@@ -181,7 +223,49 @@ public class AreciboEventPublisher extends AbstractEventPublisher
     @MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE})
     public long getUdpEventsDelivered()
     {
-        return udpEventsDelivered.get();
+        return udpEventsDelivered.get() + (batchingSender == null ? 0 : batchingSender.getEventsSent());
+    }
+
+    @MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
+    public long getUdpPacketsSent()
+    {
+        return batchingSender == null ? udpEventsDelivered.get() : batchingSender.getPacketsSent();
+    }
+
+    @MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
+    public long getUdpBatchedEventsFailed()
+    {
+        return batchingSender == null ? 0 : batchingSender.getEventsFailed();
+    }
+
+    @MonitorableManaged(description = "Average number of events per batch, over the last minute", monitored = true)
+    public long getUdpBatchSizeAverage()
+    {
+        return batchingSender == null ? -1 : (long) batchingSender.getBatchSizes().getAverage();
+    }
+
+    @MonitorableManaged(monitored = true)
+    public long getUdpBatchSizeMax()
+    {
+        return batchingSender == null ? -1 : batchingSender.getBatchSizes().getMax();
+    }
+
+    @MonitorableManaged(description = "Median number of events per batch, over the last minute", monitored = true)
+    public long getUdpBatchSizeMedian()
+    {
+        return batchingSender == null ? -1 : batchingSender.getBatchSizes().getQuantile(0.5);
+    }
+
+    @MonitorableManaged(description = "Time the oldest event of a batch waited before being sent (99th percentile, last minute)", monitored = true)
+    public long getUdpBatchLinger99thPercentile()
+    {
+        return batchingSender == null ? -1 : batchingSender.getLingerMillis().getQuantile(0.99);
+    }
+
+    @MonitorableManaged(description = "Average time the oldest event of a batch waited before being sent, over the last minute", monitored = true)
+    public long getUdpBatchLingerAverage()
+    {
+        return batchingSender == null ? -1 : (long) batchingSender.getLingerMillis().getAverage();
     }
 
     @MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
@@ -21,6 +21,7 @@ import com.ning.arecibo.util.service.ServiceDescriptor;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.List;
 import com.ning.arecibo.event.transport.EventService;
 import com.ning.arecibo.event.transport.EventServiceRESTClient;
 import com.ning.arecibo.event.transport.EventServiceUDPClient;
@@ -61,6 +62,24 @@ public class AreciboEventService implements EventService
 		}
 	}
 
+	/**
+	 * Send the events in as few datagrams of at most maxPacketSize bytes as possible
+	 *
+	 * @return the number of bytes sent
+	 */
+	public int sendUDP(List<Event> events, int maxPacketSize) throws IOException
+	{
+		try {
+			return udpClient.sendEvents(udpAddress, events, maxPacketSize);
+		}
+		catch (IOException e) {
+			for (Event event : events) {
+				parent.invalidate(event.getSourceUUID());
+			}
+			throw e ;
+		}
+	}
+
     @Override
 	public void sendREST(Event event) throws IOException
 	{
@@ -29,6 +29,8 @@ import java.util.concurrent.TimeUnit;
 import com.mogwee.executors.NamedThreadFactory;
 import org.weakref.jmx.Managed;
 import com.google.inject.Inject;
+import com.ning.arecibo.event.transport.BinaryEventSerializer;
+import com.ning.arecibo.event.transport.EventSerializer;
 import com.ning.arecibo.event.transport.EventService;
 import com.ning.arecibo.event.transport.EventServiceRESTClient;
 import com.ning.arecibo.event.transport.EventServiceUDPClient;
@@ -59,13 +61,14 @@ public class AreciboEventServiceChooser implements EventServiceChooser
                                       ConsistentHashingServiceChooser magic,
                                       JMXCronTaskMaster cronTaskMaster,
                                       @EventSenderType String senderType,
-                                      AsyncHttpClient httpClient) throws IOException
+                                      AsyncHttpClient httpClient,
+                                      EventPublisherConfig config) throws IOException
     {
         this.serviceLocator = serviceLocator;
         this.selector = selector;
         this.serviceLocator.startReadOnly();
         this.restClient = new EventServiceRESTClient(httpClient, new JavaEventSerializer(), senderType);
-        this.udpClient = new EventServiceUDPClient(new JavaEventSerializer(), senderType);
+        this.udpClient = new EventServiceUDPClient(createUDPSerializer(config.getUDPContentType()), senderType);
         this.magic = magic;
 
         long jobInterval = Long.getLong("xn.event.chooser.invalidateCacheIntervalInMinutes", 60L);
@@ -83,6 +86,17 @@ public class AreciboEventServiceChooser implements EventServiceChooser
         }
     }
 
+    private static EventSerializer createUDPSerializer(String contentType)
+    {
+        if (BinaryEventSerializer.CONTENT_TYPE.equals(contentType)) {
+            return new BinaryEventSerializer();
+        }
+        else if (JavaEventSerializer.CONTENT_TYPE.equals(contentType)) {
+            return new JavaEventSerializer();
+        }
+        throw new IllegalArgumentException("Unsupported UDP content type " + contentType);
+    }
+
     public Set<ServiceDescriptor> getAllServiceDescriptors()
     {
         return serviceLocator.selectServices(selector);
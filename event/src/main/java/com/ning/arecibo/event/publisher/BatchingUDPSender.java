@@ -0,0 +1,278 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.event.publisher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import com.ning.arecibo.event.transport.EventService;
+import com.ning.arecibo.eventlogger.Event;
+import com.ning.arecibo.util.Logger;
+import com.ning.arecibo.util.metrics.ValueStats;
+
+/**
+ * Coalesces asynchronously published events into one datagram per destination collector.
+ * <p/>
+ * Publishers append to a lock-free queue; a single thread drains it, groups the events by
+ * destination, and sends a destination's events as BatchedEvents once they are estimated to fill
+ * a packet of maxPacketSize bytes, or once the oldest one has waited for the linger time. The
+ * size estimate uses the average encoded size of the events sent so far.
+ * <p/>
+ * Destinations other than AreciboEventServices don't support batches: their events are sent
+ * one by one.
+ */
+public class BatchingUDPSender
+{
+    private static final Logger log = Logger.getLogger(BatchingUDPSender.class);
+    // Until the first packet is sent
+    private static final int INITIAL_EVENT_SIZE_ESTIMATE = 256;
+
+    private final EventServiceChooser chooser;
+    private final int maxPacketSize;
+    private final long lingerNanos;
+    private final int maxQueueSize;
+
+    private final ConcurrentLinkedQueue<Event> queue = new ConcurrentLinkedQueue<Event>();
+    private final AtomicInteger queueSize = new AtomicInteger();
+    private final Map<Object, DestinationBatch> batches = new HashMap<Object, DestinationBatch>();
+    private final Thread sender;
+    private volatile boolean isRunning = true;
+    private volatile double averageEventSize = INITIAL_EVENT_SIZE_ESTIMATE;
+
+    private final AtomicLong eventsSent = new AtomicLong();
+    private final AtomicLong eventsFailed = new AtomicLong();
+    private final AtomicLong eventsDiscarded = new AtomicLong();
+    private final AtomicLong packetsSent = new AtomicLong();
+    private final ValueStats batchSizes = new ValueStats();
+    private final ValueStats lingerMillis = new ValueStats();
+
+    public BatchingUDPSender(EventServiceChooser chooser, int maxPacketSize, long linger, TimeUnit lingerUnit, int maxQueueSize)
+    {
+        this.chooser = chooser;
+        this.maxPacketSize = maxPacketSize;
+        this.lingerNanos = lingerUnit.toNanos(linger);
+        this.maxQueueSize = maxQueueSize;
+        this.sender = new Thread(getClass().getSimpleName() + ":send")
+        {
+            @Override
+            public void run()
+            {
+                BatchingUDPSender.this.run();
+            }
+        };
+        this.sender.setDaemon(true);
+        this.sender.start();
+    }
+
+    /**
+     * @return false if the event was discarded, the queue being full or the sender stopped
+     */
+    public boolean send(Event event)
+    {
+        if (!isRunning || queueSize.get() >= maxQueueSize) {
+            eventsDiscarded.incrementAndGet();
+            return false;
+        }
+        queue.offer(event);
+        // Only wake up the sender when it may be parked on an empty queue
+        if (queueSize.getAndIncrement() == 0) {
+            LockSupport.unpark(sender);
+        }
+        return true;
+    }
+
+    private void run()
+    {
+        while (isRunning || !queue.isEmpty()) {
+            try {
+                drainQueue();
+                long nextDeadline = sendBatches(System.nanoTime(), false);
+                if (queue.isEmpty() && isRunning) {
+                    LockSupport.parkNanos(this, nextDeadline == Long.MAX_VALUE ? lingerNanos : Math.max(0, nextDeadline - System.nanoTime()));
+                }
+            }
+            catch (RuntimeException e) {
+                log.error(e, "Unexpected error in the batching sender");
+            }
+        }
+        sendBatches(System.nanoTime(), true);
+    }
+
+    private void drainQueue()
+    {
+        long now = System.nanoTime();
+        int drained = 0;
+        Event event;
+        while ((event = queue.poll()) != null) {
+            drained++;
+            EventService service;
+            try {
+                service = chooser.choose(event.getSourceUUID());
+            }
+            catch (IOException e) {
+                log.error(e);
+                eventsFailed.incrementAndGet();
+                continue;
+            }
+            if (service == null) {
+                eventsFailed.incrementAndGet();
+                continue;
+            }
+
+            Object key = service instanceof AreciboEventService ? ((AreciboEventService) service).getServiceDescriptor() : service;
+            DestinationBatch batch = batches.get(key);
+            if (batch == null) {
+                batch = new DestinationBatch(now);
+                batches.put(key, batch);
+            }
+            batch.add(service, event);
+            if (batch.isFull()) {
+                send(batch, now);
+                batches.remove(key);
+            }
+        }
+        queueSize.addAndGet(-drained);
+    }
+
+    /**
+     * @return the time at which the next batch will reach its linger time
+     */
+    private long sendBatches(long now, boolean all)
+    {
+        long nextDeadline = Long.MAX_VALUE;
+        Iterator<DestinationBatch> iterator = batches.values().iterator();
+        while (iterator.hasNext()) {
+            DestinationBatch batch = iterator.next();
+            long deadline = batch.startNanos + lingerNanos;
+            if (all || deadline <= now) {
+                send(batch, now);
+                iterator.remove();
+            }
+            else {
+                nextDeadline = Math.min(nextDeadline, deadline);
+            }
+        }
+        return nextDeadline;
+    }
+
+    private void send(DestinationBatch batch, long now)
+    {
+        lingerMillis.record(TimeUnit.NANOSECONDS.toMillis(now - batch.startNanos));
+        try {
+            if (batch.service instanceof AreciboEventService) {
+                int bytes = ((AreciboEventService) batch.service).sendUDP(batch.events, maxPacketSize);
+                // Exponential moving average, so that the estimate follows the mix of events
+                averageEventSize = 0.8 * averageEventSize + 0.2 * ((double) bytes / batch.events.size());
+                // A lower bound: the batch is split in halves when it doesn't fit
+                packetsSent.addAndGet(Math.max(1, (bytes + maxPacketSize - 1) / maxPacketSize));
+            }
+            else {
+                for (Event event : batch.events) {
+                    batch.service.sendUDP(event);
+                    packetsSent.incrementAndGet();
+                }
+            }
+            batchSizes.record(batch.events.size());
+            eventsSent.addAndGet(batch.events.size());
+        }
+        catch (IOException e) {
+            log.error(e, "Unable to send %d events", batch.events.size());
+            eventsFailed.addAndGet(batch.events.size());
+        }
+    }
+
+    /**
+     * Stop accepting events, and send the ones queued
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        isRunning = false;
+        LockSupport.unpark(sender);
+        sender.join(unit.toMillis(timeout));
+    }
+
+    private final class DestinationBatch
+    {
+        private final long startNanos;
+        private final List<Event> events = new ArrayList<Event>();
+        private EventService service;
+
+        private DestinationBatch(long startNanos)
+        {
+            this.startNanos = startNanos;
+        }
+
+        private void add(EventService service, Event event)
+        {
+            // The chooser may have replaced the service of the destination
+            this.service = service;
+            events.add(event);
+        }
+
+        private boolean isFull()
+        {
+            return (events.size() + 1) * averageEventSize > maxPacketSize;
+        }
+    }
+
+    public int getQueueSize()
+    {
+        return queueSize.get();
+    }
+
+    public long getEventsSent()
+    {
+        return eventsSent.get();
+    }
+
+    public long getEventsFailed()
+    {
+        return eventsFailed.get();
+    }
+
+    public long getEventsDiscarded()
+    {
+        return eventsDiscarded.get();
+    }
+
+    /**
+     * @return a lower bound of the datagrams sent: a batch that doesn't fit in a packet is split in halves,
+     * which may take more datagrams than its size divided by maxPacketSize
+     */
+    public long getPacketsSent()
+    {
+        return packetsSent.get();
+    }
+
+    public ValueStats getBatchSizes()
+    {
+        return batchSizes;
+    }
+
+    public ValueStats getLingerMillis()
+    {
+        return lingerMillis;
+    }
+}
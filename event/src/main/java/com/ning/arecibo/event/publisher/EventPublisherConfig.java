@@ -17,6 +17,7 @@
 package com.ning.arecibo.event.publisher;
 
 import org.skife.config.Config;
+import org.skife.config.DataAmount;
 import org.skife.config.Default;
 import org.skife.config.TimeSpan;
 
@@ -48,7 +49,42 @@ public interface EventPublisherConfig
     @Default("./spool")
     File getLocalSpoolRoot();
 
+    // Applies to each of the spool and retry queues
+    @Config("arecibo.event.spool.maxSize")
+    @Default("256MB")
+    DataAmount getMaxSpoolSize();
+
+    @Config("arecibo.event.spool.segmentSize")
+    @Default("16MB")
+    DataAmount getSpoolSegmentSize();
+
+    @Config("arecibo.event.spool.drainBatchSize")
+    @Default("500")
+    int getSpoolDrainBatchSize();
+
+    @Config("arecibo.event.spool.drainThreads")
+    @Default("4")
+    int getSpoolDrainThreads();
+
     @Config("arecibo.event.eventServiceName")
     @Default("arecibo-event-publisher")
     String getEventServiceName();
+
+    // Receivers older than the binary format only understand application/x-java-serialized
+    @Config("arecibo.event.udp.contentType")
+    @Default("application/x-java-serialized")
+    String getUDPContentType();
+
+    // Coalesce asynchronous events into BatchedEvents, one datagram per destination collector
+    @Config("arecibo.event.udp.batching.enabled")
+    @Default("false")
+    boolean isUDPBatchingEnabled();
+
+    @Config("arecibo.event.udp.batching.maxPacketSize")
+    @Default("1400")
+    int getUDPBatchMaxPacketSize();
+
+    @Config("arecibo.event.udp.batching.linger")
+    @Default("50ms")
+    TimeSpan getUDPBatchLinger();
 }
@@ -55,7 +55,11 @@ public class HdfsEventPublisher extends AbstractEventPublisher
 		                       cluster,
 		                       selector,
 		                       globalExecutor,
-		                       config.getSpooledEventExpiration()) {
+		                       config.getSpooledEventExpiration(),
+		                       config.getMaxSpoolSize().getNumberOfBytes(),
+		                       (int) config.getSpoolSegmentSize().getNumberOfBytes(),
+		                       config.getSpoolDrainBatchSize(),
+		                       config.getSpoolDrainThreads()) {
 			protected void sendViaREST(Event evt) throws IOException
 			{
 				sendREST(evt);
@@ -117,6 +121,24 @@ public class HdfsEventPublisher extends AbstractEventPublisher
         return spool.getRetryQueueSize();
     }
 
+    @MonitorableManaged(monitored = true)
+    public long getSpoolQueueBytes()
+    {
+        return spool.getSpoolQueueBytes();
+    }
+
+    @MonitorableManaged(monitored = true)
+    public long getRetryQueueBytes()
+    {
+        return spool.getRetryQueueBytes();
+    }
+
+    @MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
+    public long getSpoolEventsDropped()
+    {
+        return spool.getEventsDropped();
+    }
+
     @MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
     public long getEventsDiscarded()
     {
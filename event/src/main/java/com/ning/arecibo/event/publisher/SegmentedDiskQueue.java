@@ -0,0 +1,465 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.event.publisher;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import com.ning.arecibo.util.Logger;
+
+/**
+ * A persistent FIFO queue of records, stored in append-only, memory-mapped segment files.
+ * <p/>
+ * Each record is a header made of the body length and the CRC32 of the body, both ints,
+ * followed by the body.  Segments are preallocated and zero-filled, so a body length of
+ * zero marks the end of the records of a segment; when a record doesn't fit in the
+ * current segment, the next one is created.
+ * <p/>
+ * Records are read in batches, and each batch is acknowledged once processed.  Several
+ * batches may be in flight at once: the acknowledged position, persisted in [name].ack,
+ * only moves past a batch once it and all the batches read before it are acknowledged,
+ * and the segments behind that position are deleted.  After a crash the records after
+ * the acknowledged position are read again, so delivery is at-least-once; a record torn
+ * by the crash fails its checksum and is dropped, along with the rest of its segment.
+ * <p/>
+ * The queue is bounded by the bytes of its unacknowledged records.
+ */
+public class SegmentedDiskQueue
+{
+    private static final Logger log = Logger.getLogger(SegmentedDiskQueue.class);
+
+    static final int HEADER_SIZE = 8;
+    private static final String SEGMENT_EXTENSION = ".seg";
+    private static final String ACK_EXTENSION = ".ack";
+    private static final int ACK_SIZE = 16;
+
+    private final File dir;
+    private final String name;
+    private final int segmentSize;
+    private final long maxBytes;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final MappedByteBuffer ackBuffer;
+    private final CRC32 crc = new CRC32();
+    private Segment writeSegment;
+    private Segment readSegment;
+    private int readOffset;
+    // Read but not yet acknowledged, in reading order
+    private final LinkedList<Batch> pendingBatches = new LinkedList<Batch>();
+    private boolean closed = false;
+
+    // Records written and not yet acknowledged
+    private int numQueued = 0;
+    private long bytesQueued = 0;
+    private long recordsRejected = 0;
+
+    /**
+     * @param dir         the directory of the segments, created if needed
+     * @param name        the prefix of the files of this queue
+     * @param segmentSize the size of a segment file, in bytes
+     * @param maxBytes    the maximum size of the records queued and not acknowledged, headers included
+     */
+    public SegmentedDiskQueue(File dir, String name, int segmentSize, long maxBytes) throws IOException
+    {
+        this.dir = dir;
+        this.name = name;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create the spool directory " + dir);
+        }
+        this.ackBuffer = map(new File(dir, name + ACK_EXTENSION), ACK_SIZE);
+        recover();
+    }
+
+    private void recover() throws IOException
+    {
+        final String prefix = name + ".";
+        File[] files = dir.listFiles(new FilenameFilter()
+        {
+            public boolean accept(File dir, String fileName)
+            {
+                return fileName.startsWith(prefix) && fileName.endsWith(SEGMENT_EXTENSION);
+            }
+        });
+        for (File file : files == null ? new File[0] : files) {
+            String seq = file.getName().substring(prefix.length(), file.getName().length() - SEGMENT_EXTENSION.length());
+            try {
+                segments.put(Long.parseLong(seq), null);
+            }
+            catch (NumberFormatException e) {
+                log.warn("Ignoring unexpected file %s in the spool", file);
+            }
+        }
+
+        long ackSeq = ackBuffer.getLong(0);
+        int ackOffset = ackBuffer.getInt(8);
+        if (ackBuffer.getInt(12) != ackChecksum(ackSeq, ackOffset)) {
+            if (!segments.isEmpty()) {
+                log.warn("Invalid acknowledged position in %s, reading %s from its first segment", ackPath(), name);
+            }
+            ackSeq = segments.isEmpty() ? 0 : segments.firstKey();
+            ackOffset = 0;
+        }
+
+        for (Iterator<Long> it = segments.keySet().iterator(); it.hasNext(); ) {
+            long seq = it.next();
+            if (seq < ackSeq) {
+                it.remove();
+                deleteSegmentFile(seq);
+            }
+        }
+        for (Map.Entry<Long, Segment> entry : segments.entrySet()) {
+            Segment segment = new Segment(entry.getKey(), segmentFile(entry.getKey()), 0);
+            entry.setValue(segment);
+            scan(segment, segment.seq == ackSeq ? ackOffset : 0);
+        }
+
+        if (segments.isEmpty()) {
+            writeSegment = createSegment(ackSeq, segmentSize);
+            readSegment = writeSegment;
+            readOffset = 0;
+            persistAck(ackSeq, 0);
+        }
+        else {
+            writeSegment = segments.lastEntry().getValue();
+            readSegment = segments.firstEntry().getValue();
+            readOffset = readSegment.seq == ackSeq ? Math.min(ackOffset, readSegment.writeOffset) : 0;
+        }
+        log.info("%s: recovered %d records (%d bytes) in %d segments", name, numQueued, bytesQueued, segments.size());
+    }
+
+    /**
+     * Count the valid records of a recovered segment, and find where the next one goes
+     */
+    private void scan(Segment segment, int offset)
+    {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset);
+        while (true) {
+            int start = buffer.position();
+            byte[] body = readRecord(buffer);
+            if (body == null) {
+                segment.writeOffset = start;
+                break;
+            }
+            numQueued++;
+            bytesQueued += HEADER_SIZE + body.length;
+        }
+        // Clear what a crash left after the last complete record, so it's not mistaken for records once overwritten
+        if (segment.writeOffset + HEADER_SIZE <= segment.size && segment.buffer.getInt(segment.writeOffset) != 0) {
+            log.warn("%s: dropping the torn tail of %s, after offset %d", name, segment.file, segment.writeOffset);
+            for (int i = segment.writeOffset; i < segment.size; i++) {
+                segment.buffer.put(i, (byte) 0);
+            }
+            segment.buffer.force();
+        }
+    }
+
+    /**
+     * @return the body of the record at the position of the buffer, or null if there is none or it's corrupted
+     */
+    private byte[] readRecord(ByteBuffer buffer)
+    {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        int length = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (length <= 0 || length > buffer.remaining()) {
+            return null;
+        }
+        byte[] body = new byte[length];
+        buffer.get(body);
+        crc.reset();
+        crc.update(body, 0, length);
+        return (int) crc.getValue() == checksum ? body : null;
+    }
+
+    /**
+     * Append records, and force them to disk
+     *
+     * @param records the records to append; empty records aren't supported
+     * @return the number of records appended, the ones after it are rejected since the queue is full
+     */
+    public synchronized int put(List<byte[]> records) throws IOException
+    {
+        if (closed) {
+            throw new IOException(name + " is closed");
+        }
+        int appended = 0;
+        try {
+            for (byte[] record : records) {
+                if (bytesQueued + HEADER_SIZE + record.length > maxBytes) {
+                    recordsRejected += records.size() - appended;
+                    break;
+                }
+                append(record);
+                appended++;
+            }
+        }
+        finally {
+            writeSegment.buffer.force();
+        }
+        return appended;
+    }
+
+    private void append(byte[] record) throws IOException
+    {
+        if (record.length == 0) {
+            throw new IllegalArgumentException("Empty records are not supported");
+        }
+        int recordSize = HEADER_SIZE + record.length;
+        if (writeSegment.size - writeSegment.writeOffset < recordSize) {
+            writeSegment.buffer.force();
+            writeSegment = createSegment(writeSegment.seq + 1, Math.max(segmentSize, recordSize));
+        }
+        crc.reset();
+        crc.update(record, 0, record.length);
+        ByteBuffer buffer = writeSegment.buffer.duplicate();
+        buffer.position(writeSegment.writeOffset + HEADER_SIZE);
+        buffer.put(record);
+        // The length goes last, as it marks the record as present
+        writeSegment.buffer.putInt(writeSegment.writeOffset + 4, (int) crc.getValue());
+        writeSegment.buffer.putInt(writeSegment.writeOffset, record.length);
+        writeSegment.writeOffset += recordSize;
+        numQueued++;
+        bytesQueued += recordSize;
+    }
+
+    /**
+     * Read the next records.  The batch has to be acknowledged once processed, or its
+     * records will be read again after a restart.
+     *
+     * @param maxRecords the maximum number of records to read
+     * @return the records read, or null if there are no unread records
+     */
+    public synchronized Batch read(int maxRecords)
+    {
+        if (closed) {
+            return null;
+        }
+        List<byte[]> records = new ArrayList<byte[]>(Math.min(maxRecords, 64));
+        int bytes = 0;
+        while (records.size() < maxRecords) {
+            if (readOffset < readSegment.writeOffset) {
+                ByteBuffer buffer = readSegment.buffer.duplicate();
+                buffer.position(readOffset);
+                byte[] body = readRecord(buffer);
+                if (body == null) {
+                    log.error("%s: corrupted record at offset %d of %s, skipping the rest of the segment", name, readOffset, readSegment.file);
+                    readOffset = readSegment.writeOffset;
+                    continue;
+                }
+                records.add(body);
+                bytes += HEADER_SIZE + body.length;
+                readOffset = buffer.position();
+            }
+            else if (readSegment != writeSegment) {
+                readSegment = segments.higherEntry(readSegment.seq).getValue();
+                readOffset = 0;
+            }
+            else {
+                break;
+            }
+        }
+        if (records.isEmpty()) {
+            return null;
+        }
+        Batch batch = new Batch(records, bytes, readSegment.seq, readOffset);
+        pendingBatches.add(batch);
+        return batch;
+    }
+
+    /**
+     * Mark the records of a batch as processed
+     */
+    public synchronized void ack(Batch batch)
+    {
+        if (batch.acked) {
+            return;
+        }
+        batch.acked = true;
+        numQueued -= batch.records.size();
+        bytesQueued -= batch.bytes;
+
+        Batch last = null;
+        while (!pendingBatches.isEmpty() && pendingBatches.getFirst().acked) {
+            last = pendingBatches.removeFirst();
+        }
+        if (last == null || closed) {
+            return;
+        }
+        persistAck(last.endSeq, last.endOffset);
+        while (segments.firstKey() < last.endSeq) {
+            deleteSegmentFile(segments.pollFirstEntry().getKey());
+        }
+    }
+
+    /**
+     * @return true if all records have been read, the ones being processed included
+     */
+    public synchronized boolean isEmpty()
+    {
+        return readSegment == writeSegment && readOffset >= writeSegment.writeOffset;
+    }
+
+    public synchronized void close()
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writeSegment.buffer.force();
+        ackBuffer.force();
+    }
+
+    /**
+     * @return the number of records written and not yet acknowledged
+     */
+    public synchronized int getNumQueued()
+    {
+        return numQueued;
+    }
+
+    public synchronized long getBytesQueued()
+    {
+        return bytesQueued;
+    }
+
+    public synchronized long getRecordsRejected()
+    {
+        return recordsRejected;
+    }
+
+    public synchronized int getSegmentCount()
+    {
+        return segments.size();
+    }
+
+    private void persistAck(long seq, int offset)
+    {
+        ackBuffer.putLong(0, seq);
+        ackBuffer.putInt(8, offset);
+        ackBuffer.putInt(12, ackChecksum(seq, offset));
+    }
+
+    private static int ackChecksum(long seq, int offset)
+    {
+        CRC32 checksum = new CRC32();
+        byte[] bytes = ByteBuffer.allocate(12).putLong(seq).putInt(offset).array();
+        checksum.update(bytes, 0, bytes.length);
+        // Never zero, so that a new, zero-filled file doesn't look valid
+        return (int) checksum.getValue() | 1;
+    }
+
+    private Segment createSegment(long seq, int size) throws IOException
+    {
+        Segment segment = new Segment(seq, segmentFile(seq), size);
+        segments.put(seq, segment);
+        log.debug("%s: created segment %s", name, segment.file);
+        return segment;
+    }
+
+    private void deleteSegmentFile(long seq)
+    {
+        File file = segmentFile(seq);
+        if (!file.delete()) {
+            log.warn("Unable to delete spool segment %s", file);
+        }
+    }
+
+    private File segmentFile(long seq)
+    {
+        return new File(dir, String.format("%s.%020d%s", name, seq, SEGMENT_EXTENSION));
+    }
+
+    private String ackPath()
+    {
+        return new File(dir, name + ACK_EXTENSION).getAbsolutePath();
+    }
+
+    /**
+     * @param size the size of the file, or 0 to keep the size of an existing file
+     */
+    private static MappedByteBuffer map(File file, int size) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (size > 0 && raf.length() < size) {
+                raf.setLength(size);
+            }
+            // The mapping stays valid once the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    public static final class Batch
+    {
+        private final List<byte[]> records;
+        private final int bytes;
+        private final long endSeq;
+        private final int endOffset;
+        private boolean acked = false;
+
+        private Batch(List<byte[]> records, int bytes, long endSeq, int endOffset)
+        {
+            this.records = Collections.unmodifiableList(records);
+            this.bytes = bytes;
+            this.endSeq = endSeq;
+            this.endOffset = endOffset;
+        }
+
+        public List<byte[]> getRecords()
+        {
+            return records;
+        }
+    }
+
+    private static final class Segment
+    {
+        private final long seq;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private final int size;
+        private int writeOffset = 0;
+
+        private Segment(long seq, File file, int size) throws IOException
+        {
+            this.seq = seq;
+            this.file = file;
+            this.buffer = map(file, size);
+            this.size = buffer.capacity();
+        }
+    }
+}
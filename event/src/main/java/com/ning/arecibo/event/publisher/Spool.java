@@ -16,8 +16,14 @@
 
 package com.ning.arecibo.event.publisher;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -25,23 +31,30 @@ import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.skife.config.TimeSpan;
+import com.ning.arecibo.event.transport.JavaEventSerializer;
 import com.ning.arecibo.eventlogger.Event;
 import com.ning.arecibo.util.Logger;
-import com.ning.arecibo.util.Pair;
 import com.ning.arecibo.util.service.Selector;
 import com.ning.arecibo.util.service.ServiceDescriptor;
 import com.ning.arecibo.util.service.ServiceListener;
 import com.ning.arecibo.util.service.ServiceLocator;
 
+/**
+ * Keeps the events which can't be delivered on disk, in two SegmentedDiskQueues: the spool
+ * for events published while the cluster is offline, and the retry queue for events whose
+ * delivery failed.  When the cluster comes back, both are drained in batches by up to
+ * drainThreads threads, which send to the services picked by the chooser concurrently.
+ */
 public abstract class Spool implements ServiceListener
 {
 	private static final Logger log = Logger.getLogger(Spool.class);
 
 	private final File spoolDir;
 	private final File retryDir;
-	private BDBQueue<EventItem> spoolQueue;
-	private BDBQueue<EventItem> retryQueue;
+	private final SegmentedDiskQueue spoolQueue;
+	private final SegmentedDiskQueue retryQueue;
 	private final ExecutorService globalExecutor;
 	private final TimeSpan spoolExpiration;
 	private final String clusterName;
@@ -49,8 +62,15 @@ public abstract class Spool implements ServiceListener
 	private final AtomicInteger serviceCount = new AtomicInteger(0);
 	private final AtomicBoolean isRunning = new AtomicBoolean(false), hasCluster = new AtomicBoolean(false);
 	private static final int MAX_RETRIES = 25;
+	private static final int MAX_ENQUEUE_BATCH_SIZE = 1000;
 	private final LinkedBlockingQueue<EventItem> enqueue = new LinkedBlockingQueue<EventItem>();
-	private KeyedDispatcher keyedExecutor;
+	private final KeyedDispatcher keyedExecutor;
+	private final Drainer spoolDrainer;
+	private final Drainer retryDrainer;
+	private final int drainBatchSize;
+	private final int drainThreads;
+	private final AtomicLong eventsDropped = new AtomicLong(0);
+	private final JavaEventSerializer serializer = new JavaEventSerializer();
 
 	public int getSpoolQueueSize()
 	{
@@ -62,24 +82,61 @@ public abstract class Spool implements ServiceListener
 		return retryQueue.getNumQueued();
 	}
 
+	public long getSpoolQueueBytes()
+	{
+		return spoolQueue.getBytesQueued();
+	}
+
+	public long getRetryQueueBytes()
+	{
+		return retryQueue.getBytesQueued();
+	}
+
+	/**
+	 * @return the number of events dropped because the spool or the retry queue was full
+	 */
+	public long getEventsDropped()
+	{
+		return eventsDropped.get();
+	}
+
+	/**
+	 * @param maxSpoolBytes  the size limit of each of the spool and retry queues, in bytes
+	 * @param segmentSize    the size of the segment files, in bytes
+	 * @param drainBatchSize the number of events read from disk at once while draining
+	 * @param drainThreads   the number of threads sending spooled events concurrently
+	 */
 	public Spool(String clusterName,
 	             File spoolRoot,
 	             ServiceLocator serviceLocator,
 	             Selector selector,
 	             ExecutorService globalExecutor,
-	             TimeSpan spoolExpiration)
+	             TimeSpan spoolExpiration,
+	             long maxSpoolBytes,
+	             int segmentSize,
+	             int drainBatchSize,
+	             int drainThreads)
 	{
 		this.clusterName = clusterName;
 		this.serviceLocator = serviceLocator;
 		this.globalExecutor = globalExecutor;
 		this.keyedExecutor = new KeyedDispatcher();
 		this.spoolExpiration = spoolExpiration;
+		this.drainBatchSize = drainBatchSize;
+		this.drainThreads = drainThreads;
 
 		spoolDir = new File(spoolRoot, "event");
 		retryDir = new File(spoolRoot, "retry");
 
-		this.spoolQueue = new BDBQueue<EventItem>(spoolDir, "event", 1000);
-		this.retryQueue = new BDBQueue<EventItem>(retryDir, "retry", 1000);
+		try {
+			this.spoolQueue = new SegmentedDiskQueue(spoolDir, "event", segmentSize, maxSpoolBytes);
+			this.retryQueue = new SegmentedDiskQueue(retryDir, "retry", segmentSize, maxSpoolBytes);
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Unable to open the spool in " + spoolRoot, e);
+		}
+		this.spoolDrainer = new Drainer(spoolQueue, false);
+		this.retryDrainer = new Drainer(retryQueue, true);
 
 		this.serviceLocator.registerListener(selector, Executors.newSingleThreadExecutor(), this);
 	}
@@ -87,14 +144,14 @@ public abstract class Spool implements ServiceListener
 	public void start() throws IOException
 	{
 		this.isRunning.set(true);
-		log.info("retryQueue size = %d", retryQueue.getNumQueued());
-		log.info("spoolQueue size = %d", spoolQueue.getNumQueued());
+		log.info("retryQueue size = %d (%d bytes)", retryQueue.getNumQueued(), retryQueue.getBytesQueued());
+		log.info("spoolQueue size = %d (%d bytes)", spoolQueue.getNumQueued(), spoolQueue.getBytesQueued());
 	}
 
 	public void stop(long l, TimeUnit timeUnit) throws IOException, InterruptedException
 	{
-		this.retryQueue.stop();
-		this.spoolQueue.stop();
+		this.retryQueue.close();
+		this.spoolQueue.close();
 		this.isRunning.set(false);
 	}
 
@@ -116,8 +173,8 @@ public abstract class Spool implements ServiceListener
 		if (serviceCount.get() == 1) {
 			log.info("%s : cluster %s is online", this, clusterName);
 			hasCluster.set(true);
-			keyedExecutor.execute(new SpoolRunnable());
-			keyedExecutor.execute(new RetryRunnable());
+			spoolDrainer.start();
+			retryDrainer.start();
 		}
 	}
 
@@ -153,82 +210,130 @@ public abstract class Spool implements ServiceListener
 		}
 	}
 
+	abstract protected void sendViaREST(Event evt) throws IOException;
 
-	private class RetryRunnable implements Runnable
+	/**
+	 * Drains a queue with up to drainThreads concurrent runs of itself, each one reading
+	 * a batch of events, sending them and acknowledging the batch.
+	 */
+	private class Drainer implements Runnable
 	{
-		public void run()
+		private final SegmentedDiskQueue queue;
+		private final boolean isRetry;
+		private final AtomicInteger running = new AtomicInteger(0);
+
+		private Drainer(SegmentedDiskQueue queue, boolean isRetry)
 		{
-			log.info("%s start", this);
-			while (hasCluster.get() && retryQueue.getNumQueued() > 0) {
-				log.debug("%s dequeuing from retryQueue", Thread.currentThread().getName());
-				try {
-					Pair<Integer, EventItem> p = retryQueue.get();
-					p.getSecond().touch();
-					log.debug("%s processing %s", Thread.currentThread().getName(), p.getSecond());
-					retryQueue.remove(p.getFirst());
-
-					Event evt = p.getSecond().getEvent();
-					if (p.getSecond().getCount() < MAX_RETRIES) {
-						try {
-							sendViaREST(evt);
-						}
-						catch (IOException e) {
-							log.error(e, "retry failed, retry count = %d", p.getSecond().getCount());
-							enqueueRetry(p.getSecond());
-						}
-					}
-					else {
-						log.error("max retried reached, dumping event %s", evt);
-					}
+			this.queue = queue;
+			this.isRetry = isRetry;
+		}
 
+		public void start()
+		{
+			while (hasCluster.get() && !queue.isEmpty()) {
+				int current = running.get();
+				if (current >= drainThreads) {
+					return;
 				}
-				catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
+				if (running.compareAndSet(current, current + 1)) {
+					globalExecutor.execute(this);
 				}
 			}
-			log.info("%s end", this);			
 		}
-	}
 
-	abstract protected void sendViaREST(Event evt) throws IOException;
-
-
-	private class SpoolRunnable implements Runnable
-	{
 		public void run()
 		{
-			log.info("%s start", this);
-			while (hasCluster.get() && spoolQueue.getNumQueued() > 0) {
-				log.debug("%s dequeuing from spoolQueue", Thread.currentThread().getName());
-				try {
-					Pair<Integer, EventItem> p = spoolQueue.get();
-					p.getSecond().touch();
-					log.debug("%s processing %s", Thread.currentThread().getName(), p.getSecond());
-					spoolQueue.remove(p.getFirst());
-
-					Event evt = p.getSecond().getEvent();
-					if (p.getSecond().getTimestamp() + spoolExpiration.getMillis() > System.currentTimeMillis()) {
-						try {
-							sendViaREST(evt);
-						}
-						catch (IOException e) {
-							log.error(e, "retry failed, retry count = %d", p.getSecond().getCount());
-							enqueueRetry(p.getSecond());
+			log.debug("%s start", this);
+			try {
+				SegmentedDiskQueue.Batch batch;
+				while (hasCluster.get() && (batch = queue.read(drainBatchSize)) != null) {
+					try {
+						for (byte[] record : batch.getRecords()) {
+							send(record);
 						}
 					}
-					else {
-						log.error("event expired, %s", evt);
+					finally {
+						// The ack position only moves over contiguous acked batches: one left unacked
+						// would keep every later segment, and have every later batch replayed after a restart
+						queue.ack(batch);
 					}
-
 				}
-				catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
+			}
+			catch (RuntimeException e) {
+				log.error(e, "%s failed", this);
+			}
+			finally {
+				running.decrementAndGet();
+			}
+			// Events may have been spooled after the last read, while this drainer still counted as running
+			start();
+			log.debug("%s end", this);
+		}
+
+		private void send(byte[] record)
+		{
+			EventItem item;
+			try {
+				item = decode(record);
+			}
+			catch (IOException e) {
+				log.error(e, "unable to decode a spooled event, dropping it");
+				return;
+			}
+			catch (RuntimeException e) {
+				log.error(e, "unable to decode a spooled event, dropping it");
+				return;
+			}
+			Event evt = item.getEvent();
+			if (isRetry) {
+				if (item.getCount() >= MAX_RETRIES) {
+					log.error("max retried reached, dumping event %s", evt);
+					return;
 				}
 			}
-			log.info("%s end", this);
+			else if (item.getTimestamp() + spoolExpiration.getMillis() <= System.currentTimeMillis()) {
+				log.error("event expired, %s", evt);
+				return;
+			}
+			item.touch();
+			try {
+				sendViaREST(evt);
+			}
+			catch (IOException e) {
+				log.error(e, "retry failed, retry count = %d", item.getCount());
+				enqueueRetry(item);
+			}
+			catch (RuntimeException e) {
+				log.error(e, "retry failed, retry count = %d", item.getCount());
+				enqueueRetry(item);
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return isRetry ? "RetryDrainer" : "SpoolDrainer";
 		}
 	}
 
+	private byte[] encode(EventItem item) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(item.getCount());
+		out.writeLong(item.getTimestamp());
+		serializer.serialize(item.getEvent(), out);
+		return bytes.toByteArray();
+	}
+
+	private EventItem decode(byte[] record) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		int count = in.readInt();
+		long touchedOn = in.readLong();
+		return new EventItem(serializer.deserialize(in), touchedOn, count);
+	}
+
 
 	private static class EventItem
 	{
@@ -243,6 +348,13 @@ public abstract class Spool implements ServiceListener
 			touch();
 		}
 
+		private EventItem(Event event, long touchedOn, int count)
+		{
+			this.event = event;
+			this.touchedOn = touchedOn;
+			this.count = count;
+		}
+
 		public EventItem retry()
 		{
 			spool = false;
@@ -281,23 +393,16 @@ public abstract class Spool implements ServiceListener
 		public void run()
 		{
 			int pollCountDown = 10;
+			List<EventItem> items = new ArrayList<EventItem>();
 			while (!enqueue.isEmpty() || pollCountDown > 0) {
 				try {
 					EventItem item = enqueue.poll(15, TimeUnit.SECONDS);
 					if (item != null) {
 						pollCountDown = 10;
-						if (item.isSpool()) {
-							spoolQueue.put(item);
-							if ( hasCluster.get() ) {
-								keyedExecutor.execute(new SpoolRunnable());
-							}
-						}
-						else {
-							retryQueue.put(item);
-							if ( hasCluster.get() ) {
-								keyedExecutor.execute(new RetryRunnable());								
-							}
-						}
+						items.add(item);
+						enqueue.drainTo(items, MAX_ENQUEUE_BATCH_SIZE - 1);
+						write(items);
+						items.clear();
 					}
 					else {
 						pollCountDown--;
@@ -308,26 +413,53 @@ public abstract class Spool implements ServiceListener
 				}
 			}
 		}
+
+		private void write(List<EventItem> items)
+		{
+			List<byte[]> spooled = new ArrayList<byte[]>(items.size());
+			List<byte[]> retried = new ArrayList<byte[]>();
+			for (EventItem item : items) {
+				try {
+					(item.isSpool() ? spooled : retried).add(encode(item));
+				}
+				catch (IOException e) {
+					log.error(e, "unable to encode event %s, dropping it", item.getEvent());
+					eventsDropped.incrementAndGet();
+				}
+			}
+			write(spoolQueue, spooled, spoolDrainer);
+			write(retryQueue, retried, retryDrainer);
+		}
+
+		private void write(SegmentedDiskQueue queue, List<byte[]> records, Drainer drainer)
+		{
+			if (records.isEmpty()) {
+				return;
+			}
+			int written;
+			try {
+				written = queue.put(records);
+			}
+			catch (IOException e) {
+				log.error(e, "unable to spool %d events", records.size());
+				written = 0;
+			}
+			if (written < records.size()) {
+				eventsDropped.addAndGet(records.size() - written);
+				log.warn("spool is full, %d events dropped, total dropped = %d", records.size() - written, eventsDropped.get());
+			}
+			drainer.start();
+		}
 	}
 
 	private class KeyedDispatcher
 	{
-		ArrayBlockingQueue<Runnable> spool = new ArrayBlockingQueue<Runnable>(1);
 		ArrayBlockingQueue<Runnable> enqueue = new ArrayBlockingQueue<Runnable>(1);
-		ArrayBlockingQueue<Runnable> retry = new ArrayBlockingQueue<Runnable>(1);
-		AtomicBoolean spoolRunning = new AtomicBoolean(false);
 		AtomicBoolean enqueueRunning = new AtomicBoolean(false);
-		AtomicBoolean retryRunning = new AtomicBoolean(false);
 
 		public void execute(final Runnable r)
 		{
-			if (r instanceof SpoolRunnable) {
-				offer(spool, spoolRunning, r);
-			}
-			else if (r instanceof RetryRunnable) {
-				offer(retry, retryRunning, r);
-			}
-			else if (r instanceof EnqueueRunnable) {
+			if (r instanceof EnqueueRunnable) {
 				offer(enqueue, enqueueRunning, r);
 			}
 		}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.event.receiver;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed set of direct buffers, each large enough for one datagram, shared by the UDP receivers.
+ * <p/>
+ * The pool bounds the memory held by datagrams waiting to be processed: when all the buffers
+ * are in use, the receivers stop reading and the datagrams queue up in the socket receive buffer.
+ */
+public class DatagramBufferPool
+{
+    private final BlockingQueue<ByteBuffer> buffers;
+    private final int bufferSize;
+    private final AtomicLong exhaustedCount = new AtomicLong();
+
+    public DatagramBufferPool(int nbBuffers, int bufferSize)
+    {
+        this.buffers = new ArrayBlockingQueue<ByteBuffer>(nbBuffers);
+        this.bufferSize = bufferSize;
+        for (int i = 0; i < nbBuffers; i++) {
+            buffers.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+    }
+
+    /**
+     * @return a cleared buffer, or null if none is available
+     */
+    public ByteBuffer acquire()
+    {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            exhaustedCount.incrementAndGet();
+        }
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer)
+    {
+        buffer.clear();
+        buffers.offer(buffer);
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    public int getAvailableCount()
+    {
+        return buffers.size();
+    }
+
+    public long getExhaustedCount()
+    {
+        return exhaustedCount.get();
+    }
+}
@@ -16,31 +16,36 @@
 
 package com.ning.arecibo.event.receiver;
 
-import java.net.DatagramSocket;
+import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.SocketException;
+import java.nio.channels.DatagramChannel;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 
-public class DatagramSocketProvider implements Provider<DatagramSocket>
+public class DatagramChannelProvider implements Provider<DatagramChannel>
 {
     private final UDPEventReceiverConfig config;
 
     @Inject
-    public DatagramSocketProvider(UDPEventReceiverConfig config)
+    public DatagramChannelProvider(UDPEventReceiverConfig config)
     {
         this.config = config;
     }
 
-    public DatagramSocket get()
+    public DatagramChannel get()
     {
         try {
-            DatagramSocket socket = new DatagramSocket(new InetSocketAddress(config.getHost(), config.getPort()));
-            //socket.bind();
-            return socket ;
+            DatagramChannel channel = DatagramChannel.open();
+            if (config.getReceiveBufferSize() > 0) {
+                // Set before binding, the kernel may cap it (net.core.rmem_max)
+                channel.socket().setReceiveBufferSize(config.getReceiveBufferSize());
+            }
+            channel.socket().bind(new InetSocketAddress(config.getHost(), config.getPort()));
+            channel.configureBlocking(false);
+            return channel;
         }
-        catch (SocketException e) {
+        catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
-}
\ No newline at end of file
+}
@@ -18,50 +18,126 @@ package com.ning.arecibo.event.receiver;
 
 import com.google.inject.Inject;
 import com.ning.arecibo.event.BatchedEvent;
-import com.ning.arecibo.event.MapEvent;
-import com.ning.arecibo.event.MonitoringEvent;
+import com.ning.arecibo.event.transport.JsonEventStreamParser;
 import com.ning.arecibo.eventlogger.Event;
 import com.ning.arecibo.util.Logger;
-import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
 
+import javax.ws.rs.Consumes;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.concurrent.atomic.AtomicLong;
 
 @Path("/xn/rest")
 public class RESTEventEndPoint
 {
+    public static final String SMILE_CONTENT_TYPE = "application/x-jackson-smile";
+    // Events of an array are handed to the processor in BatchedEvents of at most this size
+    public static final int DEFAULT_MICRO_BATCH_SIZE = 100;
+
     private static final ObjectMapper mapper = new ObjectMapper();
+    private static final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
 
     private static final Logger log = Logger.getLogger(RESTEventEndPoint.class);
     private final AtomicLong count = new AtomicLong(0);
     private final BaseEventProcessor processor;
+    private final int microBatchSize;
 
     @Inject
     public RESTEventEndPoint(BaseEventProcessor processor)
+    {
+        this(processor, DEFAULT_MICRO_BATCH_SIZE);
+    }
+
+    public RESTEventEndPoint(BaseEventProcessor processor, int microBatchSize)
     {
         this.processor = processor;
+        this.microBatchSize = microBatchSize;
     }
 
     // TODO: support xml and binary endpoints
 
+    /**
+     * Accepts one event, or an array of events. Arrays are parsed as they are received and
+     * dispatched in micro-batches, so that the processing of large batches starts before the
+     * upload is complete and the memory used doesn't depend on the size of the batch.
+     * <p/>
+     * If the processor rejects a micro-batch (RESTEventProcessor), the rest of the array is
+     * skipped and its response is returned. Content types other than JSON and Smile are
+     * rejected with a 415 without reading the body; a missing one is read as JSON.
+     */
     @POST
     @Path("/1.0/event")
-    public Response post(JsonNode node)
+    @Consumes({MediaType.APPLICATION_JSON, SMILE_CONTENT_TYPE})
+    public Response post(@HeaderParam("Content-Type") String contentType, InputStream body)
     {
-        final Event e;
-        if (node.isArray()) {
-            e = mapper.convertValue(node, BatchedEvent.class);
+        final boolean smile = contentType != null && contentType.startsWith(SMILE_CONTENT_TYPE);
+        if (contentType != null && !smile && !contentType.startsWith(MediaType.APPLICATION_JSON)) {
+            // Don't read a payload we can't parse
+            return Response.status(Response.Status.UNSUPPORTED_MEDIA_TYPE).build();
+        }
+        final ObjectMapper eventMapper = smile ? smileMapper : mapper;
+        final JsonFactory factory = eventMapper.getJsonFactory();
+
+        int dispatched = 0;
+        JsonEventStreamParser parser = null;
+        try {
+            parser = new JsonEventStreamParser(factory.createJsonParser(body), eventMapper);
+            if (!parser.isBatch()) {
+                return dispatch(parser.nextEvent());
+            }
+
+            BatchedEvent batch = null;
+            Event event;
+            while ((event = parser.nextEvent()) != null) {
+                if (batch == null) {
+                    batch = new BatchedEvent(event);
+                }
+                else {
+                    batch.getEvents().add(event);
+                }
+
+                if (batch.getEvents().size() >= microBatchSize) {
+                    final Response response = dispatch(batch);
+                    dispatched += batch.getEvents().size();
+                    batch = null;
+                    if (!isSuccess(response)) {
+                        return response;
+                    }
+                }
+            }
+
+            if (batch != null) {
+                return dispatch(batch);
+            }
+            return Response.ok().build();
         }
-        else if (node.has(MonitoringEvent.KEY_CONFIG_PATH)) {
-            e = mapper.convertValue(node, MonitoringEvent.class);
+        catch (IOException e) {
+            // Malformed or truncated payload
+            log.warn("Unable to read events payload (%d events already dispatched): %s", dispatched, e.getMessage());
+            return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
         }
-        else {
-            e = mapper.convertValue(node, MapEvent.class);
+        finally {
+            if (parser != null) {
+                try {
+                    parser.close();
+                }
+                catch (IOException e) {
+                    log.debug(e, "Unable to close parser");
+                }
+            }
         }
+    }
 
+    private Response dispatch(Event e)
+    {
         // TODO : handle forwarding by reading just the header and proxy the payload over without parsing
         if (log.isDebugEnabled()) {
             count.incrementAndGet();
@@ -79,4 +155,9 @@ public class RESTEventEndPoint
             throw new IllegalStateException("Unsupported EventProcessor class: " + processor.getClass().getName());
         }
     }
+
+    private static boolean isSuccess(Response response)
+    {
+        return response == null || (response.getStatus() >= 200 && response.getStatus() < 300);
+    }
 }
@@ -19,6 +19,7 @@ package com.ning.arecibo.event.receiver;
 import com.google.common.collect.ImmutableList;
 import com.google.inject.AbstractModule;
 import com.google.inject.TypeLiteral;
+import com.ning.arecibo.event.transport.BinaryEventSerializer;
 import com.ning.arecibo.event.transport.EventSerializer;
 import com.ning.arecibo.event.transport.JavaEventSerializer;
 import com.ning.arecibo.event.transport.JsonEventSerializer;
@@ -31,7 +32,7 @@ import java.util.List;
 
 public class RESTEventReceiverModule extends AbstractModule
 {
-    private static final List<Class<? extends EventSerializer>> DEFAULT_SERIALIZERS = ImmutableList.of(JavaEventSerializer.class, JsonEventSerializer.class, MapEventSerializer.class);
+    private static final List<Class<? extends EventSerializer>> DEFAULT_SERIALIZERS = ImmutableList.of(JavaEventSerializer.class, JsonEventSerializer.class, MapEventSerializer.class, BinaryEventSerializer.class);
 
     private final Class<? extends BaseEventProcessor> clazz;
     private final String jmxObjectName;
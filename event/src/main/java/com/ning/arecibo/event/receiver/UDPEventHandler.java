@@ -18,6 +18,7 @@ package com.ning.arecibo.event.receiver;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -26,22 +27,21 @@ import com.ning.arecibo.event.transport.EventSerializer;
 import com.ning.arecibo.event.transport.EventSerializerUDPUtil;
 import com.ning.arecibo.eventlogger.Event;
 import com.ning.arecibo.util.Logger;
-import com.ning.arecibo.util.esper.MiniEsperEngine;
 import com.ning.arecibo.util.jmx.MonitorableManaged;
 import com.ning.arecibo.util.jmx.MonitoringType;
+import com.ning.arecibo.util.metrics.ValueStats;
 
 public class UDPEventHandler
 {
 	private static final Logger log = Logger.getLogger(UDPEventHandler.class) ;
 	private final EventProcessor processor;
-	private final MiniEsperEngine<Integer> esper ;
+	private final ValueStats datagramSizes = new ValueStats();
     private final Map<String, EventSerializer> serializers;
 
     @Inject
 	public UDPEventHandler(@EventSerializers List<EventSerializer> list, BaseEventProcessor processor)
 	{
 		this.processor = (EventProcessor)processor;
-		this.esper = new MiniEsperEngine<Integer>(this.getClass().getSimpleName(), Integer.class);
 
         this.serializers = new HashMap<String, EventSerializer>();
 		for (EventSerializer serializer : list) {
@@ -50,16 +50,20 @@ public class UDPEventHandler
 	}
 
 	public void receive(DatagramPacket p)
+	{
+		receive(ByteBuffer.wrap(p.getData(), p.getOffset(), p.getLength()));
+	}
+
+	/**
+	 * @param packet the datagram, between the position and the limit of the buffer
+	 */
+	public void receive(ByteBuffer packet)
 	{
 		try {
-			byte b[] = p.getData() ;
-			try {
-				esper.send(b.length);
-			}
-			catch(Exception e) {
-			}
-			if (b.length > 2) {
-                Event e = EventSerializerUDPUtil.fromUDPPacket(b, serializers);
+			int length = packet.remaining() ;
+			datagramSizes.record(length);
+			if (length > 2) {
+                Event e = EventSerializerUDPUtil.fromUDPPacket(packet, serializers);
 				processor.processEvent(e);
 			}
 			else {
@@ -77,25 +81,25 @@ public class UDPEventHandler
 	@MonitorableManaged(monitored = true, monitoringType = { MonitoringType.COUNTER, MonitoringType.RATE })
 	public long getDatagramsReceived()
 	{
-		return esper.getCount() ;
+		return datagramSizes.getCount() ;
 	}
 
 	@MonitorableManaged(monitored = true)
 	public long getAverageDatagramSize()
 	{
-		return (long) esper.getAverage() ;
+		return (long) datagramSizes.getAverage() ;
 	}
 
 	@MonitorableManaged(monitored = true)
 	public long getMaxDatagramSize()
 	{
-		return esper.getMax().longValue();
+		return datagramSizes.getMax();
 	}
 
 	@MonitorableManaged(monitored = true)
 	public long getMinDatagramSize()
 	{
-		return esper.getMin().longValue();
+		return datagramSizes.getMin();
 	}
 
 }
@@ -39,6 +39,26 @@ public abstract class UDPEventReceiverConfig
     @Default("50")
     public abstract int getNumUDPThreads();
 
+    @Config("arecibo.udp.numReceiverThreads")
+    @Default("2")
+    public abstract int getNumReceiverThreads();
+
+    @Config("arecibo.udp.receiveBufferSize")
+    @Default("4194304")
+    public abstract int getReceiveBufferSize();
+
+    @Config("arecibo.udp.maxDatagramSize")
+    @Default("65536")
+    public abstract int getMaxDatagramSize();
+
+    @Config("arecibo.udp.bufferPoolSize")
+    @Default("128")
+    public abstract int getBufferPoolSize();
+
+    @Config("arecibo.udp.batchSize")
+    @Default("32")
+    public abstract int getBatchSize();
+
     public int getPort()
     {
         if ("auto".equals(getPortValue())) {
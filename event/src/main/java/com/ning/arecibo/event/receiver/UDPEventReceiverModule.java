@@ -16,7 +16,7 @@
 
 package com.ning.arecibo.event.receiver;
 
-import java.net.DatagramSocket;
+import java.nio.channels.DatagramChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import org.skife.config.ConfigurationObjectFactory;
@@ -36,7 +36,7 @@ public class UDPEventReceiverModule extends AbstractModule
         UDPEventReceiverConfig config = new ConfigurationObjectFactory(System.getProperties()).build(UDPEventReceiverConfig.class);
 
         bind(UDPEventReceiverConfig.class).toInstance(config);
-        bind(DatagramSocket.class).annotatedWith(Names.named("UDPSocket")).toProvider(DatagramSocketProvider.class);
+        bind(DatagramChannel.class).annotatedWith(Names.named("UDPChannel")).toProvider(DatagramChannelProvider.class);
         bind(ExecutorService.class).annotatedWith(Names.named("DatagramDispatcher")).toInstance(Executors.newFixedThreadPool(config.getNumUDPThreads()));
         bind(Integer.class).annotatedWith(Names.named("UDPServerPort")).toInstance(config.getPort());
         bind(UDPEventHandler.class).asEagerSingleton();
@@ -67,5 +67,6 @@ public class UDPEventReceiverModule extends AbstractModule
         ExportBuilder builder = MBeanModule.newExporter(binder());
 
         builder.export(UDPEventHandler.class).as("arecibo:name=UDPEventHandler");
+        builder.export(UDPServer.class).as("arecibo:name=UDPServer");
     }
 }
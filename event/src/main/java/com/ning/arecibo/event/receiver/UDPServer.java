@@ -16,80 +16,328 @@
 
 package com.ning.arecibo.event.receiver;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.weakref.jmx.Managed;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.ning.arecibo.util.Logger;
+import com.ning.arecibo.util.jmx.MonitorableManaged;
+import com.ning.arecibo.util.jmx.MonitoringType;
 
+/**
+ * Receives datagrams on a non-blocking channel, with several receiver threads each selecting on it.
+ * <p/>
+ * A receiver drains the channel into pooled direct buffers and hands them to the dispatcher
+ * executor in batches; the buffers go back to the pool once the handler is done with them.
+ * When the pool is exhausted, the receivers stop selecting the channel for reading until a buffer
+ * is released, and datagrams queue up in the socket receive buffer (and are dropped by the kernel
+ * once it is full, see getKernelDrops()).
+ */
 public class UDPServer
 {
     private static final Logger log = Logger.getLogger(UDPServer.class);
-    private final DatagramSocket socket;
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+    private static final String[] PROC_NET_UDP = {"/proc/net/udp", "/proc/net/udp6"};
+
+    private final DatagramChannel channel;
     private final ExecutorService exe;
     private final UDPEventHandler handler;
     private final int port;
-    private final byte[] buf;
+    private final int nbReceivers;
+    private final int batchSize;
+    private final DatagramBufferPool pool;
+    private final List<Selector> selectors = new CopyOnWriteArrayList<Selector>();
     private volatile boolean isRunning = true;
+    // set by the receivers which stopped reading for lack of buffers, cleared by the thread releasing the next one
+    private final AtomicBoolean waitingForBuffers = new AtomicBoolean(false);
+
+    private final AtomicLongArray datagramsPerReceiver;
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong batchesDispatched = new AtomicLong();
 
     @Inject
-    public UDPServer(@Named("UDPSocket") DatagramSocket socket, @Named("DatagramDispatcher") ExecutorService exe, UDPEventHandler handler, @Named("UDPServerPort") int port)
+    public UDPServer(@Named("UDPChannel") DatagramChannel channel, @Named("DatagramDispatcher") ExecutorService exe, UDPEventHandler handler, @Named("UDPServerPort") int port, UDPEventReceiverConfig config)
     {
-        this.socket = socket;
+        this.channel = channel;
         this.exe = exe;
         this.handler = handler;
         this.port = port;
-        this.buf = new byte[65536];
+        this.nbReceivers = Math.max(1, config.getNumReceiverThreads());
+        this.batchSize = Math.max(1, config.getBatchSize());
+        this.pool = new DatagramBufferPool(config.getBufferPoolSize(), config.getMaxDatagramSize());
+        this.datagramsPerReceiver = new AtomicLongArray(nbReceivers);
     }
 
-    public void start()
+    public void start() throws IOException
     {
-        new Thread("UDPServer:recv"){
+        log.info("Starting UDP Server on port %d with %d receivers", port, nbReceivers);
+        for (int i = 0; i < nbReceivers; i++) {
+            final int receiverId = i;
+            final Selector selector = Selector.open();
+            final SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            selectors.add(selector);
 
-            @Override
-            public void run()
+            new Thread("UDPServer:recv-" + i)
             {
-                log.info("Starting UDP Server on port %d", port);
-                try
+                @Override
+                public void run()
                 {
-                    while (isRunning) {
-                        //TODO : use pooled buffer
-                        final DatagramPacket p = new DatagramPacket(buf, buf.length);
-                        socket.receive(p);
-
-                        byte b[] = new byte[p.getLength()];
-                        System.arraycopy(buf, 0, b, 0, b.length);
-
-                        p.setData(b);
-
-                        exe.execute(new Runnable(){
-                            public void run()
-                            {
-                                try {
-                                    handler.receive(p);
-                                }
-                                catch (Exception ex) {
-                                    log.error(ex);
-                                }
-                            }
-                        });
+                    try {
+                        receive(receiverId, selector, key);
+                    }
+                    catch (ClosedChannelException e) {
+                        // stopped
+                    }
+                    catch (CancelledKeyException e) {
+                        // stopped
                     }
+                    catch (IOException e) {
+                        if (isRunning) {
+                            log.error(e);
+                        }
+                    }
+                    finally {
+                        try {
+                            selector.close();
+                        }
+                        catch (IOException e) {
+                            log.warn(e);
+                        }
+                    }
+                }
+            }.start();
+        }
+    }
+
+    private void receive(int receiverId, Selector selector, SelectionKey key) throws IOException
+    {
+        List<ByteBuffer> batch = new ArrayList<ByteBuffer>(batchSize);
+        while (isRunning) {
+            updateInterestOps(key);
+            if (selector.select(SELECT_TIMEOUT_MILLIS) == 0) {
+                continue;
+            }
+            selector.selectedKeys().clear();
+
+            // Drain what the kernel has queued, the other receivers may be competing for it
+            while (isRunning) {
+                ByteBuffer buffer = pool.acquire();
+                if (buffer == null) {
+                    break;
                 }
-                catch (IOException e){
-                    if(isRunning)
-                        log.error(e);
+                if (channel.receive(buffer) == null) {
+                    release(buffer);
+                    break;
                 }
+                buffer.flip();
+                datagramsPerReceiver.incrementAndGet(receiverId);
+                bytesReceived.addAndGet(buffer.remaining());
+
+                batch.add(buffer);
+                if (batch.size() >= batchSize) {
+                    dispatch(batch);
+                    batch = new ArrayList<ByteBuffer>(batchSize);
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                dispatch(batch);
+                batch = new ArrayList<ByteBuffer>(batchSize);
+            }
+        }
+    }
+
+    /*
+    ** Without buffers, the receiver only selects to be woken up by the release of one: selecting the
+    ** readable channel would return right away, again and again.  Called by the receiver thread only.
+     */
+    private void updateInterestOps(SelectionKey key)
+    {
+        int interestOps = SelectionKey.OP_READ;
+        if (pool.getAvailableCount() == 0) {
+            waitingForBuffers.set(true);
+            // a buffer released before the flag was set didn't wake us up
+            if (pool.getAvailableCount() == 0) {
+                interestOps = 0;
+            }
+        }
+        if (key.interestOps() != interestOps) {
+            key.interestOps(interestOps);
+        }
+    }
+
+    private void release(ByteBuffer buffer)
+    {
+        pool.release(buffer);
+        if (waitingForBuffers.get() && waitingForBuffers.compareAndSet(true, false)) {
+            for (Selector selector : selectors) {
+                selector.wakeup();
+            }
+        }
+    }
+
+    private void dispatch(List<ByteBuffer> batch)
+    {
+        try {
+            exe.execute(new DatagramBatch(batch));
+            batchesDispatched.incrementAndGet();
+        }
+        catch (RejectedExecutionException e) {
+            for (ByteBuffer buffer : batch) {
+                release(buffer);
+            }
+            if (isRunning) {
+                log.warn("Dropped a batch of %d datagrams, dispatcher rejected it", batch.size());
             }
-        }.start();
+        }
+    }
+
+    private final class DatagramBatch implements Runnable
+    {
+        private final List<ByteBuffer> buffers;
+
+        private DatagramBatch(List<ByteBuffer> buffers)
+        {
+            this.buffers = buffers;
+        }
+
+        public void run()
+        {
+            for (ByteBuffer buffer : buffers) {
+                try {
+                    handler.receive(buffer);
+                }
+                catch (Exception ex) {
+                    log.error(ex);
+                }
+                finally {
+                    release(buffer);
+                }
+            }
+        }
     }
 
     public synchronized void stop()
     {
         log.info("Stopping UDP Server on port %d", port);
-        this.socket.close();
         this.isRunning = false;
+        for (Selector selector : selectors) {
+            selector.wakeup();
+        }
+        try {
+            this.channel.close();
+        }
+        catch (IOException e) {
+            log.warn(e);
+        }
         this.exe.shutdownNow();
     }
+
+    @MonitorableManaged(monitored = true, monitoringType = {MonitoringType.COUNTER, MonitoringType.RATE})
+    public long getDatagramsReceived()
+    {
+        long total = 0;
+        for (int i = 0; i < datagramsPerReceiver.length(); i++) {
+            total += datagramsPerReceiver.get(i);
+        }
+        return total;
+    }
+
+    @Managed(description = "Datagrams received by each receiver thread")
+    public String getDatagramsReceivedPerReceiver()
+    {
+        return datagramsPerReceiver.toString();
+    }
+
+    @MonitorableManaged(monitored = true, monitoringType = {MonitoringType.COUNTER, MonitoringType.RATE})
+    public long getBytesReceived()
+    {
+        return bytesReceived.get();
+    }
+
+    @MonitorableManaged(monitored = true, monitoringType = {MonitoringType.COUNTER, MonitoringType.RATE})
+    public long getBatchesDispatched()
+    {
+        return batchesDispatched.get();
+    }
+
+    @MonitorableManaged(description = "Number of times a receiver found no free buffer in the pool", monitored = true, monitoringType = {MonitoringType.COUNTER, MonitoringType.RATE})
+    public long getBufferPoolExhaustedCount()
+    {
+        return pool.getExhaustedCount();
+    }
+
+    @MonitorableManaged(monitored = true)
+    public long getBufferPoolAvailable()
+    {
+        return pool.getAvailableCount();
+    }
+
+    /**
+     * @return datagrams dropped by the kernel on our port (socket receive buffer full), or -1 if
+     *         the platform doesn't expose it (it is read from /proc/net/udp on Linux)
+     */
+    @MonitorableManaged(description = "Datagrams dropped by the kernel on the UDP port", monitored = true, monitoringType = {MonitoringType.COUNTER, MonitoringType.RATE})
+    public long getKernelDrops()
+    {
+        long drops = 0;
+        boolean found = false;
+        for (String path : PROC_NET_UDP) {
+            File file = new File(path);
+            if (!file.canRead()) {
+                continue;
+            }
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(file));
+                // sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid timeout inode ref pointer drops
+                String line = reader.readLine();
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.trim().split("\\s+");
+                    if (fields.length < 13) {
+                        continue;
+                    }
+                    String localAddress = fields[1];
+                    int localPort = Integer.parseInt(localAddress.substring(localAddress.lastIndexOf(':') + 1), 16);
+                    if (localPort == port) {
+                        drops += Long.parseLong(fields[fields.length - 1]);
+                        found = true;
+                    }
+                }
+            }
+            catch (IOException e) {
+                log.debug(e, "Unable to read %s", path);
+            }
+            catch (NumberFormatException e) {
+                log.debug(e, "Unable to parse %s", path);
+            }
+            finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    }
+                    catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+        return found ? drops : -1;
+    }
 }
@@ -0,0 +1,458 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.event.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.common.collect.ImmutableList;
+import com.ning.arecibo.event.BatchedEvent;
+import com.ning.arecibo.event.MapEvent;
+import com.ning.arecibo.event.MonitoringEvent;
+import com.ning.arecibo.eventlogger.Event;
+
+/**
+ * Compact binary encoding of MonitoringEvents, MapEvents and BatchedEvents of those. Other
+ * events are sent as the MapEvent of their getters, as the JSON serializer does.
+ * <p/>
+ * An encoded event is a format version byte and the varint length of the body, followed by
+ * the body. Attribute names, event types and the deployment fields of MonitoringEvents are
+ * dictionary-coded: a name is either the varint index + 1 of an earlier name (or of one of
+ * the well known names below), or 0 followed by the name itself, which is then appended to
+ * the dictionary. In a batch, the names of an event type are thus only spelled out once.
+ * <p/>
+ * Integral values are zigzag varints, doubles without a fractional part are sent as
+ * varints too and other doubles as 8 bytes. Values of any other Serializable type fall back
+ * to Java serialization.
+ */
+public class BinaryEventSerializer implements EventSerializer
+{
+    public static final String CONTENT_TYPE = "application/x-arecibo-binary";
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int EVENT_MAP = 1;
+    private static final int EVENT_MONITORING = 2;
+    private static final int EVENT_BATCH = 3;
+
+    private static final int VALUE_NULL = 0;
+    private static final int VALUE_FALSE = 1;
+    private static final int VALUE_TRUE = 2;
+    private static final int VALUE_BYTE = 3;
+    private static final int VALUE_SHORT = 4;
+    private static final int VALUE_INT = 5;
+    private static final int VALUE_LONG = 6;
+    private static final int VALUE_FLOAT = 7;
+    private static final int VALUE_DOUBLE = 8;
+    private static final int VALUE_INTEGRAL_DOUBLE = 9;
+    private static final int VALUE_STRING = 10;
+    private static final int VALUE_SERIALIZED = 11;
+
+    // Never reorder: both ends of the wire need the same initial dictionary
+    private static final List<String> WELL_KNOWN_NAMES = ImmutableList.of(
+            MonitoringEvent.KEY_HOST,
+            MonitoringEvent.KEY_ENV,
+            MonitoringEvent.KEY_VERSION,
+            MonitoringEvent.KEY_TYPE,
+            MonitoringEvent.KEY_CONFIG_PATH,
+            MapEvent.KEY_EVENT_NAME,
+            MapEvent.KEY_UUID,
+            MapEvent.KEY_TIMESTAMP
+    );
+
+    public void serialize(Event event, OutputStream stream) throws IOException
+    {
+        Writer writer = new Writer();
+        writer.writeEvent(event);
+
+        BinaryOutput header = new BinaryOutput(11);
+        header.writeByte(FORMAT_VERSION);
+        header.writeUnsignedVarLong(writer.out.size());
+        header.writeTo(stream);
+        writer.out.writeTo(stream);
+    }
+
+    public Event deserialize(InputStream in) throws IOException
+    {
+        if (in instanceof ByteBufferInputStream) {
+            // e.g. a datagram: decoded where it is
+            return deserialize(((ByteBufferInputStream) in).getBuffer());
+        }
+
+        DataInputStream data = new DataInputStream(in);
+        int version = data.read();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("unsupported binary event format version " + version);
+        }
+        long length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = data.read();
+            if (b < 0 || shift >= 35) {
+                throw new IOException("malformed binary event length");
+            }
+            length |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("invalid binary event length " + length);
+        }
+        return new Reader(new BinaryInput(ByteBuffer.wrap(readBody(data, (int) length)))).readEvent();
+    }
+
+    /**
+     * Decode the event at the position of the buffer, without copying it. The position of the
+     * buffer is advanced past the event.
+     */
+    public Event deserialize(ByteBuffer buffer) throws IOException
+    {
+        BinaryInput header = new BinaryInput(buffer);
+        int version = header.readByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("unsupported binary event format version " + version);
+        }
+        int length = header.readLength();
+        if (length > buffer.remaining()) {
+            throw new IOException("binary event length " + length + " exceeds the " + buffer.remaining() + " bytes left");
+        }
+        ByteBuffer body = buffer.slice();
+        body.limit(length);
+        buffer.position(buffer.position() + length);
+        return new Reader(new BinaryInput(body)).readEvent();
+    }
+
+    // grows with the bytes actually read, rather than trusting the length to allocate them upfront
+    private static byte[] readBody(InputStream in, int length) throws IOException
+    {
+        byte[] body = new byte[Math.min(length, 8192)];
+        int read = 0;
+        while (read < length) {
+            if (read == body.length) {
+                body = Arrays.copyOf(body, (int) Math.min(length, 2L * body.length));
+            }
+            int n = in.read(body, read, body.length - read);
+            if (n < 0) {
+                throw new IOException("truncated binary event, expected " + length + " bytes, got " + read);
+            }
+            read += n;
+        }
+        return body;
+    }
+
+    public String getContentType()
+    {
+        return CONTENT_TYPE;
+    }
+
+    private static final class Writer
+    {
+        private final BinaryOutput out = new BinaryOutput(256);
+        private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+        private Writer()
+        {
+            for (String name : WELL_KNOWN_NAMES) {
+                dictionary.put(name, dictionary.size());
+            }
+        }
+
+        private void writeEvent(Event event) throws IOException
+        {
+            if (event instanceof BatchedEvent) {
+                List<Event> events = ((BatchedEvent) event).getEvents();
+                out.writeByte(EVENT_BATCH);
+                out.writeUnsignedVarLong(events.size());
+                for (Event batched : events) {
+                    writeEvent(batched);
+                }
+            }
+            else if (event instanceof MonitoringEvent) {
+                MonitoringEvent monitoringEvent = (MonitoringEvent) event;
+                out.writeByte(EVENT_MONITORING);
+                writeCommonFields(event);
+                writeNullableName(monitoringEvent.getHostName());
+                writeNullableName(monitoringEvent.getDeployedEnv());
+                writeNullableName(monitoringEvent.getDeployedVersion());
+                writeNullableName(monitoringEvent.getDeployedType());
+                writeNullableName(monitoringEvent.getDeployedConfigSubPath());
+                writeAttributes(monitoringEvent.getMap());
+            }
+            else {
+                MapEvent mapEvent = event instanceof MapEvent ? (MapEvent) event : new MapEvent(event);
+                out.writeByte(EVENT_MAP);
+                writeCommonFields(mapEvent);
+                writeAttributes(mapEvent.getMap());
+            }
+        }
+
+        private void writeCommonFields(Event event)
+        {
+            out.writeVarLong(event.getTimestamp());
+            writeNullableName(event.getEventType());
+            UUID uuid = event.getSourceUUID();
+            if (uuid == null) {
+                out.writeByte(0);
+            }
+            else {
+                out.writeByte(1);
+                out.writeLong(uuid.getMostSignificantBits());
+                out.writeLong(uuid.getLeastSignificantBits());
+            }
+        }
+
+        private void writeNullableName(String name)
+        {
+            if (name == null) {
+                out.writeByte(0);
+            }
+            else {
+                out.writeByte(1);
+                writeName(name);
+            }
+        }
+
+        private void writeName(String name)
+        {
+            Integer index = dictionary.get(name);
+            if (index != null) {
+                out.writeUnsignedVarLong(index + 1);
+            }
+            else {
+                out.writeUnsignedVarLong(0);
+                out.writeString(name);
+                dictionary.put(name, dictionary.size());
+            }
+        }
+
+        private void writeAttributes(Map<String, Object> attributes) throws IOException
+        {
+            out.writeUnsignedVarLong(attributes.size());
+            for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+                writeName(entry.getKey());
+                writeValue(entry.getValue());
+            }
+        }
+
+        private void writeValue(Object value) throws IOException
+        {
+            if (value == null) {
+                out.writeByte(VALUE_NULL);
+            }
+            else if (value instanceof Double) {
+                double d = (Double) value;
+                long l = (long) d;
+                // -0.0 has no integral representation
+                if (l == d && (l != 0 || Double.doubleToRawLongBits(d) == 0L)) {
+                    out.writeByte(VALUE_INTEGRAL_DOUBLE);
+                    out.writeVarLong(l);
+                }
+                else {
+                    out.writeByte(VALUE_DOUBLE);
+                    out.writeLong(Double.doubleToRawLongBits(d));
+                }
+            }
+            else if (value instanceof Long || value instanceof AtomicLong) {
+                out.writeByte(VALUE_LONG);
+                out.writeVarLong(((Number) value).longValue());
+            }
+            else if (value instanceof Integer || value instanceof AtomicInteger) {
+                out.writeByte(VALUE_INT);
+                out.writeVarLong(((Number) value).intValue());
+            }
+            else if (value instanceof String) {
+                out.writeByte(VALUE_STRING);
+                out.writeString((String) value);
+            }
+            else if (value instanceof Boolean) {
+                out.writeByte((Boolean) value ? VALUE_TRUE : VALUE_FALSE);
+            }
+            else if (value instanceof Float) {
+                out.writeByte(VALUE_FLOAT);
+                out.writeInt(Float.floatToRawIntBits((Float) value));
+            }
+            else if (value instanceof Short) {
+                out.writeByte(VALUE_SHORT);
+                out.writeVarLong((Short) value);
+            }
+            else if (value instanceof Byte) {
+                out.writeByte(VALUE_BYTE);
+                out.writeVarLong((Byte) value);
+            }
+            else if (value instanceof Serializable) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ObjectOutputStream o = new ObjectOutputStream(bytes);
+                o.writeObject(value);
+                o.close();
+                out.writeByte(VALUE_SERIALIZED);
+                out.writeUnsignedVarLong(bytes.size());
+                out.writeBytes(bytes.toByteArray());
+            }
+            else {
+                throw new IOException("unable to serialize attribute of type " + value.getClass().getName());
+            }
+        }
+    }
+
+    private static final class Reader
+    {
+        private final BinaryInput in;
+        private final List<String> dictionary = new ArrayList<String>(WELL_KNOWN_NAMES);
+
+        private Reader(BinaryInput in)
+        {
+            this.in = in;
+        }
+
+        private Event readEvent() throws IOException
+        {
+            int kind = in.readByte();
+            switch (kind) {
+                case EVENT_BATCH: {
+                    int count = in.readLength();
+                    if (count == 0) {
+                        throw new IOException("empty batch in binary event data");
+                    }
+                    BatchedEvent batch = new BatchedEvent(readEvent());
+                    for (int i = 1; i < count; i++) {
+                        batch.getEvents().add(readEvent());
+                    }
+                    return batch;
+                }
+                case EVENT_MONITORING: {
+                    long timestamp = in.readVarLong();
+                    String eventType = readNullableName();
+                    UUID uuid = readUUID();
+                    String hostName = readNullableName();
+                    String deployedEnv = readNullableName();
+                    String deployedVersion = readNullableName();
+                    String deployedType = readNullableName();
+                    String deployedConfigSubPath = readNullableName();
+                    return new MonitoringEvent(timestamp, eventType, uuid, hostName, deployedEnv, deployedVersion, deployedType, deployedConfigSubPath, readAttributes());
+                }
+                case EVENT_MAP: {
+                    long timestamp = in.readVarLong();
+                    String eventType = readNullableName();
+                    UUID uuid = readUUID();
+                    return new MapEvent(timestamp, eventType, uuid, readAttributes());
+                }
+                default:
+                    throw new IOException("unknown event kind " + kind + " in binary event data");
+            }
+        }
+
+        private UUID readUUID() throws IOException
+        {
+            if (in.readByte() == 0) {
+                return null;
+            }
+            return new UUID(in.readLong(), in.readLong());
+        }
+
+        private String readNullableName() throws IOException
+        {
+            return in.readByte() == 0 ? null : readName();
+        }
+
+        private String readName() throws IOException
+        {
+            int index = in.readLength();
+            if (index == 0) {
+                String name = in.readString();
+                dictionary.add(name);
+                return name;
+            }
+            if (index > dictionary.size()) {
+                throw new IOException("unknown attribute name reference " + index + " in binary event data");
+            }
+            return dictionary.get(index - 1);
+        }
+
+        private Map<String, Object> readAttributes() throws IOException
+        {
+            int count = in.readLength();
+            // an attribute takes 2 bytes at least
+            if (count > in.remaining() / 2) {
+                throw new IOException("invalid attribute count " + count + " in binary event data");
+            }
+            Map<String, Object> attributes = new HashMap<String, Object>(Math.max(16, 2 * count));
+            for (int i = 0; i < count; i++) {
+                String name = readName();
+                attributes.put(name, readValue());
+            }
+            return attributes;
+        }
+
+        private Object readValue() throws IOException
+        {
+            int type = in.readByte();
+            switch (type) {
+                case VALUE_NULL:
+                    return null;
+                case VALUE_FALSE:
+                    return Boolean.FALSE;
+                case VALUE_TRUE:
+                    return Boolean.TRUE;
+                case VALUE_BYTE:
+                    return (byte) in.readVarLong();
+                case VALUE_SHORT:
+                    return (short) in.readVarLong();
+                case VALUE_INT:
+                    return (int) in.readVarLong();
+                case VALUE_LONG:
+                    return in.readVarLong();
+                case VALUE_FLOAT:
+                    return Float.intBitsToFloat(in.readInt());
+                case VALUE_DOUBLE:
+                    return Double.longBitsToDouble(in.readLong());
+                case VALUE_INTEGRAL_DOUBLE:
+                    return (double) in.readVarLong();
+                case VALUE_STRING:
+                    return in.readString();
+                case VALUE_SERIALIZED: {
+                    ObjectInputStream o = new ObjectInputStream(new ByteArrayInputStream(in.readBytes(in.readLength())));
+                    try {
+                        return o.readObject();
+                    }
+                    catch (ClassNotFoundException e) {
+                        throw new IOException(e);
+                    }
+                    finally {
+                        o.close();
+                    }
+                }
+                default:
+                    throw new IOException("unknown value type " + type + " in binary event data");
+            }
+        }
+    }
+}
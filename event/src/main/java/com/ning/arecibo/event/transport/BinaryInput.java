@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.event.transport;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import com.google.common.base.Charsets;
+
+/**
+ * Reads what BinaryOutput writes, from the remaining bytes of a (heap or direct) ByteBuffer.
+ */
+class BinaryInput
+{
+    private final ByteBuffer buffer;
+
+    BinaryInput(ByteBuffer buffer)
+    {
+        this.buffer = buffer;
+    }
+
+    int remaining()
+    {
+        return buffer.remaining();
+    }
+
+    int readByte() throws IOException
+    {
+        try {
+            return buffer.get() & 0xFF;
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException("truncated binary event data");
+        }
+    }
+
+    byte[] readBytes(int length) throws IOException
+    {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("truncated binary event data, expected " + length + " bytes");
+        }
+        byte[] value = new byte[length];
+        buffer.get(value);
+        return value;
+    }
+
+    long readUnsignedVarLong() throws IOException
+    {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint in binary event data");
+    }
+
+    long readVarLong() throws IOException
+    {
+        long value = readUnsignedVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    int readLength() throws IOException
+    {
+        long value = readUnsignedVarLong();
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("invalid length in binary event data: " + value);
+        }
+        return (int) value;
+    }
+
+    long readLong() throws IOException
+    {
+        try {
+            return buffer.getLong();
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException("truncated binary event data");
+        }
+    }
+
+    int readInt() throws IOException
+    {
+        try {
+            return buffer.getInt();
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException("truncated binary event data");
+        }
+    }
+
+    String readString() throws IOException
+    {
+        return new String(readBytes(readLength()), Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.event.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import com.google.common.base.Charsets;
+
+/**
+ * Growable byte array with the primitives of the binary event format: zigzag varints,
+ * fixed width floating point values (big endian) and length-prefixed UTF-8 strings.
+ */
+class BinaryOutput
+{
+    private byte[] bytes;
+    private int size = 0;
+
+    BinaryOutput(int initialCapacity)
+    {
+        this.bytes = new byte[initialCapacity];
+    }
+
+    private void ensureCapacity(int extra)
+    {
+        if (size + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(size + extra, 2 * bytes.length));
+        }
+    }
+
+    void writeByte(int value)
+    {
+        ensureCapacity(1);
+        bytes[size++] = (byte) value;
+    }
+
+    void writeBytes(byte[] value)
+    {
+        ensureCapacity(value.length);
+        System.arraycopy(value, 0, bytes, size, value.length);
+        size += value.length;
+    }
+
+    void writeUnsignedVarLong(long value)
+    {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[size++] = (byte) value;
+    }
+
+    void writeVarLong(long value)
+    {
+        writeUnsignedVarLong((value << 1) ^ (value >> 63));
+    }
+
+    void writeLong(long value)
+    {
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            bytes[size++] = (byte) (value >>> shift);
+        }
+    }
+
+    void writeInt(int value)
+    {
+        ensureCapacity(4);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            bytes[size++] = (byte) (value >>> shift);
+        }
+    }
+
+    void writeString(String value)
+    {
+        byte[] utf8 = value.getBytes(Charsets.UTF_8);
+        writeUnsignedVarLong(utf8.length);
+        writeBytes(utf8);
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    void writeTo(OutputStream stream) throws IOException
+    {
+        stream.write(bytes, 0, size);
+    }
+
+    byte[] toByteArray()
+    {
+        return Arrays.copyOf(bytes, size);
+    }
+}
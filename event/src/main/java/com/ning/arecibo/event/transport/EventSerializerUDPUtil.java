@@ -22,13 +22,26 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import com.google.common.collect.ImmutableList;
 import com.ning.arecibo.eventlogger.Event;
 
 
 public class EventSerializerUDPUtil
 {
+	// A text header block starts with a header name, never with a NUL byte
+	private static final byte BINARY_HEADER_MARKER = 0;
+	// Never reorder: the index + 1 of a name is its code on the wire, 0 introduces a literal name
+	private static final List<String> BINARY_HEADER_NAMES = ImmutableList.of(
+			EventSerializer.HEADER_CONTENT_TYPE,
+			EventService.HEADER_EVENT_TYPE,
+			EventService.HEADER_EVENT_KEY,
+			EventService.HEADER_SENDER_TYPE
+	);
+
 	public static byte[] toByteArray(EventSerializer ser, Event event) throws IOException
 	{
 		ByteArrayOutputStream bout = new ByteArrayOutputStream();
@@ -44,37 +57,98 @@ public class EventSerializerUDPUtil
 
 	public static Event fromUDPPacket(byte b[], Map<String, EventSerializer> serializers) throws IOException
 	{
-		short headerLen = (short) (((b[1] & 0xFF) << 0) + ((b[0]) << 8));
-		BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(b, 2, headerLen)));
-		String line = null;
-		Map<String, String> headers = new HashMap<String, String>();
-		while ((line = br.readLine()) != null) {
-			String h[] = line.split(":");
-			if (h != null && h.length == 2) {
-				String key = h[0].trim();
-				String value = h[1].trim();
-				headers.put(key, value);
-			}
+		return fromUDPPacket(ByteBuffer.wrap(b), serializers);
+	}
+
+	/**
+	 * Decode the datagram between the position and the limit of the buffer, without copying it.
+	 * The position of the buffer is advanced.
+	 */
+	public static Event fromUDPPacket(ByteBuffer packet, Map<String, EventSerializer> serializers) throws IOException
+	{
+		int headerLen = packet.getShort() & 0xFFFF;
+		if (headerLen > packet.remaining()) {
+			throw new IOException("corrupted UDP packet, header length " + headerLen + " exceeds packet size");
+		}
+		ByteBuffer header = packet.slice();
+		header.limit(headerLen);
+		packet.position(packet.position() + headerLen);
+
+		Map<String, String> headers;
+		if (header.hasRemaining() && header.get(0) == BINARY_HEADER_MARKER) {
+			headers = readBinaryHeaders(header);
+		}
+		else {
+			headers = readTextHeaders(header);
 		}
         String contentType = headers.get(EventSerializer.HEADER_CONTENT_TYPE);
         if (contentType != null) {
             EventSerializer serializer = serializers.get(contentType);
             if ( serializer != null ) {
-                Event event = serializer.deserialize(new ByteArrayInputStream(b, headerLen + 2, b.length - headerLen - 2));
+                Event event = serializer.deserialize(new ByteBufferInputStream(packet));
                 return event;
             }
         }
         throw new IOException("unknown content type, no serializer found!");
     }
 
+	private static Map<String, String> readTextHeaders(ByteBuffer header) throws IOException
+	{
+		BufferedReader br = new BufferedReader(new InputStreamReader(new ByteBufferInputStream(header)));
+		String line = null;
+		Map<String, String> headers = new HashMap<String, String>();
+		while ((line = br.readLine()) != null) {
+			String h[] = line.split(":");
+			if (h != null && h.length == 2) {
+				String key = h[0].trim();
+				String value = h[1].trim();
+				headers.put(key, value);
+			}
+		}
+		return headers;
+	}
+
+	private static Map<String, String> readBinaryHeaders(ByteBuffer header) throws IOException
+	{
+		BinaryInput in = new BinaryInput(header);
+		in.readByte();
+		int count = in.readLength();
+		Map<String, String> headers = new HashMap<String, String>();
+		for (int i = 0; i < count; i++) {
+			int code = in.readLength();
+			String key;
+			if (code == 0) {
+				key = in.readString();
+			}
+			else if (code <= BINARY_HEADER_NAMES.size()) {
+				key = BINARY_HEADER_NAMES.get(code - 1);
+			}
+			else {
+				throw new IOException("unknown header code " + code);
+			}
+			headers.put(key, in.readString());
+		}
+		return headers;
+	}
+
+	/**
+	 * Events encoded with the BinaryEventSerializer get a binary header block, others the text one
+	 * ("name: value" lines) that older receivers expect.
+	 */
 	public static byte[] toUDPPacket(Map<String, String> headers, Event event, EventSerializer serializer) throws IOException
 	{
 		byte[] payload = toByteArray(serializer, event);
-		StringWriter sw = new StringWriter();
-		for (Map.Entry<String, String> entry : headers.entrySet()) {
-			sw.write(String.format("%s: %s\n", entry.getKey(), entry.getValue()));
+		byte[] top;
+		if (serializer instanceof BinaryEventSerializer) {
+			top = toBinaryHeaders(headers);
+		}
+		else {
+			StringWriter sw = new StringWriter();
+			for (Map.Entry<String, String> entry : headers.entrySet()) {
+				sw.write(String.format("%s: %s\n", entry.getKey(), entry.getValue()));
+			}
+			top = sw.toString().getBytes() ;
 		}
-		byte[] top = sw.toString().getBytes() ;
 		byte[] packet = new byte[top.length + payload.length + 2];
 
 		packet[1] = (byte) (top.length >>> 0);
@@ -86,4 +160,20 @@ public class EventSerializerUDPUtil
 		return packet ;
 	}
 
+	private static byte[] toBinaryHeaders(Map<String, String> headers)
+	{
+		BinaryOutput out = new BinaryOutput(128);
+		out.writeByte(BINARY_HEADER_MARKER);
+		out.writeUnsignedVarLong(headers.size());
+		for (Map.Entry<String, String> entry : headers.entrySet()) {
+			int index = BINARY_HEADER_NAMES.indexOf(entry.getKey());
+			out.writeUnsignedVarLong(index + 1);
+			if (index < 0) {
+				out.writeString(entry.getKey());
+			}
+			out.writeString(entry.getValue());
+		}
+		return out.toByteArray();
+	}
+
 }
@@ -22,8 +22,10 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketAddress;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import com.ning.arecibo.event.BatchedEvent;
 import com.ning.arecibo.event.publisher.EventSenderType;
 import com.ning.arecibo.eventlogger.Event;
 
@@ -42,15 +44,44 @@ public class EventServiceUDPClient
 
 	public void sendEvent(SocketAddress udpAddress, Event event) throws IOException
 	{
-		DatagramSocket socket = cache.get(udpAddress);
-		if (socket == null) {
-			socket = new DatagramSocket();
-			socket.connect(udpAddress);
-			DatagramSocket old = cache.put(udpAddress, socket);
-			if (old != null) {
-				old.close();
-			}
+		byte b[] = toPacket(event);
+		getSocket(udpAddress).send(new DatagramPacket(b, b.length));
+	}
+
+	/**
+	 * Send the events in as few datagrams as possible, as BatchedEvents of at most maxPacketSize bytes
+	 * (unless a single event is larger than that).
+	 *
+	 * @return the number of bytes sent
+	 */
+	public int sendEvents(SocketAddress udpAddress, List<Event> events, int maxPacketSize) throws IOException
+	{
+		if (events.isEmpty()) {
+			return 0;
+		}
+		Event event;
+		if (events.size() == 1) {
+			event = events.get(0);
+		}
+		else {
+			BatchedEvent batch = new BatchedEvent(events.get(0));
+			batch.getEvents().addAll(events.subList(1, events.size()));
+			event = batch;
+		}
+
+		byte b[] = toPacket(event);
+		if (b.length > maxPacketSize && events.size() > 1) {
+			// Each half encodes to about half the size, or less
+			int half = events.size() / 2;
+			return sendEvents(udpAddress, events.subList(0, half), maxPacketSize) +
+			       sendEvents(udpAddress, events.subList(half, events.size()), maxPacketSize);
 		}
+		getSocket(udpAddress).send(new DatagramPacket(b, b.length));
+		return b.length;
+	}
+
+	private byte[] toPacket(Event event) throws IOException
+	{
 		Map<String, String> headers = new HashMap<String, String>() ;
 		headers.put(EventService.HEADER_EVENT_TYPE, event.getEventType());
         if (event.getSourceUUID() != null) {
@@ -59,7 +90,20 @@ public class EventServiceUDPClient
         headers.put(EventService.HEADER_SENDER_TYPE, senderType);
 		headers.put(EventSerializer.HEADER_CONTENT_TYPE, serializer.getContentType());
 
-		byte b[] = EventSerializerUDPUtil.toUDPPacket(headers, event, serializer);
-		socket.send(new DatagramPacket(b, b.length));
+		return EventSerializerUDPUtil.toUDPPacket(headers, event, serializer);
+	}
+
+	private DatagramSocket getSocket(SocketAddress udpAddress) throws IOException
+	{
+		DatagramSocket socket = cache.get(udpAddress);
+		if (socket == null) {
+			socket = new DatagramSocket();
+			socket.connect(udpAddress);
+			DatagramSocket old = cache.put(udpAddress, socket);
+			if (old != null) {
+				old.close();
+			}
+		}
+		return socket;
 	}
 }
@@ -16,14 +16,12 @@
 
 package com.ning.arecibo.event.transport;
 
-import com.ning.arecibo.event.MapEvent;
+import com.ning.arecibo.event.BatchedEvent;
 import com.ning.arecibo.eventlogger.Event;
 import org.codehaus.jackson.map.ObjectMapper;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 
 public class JsonEventSerializer implements EventSerializer
@@ -36,19 +34,30 @@ public class JsonEventSerializer implements EventSerializer
         mapper.writeValue(stream, event);
     }
 
-    // TODO : this won't work for streaming multiple events
+    /**
+     * @return the event, or a BatchedEvent if the payload is an array of events
+     */
     public Event deserialize(InputStream in) throws IOException
     {
-        InputStreamReader reader = new InputStreamReader(in);
-        BufferedReader br = new BufferedReader(reader);
-
-        StringBuilder sb = new StringBuilder();
-        String line;
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
+        JsonEventStreamParser parser = new JsonEventStreamParser(mapper.getJsonFactory().createJsonParser(in), mapper);
+        try {
+            if (!parser.isBatch()) {
+                return parser.nextEvent();
+            }
+            Event first = parser.nextEvent();
+            if (first == null) {
+                throw new IOException("empty array of events");
+            }
+            BatchedEvent batch = new BatchedEvent(first);
+            Event event;
+            while ((event = parser.nextEvent()) != null) {
+                batch.getEvents().add(event);
+            }
+            return batch;
+        }
+        finally {
+            parser.close();
         }
-
-        return mapper.convertValue(sb.toString(), MapEvent.class);
     }
 
     public String getContentType()
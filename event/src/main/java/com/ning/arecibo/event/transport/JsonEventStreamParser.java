@@ -0,0 +1,116 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.event.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+import com.ning.arecibo.event.MapEvent;
+import com.ning.arecibo.event.MonitoringEvent;
+import com.ning.arecibo.eventlogger.Event;
+
+/**
+ * Reads a JSON (or Smile) event, or an array of events, one event at a time.
+ * <p/>
+ * Only the event being read is materialized, as a Map: an array of any size is read in
+ * constant memory. Events with a deployedConfigSubPath are MonitoringEvents, others MapEvents.
+ */
+public class JsonEventStreamParser implements Closeable
+{
+    private static final TypeReference<Map<String, Object>> EVENT_TYPE = new TypeReference<Map<String, Object>>()
+    {
+    };
+
+    private final JsonParser parser;
+    private final ObjectMapper mapper;
+    private final boolean batch;
+    private boolean done = false;
+
+    public JsonEventStreamParser(JsonParser parser, ObjectMapper mapper) throws IOException
+    {
+        this.parser = parser;
+        this.mapper = mapper;
+
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.START_ARRAY) {
+            batch = true;
+        }
+        else if (token == JsonToken.START_OBJECT) {
+            batch = false;
+        }
+        else {
+            throw new IOException("expected an event or an array of events, got " + token);
+        }
+    }
+
+    /**
+     * @return true if the payload is an array of events
+     */
+    public boolean isBatch()
+    {
+        return batch;
+    }
+
+    /**
+     * @return the next event, or null once all of them have been read
+     */
+    public Event nextEvent() throws IOException
+    {
+        if (done) {
+            return null;
+        }
+        if (batch) {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.END_ARRAY) {
+                done = true;
+                return null;
+            }
+            if (token != JsonToken.START_OBJECT) {
+                throw new IOException("expected an event, got " + token);
+            }
+        }
+        else {
+            done = true;
+        }
+        Map<String, Object> map = mapper.readValue(parser, EVENT_TYPE);
+        try {
+            return toEvent(map);
+        }
+        catch (RuntimeException e) {
+            // e.g. missing or malformed sourceUUID
+            throw new IOException("invalid event " + map, e);
+        }
+    }
+
+    public static Event toEvent(Map<String, Object> map)
+    {
+        MapEvent event = new MapEvent(map);
+        if (map.containsKey(MonitoringEvent.KEY_CONFIG_PATH)) {
+            return new MonitoringEvent(event);
+        }
+        return event;
+    }
+
+    public void close() throws IOException
+    {
+        parser.close();
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.event.publisher;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.ning.arecibo.event.BatchedEvent;
+import com.ning.arecibo.event.MapEvent;
+import com.ning.arecibo.event.transport.BinaryEventSerializer;
+import com.ning.arecibo.event.transport.EventSerializer;
+import com.ning.arecibo.event.transport.EventSerializerUDPUtil;
+import com.ning.arecibo.event.transport.EventService;
+import com.ning.arecibo.event.transport.EventServiceUDPClient;
+import com.ning.arecibo.eventlogger.Event;
+import com.ning.arecibo.util.service.ServiceDescriptor;
+
+public class TestBatchingUDPSender
+{
+    private static final int MAX_PACKET_SIZE = 1400;
+    private static final UUID SOURCE_A = new UUID(0, 1);
+    private static final UUID SOURCE_B = new UUID(0, 2);
+
+    private final BinaryEventSerializer serializer = new BinaryEventSerializer();
+    private final Map<String, EventSerializer> serializers = new HashMap<String, EventSerializer>();
+    private EventServiceUDPClient udpClient;
+    private DatagramChannel receiverA;
+    private DatagramChannel receiverB;
+    private _Chooser chooser;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception
+    {
+        serializers.put(serializer.getContentType(), serializer);
+        udpClient = new EventServiceUDPClient(serializer, "test");
+        receiverA = openReceiver();
+        receiverB = openReceiver();
+        chooser = new _Chooser();
+        chooser.services.put(SOURCE_A, service(receiverA));
+        chooser.services.put(SOURCE_B, service(receiverB));
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception
+    {
+        receiverA.close();
+        receiverB.close();
+    }
+
+    @Test(groups = "fast")
+    public void testEventsAreSentTogetherAfterTheLinger() throws Exception
+    {
+        final BatchingUDPSender sender = new BatchingUDPSender(chooser, MAX_PACKET_SIZE, 200, TimeUnit.MILLISECONDS, 1000);
+        try {
+            final long start = System.nanoTime();
+            for (int i = 0; i < 3; i++) {
+                Assert.assertTrue(sender.send(event(SOURCE_A, i, 10)));
+            }
+
+            final List<Event> received = receive(receiverA, 5000);
+            final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            Assert.assertEquals(values(received), listOf(0, 1, 2));
+            // the first event waited for the others, for the linger time
+            Assert.assertTrue(elapsedMillis >= 150, "sent after " + elapsedMillis + " ms");
+            Assert.assertNull(receiveDatagram(receiverA, 100));
+            Assert.assertEquals(sender.getEventsSent(), 3L);
+            Assert.assertEquals(sender.getPacketsSent(), 1L);
+        }
+        finally {
+            sender.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testEachDestinationGetsItsOwnBatches() throws Exception
+    {
+        final BatchingUDPSender sender = new BatchingUDPSender(chooser, MAX_PACKET_SIZE, 100, TimeUnit.MILLISECONDS, 1000);
+        try {
+            for (int i = 0; i < 10; i++) {
+                sender.send(event(i % 2 == 0 ? SOURCE_A : SOURCE_B, i, 10));
+            }
+
+            Assert.assertEquals(values(receive(receiverA, 5000)), listOf(0, 2, 4, 6, 8));
+            Assert.assertEquals(values(receive(receiverB, 5000)), listOf(1, 3, 5, 7, 9));
+            Assert.assertEquals(sender.getPacketsSent(), 2L);
+            Assert.assertEquals(sender.getEventsFailed(), 0L);
+        }
+        finally {
+            sender.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testFullBatchIsSentBeforeTheLinger() throws Exception
+    {
+        // a linger much longer than the test
+        final BatchingUDPSender sender = new BatchingUDPSender(chooser, MAX_PACKET_SIZE, 1, TimeUnit.HOURS, 1000);
+        try {
+            // well over a packet, at the initial size estimate
+            for (int i = 0; i < 20; i++) {
+                sender.send(event(SOURCE_A, i, 200));
+            }
+
+            final List<Integer> received = new ArrayList<Integer>();
+            List<Event> datagram;
+            while (received.size() < 10 && (datagram = receive(receiverA, 5000)) != null) {
+                received.addAll(values(datagram));
+            }
+            Assert.assertTrue(received.size() >= 10, "received " + received);
+            for (int i = 0; i < received.size(); i++) {
+                Assert.assertEquals(received.get(i).intValue(), i);
+            }
+        }
+        finally {
+            sender.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testOversizedBatchIsSplitInHalves() throws Exception
+    {
+        final List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < 20; i++) {
+            events.add(event(SOURCE_A, i, 100));
+        }
+        final int singleSize = EventSerializerUDPUtil.toByteArray(serializer, events.get(0)).length;
+        final int maxPacketSize = 5 * singleSize;
+
+        final int bytes = udpClient.sendEvents(address(receiverA), events, maxPacketSize);
+
+        final List<Integer> received = new ArrayList<Integer>();
+        int datagrams = 0;
+        int datagramBytes = 0;
+        ByteBuffer datagram;
+        while (received.size() < events.size() && (datagram = receiveDatagram(receiverA, 5000)) != null) {
+            datagrams++;
+            datagramBytes += datagram.remaining();
+            Assert.assertTrue(datagram.remaining() <= maxPacketSize, "datagram of " + datagram.remaining() + " bytes");
+            received.addAll(values(decode(datagram)));
+        }
+        Assert.assertEquals(received, listOf(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19));
+        // 20 events split in halves of 10, then 5 (each one fitting)
+        Assert.assertEquals(datagrams, 4);
+        Assert.assertEquals(bytes, datagramBytes);
+    }
+
+    private static MapEvent event(final UUID source, final int value, final int padding)
+    {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("value", value);
+        final StringBuilder pad = new StringBuilder();
+        for (int i = 0; i < padding; i++) {
+            pad.append((char) ('a' + (i % 26)));
+        }
+        attributes.put("padding", pad.toString());
+        return new MapEvent(1300000000000L + value, "TestEvent", source, attributes);
+    }
+
+    private static List<Integer> values(final List<Event> events)
+    {
+        final List<Integer> values = new ArrayList<Integer>();
+        for (final Event event : events) {
+            values.add((Integer) ((MapEvent) event).getValue("value"));
+        }
+        return values;
+    }
+
+    private static List<Integer> listOf(final Integer... values)
+    {
+        final List<Integer> list = new ArrayList<Integer>();
+        for (final Integer value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    private static DatagramChannel openReceiver() throws IOException
+    {
+        final DatagramChannel channel = DatagramChannel.open();
+        channel.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    private static InetSocketAddress address(final DatagramChannel channel)
+    {
+        return (InetSocketAddress) channel.socket().getLocalSocketAddress();
+    }
+
+    private AreciboEventService service(final DatagramChannel receiver)
+    {
+        final Map<String, String> properties = new HashMap<String, String>();
+        properties.put(EventService.HOST, "127.0.0.1");
+        properties.put(EventService.JETTY_PORT, "0");
+        properties.put(EventService.UDP_PORT, String.valueOf(address(receiver).getPort()));
+        return new AreciboEventService(chooser, new ServiceDescriptor("collector-" + address(receiver).getPort(), properties), null, udpClient);
+    }
+
+    // the events of the next datagram, or null if none arrived in time
+    private List<Event> receive(final DatagramChannel receiver, final long timeoutMillis) throws IOException
+    {
+        final ByteBuffer datagram = receiveDatagram(receiver, timeoutMillis);
+        return datagram == null ? null : decode(datagram);
+    }
+
+    private List<Event> decode(final ByteBuffer datagram) throws IOException
+    {
+        final Event event = EventSerializerUDPUtil.fromUDPPacket(datagram, serializers);
+        if (event instanceof BatchedEvent) {
+            return ((BatchedEvent) event).getEvents();
+        }
+        final List<Event> events = new ArrayList<Event>();
+        events.add(event);
+        return events;
+    }
+
+    private static ByteBuffer receiveDatagram(final DatagramChannel receiver, final long timeoutMillis) throws IOException
+    {
+        final Selector selector = Selector.open();
+        try {
+            receiver.register(selector, SelectionKey.OP_READ);
+            final ByteBuffer buffer = ByteBuffer.allocate(65536);
+            final long deadline = System.currentTimeMillis() + timeoutMillis;
+            long remaining;
+            while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+                selector.select(remaining);
+                if (receiver.receive(buffer) != null) {
+                    buffer.flip();
+                    return buffer;
+                }
+            }
+            return null;
+        }
+        finally {
+            selector.close();
+        }
+    }
+
+    private static class _Chooser implements EventServiceChooser
+    {
+        private final Map<UUID, EventService> services = new HashMap<UUID, EventService>();
+
+        public void start()
+        {
+        }
+
+        public void stop()
+        {
+        }
+
+        public EventService choose(final UUID uuid)
+        {
+            return services.get(uuid);
+        }
+
+        public void invalidate(final UUID uuid)
+        {
+        }
+
+        public void onRemove(final ServiceDescriptor sd)
+        {
+        }
+
+        public void onAdd(final ServiceDescriptor sd)
+        {
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.event.publisher;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestSegmentedDiskQueue
+{
+    private static final int SEGMENT_SIZE = 1024;
+    private static final int RECORD_SIZE = 100;
+
+    private File dir;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception
+    {
+        dir = new File(System.getProperty("java.io.tmpdir"), "TestSegmentedDiskQueue-" + System.nanoTime());
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test(groups = "fast")
+    public void testReadsAcrossSegments() throws Exception
+    {
+        final SegmentedDiskQueue queue = new SegmentedDiskQueue(dir, "test", SEGMENT_SIZE, 1024 * 1024);
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertNull(queue.read(10));
+
+        // 9 records fit in a segment
+        Assert.assertEquals(queue.put(records(0, 25)), 25);
+        Assert.assertEquals(queue.getNumQueued(), 25);
+        Assert.assertEquals(queue.getBytesQueued(), 25 * (SegmentedDiskQueue.HEADER_SIZE + RECORD_SIZE));
+        Assert.assertEquals(queue.getSegmentCount(), 3);
+
+        final List<byte[]> read = new ArrayList<byte[]>();
+        SegmentedDiskQueue.Batch batch;
+        while ((batch = queue.read(7)) != null) {
+            Assert.assertTrue(batch.getRecords().size() <= 7);
+            read.addAll(batch.getRecords());
+            queue.ack(batch);
+        }
+        assertRecords(read, 0, 25);
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertEquals(queue.getNumQueued(), 0);
+        Assert.assertEquals(queue.getBytesQueued(), 0);
+        // Only the segment being written is left
+        Assert.assertEquals(queue.getSegmentCount(), 1);
+        Assert.assertEquals(dir.listFiles().length, 2);
+        queue.close();
+    }
+
+    @Test(groups = "fast")
+    public void testSizeLimit() throws Exception
+    {
+        final SegmentedDiskQueue queue = new SegmentedDiskQueue(dir, "test", SEGMENT_SIZE, 10 * (SegmentedDiskQueue.HEADER_SIZE + RECORD_SIZE));
+        Assert.assertEquals(queue.put(records(0, 15)), 10);
+        Assert.assertEquals(queue.getRecordsRejected(), 5);
+        Assert.assertEquals(queue.put(records(10, 1)), 0);
+
+        // Read records still count until acknowledged
+        final SegmentedDiskQueue.Batch batch = queue.read(4);
+        Assert.assertEquals(queue.put(records(10, 1)), 0);
+        queue.ack(batch);
+        Assert.assertEquals(queue.put(records(10, 5)), 4);
+        Assert.assertEquals(queue.getNumQueued(), 10);
+        queue.close();
+    }
+
+    @Test(groups = "fast")
+    public void testOutOfOrderAcks() throws Exception
+    {
+        SegmentedDiskQueue queue = new SegmentedDiskQueue(dir, "test", SEGMENT_SIZE, 1024 * 1024);
+        queue.put(records(0, 20));
+        final SegmentedDiskQueue.Batch first = queue.read(5);
+        final SegmentedDiskQueue.Batch second = queue.read(5);
+        queue.ack(second);
+        Assert.assertEquals(queue.getNumQueued(), 15);
+
+        // The first batch isn't acknowledged, so both are read again after a restart
+        queue = new SegmentedDiskQueue(dir, "test", SEGMENT_SIZE, 1024 * 1024);
+        Assert.assertEquals(queue.getNumQueued(), 20);
+        assertRecords(queue.read(100).getRecords(), 0, 20);
+
+        queue = new SegmentedDiskQueue(dir, "test", SEGMENT_SIZE, 1024 * 1024);
+        final SegmentedDiskQueue.Batch third = queue.read(5);
+        final SegmentedDiskQueue.Batch fourth = queue.read(5);
+        queue.ack(fourth);
+        queue.ack(third);
+        queue = new SegmentedDiskQueue(dir, "test", SEGMENT_SIZE, 1024 * 1024);
+        Assert.assertEquals(queue.getNumQueued(), 10);
+        assertRecords(queue.read(100).getRecords(), 10, 10);
+        queue.close();
+    }
+
+    @Test(groups = "fast")
+    public void testRecoveryFromCrashMidSegment() throws Exception
+    {
+        SegmentedDiskQueue queue = new SegmentedDiskQueue(dir, "test", SEGMENT_SIZE, 1024 * 1024);
+        queue.put(records(0, 12));
+        final SegmentedDiskQueue.Batch batch = queue.read(3);
+        queue.ack(batch);
+        // No close: simulate a crash while the 13th record was being written, after its header
+        // but before all of its body, in the middle of the second segment
+        final File lastSegment = lastSegment();
+        final int recordSize = SegmentedDiskQueue.HEADER_SIZE + RECORD_SIZE;
+        final RandomAccessFile file = new RandomAccessFile(lastSegment, "rw");
+        try {
+            file.seek(3 * recordSize);
+            file.writeInt(RECORD_SIZE);
+            file.writeInt(0x12345678);
+            file.write(record(12), 0, RECORD_SIZE / 2);
+        }
+        finally {
+            file.close();
+        }
+
+        queue = new SegmentedDiskQueue(dir, "test", SEGMENT_SIZE, 1024 * 1024);
+        Assert.assertEquals(queue.getNumQueued(), 9);
+        // The torn record is overwritten by the next ones
+        Assert.assertEquals(queue.put(records(12, 3)), 3);
+        Assert.assertEquals(lastSegment(), lastSegment);
+
+        queue = new SegmentedDiskQueue(dir, "test", SEGMENT_SIZE, 1024 * 1024);
+        Assert.assertEquals(queue.getNumQueued(), 12);
+        final List<byte[]> read = new ArrayList<byte[]>();
+        SegmentedDiskQueue.Batch next;
+        while ((next = queue.read(5)) != null) {
+            read.addAll(next.getRecords());
+            queue.ack(next);
+        }
+        assertRecords(read, 3, 12);
+        queue.close();
+    }
+
+    private File lastSegment()
+    {
+        final File[] files = dir.listFiles();
+        Arrays.sort(files);
+        File last = null;
+        for (final File file : files) {
+            if (file.getName().endsWith(".seg")) {
+                last = file;
+            }
+        }
+        return last;
+    }
+
+    private static List<byte[]> records(final int first, final int count)
+    {
+        final List<byte[]> records = new ArrayList<byte[]>();
+        for (int i = first; i < first + count; i++) {
+            records.add(record(i));
+        }
+        return records;
+    }
+
+    private static byte[] record(final int i)
+    {
+        final byte[] record = new byte[RECORD_SIZE];
+        Arrays.fill(record, (byte) i);
+        record[0] = (byte) (i >> 8);
+        return record;
+    }
+
+    private static void assertRecords(final List<byte[]> actual, final int first, final int count)
+    {
+        Assert.assertEquals(actual.size(), count);
+        for (int i = 0; i < count; i++) {
+            Assert.assertTrue(Arrays.equals(actual.get(i), record(first + i)), "record " + (first + i));
+        }
+    }
+}
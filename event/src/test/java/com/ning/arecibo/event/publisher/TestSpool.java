@@ -0,0 +1,141 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ning.arecibo.event.publisher;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import org.skife.config.TimeSpan;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.ning.arecibo.event.MapEvent;
+import com.ning.arecibo.eventlogger.Event;
+import com.ning.arecibo.util.service.ServiceDescriptor;
+import com.ning.arecibo.util.service.ServiceLocator;
+
+public class TestSpool
+{
+    private static final int EVENT_COUNT = 40;
+    private static final int DRAIN_BATCH_SIZE = 5;
+    private static final int DRAIN_THREADS = 3;
+    // In the middle of the second batch
+    private static final int FAILING_EVENT = 7;
+
+    private File spoolRoot;
+    private ExecutorService executor;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception
+    {
+        spoolRoot = new File(System.getProperty("java.io.tmpdir"), "TestSpool-" + System.nanoTime());
+        // Daemon threads: the enqueuing task lingers after the test
+        executor = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(final Runnable r)
+            {
+                final Thread thread = new Thread(r, "TestSpool");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory(spoolRoot);
+    }
+
+    @Test(groups = "fast")
+    public void testSendFailureMidBatchIsAcked() throws Exception
+    {
+        final Map<Integer, AtomicInteger> attempts = new ConcurrentHashMap<Integer, AtomicInteger>();
+        final Spool spool = new Spool("test", spoolRoot, serviceLocator(), null, executor, new TimeSpan("1h"),
+                                      1024 * 1024, 4096, DRAIN_BATCH_SIZE, DRAIN_THREADS)
+        {
+            @Override
+            protected void sendViaREST(final Event evt) throws IOException
+            {
+                final Integer id = (Integer) ((MapEvent) evt).getValue("id");
+                attempts.putIfAbsent(id, new AtomicInteger());
+                if (attempts.get(id).incrementAndGet() == 1 && id == FAILING_EVENT) {
+                    throw new IllegalStateException("unexpected failure sending event " + id);
+                }
+            }
+        };
+        spool.start();
+
+        // Spooled while the cluster is offline
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            final Map<String, Object> attributes = new HashMap<String, Object>();
+            attributes.put("id", i);
+            spool.spool(new MapEvent(System.currentTimeMillis(), "test", UUID.randomUUID(), attributes));
+        }
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (spool.getSpoolQueueSize() < EVENT_COUNT && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(spool.getSpoolQueueSize(), EVENT_COUNT);
+
+        spool.onAdd(new ServiceDescriptor("test"));
+        while ((attempts.size() < EVENT_COUNT || spool.getSpoolQueueSize() > 0 || spool.getRetryQueueSize() > 0 || attempts.get(FAILING_EVENT).get() < 2)
+               && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // Every event got sent, the one which failed through the retry queue
+        Assert.assertEquals(attempts.size(), EVENT_COUNT);
+        Assert.assertEquals(attempts.get(FAILING_EVENT).get(), 2);
+        Assert.assertEquals(spool.getSpoolQueueSize(), 0);
+        Assert.assertEquals(spool.getRetryQueueSize(), 0);
+        spool.stop(1, TimeUnit.SECONDS);
+
+        // Nothing is replayed after a restart
+        final SegmentedDiskQueue spoolQueue = new SegmentedDiskQueue(new File(spoolRoot, "event"), "event", 4096, 1024 * 1024);
+        Assert.assertTrue(spoolQueue.isEmpty());
+        Assert.assertEquals(spoolQueue.getNumQueued(), 0);
+        spoolQueue.close();
+    }
+
+    private ServiceLocator serviceLocator()
+    {
+        return (ServiceLocator) Proxy.newProxyInstance(ServiceLocator.class.getClassLoader(), new Class[]{ServiceLocator.class}, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args)
+            {
+                // The test calls onAdd() itself
+                return null;
+            }
+        });
+    }
+}
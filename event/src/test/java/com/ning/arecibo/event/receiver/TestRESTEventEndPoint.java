@@ -0,0 +1,242 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.event.receiver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import javax.ws.rs.core.Response;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import com.ning.arecibo.event.BatchedEvent;
+import com.ning.arecibo.event.MapEvent;
+import com.ning.arecibo.event.MonitoringEvent;
+import com.ning.arecibo.eventlogger.Event;
+
+public class TestRESTEventEndPoint
+{
+    private static final String JSON = "application/json";
+    private static final long TIMESTAMP = 1300000000000L;
+
+    @Test(groups = "fast")
+    public void testSingleEventIsDispatchedAsIs() throws Exception
+    {
+        final _Processor processor = new _Processor();
+        final RESTEventEndPoint endPoint = new RESTEventEndPoint(processor, 10);
+
+        final Response response = endPoint.post(JSON, new _CountingInputStream(eventJson(7)));
+
+        Assert.assertEquals(response.getStatus(), 200);
+        Assert.assertEquals(processor.received.size(), 1);
+        Assert.assertTrue(processor.received.get(0) instanceof MapEvent);
+        Assert.assertEquals(((MapEvent) processor.received.get(0)).getValue("value"), 7);
+        Assert.assertEquals(processor.received.get(0).getTimestamp(), TIMESTAMP);
+    }
+
+    @Test(groups = "fast")
+    public void testArrayIsDispatchedInMicroBatches() throws Exception
+    {
+        final _Processor processor = new _Processor();
+        final RESTEventEndPoint endPoint = new RESTEventEndPoint(processor, 100);
+        final _CountingInputStream body = new _CountingInputStream(array(250, null));
+        processor.body = body;
+
+        final Response response = endPoint.post(JSON + "; charset=UTF-8", body);
+
+        Assert.assertEquals(response.getStatus(), 200);
+        Assert.assertEquals(processor.batchSizes(), listOf(100, 100, 50));
+        // the first micro-batch went out before the upload was read through
+        Assert.assertTrue(processor.bytesReadAtDispatch.get(0) < body.length);
+
+        int expected = 0;
+        for (final Event batch : processor.received) {
+            for (final Event event : ((BatchedEvent) batch).getEvents()) {
+                Assert.assertEquals(((MapEvent) event).getValue("value"), expected++);
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testEventsWithConfigPathAreMonitoringEvents() throws Exception
+    {
+        final _Processor processor = new _Processor();
+        final RESTEventEndPoint endPoint = new RESTEventEndPoint(processor, 10);
+        final String monitoring = "{\"eventType\":\"Mon\",\"sourceUUID\":\"" + new UUID(5, 6) + "\",\"timestamp\":" + TIMESTAMP
+            + ",\"hostName\":\"host1\",\"deployedType\":\"core\",\"deployedConfigSubPath\":\"web\",\"load\":2.5}";
+
+        final Response response = endPoint.post(null, new _CountingInputStream("[" + monitoring + "," + eventJson(1) + "]"));
+
+        Assert.assertEquals(response.getStatus(), 200);
+        final List<Event> events = ((BatchedEvent) processor.received.get(0)).getEvents();
+        Assert.assertTrue(events.get(0) instanceof MonitoringEvent);
+        Assert.assertEquals(((MonitoringEvent) events.get(0)).getHostName(), "host1");
+        Assert.assertEquals(((MonitoringEvent) events.get(0)).getDeployedConfigSubPath(), "web");
+        Assert.assertFalse(events.get(1) instanceof MonitoringEvent);
+    }
+
+    @Test(groups = "fast")
+    public void testUnknownContentTypeIsRejectedUnread() throws Exception
+    {
+        final _Processor processor = new _Processor();
+        final RESTEventEndPoint endPoint = new RESTEventEndPoint(processor, 10);
+        final _CountingInputStream body = new _CountingInputStream(eventJson(1));
+
+        final Response response = endPoint.post("text/plain", body);
+
+        Assert.assertEquals(response.getStatus(), 415);
+        Assert.assertEquals(body.read, 0L);
+        Assert.assertEquals(processor.received.size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testMalformedJsonIsABadRequest() throws Exception
+    {
+        final _Processor processor = new _Processor();
+        final RESTEventEndPoint endPoint = new RESTEventEndPoint(processor, 10);
+
+        Assert.assertEquals(endPoint.post(JSON, new _CountingInputStream("{\"eventType\":")).getStatus(), 400);
+        Assert.assertEquals(endPoint.post(JSON, new _CountingInputStream("42")).getStatus(), 400);
+        // not an event: no sourceUUID
+        Assert.assertEquals(endPoint.post(JSON, new _CountingInputStream("{\"eventType\":\"TestEvent\"}")).getStatus(), 400);
+        Assert.assertEquals(processor.received.size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testMalformedTailIsABadRequestAfterPartialDispatch() throws Exception
+    {
+        final _Processor processor = new _Processor();
+        final RESTEventEndPoint endPoint = new RESTEventEndPoint(processor, 100);
+
+        final Response response = endPoint.post(JSON, new _CountingInputStream(array(150, "{\"eventType\":")));
+
+        Assert.assertEquals(response.getStatus(), 400);
+        // the first micro-batch was complete, and is not taken back
+        Assert.assertEquals(processor.batchSizes(), listOf(100));
+    }
+
+    @Test(groups = "fast")
+    public void testRejectedMicroBatchSkipsTheRest() throws Exception
+    {
+        final _Processor processor = new _Processor();
+        processor.rejectAfter = 2;
+        final RESTEventEndPoint endPoint = new RESTEventEndPoint(processor, 10);
+
+        final Response response = endPoint.post(JSON, new _CountingInputStream(array(45, null)));
+
+        Assert.assertEquals(response.getStatus(), 503);
+        Assert.assertEquals(processor.batchSizes(), listOf(10, 10));
+    }
+
+    private static String eventJson(final int value)
+    {
+        return "{\"eventType\":\"TestEvent\",\"sourceUUID\":\"" + new UUID(1, 2) + "\",\"timestamp\":" + TIMESTAMP + ",\"value\":" + value + "}";
+    }
+
+    private static String array(final int numEvents, final String malformedTail)
+    {
+        final StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < numEvents; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(eventJson(i));
+        }
+        if (malformedTail != null) {
+            json.append(',').append(malformedTail);
+        }
+        else {
+            json.append(']');
+        }
+        return json.toString();
+    }
+
+    private static List<Integer> listOf(final Integer... values)
+    {
+        final List<Integer> list = new ArrayList<Integer>();
+        for (final Integer value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    private static class _Processor implements RESTEventProcessor
+    {
+        private final List<Event> received = new ArrayList<Event>();
+        private final List<Long> bytesReadAtDispatch = new ArrayList<Long>();
+        private _CountingInputStream body = null;
+        private int rejectAfter = Integer.MAX_VALUE;
+
+        @Override
+        public Response processEvent(final Event event)
+        {
+            received.add(event);
+            if (body != null) {
+                bytesReadAtDispatch.add(body.read);
+            }
+            if (received.size() >= rejectAfter) {
+                return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+            }
+            return Response.ok().build();
+        }
+
+        List<Integer> batchSizes()
+        {
+            final List<Integer> sizes = new ArrayList<Integer>();
+            for (final Event event : received) {
+                sizes.add(((BatchedEvent) event).getEvents().size());
+            }
+            return sizes;
+        }
+    }
+
+    private static class _CountingInputStream extends InputStream
+    {
+        private final InputStream in;
+        private final long length;
+        private long read = 0;
+
+        _CountingInputStream(final String content) throws IOException
+        {
+            final byte[] bytes = content.getBytes("UTF-8");
+            this.in = new ByteArrayInputStream(bytes);
+            this.length = bytes.length;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            final int b = in.read();
+            if (b >= 0) {
+                read++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException
+        {
+            final int n = in.read(b, off, len);
+            if (n > 0) {
+                read += n;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.event.receiver;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+import com.ning.arecibo.event.transport.EventSerializer;
+
+public class TestUDPServer
+{
+    private static final int NB_RECEIVERS = 2;
+
+    private UDPServer server;
+    private DatagramSocket sender;
+    private _Handler handler;
+    private InetSocketAddress address;
+
+    @AfterMethod(groups = "fast")
+    public void tearDown()
+    {
+        if (handler != null) {
+            handler.gate.countDown();
+        }
+        if (server != null) {
+            server.stop();
+        }
+        if (sender != null) {
+            sender.close();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDatagramsAreDispatched() throws Exception
+    {
+        final int numDatagrams = 200;
+        start(8, 4, true);
+
+        final Set<String> expected = new HashSet<String>();
+        for (int i = 0; i < numDatagrams; i++) {
+            expected.add("datagram-" + i);
+            send("datagram-" + i);
+        }
+
+        waitUntil(new Callable<Boolean>()
+        {
+            public Boolean call()
+            {
+                return handler.getReceived().size() == numDatagrams;
+            }
+        });
+        Assert.assertEquals(new HashSet<String>(handler.getReceived()), expected);
+        Assert.assertEquals(server.getDatagramsReceived(), numDatagrams);
+        Assert.assertTrue(server.getBatchesDispatched() >= numDatagrams / 4);
+
+        // 8 buffers for 200 datagrams: all of them were used again and again, and are back in the pool
+        waitUntil(new Callable<Boolean>()
+        {
+            public Boolean call()
+            {
+                return server.getBufferPoolAvailable() == 8;
+            }
+        });
+    }
+
+    @Test(groups = "fast")
+    public void testReceiversWaitForBuffers() throws Exception
+    {
+        final int numDatagrams = 20;
+        start(4, 1, false);
+
+        for (int i = 0; i < numDatagrams; i++) {
+            send("datagram-" + i);
+        }
+
+        // the handler holds the 4 buffers, the other datagrams wait in the socket receive buffer
+        waitUntil(new Callable<Boolean>()
+        {
+            public Boolean call()
+            {
+                return server.getDatagramsReceived() == 4;
+            }
+        });
+        Assert.assertEquals(server.getBufferPoolAvailable(), 0L);
+
+        // the receivers don't go back to the empty pool until a buffer is released
+        Thread.sleep(100);
+        final long exhaustedCount = server.getBufferPoolExhaustedCount();
+        Assert.assertTrue(exhaustedCount <= NB_RECEIVERS, "pool exhausted " + exhaustedCount + " times");
+        Thread.sleep(500);
+        Assert.assertEquals(server.getBufferPoolExhaustedCount(), exhaustedCount);
+        Assert.assertEquals(server.getDatagramsReceived(), 4);
+
+        handler.gate.countDown();
+        waitUntil(new Callable<Boolean>()
+        {
+            public Boolean call()
+            {
+                return handler.getReceived().size() == numDatagrams;
+            }
+        });
+        Assert.assertEquals(server.getDatagramsReceived(), numDatagrams);
+        waitUntil(new Callable<Boolean>()
+        {
+            public Boolean call()
+            {
+                return server.getBufferPoolAvailable() == 4;
+            }
+        });
+    }
+
+    private void start(final int bufferPoolSize, final int batchSize, final boolean open) throws Exception
+    {
+        final UDPEventReceiverConfig config = new _Config(bufferPoolSize, batchSize);
+        final DatagramChannel channel = new DatagramChannelProvider(config).get();
+        address = new InetSocketAddress("127.0.0.1", config.getPort());
+        handler = new _Handler();
+        if (open) {
+            handler.gate.countDown();
+        }
+        server = new UDPServer(channel, Executors.newFixedThreadPool(2), handler, config.getPort(), config);
+        server.start();
+        sender = new DatagramSocket();
+    }
+
+    private void send(final String message) throws Exception
+    {
+        final byte[] bytes = message.getBytes("UTF-8");
+        sender.send(new DatagramPacket(bytes, bytes.length, address));
+    }
+
+    private static void waitUntil(final Callable<Boolean> condition) throws Exception
+    {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.call()) {
+            if (System.currentTimeMillis() > deadline) {
+                Assert.fail("timed out");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static class _Handler extends UDPEventHandler
+    {
+        private final CountDownLatch gate = new CountDownLatch(1);
+        private final List<String> received = new ArrayList<String>();
+
+        private _Handler()
+        {
+            super(new ArrayList<EventSerializer>(), null);
+        }
+
+        @Override
+        public void receive(final ByteBuffer packet)
+        {
+            try {
+                gate.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            final byte[] bytes = new byte[packet.remaining()];
+            packet.get(bytes);
+            synchronized (received) {
+                received.add(new String(bytes));
+            }
+        }
+
+        private List<String> getReceived()
+        {
+            synchronized (received) {
+                return new ArrayList<String>(received);
+            }
+        }
+    }
+
+    private static class _Config extends UDPEventReceiverConfig
+    {
+        private final int bufferPoolSize;
+        private final int batchSize;
+
+        private _Config(final int bufferPoolSize, final int batchSize)
+        {
+            this.bufferPoolSize = bufferPoolSize;
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public String getHost()
+        {
+            return "127.0.0.1";
+        }
+
+        @Override
+        public String getPortValue()
+        {
+            return "auto";
+        }
+
+        @Override
+        public int getNumUDPThreads()
+        {
+            return 2;
+        }
+
+        @Override
+        public int getNumReceiverThreads()
+        {
+            return NB_RECEIVERS;
+        }
+
+        @Override
+        public int getReceiveBufferSize()
+        {
+            return 0;
+        }
+
+        @Override
+        public int getMaxDatagramSize()
+        {
+            return 1500;
+        }
+
+        @Override
+        public int getBufferPoolSize()
+        {
+            return bufferPoolSize;
+        }
+
+        @Override
+        public int getBatchSize()
+        {
+            return batchSize;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.event.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import com.ning.arecibo.event.BatchedEvent;
+import com.ning.arecibo.event.MapEvent;
+import com.ning.arecibo.event.MonitoringEvent;
+import com.ning.arecibo.eventlogger.Event;
+
+public class TestBinaryEventSerializer
+{
+    private final BinaryEventSerializer serializer = new BinaryEventSerializer();
+
+    @Test(groups = "fast")
+    public void testMonitoringEventRoundTrip() throws Exception
+    {
+        final MonitoringEvent event = createMonitoringEvent("host1", 1);
+        final Event decoded = EventSerializerUDPUtil.fromByteArray(serializer, EventSerializerUDPUtil.toByteArray(serializer, event));
+
+        Assert.assertTrue(decoded instanceof MonitoringEvent);
+        final MonitoringEvent actual = (MonitoringEvent) decoded;
+        Assert.assertEquals(actual.getTimestamp(), event.getTimestamp());
+        Assert.assertEquals(actual.getEventType(), event.getEventType());
+        Assert.assertEquals(actual.getSourceUUID(), event.getSourceUUID());
+        Assert.assertEquals(actual.getHostName(), event.getHostName());
+        Assert.assertEquals(actual.getDeployedEnv(), event.getDeployedEnv());
+        Assert.assertNull(actual.getDeployedVersion());
+        Assert.assertEquals(actual.getDeployedType(), event.getDeployedType());
+        Assert.assertEquals(actual.getDeployedConfigSubPath(), event.getDeployedConfigSubPath());
+        Assert.assertEquals(actual.getMap(), event.getMap());
+    }
+
+    @Test(groups = "fast")
+    public void testValueTypesArePreserved() throws Exception
+    {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("integralDouble", 42.0);
+        attributes.put("negativeZero", -0.0);
+        attributes.put("nan", Double.NaN);
+        attributes.put("huge", 1.0e300);
+        attributes.put("float", 1.5f);
+        attributes.put("int", -7);
+        attributes.put("long", Long.MIN_VALUE);
+        attributes.put("short", (short) 300);
+        attributes.put("byte", (byte) -1);
+        attributes.put("bool", true);
+        attributes.put("string", "h\u00e9llo");
+        attributes.put("null", null);
+        attributes.put("uuid", new UUID(3, 4));
+        final MapEvent event = new MapEvent(1234L, "TypesEvent", new UUID(1, 2), attributes);
+
+        final MapEvent actual = (MapEvent) EventSerializerUDPUtil.fromByteArray(serializer, EventSerializerUDPUtil.toByteArray(serializer, event));
+        Assert.assertEquals(actual.getTimestamp(), 1234L);
+        Assert.assertEquals(actual.getEventType(), "TypesEvent");
+        Assert.assertEquals(actual.getSourceUUID(), new UUID(1, 2));
+        Assert.assertEquals(actual.getMap(), attributes);
+        Assert.assertEquals(Double.doubleToRawLongBits((Double) actual.getValue("negativeZero")), Double.doubleToRawLongBits(-0.0));
+        for (final String key : attributes.keySet()) {
+            if (attributes.get(key) != null) {
+                Assert.assertEquals(actual.getValue(key).getClass(), attributes.get(key).getClass(), key);
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testBatchSharesAttributeNames() throws Exception
+    {
+        final int singleSize = EventSerializerUDPUtil.toByteArray(serializer, createMonitoringEvent("host1", 1)).length;
+
+        final BatchedEvent batch = new BatchedEvent(createMonitoringEvent("host1", 1));
+        batch.getEvents().add(createMonitoringEvent("host2", 2));
+        batch.getEvents().add(createMonitoringEvent("host3", 3));
+        final byte[] bytes = EventSerializerUDPUtil.toByteArray(serializer, batch);
+        Assert.assertTrue(bytes.length < 2 * singleSize, bytes.length + " vs " + singleSize);
+
+        final BatchedEvent actual = (BatchedEvent) EventSerializerUDPUtil.fromByteArray(serializer, bytes);
+        Assert.assertEquals(actual.getEvents().size(), 3);
+        for (int i = 0; i < 3; i++) {
+            final MonitoringEvent expected = (MonitoringEvent) batch.getEvents().get(i);
+            final MonitoringEvent event = (MonitoringEvent) actual.getEvents().get(i);
+            Assert.assertEquals(event.getHostName(), expected.getHostName());
+            Assert.assertEquals(event.getMap(), expected.getMap());
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testSmallerThanJavaSerialization() throws Exception
+    {
+        final MonitoringEvent event = createMonitoringEvent("host1", 1);
+        final int binarySize = EventSerializerUDPUtil.toByteArray(serializer, event).length;
+        final int javaSize = EventSerializerUDPUtil.toByteArray(new JavaEventSerializer(), event).length;
+        Assert.assertTrue(2 * binarySize < javaSize, binarySize + " vs " + javaSize);
+    }
+
+    @Test(groups = "fast")
+    public void testUDPPacketHeaders() throws Exception
+    {
+        final Map<String, EventSerializer> serializers = new HashMap<String, EventSerializer>();
+        serializers.put(BinaryEventSerializer.CONTENT_TYPE, serializer);
+        serializers.put(JavaEventSerializer.CONTENT_TYPE, new JavaEventSerializer());
+
+        final MonitoringEvent event = createMonitoringEvent("host1", 1);
+        for (final EventSerializer packetSerializer : serializers.values()) {
+            final Map<String, String> headers = new HashMap<String, String>();
+            headers.put(EventService.HEADER_EVENT_TYPE, event.getEventType());
+            headers.put(EventService.HEADER_SENDER_TYPE, "test");
+            headers.put("x-custom", "value");
+            headers.put(EventSerializer.HEADER_CONTENT_TYPE, packetSerializer.getContentType());
+            final byte[] packet = EventSerializerUDPUtil.toUDPPacket(headers, event, packetSerializer);
+            Assert.assertEquals(packet[2] == 0, packetSerializer == serializer);
+
+            // As handed over by the UDP receivers
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(packet.length + 16);
+            buffer.position(16);
+            buffer.put(packet);
+            buffer.flip();
+            buffer.position(16);
+
+            final MonitoringEvent actual = (MonitoringEvent) EventSerializerUDPUtil.fromUDPPacket(buffer, serializers);
+            Assert.assertEquals(actual.getHostName(), event.getHostName());
+            Assert.assertEquals(actual.getMap(), event.getMap());
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDecodesInPlace() throws Exception
+    {
+        final MonitoringEvent event = createMonitoringEvent("host1", 1);
+        final byte[] bytes = EventSerializerUDPUtil.toByteArray(serializer, event);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(16 + bytes.length + 8);
+        buffer.position(16);
+        buffer.put(bytes);
+        buffer.put(new byte[8]);
+        buffer.flip();
+        buffer.position(16);
+
+        final MonitoringEvent actual = (MonitoringEvent) serializer.deserialize(new ByteBufferInputStream(buffer));
+        Assert.assertEquals(actual.getHostName(), event.getHostName());
+        Assert.assertEquals(actual.getMap(), event.getMap());
+        // what follows the event is left alone
+        Assert.assertEquals(buffer.position(), 16 + bytes.length);
+        Assert.assertEquals(buffer.remaining(), 8);
+    }
+
+    @Test(groups = "fast")
+    public void testCorruptLengthsAreRejected() throws Exception
+    {
+        // a body length of 2^31 - 1, followed by 3 bytes
+        assertRejected(new byte[]{1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 1, 0, 0});
+        // longer than the int range
+        assertRejected(new byte[]{1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x1F, 1, 0, 0});
+        // a map event with 2^31 - 1 attributes
+        assertRejected(new byte[]{1, 9, 1, 0, 0, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07});
+        // a truncated body
+        final byte[] bytes = EventSerializerUDPUtil.toByteArray(serializer, createMonitoringEvent("host1", 1));
+        assertRejected(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    private void assertRejected(final byte[] bytes)
+    {
+        try {
+            EventSerializerUDPUtil.fromByteArray(serializer, bytes);
+            Assert.fail("decoded from a stream");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        try {
+            serializer.deserialize(ByteBuffer.wrap(bytes));
+            Assert.fail("decoded from a buffer");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    private MonitoringEvent createMonitoringEvent(final String hostName, final int seed)
+    {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("requestCount", 1000L * seed);
+        attributes.put("errorCount", seed);
+        attributes.put("heapUsed", 123456789.0 * seed);
+        attributes.put("cpuLoad", 0.37 * seed);
+        attributes.put("latency95th", 12.25 + seed);
+        return new MonitoringEvent(System.currentTimeMillis(), "JvmStats", new UUID(seed, seed), hostName, "prod", null, "core", "/web", attributes);
+    }
+}
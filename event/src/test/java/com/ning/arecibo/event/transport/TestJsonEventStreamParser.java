@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.event.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import com.ning.arecibo.event.MapEvent;
+import com.ning.arecibo.eventlogger.Event;
+
+public class TestJsonEventStreamParser
+{
+    private static final long TIMESTAMP = 1300000000000L;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test(groups = "fast")
+    public void testArrayIsReadOneEventAtATime() throws Exception
+    {
+        final JsonEventStreamParser parser = parse("[" + eventJson(0) + "," + eventJson(1) + "," + eventJson(2) + "]");
+
+        Assert.assertTrue(parser.isBatch());
+        for (int i = 0; i < 3; i++) {
+            final Event event = parser.nextEvent();
+            Assert.assertEquals(((MapEvent) event).getValue("value"), i);
+            Assert.assertEquals(event.getSourceUUID(), new UUID(1, 2));
+        }
+        Assert.assertNull(parser.nextEvent());
+        Assert.assertNull(parser.nextEvent());
+    }
+
+    @Test(groups = "fast")
+    public void testSingleEvent() throws Exception
+    {
+        final JsonEventStreamParser parser = parse(eventJson(5));
+
+        Assert.assertFalse(parser.isBatch());
+        Assert.assertEquals(((MapEvent) parser.nextEvent()).getValue("value"), 5);
+        Assert.assertNull(parser.nextEvent());
+    }
+
+    @Test(groups = "fast")
+    public void testSmileArray() throws Exception
+    {
+        final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+        final List<Map<String, Object>> events = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < 2; i++) {
+            events.add(eventMap(i));
+        }
+        final ByteArrayOutputStream smile = new ByteArrayOutputStream();
+        smileMapper.writeValue(smile, events);
+
+        final JsonEventStreamParser parser = new JsonEventStreamParser(smileMapper.getJsonFactory().createJsonParser(smile.toByteArray()), smileMapper);
+        Assert.assertTrue(parser.isBatch());
+        Assert.assertEquals(((MapEvent) parser.nextEvent()).getValue("value"), 0);
+        Assert.assertEquals(((MapEvent) parser.nextEvent()).getValue("value"), 1);
+        Assert.assertNull(parser.nextEvent());
+    }
+
+    @Test(groups = "fast", expectedExceptions = IOException.class)
+    public void testScalarPayloadIsRejected() throws Exception
+    {
+        parse("\"event\"");
+    }
+
+    @Test(groups = "fast", expectedExceptions = IOException.class)
+    public void testArrayOfScalarsIsRejected() throws Exception
+    {
+        final JsonEventStreamParser parser = parse("[" + eventJson(0) + ",7]");
+        Assert.assertNotNull(parser.nextEvent());
+        parser.nextEvent();
+    }
+
+    @Test(groups = "fast", expectedExceptions = IOException.class)
+    public void testEventWithoutUUIDIsRejected() throws Exception
+    {
+        parse("{\"eventType\":\"TestEvent\",\"timestamp\":" + TIMESTAMP + "}").nextEvent();
+    }
+
+    private JsonEventStreamParser parse(final String json) throws IOException
+    {
+        return new JsonEventStreamParser(mapper.getJsonFactory().createJsonParser(json), mapper);
+    }
+
+    private static Map<String, Object> eventMap(final int value)
+    {
+        final Map<String, Object> map = new HashMap<String, Object>();
+        map.put(MapEvent.KEY_EVENT_NAME, "TestEvent");
+        map.put(MapEvent.KEY_UUID, new UUID(1, 2).toString());
+        map.put(MapEvent.KEY_TIMESTAMP, TIMESTAMP);
+        map.put("value", value);
+        return map;
+    }
+
+    private static String eventJson(final int value)
+    {
+        return "{\"eventType\":\"TestEvent\",\"sourceUUID\":\"" + new UUID(1, 2) + "\",\"timestamp\":" + TIMESTAMP + ",\"value\":" + value + "}";
+    }
+}
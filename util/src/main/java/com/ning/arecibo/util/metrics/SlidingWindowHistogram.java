@@ -0,0 +1,192 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.util.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative long values (e.g. latencies) over a sliding time window.
+ * <p/>
+ * Values are counted in log-linear buckets, as HdrHistogram does: exact below 32, then 16
+ * buckets per power of two, i.e. a relative error under 1/16. The window is split into slots;
+ * the slot of the current time is reset when the clock reaches it again, so old values drop
+ * out one slot at a time. Recording is lock free, except for the thread rotating a slot.
+ */
+public class SlidingWindowHistogram
+{
+    private static final int LINEAR_BUCKETS = 32;
+    private static final int SUB_BUCKETS = 16;
+    private static final int BUCKETS = LINEAR_BUCKETS + 59 * SUB_BUCKETS;
+
+    private final long slotMillis;
+    private final int nbSlots;
+    private final AtomicLongArray slotEpochs;
+    private final AtomicLongArray slotCounts;
+    private final AtomicLongArray slotSums;
+    private final AtomicLongArray buckets;
+
+    /**
+     * @param window  length of the window
+     * @param unit    unit of window
+     * @param nbSlots number of slots the window is split into, i.e. its granularity
+     */
+    public SlidingWindowHistogram(long window, TimeUnit unit, int nbSlots)
+    {
+        this.nbSlots = nbSlots;
+        this.slotMillis = Math.max(1, unit.toMillis(window) / nbSlots);
+        this.slotEpochs = new AtomicLongArray(nbSlots);
+        this.slotCounts = new AtomicLongArray(nbSlots);
+        this.slotSums = new AtomicLongArray(nbSlots);
+        this.buckets = new AtomicLongArray(nbSlots * BUCKETS);
+        for (int i = 0; i < nbSlots; i++) {
+            slotEpochs.set(i, -1);
+        }
+    }
+
+    public void record(long value)
+    {
+        if (value < 0) {
+            value = 0;
+        }
+        int slot = currentSlot();
+        slotCounts.incrementAndGet(slot);
+        slotSums.addAndGet(slot, value);
+        buckets.incrementAndGet(slot * BUCKETS + bucketIndex(value));
+    }
+
+    private int currentSlot()
+    {
+        long epoch = currentTimeMillis() / slotMillis;
+        int slot = (int) (epoch % nbSlots);
+        if (slotEpochs.get(slot) != epoch) {
+            synchronized (this) {
+                if (slotEpochs.get(slot) != epoch) {
+                    // Values recorded concurrently by threads which read the previous epoch may be lost
+                    slotCounts.set(slot, 0);
+                    slotSums.set(slot, 0);
+                    for (int i = slot * BUCKETS; i < (slot + 1) * BUCKETS; i++) {
+                        buckets.set(i, 0);
+                    }
+                    slotEpochs.set(slot, epoch);
+                }
+            }
+        }
+        return slot;
+    }
+
+    private boolean isInWindow(int slot, long currentEpoch)
+    {
+        long epoch = slotEpochs.get(slot);
+        return epoch >= 0 && epoch > currentEpoch - nbSlots;
+    }
+
+    /**
+     * @return the number of values recorded in the window
+     */
+    public long getCount()
+    {
+        long currentEpoch = currentTimeMillis() / slotMillis;
+        long count = 0;
+        for (int slot = 0; slot < nbSlots; slot++) {
+            if (isInWindow(slot, currentEpoch)) {
+                count += slotCounts.get(slot);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the mean of the values recorded in the window, or -1 if there are none
+     */
+    public double getMean()
+    {
+        long currentEpoch = currentTimeMillis() / slotMillis;
+        long count = 0;
+        long sum = 0;
+        for (int slot = 0; slot < nbSlots; slot++) {
+            if (isInWindow(slot, currentEpoch)) {
+                count += slotCounts.get(slot);
+                sum += slotSums.get(slot);
+            }
+        }
+        return count == 0 ? -1 : (double) sum / count;
+    }
+
+    /**
+     * @param quantile between 0 and 1, e.g. 0.99
+     * @return the (approximate) quantile of the values recorded in the window, or -1 if there are none
+     */
+    public long getQuantile(double quantile)
+    {
+        long currentEpoch = currentTimeMillis() / slotMillis;
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int slot = 0; slot < nbSlots; slot++) {
+            if (isInWindow(slot, currentEpoch)) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    long count = buckets.get(slot * BUCKETS + i);
+                    counts[i] += count;
+                    total += count;
+                }
+            }
+        }
+        if (total == 0) {
+            return -1;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return bucketValue(i);
+            }
+        }
+        return bucketValue(BUCKETS - 1);
+    }
+
+    static int bucketIndex(long value)
+    {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 4;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the middle of the range of values counted in the bucket
+     */
+    static long bucketValue(int index)
+    {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        long lowest = subBucket << shift;
+        return lowest + ((1L << shift) - 1) / 2;
+    }
+
+    // Visible for testing
+    protected long currentTimeMillis()
+    {
+        return System.currentTimeMillis();
+    }
+}
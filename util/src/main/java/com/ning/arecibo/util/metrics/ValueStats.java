@@ -0,0 +1,95 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.util.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Count, min and max of all the values recorded, and the distribution of the values of the
+ * last minute, for values recorded on hot paths (event sizes, processing times...).
+ * <p/>
+ * Replaces MiniEsperEngine, whose statistics it mirrors: min, max and count are since
+ * creation, the average is over a sliding window. Min and max are -1 until a value is
+ * recorded, as are the windowed statistics when the window is empty.
+ */
+public class ValueStats
+{
+    private static final int WINDOW_SLOTS = 6;
+
+    private final StripedCounter count = new StripedCounter();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+    private final SlidingWindowHistogram window;
+
+    public ValueStats()
+    {
+        this(1, TimeUnit.MINUTES);
+    }
+
+    public ValueStats(long window, TimeUnit unit)
+    {
+        this(new SlidingWindowHistogram(window, unit, WINDOW_SLOTS));
+    }
+
+    ValueStats(SlidingWindowHistogram window)
+    {
+        this.window = window;
+    }
+
+    public void record(long value)
+    {
+        count.increment();
+        window.record(value);
+
+        long current = min.get();
+        while (value < current && !min.compareAndSet(current, value)) {
+            current = min.get();
+        }
+        current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    public long getMin()
+    {
+        long value = min.get();
+        return value == Long.MAX_VALUE ? -1 : value;
+    }
+
+    public long getMax()
+    {
+        long value = max.get();
+        return value == Long.MIN_VALUE ? -1 : value;
+    }
+
+    public double getAverage()
+    {
+        return window.getMean();
+    }
+
+    public long getQuantile(double quantile)
+    {
+        return window.getQuantile(quantile);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.util.timeline;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A ByteArrayOutputStream that never rewrites bytes it has already written: growing
+ * the buffer copies it into a new array and leaves the old one untouched.  This lets
+ * readers capture the current buffer and count, and read that prefix later without
+ * holding any lock, while writers keep appending.
+ * <p/>
+ * Callers must not call reset() on instances that have handed out snapshots; create a
+ * new stream instead.
+ */
+public class AppendOnlyByteArrayOutputStream extends ByteArrayOutputStream
+{
+    public AppendOnlyByteArrayOutputStream(final int size)
+    {
+        super(size);
+    }
+
+    /**
+     * @param pendingBytes the encoding of any state not yet written to the stream
+     * @param count        the number of samples represented by the stream plus the pending bytes
+     * @return an immutable view of the bytes written so far, followed by the pending bytes
+     */
+    public synchronized EncodedBytesSnapshot snapshot(final byte[] pendingBytes, final int count)
+    {
+        return new EncodedBytesSnapshot(buf, this.count, pendingBytes, count);
+    }
+}
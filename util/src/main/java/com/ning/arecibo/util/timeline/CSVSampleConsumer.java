@@ -19,6 +19,7 @@ package com.ning.arecibo.util.timeline;
 import org.joda.time.DateTime;
 
 import com.ning.arecibo.util.timeline.samples.SampleConsumer;
+import com.ning.arecibo.util.timeline.samples.SampleCursor;
 import com.ning.arecibo.util.timeline.samples.SampleOpcode;
 
 public class CSVSampleConsumer implements SampleConsumer
@@ -48,6 +49,42 @@ public class CSVSampleConsumer implements SampleConsumer
         }
     }
 
+    /**
+     * Append the current value of the cursor, formatted as consumeSample() would format
+     * the decoded value, but without boxing it
+     *
+     * @param unixTime the time of the sample, in UNIX seconds
+     * @param cursor   a cursor positioned on the sample
+     */
+    public void consumeSample(final int unixTime, final SampleCursor cursor)
+    {
+        if (builderSampleNumber > 0) {
+            builder.append(",");
+        }
+        builder.append(unixTime).append(",");
+        switch (cursor.getOpcode()) {
+            case NULL:
+            case INT_ZERO:
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+                builder.append(cursor.getLongValue());
+                break;
+            case FLOAT:
+                builder.append((float) cursor.getDoubleValue());
+                break;
+            case STRING:
+            case BIGINT:
+                builder.append(cursor.getValue());
+                break;
+            default:
+                builder.append(cursor.getDoubleValue());
+                break;
+        }
+        builderSampleNumber++;
+    }
+
     @Override
     public synchronized String toString()
     {
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.util.timeline;
+
+/**
+ * An immutable view of the bytes accumulated by an encoder at one point in time:
+ * a prefix of an AppendOnlyByteArrayOutputStream buffer, which is never written again,
+ * followed by the encoding of the state the encoder had not yet committed to the
+ * stream (e.g. a pending repeat).
+ * <p/>
+ * Taking a snapshot doesn't copy the accumulated bytes; they are only copied into a
+ * contiguous array when getEncodedBytes() is called.
+ */
+public class EncodedBytesSnapshot
+{
+    private static final byte[] NO_BYTES = new byte[0];
+
+    public static final EncodedBytesSnapshot EMPTY = new EncodedBytesSnapshot(NO_BYTES, 0, NO_BYTES, 0);
+
+    private final byte[] committedBytes;
+    private final int committedLength;
+    private final byte[] pendingBytes;
+    private final int count;
+
+    public EncodedBytesSnapshot(final byte[] committedBytes, final int committedLength, final byte[] pendingBytes, final int count)
+    {
+        this.committedBytes = committedBytes;
+        this.committedLength = committedLength;
+        this.pendingBytes = pendingBytes == null ? NO_BYTES : pendingBytes;
+        this.count = count;
+    }
+
+    /**
+     * @return a new array holding the committed bytes followed by the pending bytes
+     */
+    public byte[] getEncodedBytes()
+    {
+        final byte[] bytes = new byte[getLength()];
+        System.arraycopy(committedBytes, 0, bytes, 0, committedLength);
+        System.arraycopy(pendingBytes, 0, bytes, committedLength, pendingBytes.length);
+        return bytes;
+    }
+
+    public int getLength()
+    {
+        return committedLength + pendingBytes.length;
+    }
+
+    /**
+     * @return the number of samples (or times) encoded in the snapshot
+     */
+    public int getCount()
+    {
+        return count;
+    }
+}
@@ -31,9 +31,8 @@ import com.ning.arecibo.util.Logger;
 import com.ning.arecibo.util.timeline.CSVSampleConsumer;
 import com.ning.arecibo.util.timeline.DecimatingSampleFilter;
 import com.ning.arecibo.util.timeline.samples.SampleCoder;
-import com.ning.arecibo.util.timeline.samples.SampleConsumer;
-import com.ning.arecibo.util.timeline.samples.SampleOpcode;
-import com.ning.arecibo.util.timeline.times.TimeRangeSampleProcessor;
+import com.ning.arecibo.util.timeline.samples.SampleCursor;
+import com.ning.arecibo.util.timeline.times.TimelineCursorImpl;
 
 /**
  * Instances of this class represent timeline sequences read from the database
@@ -144,9 +143,22 @@ public class TimelineChunk
 
     public String getSamplesAsCSV(@Nullable final DateTime startTime, @Nullable final DateTime endTime) throws IOException
     {
-        final CSVOutputProcessor processor = new CSVOutputProcessor(startTime, endTime);
-        sampleCoder.scan(this, processor);
-        return processor.toString();
+        // Decode straight from the bytes: this creates neither boxed values nor a DateTime per sample
+        final CSVSampleConsumer consumer = new CSVSampleConsumer();
+        final SampleCursor sampleCursor = new SampleCursor(samples);
+        final TimelineCursorImpl timeCursor = new TimelineCursorImpl(times, sampleCount);
+        final long startMillis = startTime == null ? Long.MIN_VALUE : startTime.getMillis();
+        final long endMillis = endTime == null ? Long.MAX_VALUE : endTime.getMillis();
+        while (sampleCursor.nextOpcode() != null) {
+            for (int i = 0; i < sampleCursor.getRepeatCount(); i++) {
+                final int unixTime = timeCursor.getNextUnixTime();
+                final long sampleMillis = unixTime * 1000L;
+                if (sampleMillis >= startMillis && sampleMillis <= endMillis) {
+                    consumer.consumeSample(unixTime, sampleCursor);
+                }
+            }
+        }
+        return consumer.toString();
     }
 
     public String toString()
@@ -173,30 +185,6 @@ public class TimelineChunk
         return null;
     }
 
-    private static final class CSVOutputProcessor extends TimeRangeSampleProcessor
-    {
-        private final SampleConsumer delegate = new CSVSampleConsumer();
-        private int sampleNumber = 0;
-
-        public CSVOutputProcessor(@Nullable final DateTime startTime, @Nullable final DateTime endTime)
-        {
-            super(startTime, endTime);
-        }
-
-        @Override
-        public void processOneSample(final DateTime sampleTimestamp, final SampleOpcode opcode, final Object value)
-        {
-            delegate.consumeSample(sampleNumber, opcode, value, sampleTimestamp);
-            sampleNumber++;
-        }
-
-        @Override
-        public String toString()
-        {
-            return delegate.toString();
-        }
-    }
-
     public long getChunkId()
     {
         return chunkId;
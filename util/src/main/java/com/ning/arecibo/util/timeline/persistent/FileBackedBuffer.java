@@ -29,7 +29,11 @@ import org.codehaus.jackson.smile.SmileGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -76,6 +80,18 @@ public class FileBackedBuffer
         recycle();
     }
 
+    /**
+     * For subclasses which don't spool through the in-memory buffer; they must override
+     * append(), discard() and the size accessors.
+     */
+    protected FileBackedBuffer(final String basePath, final String prefix, final boolean deleteFilesOnClose)
+    {
+        this.basePath = basePath;
+        this.prefix = prefix;
+        this.deleteFilesOnClose = deleteFilesOnClose;
+        this.inputBuffer = null;
+    }
+
     public boolean append(final HostSamplesForTimestamp hostSamplesForTimestamp)
     {
         try {
@@ -104,6 +120,13 @@ public class FileBackedBuffer
         }
     }
 
+    /**
+     * Release the resources held by the buffer, on shutdown.  Spooled data is left alone.
+     */
+    public void close()
+    {
+    }
+
     private void recycle() throws IOException
     {
         synchronized (recyclingMonitor) {
@@ -139,6 +162,21 @@ public class FileBackedBuffer
         return out.getInMemoryAvailableSpace();
     }
 
+    /**
+     * @return the files written since the last discard, which hold samples already processed
+     *         and which the Replayer must leave alone
+     */
+    public Collection<File> getFilesInUse()
+    {
+        final List<File> files = new ArrayList<File>();
+        synchronized (recyclingMonitor) {
+            for (final String pathname : out.getCreatedFiles()) {
+                files.add(new File(pathname));
+            }
+        }
+        return files;
+    }
+
     @VisibleForTesting
     public long getFilesCreated()
     {
@@ -19,6 +19,7 @@ package com.ning.arecibo.util.timeline.persistent;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.collect.Ordering;
+import com.mogwee.executors.Executors;
 import com.ning.arecibo.util.timeline.HostSamplesForTimestamp;
 import org.apache.commons.io.FileUtils;
 import org.codehaus.jackson.JsonParser;
@@ -33,12 +34,35 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Reads back the spool files, in the order they were written.
+ * <p/>
+ * Replay is sequential by default.  With more than one thread, files are decoded
+ * concurrently, a few files ahead, and their samples are handed in file order to one of
+ * nbThreads single-threaded lanes chosen by host id.  All the samples of a host thus go
+ * through the same lane, in the order they were spooled, as
+ * TimelineHostEventAccumulator.addHostSamples() requires.  A file is only deleted once
+ * all of its samples have been applied.
+ */
 public class Replayer
 {
     private static final Logger log = LoggerFactory.getLogger(Replayer.class);
@@ -65,12 +89,30 @@ public class Replayer
         }
     };
 
+    // Smile files written by FileBackedBuffer, and segments written by WriteAheadLogBuffer
+    private static final String[] SPOOL_FILE_EXTENSIONS = new String[]{"bin", WriteAheadLogRecords.FILE_EXTENSION};
+
     private final String path;
+    // The buffer spooling to path while we replay, if any: the files it has written are skipped
+    private final FileBackedBuffer liveBuffer;
     private AtomicBoolean shuttingDown = new AtomicBoolean();
 
+    // Progress of the current (or last) readAll()
+    private final AtomicInteger filesToReplay = new AtomicInteger();
+    private final AtomicInteger filesReplayed = new AtomicInteger();
+    private final AtomicLong bytesToReplay = new AtomicLong();
+    private final AtomicLong bytesReplayed = new AtomicLong();
+    private volatile long replayStartMillis = 0L;
+
     public Replayer(final String path)
+    {
+        this(path, null);
+    }
+
+    public Replayer(final String path, @Nullable final FileBackedBuffer liveBuffer)
     {
         this.path = path;
+        this.liveBuffer = liveBuffer;
     }
 
     // This method is only used by test code
@@ -100,36 +142,292 @@ public class Replayer
 
     public int readAll(final boolean deleteFiles, final @Nullable DateTime minStartTime, final Function<HostSamplesForTimestamp, Void> fn)
     {
-        final Collection<File> files = FileUtils.listFiles(new File(path), new String[]{"bin"}, false);
+        return readAll(deleteFiles, minStartTime, fn, 1);
+    }
+
+    /**
+     * @param deleteFiles  if true, delete each file once its samples have been replayed
+     * @param minStartTime if not null, skip the files last modified before that time
+     * @param fn           called with each sample; with more than one thread, it is called concurrently
+     *                     for different hosts, but in spool order for a given host
+     * @param nbThreads    the number of threads decoding files, and of lanes applying fn
+     * @return the number of files skipped
+     */
+    public int readAll(final boolean deleteFiles, final @Nullable DateTime minStartTime, final Function<HostSamplesForTimestamp, Void> fn, final int nbThreads)
+    {
+        final Collection<File> allFiles = listSpoolFiles();
+        final List<File> files = new ArrayList<File>();
         int filesSkipped = 0;
-        for (final File file : FILE_ORDERING.sortedCopy(files)) {
+        long bytes = 0;
+        for (final File file : FILE_ORDERING.sortedCopy(allFiles)) {
+            // Skip files whose last modification date is is earlier than the first start time.
+            if (minStartTime != null && file.lastModified() < minStartTime.getMillis()) {
+                filesSkipped++;
+                continue;
+            }
+            files.add(file);
+            bytes += file.length();
+        }
+
+        filesToReplay.set(files.size());
+        filesReplayed.set(0);
+        bytesToReplay.set(bytes);
+        bytesReplayed.set(0);
+        replayStartMillis = System.currentTimeMillis();
+
+        if (nbThreads <= 1) {
+            readSequentially(files, deleteFiles, fn);
+        }
+        else {
+            readInParallel(files, deleteFiles, fn, nbThreads);
+        }
+        return filesSkipped;
+    }
+
+    /**
+     * @return the spool files, but the ones written by the live buffer
+     */
+    private Collection<File> listSpoolFiles()
+    {
+        final Collection<File> files = FileUtils.listFiles(new File(path), SPOOL_FILE_EXTENSIONS, false);
+        if (liveBuffer == null) {
+            return files;
+        }
+
+        // Listed after the files, so that a file created in between can't slip through
+        final Set<File> filesInUse = new HashSet<File>();
+        for (final File file : liveBuffer.getFilesInUse()) {
+            filesInUse.add(file.getAbsoluteFile());
+        }
+        final List<File> spoolFiles = new ArrayList<File>(files.size());
+        for (final File file : files) {
+            if (!filesInUse.contains(file.getAbsoluteFile())) {
+                spoolFiles.add(file);
+            }
+        }
+        return spoolFiles;
+    }
+
+    private void readSequentially(final List<File> files, final boolean deleteFiles, final Function<HostSamplesForTimestamp, Void> fn)
+    {
+        for (final File file : files) {
             try {
-                // Skip files whose last modification date is is earlier than the first start time.
-                if (minStartTime != null && file.lastModified() < minStartTime.getMillis()) {
-                    filesSkipped++;
-                    continue;
-                }
+                final long length = file.length();
                 read(file, fn);
                 if (shuttingDown.get()) {
                     break;
                 }
 
+                markReplayed(length);
                 if (deleteFiles) {
-                    if (!file.delete()) {
-                        log.warn("Unable to delete file: {}", file.getAbsolutePath());
-                    }
+                    deleteFile(file);
                 }
             }
             catch (IOException e) {
                 log.warn("Exception replaying file: {}", file.getAbsolutePath(), e);
             }
         }
-        return filesSkipped;
+    }
+
+    private void readInParallel(final List<File> files, final boolean deleteFiles, final Function<HostSamplesForTimestamp, Void> fn, final int nbThreads)
+    {
+        // Bounds the decoded samples held in memory: files being decoded, and files being applied
+        final int window = 2 * nbThreads;
+        final ExecutorService decoders = Executors.newFixedThreadPool(nbThreads, "ReplayerDecoder");
+        final ExecutorService[] lanes = new ExecutorService[nbThreads];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = Executors.newSingleThreadExecutor("ReplayerLane-" + i);
+        }
+
+        final LinkedList<ReplayedFile> decoding = new LinkedList<ReplayedFile>();
+        final LinkedList<ReplayedFile> applying = new LinkedList<ReplayedFile>();
+        try {
+            final Iterator<File> iterator = files.iterator();
+            while (!shuttingDown.get() && (iterator.hasNext() || !decoding.isEmpty())) {
+                while (iterator.hasNext() && decoding.size() < window) {
+                    decoding.add(new ReplayedFile(iterator.next(), decoders));
+                }
+
+                final ReplayedFile next = decoding.removeFirst();
+                try {
+                    next.dispatch(lanes, fn);
+                }
+                catch (ExecutionException e) {
+                    log.warn("Exception replaying file: {}", next.file.getAbsolutePath(), e.getCause());
+                    continue;
+                }
+                applying.add(next);
+
+                while (applying.size() > window) {
+                    applying.removeFirst().await(deleteFiles);
+                }
+            }
+
+            // Don't leave a file behind half-applied, even when shutting down
+            while (!applying.isEmpty()) {
+                applying.removeFirst().await(deleteFiles);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            decoders.shutdownNow();
+            for (final ExecutorService lane : lanes) {
+                lane.shutdown();
+            }
+        }
+    }
+
+    private void markReplayed(final long length)
+    {
+        filesReplayed.incrementAndGet();
+        bytesReplayed.addAndGet(length);
+    }
+
+    private void deleteFile(final File file)
+    {
+        if (!file.delete()) {
+            log.warn("Unable to delete file: {}", file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * A spool file going through parallel replay: decoded on the decoders pool, then split
+     * across the lanes, in order.
+     */
+    private final class ReplayedFile
+    {
+        private final File file;
+        private final long length;
+        private final Future<List<HostSamplesForTimestamp>> decoded;
+        // Set by the decoder: false if the decoding was cut short by a shutdown
+        private volatile boolean complete = false;
+        private final List<Future<?>> applied = new ArrayList<Future<?>>();
+
+        private ReplayedFile(final File file, final ExecutorService decoders)
+        {
+            this.file = file;
+            this.length = file.length();
+            this.decoded = decoders.submit(new Callable<List<HostSamplesForTimestamp>>()
+            {
+                @Override
+                public List<HostSamplesForTimestamp> call() throws Exception
+                {
+                    final List<HostSamplesForTimestamp> samples = new ArrayList<HostSamplesForTimestamp>();
+                    read(file, new Function<HostSamplesForTimestamp, Void>()
+                    {
+                        @Override
+                        public Void apply(@Nullable final HostSamplesForTimestamp input)
+                        {
+                            if (input != null) {
+                                samples.add(input);
+                            }
+                            return null;
+                        }
+                    });
+                    complete = !shuttingDown.get();
+                    return samples;
+                }
+            });
+        }
+
+        private void dispatch(final ExecutorService[] lanes, final Function<HostSamplesForTimestamp, Void> fn) throws ExecutionException, InterruptedException
+        {
+            final List<List<HostSamplesForTimestamp>> samplesPerLane = new ArrayList<List<HostSamplesForTimestamp>>(lanes.length);
+            for (int i = 0; i < lanes.length; i++) {
+                samplesPerLane.add(new ArrayList<HostSamplesForTimestamp>());
+            }
+            for (final HostSamplesForTimestamp samples : decoded.get()) {
+                final int lane = ((samples.getHostId() % lanes.length) + lanes.length) % lanes.length;
+                samplesPerLane.get(lane).add(samples);
+            }
+
+            for (int i = 0; i < lanes.length; i++) {
+                final List<HostSamplesForTimestamp> laneSamples = samplesPerLane.get(i);
+                if (laneSamples.isEmpty()) {
+                    continue;
+                }
+                applied.add(lanes[i].submit(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        for (final HostSamplesForTimestamp samples : laneSamples) {
+                            fn.apply(samples);
+                        }
+                    }
+                }));
+            }
+        }
+
+        private void await(final boolean deleteFiles) throws InterruptedException
+        {
+            boolean failed = false;
+            for (final Future<?> future : applied) {
+                try {
+                    future.get();
+                }
+                catch (ExecutionException e) {
+                    log.warn("Exception replaying file: {}", file.getAbsolutePath(), e.getCause());
+                    failed = true;
+                }
+            }
+            if (!complete || failed) {
+                return;
+            }
+
+            markReplayed(length);
+            if (deleteFiles) {
+                deleteFile(file);
+            }
+        }
+    }
+
+    public int getFilesToReplay()
+    {
+        return filesToReplay.get();
+    }
+
+    public int getFilesReplayed()
+    {
+        return filesReplayed.get();
+    }
+
+    /**
+     * @return the fraction of the bytes to replay already replayed, between 0 and 1
+     */
+    public double getProgress()
+    {
+        final long total = bytesToReplay.get();
+        return total == 0 ? 1.0 : Math.min(1.0, (double) bytesReplayed.get() / total);
+    }
+
+    /**
+     * @return the estimated time left in the current replay, based on its throughput so far, or -1 if unknown
+     */
+    public long getEstimatedMillisRemaining()
+    {
+        final long replayed = bytesReplayed.get();
+        final long remaining = bytesToReplay.get() - replayed;
+        if (remaining <= 0) {
+            return 0;
+        }
+        if (replayed == 0) {
+            return -1;
+        }
+        final long elapsed = System.currentTimeMillis() - replayStartMillis;
+        return (long) (elapsed * ((double) remaining / replayed));
     }
 
     @VisibleForTesting
     public void read(final File file, final Function<HostSamplesForTimestamp, Void> fn) throws IOException
     {
+        if (file.getName().endsWith("." + WriteAheadLogRecords.FILE_EXTENSION)) {
+            readWriteAheadLog(file, fn);
+            return;
+        }
+
         final JsonParser smileParser = smileFactory.createJsonParser(file);
         if (smileParser.nextToken() != JsonToken.START_ARRAY) {
             return;
@@ -143,10 +441,29 @@ public class Replayer
         smileParser.close();
     }
 
+    private void readWriteAheadLog(final File file, final Function<HostSamplesForTimestamp, Void> fn) throws IOException
+    {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                final int records = WriteAheadLogRecords.readRecords(file.getAbsolutePath(), buffer, shuttingDown, fn);
+                log.debug("Replayed {} records from {}", records, file.getAbsolutePath());
+            }
+            finally {
+                WriteAheadLogRecords.unmap(buffer);
+            }
+        }
+        finally {
+            randomAccessFile.close();
+        }
+    }
+
 
     public void purgeOldFiles(final DateTime purgeIfOlderDate)
     {
-        final Collection<File> files = FileUtils.listFiles(new File(path), new String[]{"bin"}, false);
+        final Collection<File> files = listSpoolFiles();
 
         for (final File file : files) {
             if (FileUtils.isFileOlder(file, new Date(purgeIfOlderDate.getMillis()))) {
@@ -40,6 +40,7 @@ public class StreamyBytesPersistentOutputStream extends OutputStream
     private final StreamyBytesMemBuffer inputBuffer;
     private final boolean deleteFilesOnClose;
     private final List<String> createdFiles = new ArrayList<String>();
+    private final byte[] singleByte = new byte[1];
 
     private long bytesOnDisk = 0L;
 
@@ -58,8 +59,9 @@ public class StreamyBytesPersistentOutputStream extends OutputStream
     @Override
     public void write(final int b) throws IOException
     {
-        final byte data = (byte) b;
-        write(new byte[]{data}, 0, 1);
+        // Callers serialize their writes (see FileBackedBuffer), so the one-byte array can be shared
+        singleByte[0] = (byte) b;
+        write(singleByte, 0, 1);
     }
 
     @Override
@@ -0,0 +1,487 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.util.timeline.persistent;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.mogwee.executors.Executors;
+import com.ning.arecibo.util.jmx.MonitorableManaged;
+import com.ning.arecibo.util.jmx.MonitoringType;
+import com.ning.arecibo.util.timeline.HostSamplesForTimestamp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * A FileBackedBuffer that logs samples to segmented, memory-mapped files instead of
+ * serializing them to Smile under a global lock.
+ * <p/>
+ * Each appending thread encodes its record in its own staging buffer (see
+ * WriteAheadLogRecords for the format), then reserves space in the current segment with
+ * a compare-and-set and copies the record into the mapping; a full segment is sealed and
+ * a new one is mapped.  Nothing is forced to disk in the append path: a background thread
+ * forces the mapped segments every syncIntervalMillis (group commit), so a crash loses at
+ * most that much.  With a sync interval of zero, each append forces the segment itself.
+ * Once a sealed segment is forced and no writer is left copying into it, it is unmapped.
+ * <p/>
+ * Segments are named arecibo.[prefix].[nanoTime].wal and are read back by the Replayer.
+ * The first segment is only created on the first append, and the segments written since
+ * the last discard are reported by getFilesInUse(), so that a replay of the spool directory
+ * at startup never picks up, and deletes, a live segment.
+ */
+public class WriteAheadLogBuffer extends FileBackedBuffer
+{
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLogBuffer.class);
+
+    private final String basePath;
+    private final String prefix;
+    private final boolean deleteFilesOnClose;
+    private final int segmentSize;
+    private final long syncIntervalMillis;
+
+    private final Object rollingMonitor = new Object();
+    // Null until the first append, and after a discard
+    private volatile Segment currentSegment;
+    // The segments still mapped: the current one, and the sealed ones which may still hold unforced writes
+    private final List<Segment> openSegments = new CopyOnWriteArrayList<Segment>();
+    // The files of the segments already closed, since the last discard
+    private final List<File> closedSegmentFiles = new ArrayList<File>();
+    private final AtomicLong closedSegmentBytes = new AtomicLong();
+    private final ScheduledExecutorService syncThread;
+
+    private final ThreadLocal<StagingBuffer> stagingBuffers = new ThreadLocal<StagingBuffer>()
+    {
+        @Override
+        protected StagingBuffer initialValue()
+        {
+            return new StagingBuffer();
+        }
+    };
+
+    private final AtomicLong samplesforTimestampWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong bytesSynced = new AtomicLong();
+    private final AtomicLong syncCount = new AtomicLong();
+    private final AtomicLong segmentsCreated = new AtomicLong();
+
+    public WriteAheadLogBuffer(final String basePath, final String prefix, final boolean deleteFilesOnClose, final int segmentSize, final long syncIntervalMillis) throws IOException
+    {
+        super(basePath, prefix, deleteFilesOnClose);
+        this.basePath = basePath;
+        this.prefix = prefix;
+        this.deleteFilesOnClose = deleteFilesOnClose;
+        this.segmentSize = segmentSize;
+        this.syncIntervalMillis = syncIntervalMillis;
+
+        if (syncIntervalMillis > 0) {
+            syncThread = Executors.newSingleThreadScheduledExecutor("WriteAheadLogSync");
+            syncThread.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    sync();
+                }
+            }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        else {
+            syncThread = null;
+        }
+    }
+
+    @Override
+    public boolean append(final HostSamplesForTimestamp hostSamplesForTimestamp)
+    {
+        final StagingBuffer staging = stagingBuffers.get();
+        try {
+            staging.encode(hostSamplesForTimestamp);
+        }
+        catch (IOException e) {
+            log.warn("Unable to backup samples", e);
+            return false;
+        }
+
+        final int recordSize = staging.size();
+        while (true) {
+            final Segment segment = currentSegment;
+            if (segment == null) {
+                try {
+                    rollSegment(null, recordSize);
+                }
+                catch (IOException e) {
+                    log.warn("Unable to create a new log segment, samples not backed up", e);
+                    return false;
+                }
+                continue;
+            }
+
+            segment.writers.incrementAndGet();
+            try {
+                final int offset = segment.reserve(recordSize);
+                if (offset >= 0) {
+                    staging.copyTo(segment, offset);
+                    samplesforTimestampWritten.incrementAndGet();
+                    bytesWritten.addAndGet(recordSize);
+                    if (syncThread == null) {
+                        segment.buffer.force();
+                    }
+                    return true;
+                }
+            }
+            finally {
+                segment.writers.decrementAndGet();
+            }
+            try {
+                rollSegment(segment, recordSize);
+            }
+            catch (IOException e) {
+                log.warn("Unable to create a new log segment, samples not backed up", e);
+                return false;
+            }
+        }
+    }
+
+    private void rollSegment(@Nullable final Segment fullSegment, final int minimumSize) throws IOException
+    {
+        synchronized (rollingMonitor) {
+            if (currentSegment != fullSegment) {
+                // Somebody beat you to it
+                return;
+            }
+            if (fullSegment != null) {
+                fullSegment.seal();
+            }
+            currentSegment = createSegment(Math.max(segmentSize, minimumSize + WriteAheadLogRecords.HEADER_SIZE));
+        }
+
+        if (syncThread == null && fullSegment != null) {
+            // Appends force their own writes, but somebody has to release the sealed segments
+            sync();
+        }
+    }
+
+    // Must be called with rollingMonitor held
+    private Segment createSegment(final int size) throws IOException
+    {
+        final File file = new File(basePath, "arecibo." + prefix + "." + System.nanoTime() + "." + WriteAheadLogRecords.FILE_EXTENSION);
+        final Segment segment = new Segment(file, size);
+        openSegments.add(segment);
+        segmentsCreated.incrementAndGet();
+        log.debug("Created log segment {}", file.getAbsolutePath());
+        return segment;
+    }
+
+    /**
+     * Force the writes of all segments to disk.  Sealed segments are closed, and unmapped,
+     * once no writer is left copying into them.
+     */
+    @VisibleForTesting
+    void sync()
+    {
+        final long bytesToSync = bytesWritten.get();
+        for (final Segment segment : openSegments) {
+            // Check before forcing, so that the last writes of a sealed segment are forced before it's closed
+            final boolean finished = segment.isSealed() && segment.writers.get() == 0;
+            if (!segment.force()) {
+                continue;
+            }
+            if (finished) {
+                closeSegment(segment);
+            }
+        }
+        bytesSynced.set(bytesToSync);
+        syncCount.incrementAndGet();
+    }
+
+    private void closeSegment(final Segment segment)
+    {
+        synchronized (rollingMonitor) {
+            if (!openSegments.remove(segment)) {
+                // Already closed by a concurrent sync() or discard()
+                return;
+            }
+            segment.close();
+            closedSegmentFiles.add(segment.file);
+            closedSegmentBytes.addAndGet(segment.getUsedBytes());
+        }
+    }
+
+    @Override
+    public void discard()
+    {
+        synchronized (rollingMonitor) {
+            for (final Segment segment : openSegments) {
+                segment.seal();
+            }
+            currentSegment = null;
+            for (final Segment segment : openSegments) {
+                // Don't unmap a segment under a writer still copying into it
+                while (segment.writers.get() > 0) {
+                    Thread.yield();
+                }
+                closeSegment(segment);
+            }
+            if (deleteFilesOnClose) {
+                for (final File file : closedSegmentFiles) {
+                    log.info("Discarding file: {}", file.getAbsolutePath());
+                    if (!file.delete()) {
+                        log.warn("Unable to discard file: {}", file.getAbsolutePath());
+                    }
+                }
+            }
+            closedSegmentFiles.clear();
+            closedSegmentBytes.set(0);
+            samplesforTimestampWritten.set(0);
+            segmentsCreated.set(0);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        if (syncThread != null) {
+            syncThread.shutdown();
+        }
+        sync();
+    }
+
+    @MonitorableManaged(description = "Return the approximate size of bytes on disk for samples not yet in the database", monitored = true, monitoringType = {MonitoringType.VALUE})
+    @Override
+    public long getBytesOnDisk()
+    {
+        long bytes = 0;
+        synchronized (rollingMonitor) {
+            bytes += closedSegmentBytes.get();
+            for (final Segment segment : openSegments) {
+                bytes += segment.getUsedBytes();
+            }
+        }
+        return bytes;
+    }
+
+    @MonitorableManaged(description = "Return the approximate size of bytes written to the log but not yet forced to disk", monitored = true, monitoringType = {MonitoringType.VALUE})
+    @Override
+    public long getBytesInMemory()
+    {
+        return Math.max(0, bytesWritten.get() - bytesSynced.get());
+    }
+
+    @MonitorableManaged(description = "Return the approximate size of bytes available in the current log segment", monitored = true, monitoringType = {MonitoringType.VALUE})
+    @Override
+    public long getInMemoryAvailableSpace()
+    {
+        final Segment segment = currentSegment;
+        if (segment == null) {
+            return segmentSize;
+        }
+        return Math.max(0, segment.capacity - segment.getUsedBytes());
+    }
+
+    @MonitorableManaged(description = "Return the number of times the log was forced to disk", monitored = true, monitoringType = {MonitoringType.COUNTER, MonitoringType.RATE})
+    public long getSyncCount()
+    {
+        return syncCount.get();
+    }
+
+    @MonitorableManaged(description = "Return the number of samples for timestamp logged since the last discard", monitored = true, monitoringType = {MonitoringType.VALUE})
+    public long getSamplesforTimestampWritten()
+    {
+        return samplesforTimestampWritten.get();
+    }
+
+    @Override
+    public Collection<File> getFilesInUse()
+    {
+        synchronized (rollingMonitor) {
+            final List<File> files = new ArrayList<File>(closedSegmentFiles);
+            for (final Segment segment : openSegments) {
+                files.add(segment.file);
+            }
+            return files;
+        }
+    }
+
+    @VisibleForTesting
+    @Override
+    public long getFilesCreated()
+    {
+        return segmentsCreated.get();
+    }
+
+    @VisibleForTesting
+    int getSegmentsMapped()
+    {
+        return openSegments.size();
+    }
+
+    private static final class Segment
+    {
+        private final File file;
+        private final int capacity;
+        private final RandomAccessFile randomAccessFile;
+        private final MappedByteBuffer buffer;
+        private final AtomicInteger position = new AtomicInteger();
+        private final AtomicInteger writers = new AtomicInteger();
+        private volatile int sealedSize = -1;
+        // Guarded by this: the mapping must not be forced once it's released
+        private boolean closed = false;
+
+        private Segment(final File file, final int capacity) throws IOException
+        {
+            this.file = file;
+            this.capacity = capacity;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.setLength(capacity);
+                this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+            catch (IOException e) {
+                randomAccessFile.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return the offset of the reserved space, or -1 if the segment is sealed or too full
+         */
+        private int reserve(final int size)
+        {
+            while (true) {
+                final int offset = position.get();
+                if (offset > capacity - size) {
+                    return -1;
+                }
+                if (position.compareAndSet(offset, offset + size)) {
+                    return offset;
+                }
+            }
+        }
+
+        private void seal()
+        {
+            if (sealedSize < 0) {
+                // Moving the position past the capacity makes all further reservations fail
+                sealedSize = Math.min(position.getAndSet(capacity + 1), capacity);
+            }
+        }
+
+        private boolean isSealed()
+        {
+            return sealedSize >= 0;
+        }
+
+        private int getUsedBytes()
+        {
+            return isSealed() ? sealedSize : Math.min(position.get(), capacity);
+        }
+
+        /**
+         * @return false if the segment couldn't be forced to disk
+         */
+        private synchronized boolean force()
+        {
+            if (closed) {
+                return false;
+            }
+            try {
+                buffer.force();
+                return true;
+            }
+            catch (RuntimeException e) {
+                log.warn("Unable to sync log segment " + file.getAbsolutePath(), e);
+                return false;
+            }
+        }
+
+        private synchronized void close()
+        {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            WriteAheadLogRecords.unmap(buffer);
+            try {
+                randomAccessFile.close();
+            }
+            catch (IOException e) {
+                log.warn("Unable to close log segment " + file.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    /**
+     * Per-thread buffer holding a record while it is encoded and checksummed.
+     */
+    private static final class StagingBuffer extends ByteArrayOutputStream
+    {
+        private final DataOutputStream out = new DataOutputStream(this);
+        private final CRC32 crc = new CRC32();
+
+        private StagingBuffer()
+        {
+            super(512);
+        }
+
+        private void encode(final HostSamplesForTimestamp hostSamples) throws IOException
+        {
+            reset();
+            // Room for the header, filled in once the body length is known
+            out.writeLong(0);
+            WriteAheadLogRecords.encodeBody(out, hostSamples);
+            final int bodyLength = count - WriteAheadLogRecords.HEADER_SIZE;
+            crc.reset();
+            crc.update(buf, WriteAheadLogRecords.HEADER_SIZE, bodyLength);
+            writeInt(0, bodyLength);
+            writeInt(4, (int) crc.getValue());
+        }
+
+        private void writeInt(final int offset, final int value)
+        {
+            buf[offset] = (byte) (value >>> 24);
+            buf[offset + 1] = (byte) (value >>> 16);
+            buf[offset + 2] = (byte) (value >>> 8);
+            buf[offset + 3] = (byte) value;
+        }
+
+        private void copyTo(final Segment segment, final int offset)
+        {
+            // Write the body first and the length last, so that a concurrent or crashed
+            // copy never exposes a length followed by a partial body
+            final ByteBuffer view = segment.buffer.duplicate();
+            view.position(offset + 4);
+            view.put(buf, 4, count - 4);
+            view.putInt(offset, (buf[0] & 0xff) << 24 | (buf[1] & 0xff) << 16 | (buf[2] & 0xff) << 8 | (buf[3] & 0xff));
+        }
+    }
+}
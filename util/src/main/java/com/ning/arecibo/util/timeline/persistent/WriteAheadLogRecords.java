@@ -0,0 +1,322 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.util.timeline.persistent;
+
+import com.google.common.base.Function;
+import com.ning.arecibo.util.timeline.HostSamplesForTimestamp;
+import com.ning.arecibo.util.timeline.samples.SampleOpcode;
+import com.ning.arecibo.util.timeline.samples.ScalarSample;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * The record format of the write-ahead log segments written by WriteAheadLogBuffer.
+ * <p/>
+ * Each record is a header made of the body length and the CRC32 of the body, both ints,
+ * followed by the body:
+ * <ul>
+ * <li>the host id, an int</li>
+ * <li>the timestamp in milliseconds, a long</li>
+ * <li>the category, in modified UTF-8 as written by DataOutput.writeUTF(): HostSamplesForTimestamp
+ * carries the category name rather than its id, and segments are replayed without a TimelineDAO
+ * to resolve ids against</li>
+ * <li>the number of samples, a short, followed for each sample by the sample kind id, an int,
+ * the opcode index, a byte, and the value in the type the opcode calls for</li>
+ * </ul>
+ * Segments are preallocated and zero-filled, and the length of a record is written last, so a
+ * body length of zero is either the end of the records or the slot of a record whose copy was
+ * cut short by a crash, while other threads went on logging after it: the reader then scans
+ * ahead for the next record whose CRC matches.  A record whose CRC doesn't match was torn by
+ * a crash and ends the segment.
+ */
+final class WriteAheadLogRecords
+{
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLogRecords.class);
+
+    static final String FILE_EXTENSION = "wal";
+    static final int HEADER_SIZE = 8;
+
+    private WriteAheadLogRecords()
+    {
+    }
+
+    static void encodeBody(final DataOutputStream out, final HostSamplesForTimestamp hostSamples) throws IOException
+    {
+        out.writeInt(hostSamples.getHostId());
+        out.writeLong(hostSamples.getTimestamp().getMillis());
+        out.writeUTF(hostSamples.getCategory());
+        final Map<Integer, ScalarSample> samples = hostSamples.getSamples();
+        if (samples.size() > Short.MAX_VALUE) {
+            throw new IOException(String.format("Too many samples for host %d: %d", hostSamples.getHostId(), samples.size()));
+        }
+        out.writeShort(samples.size());
+        for (final Map.Entry<Integer, ScalarSample> entry : samples.entrySet()) {
+            final ScalarSample sample = entry.getValue();
+            out.writeInt(entry.getKey());
+            out.writeByte(sample.getOpcode().getOpcodeIndex());
+            encodeValue(out, sample.getOpcode(), sample.getSampleValue());
+        }
+    }
+
+    private static void encodeValue(final DataOutputStream out, final SampleOpcode opcode, final Object value) throws IOException
+    {
+        switch (opcode) {
+            case NULL:
+            case DOUBLE_ZERO:
+            case INT_ZERO:
+                break;
+            case BYTE:
+            case BYTE_FOR_DOUBLE:
+                out.writeByte((Byte) value);
+                break;
+            case SHORT:
+            case SHORT_FOR_DOUBLE:
+            case HALF_FLOAT_FOR_DOUBLE:
+                out.writeShort((Short) value);
+                break;
+            case INT:
+                out.writeInt((Integer) value);
+                break;
+            case LONG:
+                out.writeLong((Long) value);
+                break;
+            case FLOAT:
+            case FLOAT_FOR_DOUBLE:
+                out.writeFloat((Float) value);
+                break;
+            case DOUBLE:
+                out.writeDouble((Double) value);
+                break;
+            case STRING:
+                out.writeUTF((String) value);
+                break;
+            case BIGINT:
+                out.writeUTF(value.toString());
+                break;
+            default:
+                throw new IOException(String.format("Opcode %s can't be logged", opcode.name()));
+        }
+    }
+
+    static HostSamplesForTimestamp decodeBody(final byte[] body, final int length) throws IOException
+    {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, 0, length));
+        final int hostId = in.readInt();
+        final DateTime timestamp = new DateTime(in.readLong(), DateTimeZone.UTC);
+        final String category = in.readUTF();
+        final int sampleCount = in.readShort();
+        final Map<Integer, ScalarSample> samples = new LinkedHashMap<Integer, ScalarSample>(sampleCount * 2);
+        for (int i = 0; i < sampleCount; i++) {
+            final int sampleKindId = in.readInt();
+            final SampleOpcode opcode = SampleOpcode.getOpcodeFromIndex(in.readByte());
+            samples.put(sampleKindId, new ScalarSample<Object>(opcode, decodeValue(in, opcode)));
+        }
+        return new HostSamplesForTimestamp(hostId, category, timestamp, samples);
+    }
+
+    private static Object decodeValue(final DataInputStream in, final SampleOpcode opcode) throws IOException
+    {
+        switch (opcode) {
+            case NULL:
+                return null;
+            case DOUBLE_ZERO:
+                return 0.0;
+            case INT_ZERO:
+                return 0;
+            case BYTE:
+            case BYTE_FOR_DOUBLE:
+                return in.readByte();
+            case SHORT:
+            case SHORT_FOR_DOUBLE:
+            case HALF_FLOAT_FOR_DOUBLE:
+                return in.readShort();
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case FLOAT:
+            case FLOAT_FOR_DOUBLE:
+                return in.readFloat();
+            case DOUBLE:
+                return in.readDouble();
+            case STRING:
+                return in.readUTF();
+            case BIGINT:
+                return new BigInteger(in.readUTF(), 10);
+            default:
+                throw new IOException(String.format("Opcode %s can't be logged", opcode.name()));
+        }
+    }
+
+    /**
+     * Decode the records of a segment, in the order they were logged.
+     *
+     * @param name         the segment name, for logging
+     * @param buffer       the segment contents, from its position to its limit
+     * @param shuttingDown stop early when this becomes true
+     * @param fn           called with each record
+     * @return the number of records read
+     */
+    static int readRecords(final String name, final ByteBuffer buffer, final AtomicBoolean shuttingDown, final Function<HostSamplesForTimestamp, Void> fn)
+    {
+        final CRC32 crc = new CRC32();
+        byte[] body = new byte[256];
+        int records = 0;
+        while (!shuttingDown.get() && buffer.remaining() >= HEADER_SIZE) {
+            final int length = buffer.getInt();
+            final int expectedCrc = buffer.getInt();
+            if (length == 0) {
+                final int slot = buffer.position() - HEADER_SIZE;
+                final int next = findNextRecord(buffer, slot + HEADER_SIZE, crc);
+                if (next < 0) {
+                    break;
+                }
+                log.warn("Skipped {} bytes of an unwritten record at offset {} of {}", new Object[]{next - slot, slot, name});
+                buffer.position(next);
+                continue;
+            }
+            if (length < 0 || length > buffer.remaining()) {
+                log.warn("Invalid record length {} at offset {} of {}, skipping the rest of the segment", new Object[]{length, buffer.position() - HEADER_SIZE, name});
+                break;
+            }
+            if (body.length < length) {
+                body = new byte[Math.max(length, body.length * 2)];
+            }
+            buffer.get(body, 0, length);
+            crc.reset();
+            crc.update(body, 0, length);
+            if ((int) crc.getValue() != expectedCrc) {
+                log.warn("Checksum mismatch at offset {} of {}, skipping the rest of the segment", buffer.position() - length - HEADER_SIZE, name);
+                break;
+            }
+            try {
+                fn.apply(decodeBody(body, length));
+                records++;
+            }
+            catch (IOException e) {
+                log.warn(String.format("Unable to decode the record at offset %d of %s", buffer.position() - length - HEADER_SIZE, name), e);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Scan the rest of the buffer for a valid record.  The bytes of a record header before the
+     * first non-zero one are zeros (a body is never 16MB long), so only the few offsets up to
+     * each non-zero byte can start a record.
+     *
+     * @return the offset of the next record whose CRC matches, or -1 if there is none
+     */
+    private static int findNextRecord(final ByteBuffer buffer, final int from, final CRC32 crc)
+    {
+        final int limit = buffer.limit();
+        int offset = from;
+        while (true) {
+            // Skip the zeros, a long at a time
+            while (offset + 8 <= limit && buffer.getLong(offset) == 0) {
+                offset += 8;
+            }
+            while (offset < limit && buffer.get(offset) == 0) {
+                offset++;
+            }
+            if (offset >= limit) {
+                return -1;
+            }
+
+            for (int start = Math.max(from, offset - 3); start <= offset; start++) {
+                if (isValidRecord(buffer, start, crc)) {
+                    return start;
+                }
+            }
+            offset++;
+        }
+    }
+
+    private static boolean isValidRecord(final ByteBuffer buffer, final int start, final CRC32 crc)
+    {
+        if (start + HEADER_SIZE > buffer.limit()) {
+            return false;
+        }
+        final int length = buffer.getInt(start);
+        if (length <= 0 || length > buffer.limit() - start - HEADER_SIZE) {
+            return false;
+        }
+        final ByteBuffer body = buffer.duplicate();
+        body.position(start + HEADER_SIZE);
+        final byte[] bytes = new byte[length];
+        body.get(bytes);
+        crc.reset();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue() == buffer.getInt(start + 4);
+    }
+
+    /**
+     * Release a mapping right away rather than when it's garbage collected, which may not happen
+     * before the file is deleted or the address space runs out.  The buffer must not be used
+     * afterwards.  Best effort: if the JVM doesn't let us, the mapping is left to the collector.
+     */
+    static void unmap(final MappedByteBuffer buffer)
+    {
+        try {
+            // Java 9 and later
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        }
+        catch (ClassNotFoundException e) {
+            // Fall back to the direct buffer cleaner
+        }
+        catch (NoSuchMethodException e) {
+            // Fall back to the direct buffer cleaner, before Java 9
+        }
+        catch (Exception e) {
+            log.debug("Unable to unmap buffer", e);
+            return;
+        }
+
+        try {
+            final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            final Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        }
+        catch (Exception e) {
+            log.debug("Unable to unmap buffer", e);
+        }
+    }
+}
@@ -22,16 +22,25 @@ import java.io.IOException;
 import java.util.List;
 
 import com.ning.arecibo.util.Logger;
+import com.ning.arecibo.util.timeline.AppendOnlyByteArrayOutputStream;
+import com.ning.arecibo.util.timeline.EncodedBytesSnapshot;
 
 public class SampleAccumulator
 {
     private static final Logger log = Logger.getCallersLoggerViaExpensiveMagic();
     private static final int DEFAULT_CHUNK_BYTE_ARRAY_SIZE = 100;
 
-    private ByteArrayOutputStream byteStream;
+    private AppendOnlyByteArrayOutputStream byteStream;
     private DataOutputStream outputStream;
     private int sampleCount;
-    private SampleBase lastSample;
+    // The last sample, or run of identical samples, not yet encoded into the stream.  Values
+    // are held as raw bits (see SampleCoderImpl.getRawValue()) so that adding numeric samples
+    // doesn't allocate; lastObjectValue is only used for STRING and BIGINT samples.
+    private SampleOpcode lastOpcode;
+    private long lastRawValue;
+    private Object lastObjectValue;
+    // Zero if the last sample is a single sample, otherwise the count of the repeat
+    private int lastRepeatCount;
     protected final SampleCoder sampleCoder;
 
     public SampleAccumulator(final SampleCoder sampleCoder)
@@ -44,7 +53,7 @@ public class SampleAccumulator
     {
         reset();
         this.byteStream.write(bytes);
-        this.lastSample = lastSample;
+        setLastSample(lastSample);
         this.sampleCount = sampleCount;
         this.sampleCoder = sampleCoder;
     }
@@ -58,39 +67,75 @@ public class SampleAccumulator
 
     public synchronized void addSample(final ScalarSample sample)
     {
-        if (lastSample == null) {
-            lastSample = sample;
+        final SampleOpcode opcode = sample.getOpcode();
+        if (SampleCoderImpl.hasRawValue(opcode)) {
+            addSample(opcode, SampleCoderImpl.getRawValue(opcode, sample.getSampleValue()), null);
         }
         else {
-            final SampleOpcode lastOpcode = lastSample.getOpcode();
-            final SampleOpcode sampleOpcode = sample.getOpcode();
-            if (lastSample instanceof RepeatSample) {
-                final RepeatSample repeatSample = (RepeatSample)lastSample;
-                final ScalarSample sampleRepeated = repeatSample.getSampleRepeated();
-                if (sampleRepeated.getOpcode() == sampleOpcode &&
-                    (sampleOpcode.getNoArgs() || ScalarSample.sameSampleValues(sampleRepeated.getSampleValue(), sample.getSampleValue())) &&
-                    repeatSample.getRepeatCount() < RepeatSample.MAX_SHORT_REPEAT_COUNT) {
-                    // We can just increment the count in the repeat instance
-                    repeatSample.incrementRepeatCount();
-                }
-                else {
-                    // A non-matching repeat - - just add it
-                    addLastSample();
-                    lastSample = sample;
-                }
-            }
-            else {
-                final ScalarSample lastScalarSample = (ScalarSample)lastSample;
-                if (sampleOpcode == lastOpcode &&
-                    (sampleOpcode.getNoArgs() || ScalarSample.sameSampleValues(sample.getSampleValue(), lastScalarSample.getSampleValue()))) {
-                    // Replace lastSample with repeat group
-                    lastSample = new RepeatSample(2, lastScalarSample);
-                }
-                else {
-                    addLastSample();
-                    lastSample = sample;
-                }
-            }
+            addSample(opcode, 0, sample.getSampleValue());
+        }
+    }
+
+    /**
+     * Add an integral sample, in its most compact encoding.  This is equivalent to adding the
+     * compressed form of a LONG sample, but doesn't allocate anything.
+     */
+    public synchronized void addLongSample(final long value)
+    {
+        addSample(SampleCoderImpl.compressedLongOpcode(value), value, null);
+    }
+
+    /**
+     * Add a floating point sample, in its most compact encoding.  This is equivalent to adding
+     * the compressed form of a DOUBLE sample, but doesn't allocate anything.
+     */
+    public synchronized void addDoubleSample(final double value)
+    {
+        addDoubleSample(value, SampleOpcode.DOUBLE);
+    }
+
+    /**
+     * Equivalent to addSample(sampleCoder.compressSample(sample)), except that numeric
+     * samples are compressed straight into the accumulator instead of into a new ScalarSample.
+     */
+    public synchronized void addCompressedSample(final ScalarSample sample)
+    {
+        final SampleOpcode opcode = sample.getOpcode();
+        switch (opcode) {
+        case INT:
+        case LONG:
+            addLongSample(((Number) sample.getSampleValue()).longValue());
+            break;
+        case FLOAT:
+        case DOUBLE:
+            addDoubleSample(((Number) sample.getSampleValue()).doubleValue(), opcode);
+            break;
+        default:
+            addSample(sampleCoder.compressSample(sample));
+            break;
+        }
+    }
+
+    private void addDoubleSample(final double value, final SampleOpcode uncompressedOpcode)
+    {
+        final SampleOpcode opcode = SampleCoderImpl.compressedDoubleOpcode(value, uncompressedOpcode);
+        addSample(opcode, SampleCoderImpl.compressedDoubleRawValue(value, opcode), null);
+    }
+
+    private void addSample(final SampleOpcode opcode, final long rawValue, final Object objectValue)
+    {
+        if (lastOpcode == opcode &&
+            (opcode.getNoArgs() || (objectValue == null ? rawValue == lastRawValue : ScalarSample.sameSampleValues(objectValue, lastObjectValue))) &&
+            lastRepeatCount < RepeatSample.MAX_SHORT_REPEAT_COUNT) {
+            // Start a repeat group, or just increment the count of the current one
+            lastRepeatCount = lastRepeatCount == 0 ? 2 : lastRepeatCount + 1;
+        }
+        else {
+            addLastSample();
+            lastOpcode = opcode;
+            lastRawValue = rawValue;
+            lastObjectValue = objectValue;
+            lastRepeatCount = 0;
         }
         // In all cases, we got 1 more sample
         sampleCount++;
@@ -106,9 +151,37 @@ public class SampleAccumulator
         return byteStream;
     }
 
-    protected SampleBase getLastSample()
+    protected synchronized SampleBase getLastSample()
+    {
+        if (lastOpcode == null) {
+            return null;
+        }
+        final Object value = SampleCoderImpl.hasRawValue(lastOpcode) ? SampleCoderImpl.rawValueToObject(lastOpcode, lastRawValue) : lastObjectValue;
+        final ScalarSample sample = new ScalarSample(lastOpcode, value);
+        return lastRepeatCount > 0 ? new RepeatSample(lastRepeatCount, sample) : sample;
+    }
+
+    private void setLastSample(final SampleBase lastSample)
     {
-        return lastSample;
+        lastOpcode = null;
+        if (lastSample instanceof RepeatSample) {
+            final RepeatSample repeatSample = (RepeatSample) lastSample;
+            setLastSample(repeatSample.getSampleRepeated());
+            lastRepeatCount = repeatSample.getRepeatCount();
+        }
+        else if (lastSample != null) {
+            final ScalarSample scalarSample = (ScalarSample) lastSample;
+            lastOpcode = scalarSample.getOpcode();
+            if (SampleCoderImpl.hasRawValue(lastOpcode)) {
+                lastRawValue = SampleCoderImpl.getRawValue(lastOpcode, scalarSample.getSampleValue());
+                lastObjectValue = null;
+            }
+            else {
+                lastRawValue = 0;
+                lastObjectValue = scalarSample.getSampleValue();
+            }
+            lastRepeatCount = 0;
+        }
     }
 
     /**
@@ -119,10 +192,7 @@ public class SampleAccumulator
      */
     public synchronized EncodedBytesAndSampleCount getEncodedSamples()
     {
-        if (lastSample != null) {
-            sampleCoder.encodeSample(outputStream, lastSample);
-            lastSample = null;
-        }
+        addLastSample();
         try {
             outputStream.flush();
             return new EncodedBytesAndSampleCount(byteStream.toByteArray(), sampleCount);
@@ -134,19 +204,66 @@ public class SampleAccumulator
         }
     }
 
+    /**
+     * Unlike getEncodedSamples(), this doesn't flush the last sample into the stream, so
+     * repeats keep accumulating, and it doesn't copy the bytes encoded so far: it only
+     * encodes the last sample, which is at most a few bytes.
+     *
+     * @return an immutable view of the samples accumulated so far
+     */
+    public synchronized EncodedBytesSnapshot getEncodedSamplesSnapshot()
+    {
+        byte[] pendingBytes = null;
+        if (lastOpcode != null) {
+            final ByteArrayOutputStream pendingStream = new ByteArrayOutputStream(16);
+            encodeLastSample(new DataOutputStream(pendingStream));
+            pendingBytes = pendingStream.toByteArray();
+        }
+        return byteStream.snapshot(pendingBytes, sampleCount);
+    }
+
     private synchronized void addLastSample()
     {
-        if (lastSample != null) {
-            sampleCoder.encodeSample(outputStream, lastSample);
-            lastSample = null;
+        if (lastOpcode != null) {
+            encodeLastSample(outputStream);
+            lastOpcode = null;
+            lastObjectValue = null;
+        }
+    }
+
+    private void encodeLastSample(final DataOutputStream stream)
+    {
+        if (!SampleCoderImpl.hasRawValue(lastOpcode) || (lastOpcode == SampleOpcode.NULL && lastRepeatCount == 0)) {
+            // Uncommon cases: let the coder encode them, exactly as it always has
+            sampleCoder.encodeSample(stream, getLastSample());
+            return;
+        }
+        try {
+            if (lastRepeatCount > 0) {
+                final SampleOpcode repeatOpcode = lastRepeatCount > RepeatSample.MAX_BYTE_REPEAT_COUNT ? SampleOpcode.REPEAT_SHORT : SampleOpcode.REPEAT_BYTE;
+                stream.write(repeatOpcode.getOpcodeIndex());
+                if (repeatOpcode == SampleOpcode.REPEAT_BYTE) {
+                    stream.write(lastRepeatCount);
+                }
+                else {
+                    stream.writeShort(lastRepeatCount);
+                }
+            }
+            SampleCoderImpl.encodeRawScalarValue(stream, lastOpcode, lastRawValue);
+        }
+        catch (IOException e) {
+            log.error(e, "In encodeLastSample, IOException encoding opcode %s", lastOpcode.name());
         }
     }
 
     public synchronized void reset()
     {
-        byteStream = new ByteArrayOutputStream(DEFAULT_CHUNK_BYTE_ARRAY_SIZE);
+        // Snapshots may still reference the old buffer, so always start a new one
+        byteStream = new AppendOnlyByteArrayOutputStream(DEFAULT_CHUNK_BYTE_ARRAY_SIZE);
         outputStream = new DataOutputStream(byteStream);
-        lastSample = null;
+        lastOpcode = null;
+        lastObjectValue = null;
+        lastRepeatCount = 0;
         sampleCount = 0;
     }
 
@@ -154,7 +271,10 @@ public class SampleAccumulator
     {
         if (repeatCount > 0) {
             addLastSample();
-            lastSample = new RepeatSample<Void>(repeatCount, new NullSample());
+            lastOpcode = SampleOpcode.NULL;
+            lastRawValue = 0;
+            lastObjectValue = null;
+            lastRepeatCount = repeatCount;
             sampleCount += repeatCount;
         }
     }
@@ -68,28 +68,11 @@ public class SampleCoderImpl implements SampleCoder {
     public List<ScalarSample> decompressSamples(final byte[] sampleBytes) throws IOException
     {
         final List<ScalarSample> returnedSamples = new ArrayList<ScalarSample>();
-        final ByteArrayInputStream byteStream = new ByteArrayInputStream(sampleBytes);
-        final DataInputStream inputStream = new DataInputStream(byteStream);
-        while (true) {
-            final int opcodeByte;
-            opcodeByte = inputStream.read();
-            if (opcodeByte == -1) {
-                break; // At "eof"
-            }
-            final SampleOpcode opcode = SampleOpcode.getOpcodeFromIndex(opcodeByte);
-            switch(opcode) {
-            case REPEAT_BYTE:
-            case REPEAT_SHORT:
-                final int repeatCount = opcode == SampleOpcode.REPEAT_BYTE ? inputStream.readUnsignedByte() : inputStream.readUnsignedShort();
-                final SampleOpcode repeatedOpcode = SampleOpcode.getOpcodeFromIndex(inputStream.read());
-                final Object value = decodeScalarValue(inputStream, repeatedOpcode);
-                for (int i=0; i<repeatCount; i++) {
-                    returnedSamples.add(new ScalarSample(repeatedOpcode, value));
-                }
-                break;
-            default:
-                returnedSamples.add(new ScalarSample(opcode, decodeScalarValue(inputStream, opcode)));
-            break;
+        final SampleCursor cursor = new SampleCursor(sampleBytes);
+        while (cursor.nextOpcode() != null) {
+            final ScalarSample sample = new ScalarSample(cursor.getOpcode(), cursor.getValue());
+            for (int i=0; i<cursor.getRepeatCount(); i++) {
+                returnedSamples.add(sample);
             }
         }
         return returnedSamples;
@@ -209,36 +192,10 @@ public class SampleCoderImpl implements SampleCoder {
     public ScalarSample compressSample(final ScalarSample sample) {
         switch (sample.getOpcode()) {
         case INT:
-            final int intValue = (Integer)sample.getSampleValue();
-            if (intValue == 0) {
-                return INT_ZERO_SAMPLE;
-            }
-            else if (intValue >= Byte.MIN_VALUE && intValue <= Byte.MAX_VALUE) {
-                return new ScalarSample(SampleOpcode.BYTE, new Byte((byte)intValue));
-            }
-            else if (intValue >= Short.MIN_VALUE && intValue <= Short.MAX_VALUE) {
-                return new ScalarSample(SampleOpcode.SHORT, new Short((short)intValue));
-            }
-            else {
-                return sample;
-            }
         case LONG:
-            final long longValue = (Long)sample.getSampleValue();
-            if (longValue == 0) {
-                return INT_ZERO_SAMPLE;
-            }
-            else if (longValue >= Byte.MIN_VALUE && longValue <= Byte.MAX_VALUE) {
-                return new ScalarSample(SampleOpcode.BYTE, new Byte((byte)longValue));
-            }
-            else if (longValue >= Short.MIN_VALUE && longValue <= Short.MAX_VALUE) {
-                return new ScalarSample(SampleOpcode.SHORT, new Short((short)longValue));
-            }
-            else if (longValue >= Integer.MIN_VALUE && longValue <= Integer.MAX_VALUE) {
-                return new ScalarSample(SampleOpcode.INT, new Integer((int)longValue));
-            }
-            else {
-                return sample;
-            }
+            final long longValue = ((Number)sample.getSampleValue()).longValue();
+            final SampleOpcode longOpcode = compressedLongOpcode(longValue);
+            return longOpcode == sample.getOpcode() ? sample : scalarSampleFromRawValue(longOpcode, longValue);
         case BIGINT:
             final BigInteger bigValue = (BigInteger)sample.getSampleValue();
             if (bigValue.compareTo(BIGINTEGER_ZERO_VALUE) == 0) {
@@ -261,41 +218,213 @@ public class SampleCoderImpl implements SampleCoder {
                 return sample;
             }
         case FLOAT:
-            return encodeFloatOrDoubleSample(sample, (double)((Float)sample.getSampleValue()));
         case DOUBLE:
-            return encodeFloatOrDoubleSample(sample, (Double)sample.getSampleValue());
+            final double doubleValue = ((Number)sample.getSampleValue()).doubleValue();
+            final SampleOpcode doubleOpcode = compressedDoubleOpcode(doubleValue, sample.getOpcode());
+            return doubleOpcode == sample.getOpcode() ? sample : scalarSampleFromRawValue(doubleOpcode, compressedDoubleRawValue(doubleValue, doubleOpcode));
         default:
             return sample;
         }
     }
 
-    private ScalarSample encodeFloatOrDoubleSample(final ScalarSample sample, final double value) {
+    private ScalarSample scalarSampleFromRawValue(final SampleOpcode opcode, final long rawValue) {
+        switch (opcode) {
+        case INT_ZERO:
+            return INT_ZERO_SAMPLE;
+        case DOUBLE_ZERO:
+            return DOUBLE_ZERO_SAMPLE;
+        default:
+            return new ScalarSample(opcode, rawValueToObject(opcode, rawValue));
+        }
+    }
+
+    /**
+     * Return the most compact opcode which represents the integral value exactly
+     * @param value the value to be encoded
+     * @return one of INT_ZERO, BYTE, SHORT, INT or LONG; the raw value for that opcode is the value itself
+     */
+    public static SampleOpcode compressedLongOpcode(final long value) {
+        if (value == 0) {
+            return SampleOpcode.INT_ZERO;
+        }
+        else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            return SampleOpcode.BYTE;
+        }
+        else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            return SampleOpcode.SHORT;
+        }
+        else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            return SampleOpcode.INT;
+        }
+        else {
+            return SampleOpcode.LONG;
+        }
+    }
+
+    /**
+     * Return the most compact opcode which represents the floating point value within MAX_FRACTION_ERROR
+     * @param value the value to be encoded
+     * @param uncompressedOpcode FLOAT or DOUBLE, the opcode used if no smaller representation is close enough
+     * @return the opcode to use; compressedDoubleRawValue() gives the matching raw value
+     */
+    public static SampleOpcode compressedDoubleOpcode(final double value, final SampleOpcode uncompressedOpcode) {
         // We prefer representations in the following order: byte, HalfFloat, short, float and int
         // The criterion for using each representation is the fractional error
         if (value == 0.0) {
-            return DOUBLE_ZERO_SAMPLE;
+            return SampleOpcode.DOUBLE_ZERO;
         }
         final boolean integral = value >= MIN_SHORT_DOUBLE_VALUE && value <= MAX_SHORT_DOUBLE_VALUE && (Math.abs((value - (double)((int)value)) / value) <= MAX_FRACTION_ERROR);
         if (integral && value >= MIN_BYTE_DOUBLE_VALUE && value <= MAX_BYTE_DOUBLE_VALUE) {
-            return new ScalarSample<Byte>(SampleOpcode.BYTE_FOR_DOUBLE, (byte)value);
+            return SampleOpcode.BYTE_FOR_DOUBLE;
         }
         else if (integral && value >= MIN_SHORT_DOUBLE_VALUE && value <= MAX_SHORT_DOUBLE_VALUE) {
-            return new ScalarSample<Short>(SampleOpcode.SHORT_FOR_DOUBLE, (short)value);
+            return SampleOpcode.SHORT_FOR_DOUBLE;
         }
         else {
             final int halfFloatValue = HalfFloat.fromFloat((float)value);
             if ((Math.abs(value - HalfFloat.toFloat(halfFloatValue)) / value) <= MAX_FRACTION_ERROR) {
-                return new ScalarSample<Short>(SampleOpcode.HALF_FLOAT_FOR_DOUBLE, (short)halfFloatValue);
+                return SampleOpcode.HALF_FLOAT_FOR_DOUBLE;
             }
             else if (value >= Float.MIN_VALUE && value <= Float.MAX_VALUE) {
-                return new ScalarSample<Float>(SampleOpcode.FLOAT_FOR_DOUBLE, (float)value);
+                return SampleOpcode.FLOAT_FOR_DOUBLE;
             }
             else {
-                return sample;
+                return uncompressedOpcode;
             }
         }
     }
 
+    /**
+     * Return the raw value of the floating point value encoded with the given opcode
+     * @param value the value to be encoded
+     * @param opcode the opcode returned by compressedDoubleOpcode()
+     * @return the raw value, as defined by getRawValue()
+     */
+    public static long compressedDoubleRawValue(final double value, final SampleOpcode opcode) {
+        switch (opcode) {
+        case DOUBLE_ZERO:
+            return 0;
+        case BYTE_FOR_DOUBLE:
+            return (byte)value;
+        case SHORT_FOR_DOUBLE:
+            return (short)value;
+        case HALF_FLOAT_FOR_DOUBLE:
+            return (short)HalfFloat.fromFloat((float)value);
+        case FLOAT:
+        case FLOAT_FOR_DOUBLE:
+            return Float.floatToIntBits((float)value);
+        case DOUBLE:
+            return Double.doubleToLongBits(value);
+        default:
+            throw new IllegalArgumentException(String.format("In compressedDoubleRawValue(), opcode %s is not a floating point opcode", opcode.name()));
+        }
+    }
+
+    /**
+     * @return true if values with this opcode can be held in a long by getRawValue(); false for STRING and BIGINT
+     */
+    public static boolean hasRawValue(final SampleOpcode opcode) {
+        return opcode != SampleOpcode.STRING && opcode != SampleOpcode.BIGINT && !opcode.getRepeater();
+    }
+
+    /**
+     * Return the value as a long holding exactly the bits that get encoded: integral values
+     * sign-extended, floats and doubles as their IEEE bits, and 0 for opcodes without arguments.
+     * Two samples with the same opcode are equal iff their raw values are equal.
+     */
+    public static long getRawValue(final SampleOpcode opcode, final Object value) {
+        switch (opcode) {
+        case NULL:
+        case DOUBLE_ZERO:
+        case INT_ZERO:
+            return 0;
+        case BYTE:
+        case BYTE_FOR_DOUBLE:
+        case SHORT:
+        case SHORT_FOR_DOUBLE:
+        case HALF_FLOAT_FOR_DOUBLE:
+        case INT:
+        case LONG:
+            return ((Number)value).longValue();
+        case FLOAT:
+        case FLOAT_FOR_DOUBLE:
+            return Float.floatToIntBits(((Number)value).floatValue());
+        case DOUBLE:
+            return Double.doubleToLongBits(((Number)value).doubleValue());
+        default:
+            throw new IllegalArgumentException(String.format("In getRawValue(), opcode %s has no raw value", opcode.name()));
+        }
+    }
+
+    /**
+     * The inverse of getRawValue(): return the object held by a ScalarSample with this opcode
+     */
+    public static Object rawValueToObject(final SampleOpcode opcode, final long rawValue) {
+        switch (opcode) {
+        case NULL:
+            return null;
+        case DOUBLE_ZERO:
+            return 0.0;
+        case INT_ZERO:
+            return 0;
+        case BYTE:
+        case BYTE_FOR_DOUBLE:
+            return Byte.valueOf((byte)rawValue);
+        case SHORT:
+        case SHORT_FOR_DOUBLE:
+        case HALF_FLOAT_FOR_DOUBLE:
+            return Short.valueOf((short)rawValue);
+        case INT:
+            return Integer.valueOf((int)rawValue);
+        case LONG:
+            return Long.valueOf(rawValue);
+        case FLOAT:
+        case FLOAT_FOR_DOUBLE:
+            return Float.intBitsToFloat((int)rawValue);
+        case DOUBLE:
+            return Double.longBitsToDouble(rawValue);
+        default:
+            throw new IllegalArgumentException(String.format("In rawValueToObject(), opcode %s has no raw value", opcode.name()));
+        }
+    }
+
+    /**
+     * Output the opcode and the raw value into the output stream.  This writes the same bytes
+     * as encodeScalarValue() does for the corresponding object, without needing the object.
+     * @param outputStream the stream to which bytes should be written.
+     * @param opcode the opcode, for which hasRawValue() must be true
+     * @param rawValue the value, as returned by getRawValue()
+     */
+    public static void encodeRawScalarValue(final DataOutputStream outputStream, final SampleOpcode opcode, final long rawValue) throws IOException {
+        outputStream.write(opcode.getOpcodeIndex());
+        switch (opcode) {
+        case NULL:
+        case DOUBLE_ZERO:
+        case INT_ZERO:
+            break;
+        case BYTE:
+        case BYTE_FOR_DOUBLE:
+            outputStream.writeByte((int)rawValue);
+            break;
+        case SHORT:
+        case SHORT_FOR_DOUBLE:
+        case HALF_FLOAT_FOR_DOUBLE:
+            outputStream.writeShort((int)rawValue);
+            break;
+        case INT:
+        case FLOAT:
+        case FLOAT_FOR_DOUBLE:
+            outputStream.writeInt((int)rawValue);
+            break;
+        case LONG:
+        case DOUBLE:
+            outputStream.writeLong(rawValue);
+            break;
+        default:
+            throw new IllegalArgumentException(String.format("In encodeRawScalarValue(), opcode %s has no raw value", opcode.name()));
+        }
+    }
+
     @Override
     public Object decodeScalarValue(final DataInputStream inputStream, final SampleOpcode opcode) throws IOException {
         switch (opcode) {
@@ -515,32 +644,15 @@ public class SampleCoderImpl implements SampleCoder {
     @Override
     public void scan(final byte[] samples, final byte[] times, final int sampleCount, final SampleProcessor processor) throws IOException
     {
-        final ByteArrayInputStream byteStream = new ByteArrayInputStream(samples);
-        final DataInputStream inputStream = new DataInputStream(byteStream);
+        final SampleCursor cursor = new SampleCursor(samples);
         final TimelineCursorImpl timeCursor = new TimelineCursorImpl(times, sampleCount);
         int sampleNumber = 0;
-        while (true) {
-            final int opcodeByte;
-            opcodeByte = inputStream.read();
-            if (opcodeByte == -1) {
-                return; // At "eof"
-            }
-            final SampleOpcode opcode = SampleOpcode.getOpcodeFromIndex(opcodeByte);
-            switch(opcode) {
-            case REPEAT_BYTE:
-            case REPEAT_SHORT:
-                final int repeatCount = opcode == SampleOpcode.REPEAT_BYTE ? inputStream.readUnsignedByte() : inputStream.readUnsignedShort();
-                final SampleOpcode repeatedOpcode = SampleOpcode.getOpcodeFromIndex(inputStream.read());
-                final Object value = decodeScalarValue(inputStream, repeatedOpcode);
-                final SampleOpcode replacementOpcode = repeatedOpcode.getReplacement();
-                processor.processSamples(timeCursor, repeatCount, replacementOpcode, value);
-                sampleNumber += repeatCount;
-                timeCursor.skipToSampleNumber(sampleNumber);
-                break;
-            default:
-                processor.processSamples(timeCursor, 1, opcode.getReplacement(), decodeScalarValue(inputStream, opcode));
-                break;
-            }
+        while (cursor.nextOpcode() != null) {
+            final int repeatCount = cursor.getRepeatCount();
+            processor.processSamples(timeCursor, repeatCount, cursor.getOpcode().getReplacement(), cursor.getValue());
+            // Processors may not consume a time per sample, so resynchronize the time cursor
+            sampleNumber += repeatCount;
+            timeCursor.skipToSampleNumber(sampleNumber);
         }
     }
 }
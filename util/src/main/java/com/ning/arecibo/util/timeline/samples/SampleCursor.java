@@ -0,0 +1,251 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.util.timeline.samples;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+
+/**
+ * A cursor over encoded sample bytes, which decodes the samples in place, one run
+ * of identical values at a time.  Unlike SampleCoder.scan(), it doesn't allocate
+ * anything for numeric samples: the values are returned as primitives by
+ * getLongValue() and getDoubleValue().
+ * <p/>
+ * Typical use:
+ * <pre>
+ *     final SampleCursor cursor = new SampleCursor(chunk.getSamples());
+ *     while (cursor.nextOpcode() != null) {
+ *         process(cursor.getRepeatCount(), cursor.getDoubleValue());
+ *     }
+ * </pre>
+ */
+public class SampleCursor
+{
+    private final byte[] bytes;
+    private final int length;
+    private int position = 0;
+    private SampleOpcode opcode = null;
+    private int repeatCount = 0;
+    private long rawValue = 0;
+    private Object objectValue = null;
+
+    public SampleCursor(final byte[] bytes)
+    {
+        this(bytes, bytes.length);
+    }
+
+    public SampleCursor(final byte[] bytes, final int length)
+    {
+        this.bytes = bytes;
+        this.length = length;
+    }
+
+    /**
+     * Decode the next run of identical samples
+     *
+     * @return the opcode of the samples in the run, which is never a REPEAT opcode, or null if there are no more samples
+     */
+    public SampleOpcode nextOpcode()
+    {
+        if (position >= length) {
+            opcode = null;
+            repeatCount = 0;
+            return null;
+        }
+        SampleOpcode nextOpcode = SampleOpcode.getOpcodeFromIndex(readUnsignedByte());
+        if (nextOpcode == SampleOpcode.REPEAT_BYTE || nextOpcode == SampleOpcode.REPEAT_SHORT) {
+            repeatCount = nextOpcode == SampleOpcode.REPEAT_BYTE ? readUnsignedByte() : readUnsignedShort();
+            nextOpcode = SampleOpcode.getOpcodeFromIndex(readUnsignedByte());
+        }
+        else {
+            repeatCount = 1;
+        }
+        opcode = nextOpcode;
+        readValue();
+        return opcode;
+    }
+
+    /**
+     * @return the opcode of the current run, as returned by the last call to nextOpcode()
+     */
+    public SampleOpcode getOpcode()
+    {
+        return opcode;
+    }
+
+    /**
+     * @return the number of samples in the current run
+     */
+    public int getRepeatCount()
+    {
+        return repeatCount;
+    }
+
+    /**
+     * @return the value of the current run as a long, truncating floating point values
+     */
+    public long getLongValue()
+    {
+        switch (opcode) {
+        case NULL:
+        case DOUBLE_ZERO:
+        case INT_ZERO:
+        case BYTE:
+        case SHORT:
+        case INT:
+        case LONG:
+            return rawValue;
+        case BIGINT:
+            return ((BigInteger) objectValue).longValue();
+        default:
+            return (long) getDoubleValue();
+        }
+    }
+
+    /**
+     * @return the value of the current run as a double, as ScalarSample.getDoubleValue() would return it
+     */
+    public double getDoubleValue()
+    {
+        switch (opcode) {
+        case NULL:
+        case DOUBLE_ZERO:
+        case INT_ZERO:
+            return 0.0;
+        case BYTE:
+        case BYTE_FOR_DOUBLE:
+        case SHORT:
+        case SHORT_FOR_DOUBLE:
+        case INT:
+        case LONG:
+            return (double) rawValue;
+        case FLOAT:
+        case FLOAT_FOR_DOUBLE:
+            return (double) Float.intBitsToFloat((int) rawValue);
+        case HALF_FLOAT_FOR_DOUBLE:
+            return (double) HalfFloat.toFloat((short) rawValue);
+        case DOUBLE:
+            return Double.longBitsToDouble(rawValue);
+        case BIGINT:
+            return ((BigInteger) objectValue).doubleValue();
+        default:
+            throw new IllegalArgumentException(String.format("In SampleCursor.getDoubleValue(), sample opcode is %s", opcode.name()));
+        }
+    }
+
+    /**
+     * @return the value of the current run, boxed exactly as SampleCoder.decodeScalarValue() returns it
+     */
+    public Object getValue()
+    {
+        switch (opcode) {
+        case STRING:
+        case BIGINT:
+            return objectValue;
+        case BYTE_FOR_DOUBLE:
+        case SHORT_FOR_DOUBLE:
+        case FLOAT_FOR_DOUBLE:
+        case HALF_FLOAT_FOR_DOUBLE:
+            return getDoubleValue();
+        default:
+            return SampleCoderImpl.rawValueToObject(opcode, rawValue);
+        }
+    }
+
+    private void readValue()
+    {
+        objectValue = null;
+        switch (opcode) {
+        case NULL:
+        case DOUBLE_ZERO:
+        case INT_ZERO:
+            rawValue = 0;
+            break;
+        case BYTE:
+        case BYTE_FOR_DOUBLE:
+            checkAvailable(1);
+            rawValue = bytes[position++];
+            break;
+        case SHORT:
+        case SHORT_FOR_DOUBLE:
+        case HALF_FLOAT_FOR_DOUBLE:
+            rawValue = (short) readUnsignedShort();
+            break;
+        case INT:
+        case FLOAT:
+        case FLOAT_FOR_DOUBLE:
+            rawValue = readInt();
+            break;
+        case LONG:
+        case DOUBLE:
+            rawValue = ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+            break;
+        case STRING:
+            objectValue = readString();
+            break;
+        case BIGINT:
+            objectValue = new BigInteger(readString(), 10);
+            break;
+        default:
+            throw new IllegalStateException(String.format("In SampleCursor.nextOpcode(), unexpected opcode %s at offset %d", opcode.name(), position));
+        }
+    }
+
+    private String readString()
+    {
+        final int byteCount = (short) readUnsignedShort();
+        checkAvailable(byteCount);
+        try {
+            final String s = new String(bytes, position, byteCount, "UTF-8");
+            position += byteCount;
+            return s;
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private int readUnsignedByte()
+    {
+        checkAvailable(1);
+        return bytes[position++] & 0xFF;
+    }
+
+    private int readUnsignedShort()
+    {
+        checkAvailable(2);
+        final int value = ((bytes[position] & 0xFF) << 8) | (bytes[position + 1] & 0xFF);
+        position += 2;
+        return value;
+    }
+
+    private int readInt()
+    {
+        checkAvailable(4);
+        final int value = ((bytes[position] & 0xFF) << 24) | ((bytes[position + 1] & 0xFF) << 16) |
+                          ((bytes[position + 2] & 0xFF) << 8) | (bytes[position + 3] & 0xFF);
+        position += 4;
+        return value;
+    }
+
+    private void checkAvailable(final int byteCount)
+    {
+        if (byteCount < 0 || position + byteCount > length) {
+            throw new IllegalStateException(String.format("In SampleCursor, sample bytes truncated at offset %d, length %d", position, length));
+        }
+    }
+}
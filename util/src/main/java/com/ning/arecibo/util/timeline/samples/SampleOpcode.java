@@ -38,6 +38,13 @@ public enum SampleOpcode {
     REPEAT_SHORT(0xfe, 2, true);  // A repeat operation in which the repeat count fits in an unsigned short
 
     private static final Logger log = Logger.getCallersLoggerViaExpensiveMagic();
+    private static final SampleOpcode[] opcodesByIndex = new SampleOpcode[0x100];
+
+    static {
+        for (SampleOpcode opcode : values()) {
+            opcodesByIndex[opcode.getOpcodeIndex()] = opcode;
+        }
+    }
 
     private int opcodeIndex;
     private final int byteSize;
@@ -74,10 +81,10 @@ public enum SampleOpcode {
     }
 
     public static SampleOpcode getOpcodeFromIndex(final int index) {
-        for (SampleOpcode opcode : values()) {
-            if (opcode.getOpcodeIndex() == index) {
-                return opcode;
-            }
+        // Called for every sample decoded, so use the table rather than scanning a copy of values()
+        final SampleOpcode opcode = index >= 0 && index < opcodesByIndex.length ? opcodesByIndex[index] : null;
+        if (opcode != null) {
+            return opcode;
         }
         final String s = String.format("In SampleOpcode.getOpcodefromIndex(), could not find opcode for index %d", index);
         log.error(s);
@@ -343,7 +343,7 @@ public class TimelineCoderImpl implements TimelineCoder {
         }
     }
 
-    private void writeRepeatedDelta(final int delta, final int repeatCount, final DataOutputStream dataStream) throws IOException {
+    static void writeRepeatedDelta(final int delta, final int repeatCount, final DataOutputStream dataStream) throws IOException {
         if (repeatCount > 1) {
             if (repeatCount > MAX_BYTE_REPEAT_COUNT) {
                 dataStream.writeByte(TimelineOpcode.REPEATED_DELTA_TIME_SHORT.getOpcodeIndex());
@@ -360,7 +360,7 @@ public class TimelineCoderImpl implements TimelineCoder {
         dataStream.writeByte(delta);
     }
 
-    private void writeTime(final int lastTime, final int newTime, final DataOutputStream dataStream) throws IOException {
+    static void writeTime(final int lastTime, final int newTime, final DataOutputStream dataStream) throws IOException {
         if (newTime > lastTime) {
             final int delta = (newTime - lastTime);
             if (delta <= TimelineOpcode.MAX_DELTA_TIME) {
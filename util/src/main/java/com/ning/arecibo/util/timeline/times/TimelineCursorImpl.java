@@ -150,6 +150,19 @@ public class TimelineCursorImpl implements TimelineCursor
         }
     }
 
+    /**
+     * Like getNextTime(), but without creating a DateTime
+     * @return the UNIX time, in seconds, of the next sample
+     */
+    public int getNextUnixTime()
+    {
+        final int nextTime = getNextTimeInternal();
+        if (nextTime == -1) {
+            throw new IllegalStateException(String.format("In TimelineCursorImpl.getNextUnixTime(), got -1 from timeCursor.getNextTimeInternal()"));
+        }
+        return nextTime;
+    }
+
     @Override
     public DateTime getNextTime()
     {
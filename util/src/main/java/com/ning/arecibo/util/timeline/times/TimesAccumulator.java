@@ -0,0 +1,151 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.util.timeline.times;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.joda.time.DateTime;
+
+import com.ning.arecibo.util.Logger;
+import com.ning.arecibo.util.timeline.AppendOnlyByteArrayOutputStream;
+import com.ning.arecibo.util.timeline.DateTimeUtils;
+import com.ning.arecibo.util.timeline.EncodedBytesSnapshot;
+
+/**
+ * This class encodes sample times as they arrive, producing exactly the bytes
+ * TimelineCoder.compressDateTimes() would produce for the same list of times,
+ * without having to keep the list around and re-encode it on every read.
+ * <p/>
+ * Only the current run of repeated deltas is held back; everything else is appended
+ * to a stream whose written bytes never change, so getEncodedTimesSnapshot() is cheap.
+ */
+public class TimesAccumulator
+{
+    private static final Logger log = Logger.getCallersLoggerViaExpensiveMagic();
+    private static final int DEFAULT_TIMES_BYTE_ARRAY_SIZE = 32;
+
+    private AppendOnlyByteArrayOutputStream byteStream;
+    private DataOutputStream outputStream;
+    private int lastTime;
+    private int lastDelta;
+    private int repeatCount;
+    private int timeCount;
+
+    public TimesAccumulator()
+    {
+        reset();
+    }
+
+    public synchronized void addTime(final DateTime time)
+    {
+        final int newTime = DateTimeUtils.unixSeconds(time);
+        try {
+            if (lastTime == 0) {
+                lastTime = newTime;
+                TimelineCoderImpl.writeTime(0, lastTime, outputStream);
+                timeCount++;
+                return;
+            }
+            else if (newTime < lastTime) {
+                log.warn("In TimesAccumulator.addTime(), newTime %d is < lastTime %d; ignored", newTime, lastTime);
+                return;
+            }
+            final int delta = newTime - lastTime;
+            final boolean deltaWorks = delta <= TimelineOpcode.MAX_DELTA_TIME;
+            final boolean sameDelta = repeatCount > 0 && delta == lastDelta;
+            if (deltaWorks) {
+                if (sameDelta) {
+                    repeatCount++;
+                    if (repeatCount == TimelineCoderImpl.MAX_SHORT_REPEAT_COUNT) {
+                        TimelineCoderImpl.writeRepeatedDelta(delta, repeatCount, outputStream);
+                        repeatCount = 0;
+                    }
+                }
+                else {
+                    if (repeatCount > 0) {
+                        TimelineCoderImpl.writeRepeatedDelta(lastDelta, repeatCount, outputStream);
+                    }
+                    repeatCount = 1;
+                }
+                lastDelta = delta;
+            }
+            else {
+                if (repeatCount > 0) {
+                    TimelineCoderImpl.writeRepeatedDelta(lastDelta, repeatCount, outputStream);
+                }
+                TimelineCoderImpl.writeTime(0, newTime, outputStream);
+                repeatCount = 0;
+                lastDelta = 0;
+            }
+            lastTime = newTime;
+            timeCount++;
+        }
+        catch (IOException e) {
+            // Can't happen, we're writing to memory
+            log.error(e, "In TimesAccumulator.addTime(), exception encoding time %d", newTime);
+        }
+    }
+
+    /**
+     * @return the number of times accumulated
+     */
+    public synchronized int getTimeCount()
+    {
+        return timeCount;
+    }
+
+    /**
+     * @return the compressed timeline of the times accumulated so far
+     */
+    public byte[] getEncodedTimes()
+    {
+        return getEncodedTimesSnapshot().getEncodedBytes();
+    }
+
+    /**
+     * @return an immutable view of the compressed timeline accumulated so far
+     */
+    public synchronized EncodedBytesSnapshot getEncodedTimesSnapshot()
+    {
+        byte[] pendingBytes = null;
+        if (repeatCount > 0) {
+            try {
+                final ByteArrayOutputStream pendingStream = new ByteArrayOutputStream(8);
+                TimelineCoderImpl.writeRepeatedDelta(lastDelta, repeatCount, new DataOutputStream(pendingStream));
+                pendingBytes = pendingStream.toByteArray();
+            }
+            catch (IOException e) {
+                // Can't happen, we're writing to memory
+                log.error(e, "In TimesAccumulator.getEncodedTimesSnapshot(), exception encoding repeated delta");
+            }
+        }
+        return byteStream.snapshot(pendingBytes, timeCount);
+    }
+
+    public synchronized void reset()
+    {
+        // Snapshots may still reference the old buffer, so always start a new one
+        byteStream = new AppendOnlyByteArrayOutputStream(DEFAULT_TIMES_BYTE_ARRAY_SIZE);
+        outputStream = new DataOutputStream(byteStream);
+        lastTime = 0;
+        lastDelta = 0;
+        repeatCount = 0;
+        timeCount = 0;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.util.metrics;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestSlidingWindowHistogram
+{
+    private static class ManualClockHistogram extends SlidingWindowHistogram
+    {
+        private long now = 1000000L;
+
+        private ManualClockHistogram()
+        {
+            super(60, TimeUnit.SECONDS, 6);
+        }
+
+        @Override
+        protected long currentTimeMillis()
+        {
+            return now;
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testBuckets() throws Exception
+    {
+        int previousIndex = -1;
+        for (long value = 0; value < 100000; value++) {
+            final int index = SlidingWindowHistogram.bucketIndex(value);
+            Assert.assertTrue(index == previousIndex || index == previousIndex + 1, "value " + value);
+            previousIndex = index;
+
+            final long bucketValue = SlidingWindowHistogram.bucketValue(index);
+            Assert.assertEquals(SlidingWindowHistogram.bucketIndex(bucketValue), index);
+            Assert.assertTrue(Math.abs(bucketValue - value) <= value / 16, "value " + value + " bucket value " + bucketValue);
+        }
+        Assert.assertEquals(SlidingWindowHistogram.bucketIndex(Long.MAX_VALUE), SlidingWindowHistogram.bucketIndex(Long.MAX_VALUE - 1));
+    }
+
+    @Test(groups = "fast")
+    public void testQuantilesAndMean() throws Exception
+    {
+        final SlidingWindowHistogram histogram = new ManualClockHistogram();
+        Assert.assertEquals(histogram.getQuantile(0.5), -1);
+        Assert.assertEquals(histogram.getMean(), -1.0);
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(histogram.getCount(), 1000);
+        Assert.assertEquals(histogram.getMean(), 500.5);
+        Assert.assertTrue(Math.abs(histogram.getQuantile(0.5) - 500) <= 500 / 16);
+        Assert.assertTrue(Math.abs(histogram.getQuantile(0.99) - 990) <= 990 / 16);
+        Assert.assertEquals(histogram.getQuantile(0.0), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testSlidingWindow() throws Exception
+    {
+        final ManualClockHistogram histogram = new ManualClockHistogram();
+        histogram.record(10);
+        histogram.now += 30000;
+        histogram.record(20);
+        Assert.assertEquals(histogram.getCount(), 2);
+        Assert.assertEquals(histogram.getMean(), 15.0);
+
+        // The first value drops out of the window, the second one is still in
+        histogram.now += 30000;
+        Assert.assertEquals(histogram.getCount(), 1);
+        Assert.assertEquals(histogram.getMean(), 20.0);
+
+        // The slot of the second value gets reused
+        histogram.now += 30000;
+        Assert.assertEquals(histogram.getCount(), 0);
+        histogram.record(30);
+        Assert.assertEquals(histogram.getCount(), 1);
+        Assert.assertEquals(histogram.getQuantile(1.0), 30);
+    }
+
+    @Test(groups = "fast")
+    public void testValueStats() throws Exception
+    {
+        final ValueStats stats = new ValueStats(new ManualClockHistogram());
+        Assert.assertEquals(stats.getCount(), 0);
+        Assert.assertEquals(stats.getMin(), -1);
+        Assert.assertEquals(stats.getMax(), -1);
+
+        final int nbThreads = 4;
+        final int valuesPerThread = 10000;
+        final CountDownLatch done = new CountDownLatch(nbThreads);
+        for (int t = 0; t < nbThreads; t++) {
+            final int offset = t;
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < valuesPerThread; i++) {
+                        stats.record(offset + i);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+
+        Assert.assertEquals(stats.getCount(), nbThreads * valuesPerThread);
+        Assert.assertEquals(stats.getMin(), 0);
+        Assert.assertEquals(stats.getMax(), nbThreads - 1 + valuesPerThread - 1);
+        Assert.assertEquals(stats.getAverage(), (valuesPerThread - 1) / 2.0 + (nbThreads - 1) / 2.0);
+    }
+}
@@ -23,6 +23,7 @@ import org.joda.time.DateTime;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.ning.arecibo.util.timeline.EncodedBytesSnapshot;
 import com.ning.arecibo.util.timeline.samples.SampleCoderImpl;
 import com.ning.arecibo.util.timeline.samples.SampleCoder;
 import com.ning.arecibo.util.timeline.samples.SampleOpcode;
@@ -166,4 +167,31 @@ public class TestTimelineChunkAccumulator
             }
         });
     }
+
+    @Test(groups = "fast")
+    public void testEncodedSamplesSnapshot() throws Exception
+    {
+        final TimelineChunkAccumulator accum = new TimelineChunkAccumulator(123, 456, sampleCoder);
+        final TimelineChunkAccumulator reference = new TimelineChunkAccumulator(123, 456, sampleCoder);
+        for (int i = 0; i < 1000; i++) {
+            // Mix of repeats and distinct values, so the last sample is sometimes a pending repeat
+            final ScalarSample sample = new ScalarSample<Integer>(SampleOpcode.INT, (i / 7) % 5 == 0 ? 1000 : 1000 + i);
+            accum.addSample(sample);
+            reference.addSample(sample);
+            if (i % 13 == 0) {
+                final EncodedBytesSnapshot snapshot = accum.getEncodedSamplesSnapshot();
+                final TimelineChunkAccumulator copy = reference.deepCopy();
+                Assert.assertEquals(snapshot.getCount(), i + 1);
+                Assert.assertEquals(snapshot.getEncodedBytes(), copy.getEncodedSamples().getEncodedBytes());
+            }
+        }
+
+        // Taking snapshots must not disturb the accumulator itself
+        final EncodedBytesSnapshot snapshot = accum.getEncodedSamplesSnapshot();
+        final byte[] expected = reference.getEncodedSamples().getEncodedBytes();
+        Assert.assertEquals(accum.getEncodedSamples().getEncodedBytes(), expected);
+        accum.reset();
+        accum.addSample(new ScalarSample<Integer>(SampleOpcode.INT, 5));
+        Assert.assertEquals(snapshot.getEncodedBytes(), expected);
+    }
 }
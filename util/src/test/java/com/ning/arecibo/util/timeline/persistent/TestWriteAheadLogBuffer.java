@@ -0,0 +1,265 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.arecibo.util.timeline.persistent;
+
+import com.ning.arecibo.util.timeline.HostSamplesForTimestamp;
+import com.ning.arecibo.util.timeline.samples.SampleOpcode;
+import com.ning.arecibo.util.timeline.samples.ScalarSample;
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+public class TestWriteAheadLogBuffer
+{
+    private static final DateTime START_TIME = new DateTime(DateTimeZone.UTC);
+
+    private File basePath;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception
+    {
+        basePath = new File(System.getProperty("java.io.tmpdir"), "TestWriteAheadLogBuffer-" + System.nanoTime());
+        Assert.assertTrue(basePath.mkdir());
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory(basePath);
+    }
+
+    @Test(groups = "fast")
+    public void testRoundTripAllOpcodes() throws Exception
+    {
+        final Map<Integer, ScalarSample> samples = new LinkedHashMap<Integer, ScalarSample>();
+        samples.put(1, new ScalarSample<Void>(SampleOpcode.NULL, null));
+        samples.put(2, new ScalarSample<Byte>(SampleOpcode.BYTE, (byte) -3));
+        samples.put(3, new ScalarSample<Short>(SampleOpcode.SHORT, (short) 1234));
+        samples.put(4, new ScalarSample<Integer>(SampleOpcode.INT, 123456789));
+        samples.put(5, new ScalarSample<Long>(SampleOpcode.LONG, Long.MIN_VALUE + 7));
+        samples.put(6, new ScalarSample<Float>(SampleOpcode.FLOAT, 1.25f));
+        samples.put(7, new ScalarSample<Double>(SampleOpcode.DOUBLE, Math.PI));
+        samples.put(8, new ScalarSample<String>(SampleOpcode.STRING, "café"));
+        samples.put(9, new ScalarSample<BigInteger>(SampleOpcode.BIGINT, new BigInteger("123456789012345678901234567890")));
+        samples.put(10, new ScalarSample<Short>(SampleOpcode.SHORT_FOR_DOUBLE, (short) 42));
+        final HostSamplesForTimestamp hostSamples = new HostSamplesForTimestamp(17, "JVM", START_TIME, samples);
+
+        final WriteAheadLogBuffer buffer = new WriteAheadLogBuffer(basePath.getAbsolutePath(), "test", true, 4096, 0);
+        Assert.assertTrue(buffer.append(hostSamples));
+        buffer.close();
+
+        final List<HostSamplesForTimestamp> replayed = new Replayer(basePath.getAbsolutePath()).readAll();
+        Assert.assertEquals(replayed.size(), 1);
+        final HostSamplesForTimestamp result = replayed.get(0);
+        Assert.assertEquals(result.getHostId(), 17);
+        Assert.assertEquals(result.getCategory(), "JVM");
+        Assert.assertEquals(result.getTimestamp(), START_TIME);
+        Assert.assertEquals(result.getSamples().keySet(), samples.keySet());
+        for (final Map.Entry<Integer, ScalarSample> entry : samples.entrySet()) {
+            final ScalarSample sample = result.getSamples().get(entry.getKey());
+            Assert.assertEquals(sample.getOpcode(), entry.getValue().getOpcode());
+            Assert.assertEquals(sample.getSampleValue(), entry.getValue().getSampleValue());
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentAppendsAcrossSegments() throws Exception
+    {
+        final int threadCount = 4;
+        final int appendsPerThread = 500;
+        // Small segments, so that the appends roll over many of them
+        final WriteAheadLogBuffer buffer = new WriteAheadLogBuffer(basePath.getAbsolutePath(), "test", true, 2048, 5);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            final int hostId = t + 1;
+            new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        for (int i = 0; i < appendsPerThread; i++) {
+                            Assert.assertTrue(buffer.append(createSamples(hostId, i)));
+                        }
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        buffer.close();
+        Assert.assertTrue(buffer.getFilesCreated() > 1);
+        Assert.assertEquals(buffer.getBytesInMemory(), 0);
+
+        final List<HostSamplesForTimestamp> replayed = new Replayer(basePath.getAbsolutePath()).readAll();
+        Assert.assertEquals(replayed.size(), threadCount * appendsPerThread);
+        // Each thread's samples must come back in the order it appended them
+        final List<List<Long>> valuesPerHost = new ArrayList<List<Long>>();
+        for (int t = 0; t < threadCount; t++) {
+            valuesPerHost.add(new ArrayList<Long>());
+        }
+        for (final HostSamplesForTimestamp hostSamples : replayed) {
+            valuesPerHost.get(hostSamples.getHostId() - 1).add((Long) hostSamples.getSamples().get(1).getSampleValue());
+        }
+        for (final List<Long> values : valuesPerHost) {
+            Assert.assertEquals(values.size(), appendsPerThread);
+            final List<Long> sorted = new ArrayList<Long>(values);
+            Collections.sort(sorted);
+            Assert.assertEquals(values, sorted);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testTornRecordEndsSegment() throws Exception
+    {
+        final WriteAheadLogBuffer buffer = new WriteAheadLogBuffer(basePath.getAbsolutePath(), "test", true, 4096, 0);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(buffer.append(createSamples(1, i)));
+        }
+        buffer.close();
+
+        final Collection<File> files = FileUtils.listFiles(basePath, new String[]{WriteAheadLogRecords.FILE_EXTENSION}, false);
+        Assert.assertEquals(files.size(), 1);
+        final File segment = files.iterator().next();
+        final long recordSize = buffer.getBytesOnDisk() / 3;
+        // Corrupt the last byte of the third record's body
+        final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(3 * recordSize - 1);
+            final byte lastByte = file.readByte();
+            file.seek(3 * recordSize - 1);
+            file.writeByte(lastByte ^ 0xff);
+        }
+        finally {
+            file.close();
+        }
+
+        Assert.assertEquals(new Replayer(basePath.getAbsolutePath()).readAll().size(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testDiscardDeletesSegments() throws Exception
+    {
+        final WriteAheadLogBuffer buffer = new WriteAheadLogBuffer(basePath.getAbsolutePath(), "test", true, 1024, 0);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(buffer.append(createSamples(1, i)));
+        }
+        Assert.assertTrue(buffer.getFilesCreated() > 1);
+
+        buffer.discard();
+        Assert.assertEquals(buffer.getFilesCreated(), 0);
+        Assert.assertEquals(buffer.getBytesOnDisk(), 0);
+        Assert.assertEquals(buffer.getFilesInUse().size(), 0);
+        Assert.assertEquals(FileUtils.listFiles(basePath, new String[]{WriteAheadLogRecords.FILE_EXTENSION}, false).size(), 0);
+        buffer.close();
+
+        Assert.assertEquals(new Replayer(basePath.getAbsolutePath()).readAll().size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testUnwrittenRecordIsSkipped() throws Exception
+    {
+        final WriteAheadLogBuffer buffer = new WriteAheadLogBuffer(basePath.getAbsolutePath(), "test", true, 4096, 0);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(buffer.append(createSamples(1, i)));
+        }
+        buffer.close();
+
+        final Collection<File> files = FileUtils.listFiles(basePath, new String[]{WriteAheadLogRecords.FILE_EXTENSION}, false);
+        Assert.assertEquals(files.size(), 1);
+        final long recordSize = buffer.getBytesOnDisk() / 4;
+        // Zero the length of the second record, as if its writer crashed before publishing it
+        final RandomAccessFile file = new RandomAccessFile(files.iterator().next(), "rw");
+        try {
+            file.seek(recordSize);
+            file.writeInt(0);
+        }
+        finally {
+            file.close();
+        }
+
+        final List<HostSamplesForTimestamp> replayed = new Replayer(basePath.getAbsolutePath()).readAll();
+        Assert.assertEquals(replayed.size(), 3);
+        Assert.assertEquals(replayed.get(0).getSamples().get(1).getSampleValue(), 0L);
+        Assert.assertEquals(replayed.get(1).getSamples().get(1).getSampleValue(), 2L);
+        Assert.assertEquals(replayed.get(2).getSamples().get(1).getSampleValue(), 3L);
+    }
+
+    @Test(groups = "fast")
+    public void testSegmentsCreatedOnFirstAppend() throws Exception
+    {
+        final WriteAheadLogBuffer buffer = new WriteAheadLogBuffer(basePath.getAbsolutePath(), "test", true, 4096, 0);
+        Assert.assertEquals(buffer.getFilesCreated(), 0);
+        Assert.assertEquals(buffer.getFilesInUse().size(), 0);
+        Assert.assertEquals(FileUtils.listFiles(basePath, new String[]{WriteAheadLogRecords.FILE_EXTENSION}, false).size(), 0);
+
+        Assert.assertTrue(buffer.append(createSamples(1, 0)));
+        Assert.assertEquals(buffer.getFilesCreated(), 1);
+        final Collection<File> files = FileUtils.listFiles(basePath, new String[]{WriteAheadLogRecords.FILE_EXTENSION}, false);
+        Assert.assertEquals(files.size(), 1);
+        Assert.assertEquals(buffer.getFilesInUse().size(), 1);
+        Assert.assertEquals(buffer.getFilesInUse().iterator().next().getAbsoluteFile(), files.iterator().next().getAbsoluteFile());
+
+        // A replay of the spool directory leaves the live segment alone
+        Assert.assertEquals(new Replayer(basePath.getAbsolutePath(), buffer).readAll().size(), 0);
+        Assert.assertTrue(buffer.append(createSamples(1, 1)));
+        buffer.close();
+
+        Assert.assertEquals(new Replayer(basePath.getAbsolutePath()).readAll().size(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testRolledSegmentsAreReleased() throws Exception
+    {
+        final WriteAheadLogBuffer buffer = new WriteAheadLogBuffer(basePath.getAbsolutePath(), "test", true, 1024, 0);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(buffer.append(createSamples(1, i)));
+        }
+        Assert.assertTrue(buffer.getFilesCreated() > 1);
+        // Only the current segment is still mapped
+        Assert.assertEquals(buffer.getSegmentsMapped(), 1);
+        Assert.assertEquals(buffer.getFilesInUse().size(), buffer.getFilesCreated());
+        buffer.close();
+
+        Assert.assertEquals(new Replayer(basePath.getAbsolutePath()).readAll().size(), 100);
+    }
+
+    private HostSamplesForTimestamp createSamples(final int hostId, final long value)
+    {
+        final Map<Integer, ScalarSample> samples = new LinkedHashMap<Integer, ScalarSample>();
+        samples.put(1, new ScalarSample<Long>(SampleOpcode.LONG, value));
+        samples.put(2, new ScalarSample<Double>(SampleOpcode.DOUBLE, value / 3.0));
+        return new HostSamplesForTimestamp(hostId, "Category", START_TIME.plusSeconds((int) value), samples);
+    }
+}
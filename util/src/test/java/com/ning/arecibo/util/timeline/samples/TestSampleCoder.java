@@ -218,4 +218,138 @@ public class TestSampleCoder
         final List<ScalarSample> samples = sampleCoder.decompressSamples(combinedBytes);
         Assert.assertEquals(samples.size(), 25);
     }
+
+    @Test(groups = "fast")
+    public void testPrimitiveSamplesMatchCompressedSamples() throws Exception
+    {
+        final Random random = new Random(0);
+        final List<ScalarSample> samples = new ArrayList<ScalarSample>();
+        long counter = 0;
+        for (int i = 0; i < 5000; i++) {
+            switch (random.nextInt(6)) {
+            case 0:
+                samples.add(new ScalarSample<Double>(SampleOpcode.DOUBLE, 42.0));
+                break;
+            case 1:
+                counter += random.nextInt(1000);
+                samples.add(new ScalarSample<Long>(SampleOpcode.LONG, counter * counter));
+                break;
+            case 2:
+                samples.add(new ScalarSample<Double>(SampleOpcode.DOUBLE, random.nextGaussian() * Math.pow(10, random.nextInt(12) - 4)));
+                break;
+            case 3:
+                samples.add(new ScalarSample<Integer>(SampleOpcode.INT, random.nextInt(3) - 1));
+                break;
+            case 4:
+                samples.add(new ScalarSample<Float>(SampleOpcode.FLOAT, random.nextFloat() * 1000.0f - 500.0f));
+                break;
+            default:
+                samples.add(new ScalarSample<Double>(SampleOpcode.DOUBLE, 0.0));
+                break;
+            }
+        }
+
+        final SampleAccumulator objects = new SampleAccumulator(sampleCoder);
+        final SampleAccumulator compressed = new SampleAccumulator(sampleCoder);
+        final SampleAccumulator primitives = new SampleAccumulator(sampleCoder);
+        final List<ScalarSample> compressedSamples = new ArrayList<ScalarSample>();
+        for (final ScalarSample sample : samples) {
+            final ScalarSample compressedSample = sampleCoder.compressSample(sample);
+            compressedSamples.add(compressedSample);
+            objects.addSample(compressedSample);
+            compressed.addCompressedSample(sample);
+            switch (sample.getOpcode()) {
+            case LONG:
+            case INT:
+                primitives.addLongSample(((Number) sample.getSampleValue()).longValue());
+                break;
+            case DOUBLE:
+                primitives.addDoubleSample((Double) sample.getSampleValue());
+                break;
+            default:
+                primitives.addCompressedSample(sample);
+                break;
+            }
+        }
+
+        final byte[] expectedBytes = encodeWithRepeats(compressedSamples);
+        Assert.assertEquals(objects.getEncodedSamples().getEncodedBytes(), expectedBytes);
+        Assert.assertEquals(compressed.getEncodedSamples().getEncodedBytes(), expectedBytes);
+        Assert.assertEquals(primitives.getEncodedSamples().getEncodedBytes(), expectedBytes);
+        Assert.assertEquals(primitives.getSampleCount(), samples.size());
+    }
+
+    @Test(groups = "fast")
+    public void testSampleCursor() throws Exception
+    {
+        final SampleAccumulator accumulator = new SampleAccumulator(sampleCoder);
+        accumulator.addLongSample(0);
+        accumulator.addLongSample(-100);
+        accumulator.addLongSample(-100);
+        accumulator.addLongSample(30000);
+        accumulator.addLongSample(5000000000L);
+        accumulator.addPlaceholder(3);
+        for (int i = 0; i < 300; i++) {
+            accumulator.addDoubleSample(1.5);
+        }
+        accumulator.addDoubleSample(Math.PI);
+        accumulator.addDoubleSample(1.0e300);
+        accumulator.addSample(new ScalarSample<String>(SampleOpcode.STRING, "Hiya!"));
+        accumulator.addSample(new ScalarSample<Float>(SampleOpcode.FLOAT, -2.25f));
+        final byte[] bytes = accumulator.getEncodedSamples().getEncodedBytes();
+
+        final List<ScalarSample> expectedSamples = sampleCoder.decompressSamples(bytes);
+        final SampleCursor cursor = new SampleCursor(bytes);
+        int sampleNumber = 0;
+        while (cursor.nextOpcode() != null) {
+            for (int i = 0; i < cursor.getRepeatCount(); i++) {
+                final ScalarSample expected = expectedSamples.get(sampleNumber++);
+                Assert.assertEquals(cursor.getOpcode(), expected.getOpcode());
+                Assert.assertEquals(cursor.getValue(), expected.getSampleValue());
+                if (cursor.getOpcode() != SampleOpcode.STRING) {
+                    // Decoded values of the *_FOR_DOUBLE opcodes are already Doubles
+                    final Object value = expected.getSampleValue();
+                    Assert.assertEquals(cursor.getDoubleValue(), value == null ? 0.0 : ((Number) value).doubleValue());
+                }
+            }
+        }
+        Assert.assertEquals(sampleNumber, expectedSamples.size());
+        Assert.assertNull(cursor.nextOpcode());
+
+        // Spot check the primitive values
+        final SampleCursor spotCursor = new SampleCursor(bytes);
+        Assert.assertEquals(spotCursor.nextOpcode(), SampleOpcode.INT_ZERO);
+        Assert.assertEquals(spotCursor.getLongValue(), 0);
+        Assert.assertEquals(spotCursor.nextOpcode(), SampleOpcode.BYTE);
+        Assert.assertEquals(spotCursor.getRepeatCount(), 2);
+        Assert.assertEquals(spotCursor.getLongValue(), -100);
+        Assert.assertEquals(spotCursor.nextOpcode(), SampleOpcode.SHORT);
+        Assert.assertEquals(spotCursor.getLongValue(), 30000);
+        Assert.assertEquals(spotCursor.nextOpcode(), SampleOpcode.LONG);
+        Assert.assertEquals(spotCursor.getLongValue(), 5000000000L);
+        Assert.assertEquals(spotCursor.nextOpcode(), SampleOpcode.NULL);
+        Assert.assertEquals(spotCursor.getRepeatCount(), 3);
+        Assert.assertEquals(spotCursor.nextOpcode(), SampleOpcode.HALF_FLOAT_FOR_DOUBLE);
+        Assert.assertEquals(spotCursor.getRepeatCount(), 300);
+        Assert.assertEquals(spotCursor.getDoubleValue(), 1.5);
+    }
+
+    // The encoding the accumulators have always produced: runs of identical samples become repeats
+    private byte[] encodeWithRepeats(final List<ScalarSample> samples) throws Exception
+    {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        int i = 0;
+        while (i < samples.size()) {
+            final ScalarSample sample = samples.get(i);
+            int count = 1;
+            while (i + count < samples.size() && count < RepeatSample.MAX_SHORT_REPEAT_COUNT && samples.get(i + count).equals(sample)) {
+                count++;
+            }
+            sampleCoder.encodeSample(dataOutputStream, count == 1 ? sample : new RepeatSample(count, sample));
+            i += count;
+        }
+        dataOutputStream.close();
+        return outputStream.toByteArray();
+    }
 }
@@ -28,6 +28,7 @@ import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import com.ning.arecibo.util.timeline.DateTimeUtils;
+import com.ning.arecibo.util.timeline.EncodedBytesSnapshot;
 
 public class TestTimelineCoder
 {
@@ -416,4 +417,65 @@ public class TestTimelineCoder
         }
         Assert.assertEquals(newCombinedLength, sampleCount);
     }
+
+    @Test(groups = "fast")
+    public void testTimesAccumulatorMatchesCompressDateTimes() throws Exception
+    {
+        final Random rand = new Random(0);
+        final TimesAccumulator accumulator = new TimesAccumulator();
+        final List<DateTime> dateTimes = new ArrayList<DateTime>();
+        DateTime time = DateTimeUtils.dateTimeFromUnixSeconds(1000000);
+        for (int i = 0; i < 0xFFFF + 1000; i++) {
+            final int choice = rand.nextInt(1000);
+            if (choice < 2) {
+                // Too big for a delta
+                time = time.plusSeconds(TimelineOpcode.MAX_DELTA_TIME + 1 + rand.nextInt(1000));
+            }
+            else if (choice < 20) {
+                time = time.plusSeconds(rand.nextInt(TimelineOpcode.MAX_DELTA_TIME + 1));
+            }
+            else {
+                time = time.plusSeconds(30);
+            }
+            dateTimes.add(time);
+            accumulator.addTime(time);
+            if (i % 997 == 0) {
+                Assert.assertEquals(accumulator.getEncodedTimesSnapshot().getEncodedBytes(), timelineCoder.compressDateTimes(dateTimes));
+            }
+        }
+        Assert.assertEquals(accumulator.getTimeCount(), dateTimes.size());
+        final byte[] timeBytes = accumulator.getEncodedTimes();
+        Assert.assertEquals(timeBytes, timelineCoder.compressDateTimes(dateTimes));
+        Assert.assertEquals(timelineCoder.decompressDateTimes(timeBytes), dateTimes);
+
+        accumulator.reset();
+        Assert.assertEquals(accumulator.getTimeCount(), 0);
+        Assert.assertEquals(accumulator.getEncodedTimes().length, 0);
+    }
+
+    @Test(groups = "fast")
+    public void testTimesAccumulatorSnapshotIsImmutable() throws Exception
+    {
+        final TimesAccumulator accumulator = new TimesAccumulator();
+        final List<DateTime> dateTimes = new ArrayList<DateTime>();
+        DateTime time = DateTimeUtils.dateTimeFromUnixSeconds(1000000);
+        for (int i = 0; i < 50; i++) {
+            time = time.plusSeconds(30);
+            dateTimes.add(time);
+            accumulator.addTime(time);
+        }
+        final EncodedBytesSnapshot snapshot = accumulator.getEncodedTimesSnapshot();
+        final byte[] expectedBytes = timelineCoder.compressDateTimes(dateTimes);
+
+        // Keep appending, enough to grow the buffer several times, then reset
+        for (int i = 0; i < 5000; i++) {
+            time = time.plusSeconds(1 + (i % 7) * 300);
+            accumulator.addTime(time);
+        }
+        accumulator.reset();
+        accumulator.addTime(time.plusSeconds(30));
+
+        Assert.assertEquals(snapshot.getCount(), 50);
+        Assert.assertEquals(snapshot.getEncodedBytes(), expectedBytes);
+    }
 }